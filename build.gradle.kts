@@ -21,7 +21,9 @@ dependencies {
     testImplementation("org.junit.jupiter:junit-jupiter-api:5.9.0")
     testImplementation("com.codahale.metrics:metrics-core:3.0.2")
     testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine:5.9.0")
+    testCompileOnly("org.apache.cassandra:cassandra-all:4.0.7")
     testRuntimeOnly("org.apache.cassandra:cassandra-all:4.0.7")
+    jmh("org.apache.cassandra:cassandra-all:4.0.7")
 }
 
 tasks.jar {
@@ -43,5 +45,5 @@ jmh {
     iterations.set(1)
     fork.set(1)
     jmhVersion.set("1.35")
-    profilers.add("async:libPath=/Users/michael.burman/Downloads/async-profiler-2.8.3-macos/build/libasyncProfiler.so;output=flamegraph;event=alloc;verbose=true")
+    profilers.add("gc")
 }
@@ -0,0 +1,224 @@
+package io.k8ssandra.metrics.benchmark;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.k8ssandra.metrics.builder.filter.FilteringSpec;
+import org.apache.cassandra.metrics.DecayingEstimatedHistogramReservoir;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metric layout of a Cassandra 4.0 node: the table metrics as Table.&lt;metric&gt;.&lt;keyspace&gt;.&lt;table&gt; with their
+ * ColumnFamily aliases, the keyspace and thread pool scopes and the client requests. Latencies and histograms use
+ * Cassandra's DecayingEstimatedHistogramReservoir like the server does.
+ *
+ * The system keyspaces' tables are always created, tables is the amount of user tables spread over 10 keyspaces.
+ */
+final class CassandraNode {
+
+    private static final String PREFIX = "org.apache.cassandra.metrics.";
+
+    private static final String[][] SYSTEM_TABLES = {
+            { "system", "local", "peers_v2", "peers", "paxos", "batches", "size_estimates", "table_estimates", "compaction_history",
+                    "sstable_activity", "available_ranges_v2", "transferred_ranges_v2", "view_builds_in_progress", "built_views",
+                    "prepared_statements", "repairs" },
+            { "system_schema", "keyspaces", "tables", "columns", "dropped_columns", "triggers", "views", "types", "functions",
+                    "aggregates", "indexes" },
+            { "system_auth", "roles", "role_members", "role_permissions", "resource_role_permissons_index", "network_permissions" },
+            { "system_distributed", "repair_history", "parent_repair_history", "view_build_status" },
+            { "system_traces", "sessions", "events" }
+    };
+
+    private static final int USER_KEYSPACES = 10;
+
+    private static final String[] TABLE_GAUGES = {
+            "MemtableOnHeapSize", "MemtableOffHeapSize", "MemtableLiveDataSize", "AllMemtablesHeapSize", "AllMemtablesOffHeapSize",
+            "AllMemtablesLiveDataSize", "MemtableColumnsCount", "EstimatedPartitionCount", "PendingCompactions", "LiveSSTableCount",
+            "OldVersionSSTableCount", "MinPartitionSize", "MaxPartitionSize", "MeanPartitionSize", "BloomFilterFalsePositives",
+            "RecentBloomFilterFalsePositives", "BloomFilterDiskSpaceUsed", "BloomFilterOffHeapMemoryUsed", "IndexSummaryOffHeapMemoryUsed",
+            "CompressionMetadataOffHeapMemoryUsed", "BytesRepaired", "BytesUnrepaired", "BytesPendingRepair", "DroppableTombstoneRatio"
+    };
+    private static final String[] TABLE_RATIO_GAUGES = { "CompressionRatio", "BloomFilterFalseRatio", "RecentBloomFilterFalseRatio", "KeyCacheHitRate", "PercentRepaired" };
+    private static final String[] TABLE_HISTOGRAM_GAUGES = { "EstimatedPartitionSizeHistogram", "EstimatedColumnCountHistogram" };
+    private static final String[] TABLE_COUNTERS = {
+            "MemtableSwitchCount", "LiveDiskSpaceUsed", "TotalDiskSpaceUsed", "PendingFlushes", "BytesFlushed", "CompactionBytesWritten",
+            "RowCacheHit", "RowCacheHitOutOfRange", "RowCacheMiss", "ReadTotalLatency", "WriteTotalLatency", "RangeTotalLatency",
+            "DroppedMutations"
+    };
+    private static final String[] TABLE_METERS = { "ReadRepairRequests", "ShortReadProtectionRequests", "ReplicaFilteringProtectionRequests", "SpeculativeRetries" };
+    private static final String[] TABLE_TIMERS = {
+            "ReadLatency", "WriteLatency", "RangeLatency", "CoordinatorReadLatency", "CoordinatorScanLatency", "CoordinatorWriteLatency",
+            "CasPrepare", "CasPropose", "CasCommit", "ViewLockAcquireTime", "ViewReadTime"
+    };
+    private static final String[] TABLE_HISTOGRAMS = { "SSTablesPerReadHistogram", "TombstoneScannedHistogram", "LiveScannedHistogram", "ColUpdateTimeDeltaHistogram" };
+
+    private static final String[] KEYSPACE_GAUGES = {
+            "MemtableOnHeapDataSize", "MemtableOffHeapDataSize", "MemtableLiveDataSize", "AllMemtablesOnHeapDataSize",
+            "AllMemtablesOffHeapDataSize", "AllMemtablesLiveDataSize", "MemtableColumnsCount", "MemtableSwitchCount",
+            "PendingFlushes", "PendingCompactions", "LiveDiskSpaceUsed", "TotalDiskSpaceUsed", "BloomFilterDiskSpaceUsed"
+    };
+    private static final String[] KEYSPACE_TIMERS = { "ReadLatency", "WriteLatency", "RangeLatency", "CasPrepare", "CasPropose", "CasCommit" };
+    private static final String[] KEYSPACE_HISTOGRAMS = { "SSTablesPerReadHistogram", "TombstoneScannedHistogram", "LiveScannedHistogram" };
+
+    private static final String[][] THREAD_POOLS = {
+            { "request", "ReadStage", "MutationStage", "CounterMutationStage", "ViewMutationStage", "ReadRepairStage" },
+            { "internal", "CompactionExecutor", "MemtableFlushWriter", "MemtablePostFlush", "MemtableReclaimMemory", "GossipStage",
+                    "MigrationStage", "AntiEntropyStage", "ValidationExecutor", "Sampler", "SecondaryIndexManagement", "HintsDispatcher",
+                    "CacheCleanupExecutor", "PendingRangeCalculator", "PerDiskMemtableFlushWriter_0" },
+            { "transport", "Native-Transport-Requests" }
+    };
+    private static final String[] THREAD_POOL_GAUGES = { "ActiveTasks", "PendingTasks", "CompletedTasks", "MaxPoolSize", "MaxTasksQueued" };
+    private static final String[] THREAD_POOL_COUNTERS = { "TotalBlockedTasks", "CurrentlyBlockedTasks" };
+
+    private static final String[] CLIENT_REQUESTS = { "Read", "Write", "RangeSlice", "CASRead", "CASWrite", "ViewWrite" };
+
+    private CassandraNode() {
+    }
+
+    /**
+     * @return the keyspace and table of every table of a node with the user tables
+     */
+    static List<String[]> tables(int userTables) {
+        List<String[]> tables = new ArrayList<>();
+        for (String[] keyspace : SYSTEM_TABLES) {
+            for (int i = 1; i < keyspace.length; i++) {
+                tables.add(new String[]{ keyspace[0], keyspace[i] });
+            }
+        }
+        for (int i = 0; i < userTables; i++) {
+            tables.add(new String[]{ "app_" + (i % USER_KEYSPACES), "table_" + i });
+        }
+        return tables;
+    }
+
+    /**
+     * Registers the metrics of a node with the tables, like Cassandra does at startup
+     */
+    static void register(MetricRegistry registry, List<String[]> tables) {
+        for (String[] pools : THREAD_POOLS) {
+            for (int i = 1; i < pools.length; i++) {
+                String scope = "." + pools[0] + "." + pools[i];
+                for (String gauge : THREAD_POOL_GAUGES) {
+                    registry.register(PREFIX + "ThreadPools." + gauge + scope, (Gauge<Integer>) () -> 4);
+                }
+                for (String counter : THREAD_POOL_COUNTERS) {
+                    registry.counter(PREFIX + "ThreadPools." + counter + scope);
+                }
+            }
+        }
+        for (String request : CLIENT_REQUESTS) {
+            registry.register(PREFIX + "ClientRequest.Latency." + request, updated(new Timer(new DecayingEstimatedHistogramReservoir())));
+            registry.meter(PREFIX + "ClientRequest.Timeouts." + request);
+            registry.meter(PREFIX + "ClientRequest.Unavailables." + request);
+            registry.meter(PREFIX + "ClientRequest.Failures." + request);
+        }
+
+        Set<String> keyspaces = new HashSet<>();
+        for (String[] table : tables) {
+            if (keyspaces.add(table[0])) {
+                registerKeyspace(registry, table[0]);
+            }
+            registerTable(registry, table[0], table[1]);
+        }
+    }
+
+    private static void registerKeyspace(MetricRegistry registry, String keyspace) {
+        String scope = "." + keyspace;
+        for (String gauge : KEYSPACE_GAUGES) {
+            registry.register(PREFIX + "keyspace." + gauge + scope, (Gauge<Long>) () -> 1024L);
+        }
+        for (String timer : KEYSPACE_TIMERS) {
+            registry.register(PREFIX + "keyspace." + timer + scope, updated(new Timer(new DecayingEstimatedHistogramReservoir())));
+        }
+        for (String histogram : KEYSPACE_HISTOGRAMS) {
+            registry.register(PREFIX + "keyspace." + histogram + scope, new Histogram(new DecayingEstimatedHistogramReservoir()));
+        }
+    }
+
+    /**
+     * Registers the metrics of a table, and their ColumnFamily aliases, like a CREATE TABLE does
+     */
+    static void registerTable(MetricRegistry registry, String keyspace, String table) {
+        String scope = "." + keyspace + "." + table;
+        for (String gauge : TABLE_GAUGES) {
+            registerWithAlias(registry, gauge, scope, (Gauge<Long>) () -> 4096L);
+        }
+        for (String gauge : TABLE_RATIO_GAUGES) {
+            registerWithAlias(registry, gauge, scope, (Gauge<Double>) () -> 0.5);
+        }
+        for (String gauge : TABLE_HISTOGRAM_GAUGES) {
+            long[] buckets = new long[90];
+            buckets[42] = 10;
+            registerWithAlias(registry, gauge, scope, (Gauge<long[]>) () -> buckets);
+        }
+        for (String counter : TABLE_COUNTERS) {
+            registerWithAlias(registry, counter, scope, new Counter());
+        }
+        for (String meter : TABLE_METERS) {
+            registerWithAlias(registry, meter, scope, new Meter());
+        }
+        for (String timer : TABLE_TIMERS) {
+            registerWithAlias(registry, timer, scope, updated(new Timer(new DecayingEstimatedHistogramReservoir())));
+        }
+        for (String histogram : TABLE_HISTOGRAMS) {
+            registerWithAlias(registry, histogram, scope, new Histogram(new DecayingEstimatedHistogramReservoir()));
+        }
+    }
+
+    /**
+     * Removes the metrics of a table, and their aliases, like a DROP TABLE does
+     */
+    static void removeTable(MetricRegistry registry, String keyspace, String table) {
+        String scope = "." + keyspace + "." + table;
+        for (String[] metrics : new String[][]{ TABLE_GAUGES, TABLE_RATIO_GAUGES, TABLE_HISTOGRAM_GAUGES, TABLE_COUNTERS, TABLE_METERS, TABLE_TIMERS, TABLE_HISTOGRAMS }) {
+            for (String metric : metrics) {
+                registry.remove(PREFIX + "Table." + metric + scope);
+                registry.remove(PREFIX + "ColumnFamily." + metric + scope);
+            }
+        }
+    }
+
+    private static void registerWithAlias(MetricRegistry registry, String metric, String scope, Metric instance) {
+        registry.register(PREFIX + "Table." + metric + scope, instance);
+        registry.register(PREFIX + "ColumnFamily." + metric + scope, instance);
+    }
+
+    private static Timer updated(Timer timer) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 20; i++) {
+            timer.update(50 + random.nextInt(5000), TimeUnit.MICROSECONDS);
+        }
+        return timer;
+    }
+
+    /**
+     * Relabel rules of a typical deployment, dropping the aliases, the rarely used table metrics and some system
+     * keyspaces
+     */
+    static List<FilteringSpec> filters() {
+        List<FilteringSpec> specs = new ArrayList<>();
+        specs.add(new FilteringSpec(List.of("__origname__"), "@", "org\\.apache\\.cassandra\\.metrics\\.ColumnFamily\\..*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_all_memtables_.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_bloom_filter.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_recent_bloom_filter.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_index_summary.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_row_cache.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_cas_.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_view_.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_threadpools_.*_max_tasks_queued", "drop"));
+        specs.add(new FilteringSpec(List.of("keyspace"), "@", "system_traces", "drop"));
+        specs.add(new FilteringSpec(List.of("keyspace"), "@", "system_distributed", "drop"));
+        specs.add(new FilteringSpec(List.of("keyspace", "table"), "@", "system_schema@(aggregates|functions|types|triggers|views)", "drop"));
+        return specs;
+    }
+}
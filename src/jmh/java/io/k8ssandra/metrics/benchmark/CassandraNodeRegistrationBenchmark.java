@@ -0,0 +1,81 @@
+package io.k8ssandra.metrics.benchmark;
+
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
+import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registration and removal of a {@link CassandraNode}'s metrics with the exporter listening: a node starting with
+ * its tables and dropping all of its user tables.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class CassandraNodeRegistrationBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class EmptyNode {
+        @Param({ "100", "1000", "10000" })
+        int tables;
+
+        List<String[]> tableNames;
+        MetricRegistry registry;
+        CassandraDropwizardExports exporter;
+
+        @Setup(Level.Trial)
+        public void names() {
+            tableNames = CassandraNode.tables(tables);
+        }
+
+        @Setup(Level.Invocation)
+        public void init() {
+            registry = new MetricRegistry();
+            exporter = new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(CassandraNode.filters()));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class StartedNode {
+        @Param({ "100", "1000", "10000" })
+        int tables;
+
+        List<String[]> tableNames;
+        MetricRegistry registry;
+        CassandraDropwizardExports exporter;
+
+        @Setup(Level.Trial)
+        public void names() {
+            tableNames = CassandraNode.tables(tables);
+        }
+
+        @Setup(Level.Invocation)
+        public void init() {
+            registry = new MetricRegistry();
+            exporter = new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(CassandraNode.filters()));
+            CassandraNode.register(registry, tableNames);
+        }
+    }
+
+    @Benchmark
+    public void startNode(EmptyNode node, Blackhole bh) {
+        CassandraNode.register(node.registry, node.tableNames);
+        bh.consume(node.exporter);
+    }
+
+    @Benchmark
+    public void dropUserTables(StartedNode node, Blackhole bh) {
+        for (String[] table : node.tableNames) {
+            if (!table[0].startsWith("system")) {
+                CassandraNode.removeTable(node.registry, table[0], table[1]);
+            }
+        }
+        bh.consume(node.exporter);
+    }
+}
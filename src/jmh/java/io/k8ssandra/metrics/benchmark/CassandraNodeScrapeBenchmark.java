@@ -0,0 +1,65 @@
+package io.k8ssandra.metrics.benchmark;
+
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
+import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
+import io.k8ssandra.metrics.prometheus.ProtobufWriter;
+import io.k8ssandra.metrics.prometheus.TextFormatWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The scrape path of a started {@link CassandraNode} with typical relabel rules: collecting the MetricFamilySamples,
+ * encoding directly to the text and protobuf formats, and evaluating the filters again on a configuration reload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class CassandraNodeScrapeBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    private int tables;
+
+    private CassandraDropwizardExports exporter;
+
+    private TextFormatWriter textWriter;
+
+    private ProtobufWriter protobufWriter;
+
+    @Setup(Level.Trial)
+    public void init() {
+        MetricRegistry registry = new MetricRegistry();
+        exporter = new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(CassandraNode.filters()));
+        CassandraNode.register(registry, CassandraNode.tables(tables));
+        textWriter = new TextFormatWriter();
+        protobufWriter = new ProtobufWriter();
+    }
+
+    @Benchmark
+    public void collect(Blackhole bh) {
+        bh.consume(exporter.collect());
+    }
+
+    @Benchmark
+    public void encodeText(Blackhole bh) {
+        textWriter.reset();
+        exporter.write(textWriter);
+        bh.consume(textWriter.size());
+    }
+
+    @Benchmark
+    public void encodeProtobuf(Blackhole bh) {
+        protobufWriter.reset();
+        exporter.write(protobufWriter);
+        bh.consume(protobufWriter.size());
+    }
+
+    @Benchmark
+    public void reloadFilters(Blackhole bh) {
+        exporter.setFilter(new CassandraMetricDefinitionFilter(CassandraNode.filters()));
+        bh.consume(exporter);
+    }
+}
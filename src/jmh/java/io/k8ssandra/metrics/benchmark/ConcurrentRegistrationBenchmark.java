@@ -0,0 +1,88 @@
+package io.k8ssandra.metrics.benchmark;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup registration of the tables' metrics from several threads. Every table adds its series to the same shared
+ * families, like Cassandra's schema loading does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ConcurrentRegistrationBenchmark {
+
+    private static final String TABLE_PREFIX = "org.apache.cassandra.metrics.Table.";
+
+    private static final String[] GAUGES = { "LiveSSTableCount", "PendingCompactions", "LiveDiskSpaceUsed", "MemtableOnHeapSize" };
+    private static final String[] COUNTERS = { "PendingFlushes", "BytesFlushed" };
+    private static final String[] TIMERS = { "ReadLatency", "WriteLatency", "RangeLatency" };
+    private static final String[] HISTOGRAMS = { "TombstoneScannedHistogram" };
+
+    @Param({ "10000" })
+    private int tables;
+
+    @Param({ "1", "8", "32" })
+    private int threads;
+
+    private MetricRegistry registry;
+
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void startExecutor() {
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopExecutor() {
+        executor.shutdown();
+    }
+
+    @Setup(Level.Invocation)
+    public void init() {
+        registry = new MetricRegistry();
+        new CassandraDropwizardExports(registry);
+    }
+
+    @Benchmark
+    public void registerTables(Blackhole bh) throws Exception {
+        List<Future<?>> futures = new ArrayList<>(threads);
+        for (int thread = 0; thread < threads; thread++) {
+            int first = thread;
+            futures.add(executor.submit(() -> {
+                for (int table = first; table < tables; table += threads) {
+                    String scope = ".ks_" + (table % 10) + ".table_" + table;
+                    for (String gauge : GAUGES) {
+                        registry.register(TABLE_PREFIX + gauge + scope, (Gauge<Long>) () -> 1L);
+                    }
+                    for (String counter : COUNTERS) {
+                        registry.counter(TABLE_PREFIX + counter + scope);
+                    }
+                    for (String timer : TIMERS) {
+                        registry.timer(TABLE_PREFIX + timer + scope);
+                    }
+                    for (String histogram : HISTOGRAMS) {
+                        registry.histogram(TABLE_PREFIX + histogram + scope);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        bh.consume(registry);
+    }
+}
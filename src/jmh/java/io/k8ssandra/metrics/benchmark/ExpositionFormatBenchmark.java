@@ -0,0 +1,65 @@
+package io.k8ssandra.metrics.benchmark;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
+import io.k8ssandra.metrics.prometheus.ExpositionWriter;
+import io.k8ssandra.metrics.prometheus.OpenMetricsWriter;
+import io.k8ssandra.metrics.prometheus.ProtobufWriter;
+import io.k8ssandra.metrics.prometheus.RemoteWriteWriter;
+import io.k8ssandra.metrics.prometheus.TextFormatWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode time of each exposition format
+ */
+@State(Scope.Benchmark)
+public class ExpositionFormatBenchmark {
+
+    private CassandraDropwizardExports exporter;
+
+    private ExpositionWriter writer;
+
+    @Param({ "text", "openmetrics", "protobuf", "remotewrite" })
+    private String format;
+
+    @Param({ "1000" })
+    private int metricsCount;
+
+    @Setup(Level.Trial)
+    public void init() {
+        MetricRegistry registry = new MetricRegistry();
+        exporter = new CassandraDropwizardExports(registry);
+        for (int i = 0; i < metricsCount; i++) {
+            registry.counter(String.format("org.apache.cassandra.metrics.Table.ReadCount.ks.t_%d", i)).inc(i);
+            registry.meter(String.format("org.apache.cassandra.metrics.Table.BytesFlushed.ks.t_%d", i)).mark(i * 1000L);
+            registry.timer(String.format("org.apache.cassandra.metrics.Table.ReadLatency.ks.t_%d", i)).update(i, TimeUnit.MICROSECONDS);
+            registry.histogram(String.format("org.apache.cassandra.metrics.Table.SSTablesPerReadHistogram.ks.t_%d", i)).update(i);
+            registry.register(String.format("org.apache.cassandra.metrics.Table.LiveDiskSpaceUsed.ks.t_%d", i), (Gauge<Long>) () -> 123456789L);
+        }
+
+        switch (format) {
+            case "openmetrics":
+                writer = new OpenMetricsWriter();
+                break;
+            case "protobuf":
+                writer = new ProtobufWriter();
+                break;
+            case "remotewrite":
+                writer = new RemoteWriteWriter();
+                break;
+            default:
+                writer = new TextFormatWriter();
+        }
+    }
+
+    @Benchmark
+    public void encode(Blackhole bh) {
+        writer.reset();
+        exporter.write(writer);
+        bh.consume(writer.size());
+    }
+}
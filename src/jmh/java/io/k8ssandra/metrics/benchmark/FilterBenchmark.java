@@ -0,0 +1,121 @@
+package io.k8ssandra.metrics.benchmark;
+
+import io.k8ssandra.metrics.builder.CassandraMetricDefinition;
+import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
+import io.k8ssandra.metrics.builder.filter.FilteringSpec;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Evaluates a realistic set of relabeling rules for table, keyspace and other metric definitions. The previous
+ * evaluation, a HashMap of the labels and a regex match for every spec, is benchmarked for comparison.
+ */
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+
+    private static final String[] TABLE_METRICS = {
+            "read_latency", "write_latency", "range_latency", "coordinator_read_latency", "coordinator_scan_latency",
+            "live_ss_table_count", "pending_compactions", "memtable_on_heap_size", "memtable_off_heap_size",
+            "bloom_filter_false_positives", "estimated_partition_size_histogram", "tombstone_scanned_histogram",
+            "key_cache_hit_rate", "speculative_retries", "dropped_mutations", "repaired_data_tracking_overread_rows",
+            "cas_prepare", "view_read_time", "compression_ratio", "bytes_flushed"
+    };
+
+    private static final String[] KEYSPACES = { "system", "system_schema", "system_auth", "system_distributed", "system_traces", "app", "reaper_db" };
+
+    private List<FilteringSpec> specs;
+
+    private CassandraMetricDefinitionFilter filter;
+
+    private CassandraMetricDefinition[] definitions;
+
+    private String[] dropwizardNames;
+
+    @Setup(Level.Trial)
+    public void init() {
+        specs = new ArrayList<>();
+        // Table metrics that are not needed by the dashboards
+        for (String metric : new String[]{ "bloom_filter_false_positives", "cas_prepare", "view_read_time", "bytes_flushed", "compression_ratio", "repaired_data_tracking_overread_rows" }) {
+            specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_" + metric + ".*", "drop"));
+        }
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_speculative_retries", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_dropped_mutations", "drop"));
+        specs.add(new FilteringSpec(List.of("__origname__"), "@", "org\\.apache\\.cassandra\\.metrics\\.Table\\.Cas.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__origname__"), "@", "org\\.apache\\.cassandra\\.metrics\\.ColumnFamily\\..*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_threadpools_.*_max_tasks_queued", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_messaging_.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_index_.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_(batch_log|hints_service)_.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "jvm_threads_.*_count", "drop"));
+        // Only the keyspace metrics of the user keyspaces and only some of the system tables
+        specs.add(new FilteringSpec(List.of("__name__", "keyspace"), "@", "org_apache_cassandra_metrics_keyspace_.*@system.*", "drop"));
+        specs.add(new FilteringSpec(List.of("keyspace"), "@", "system_traces", "drop"));
+        specs.add(new FilteringSpec(List.of("keyspace"), "@", "system_distributed", "drop"));
+        specs.add(new FilteringSpec(List.of("keyspace", "table"), "@", "system_schema@(aggregates|functions|types|triggers|views)", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__", "table"), "@", "(org_apache_cassandra_metrics_table_.*)@\\b(?!peers_v2\\b)\\w+_v2", "drop"));
+        specs.add(new FilteringSpec(List.of("cluster"), "@", "production", "keep"));
+        specs.add(new FilteringSpec(List.of("datacenter"), "@", "dc[0-9]+", "keep"));
+        filter = new CassandraMetricDefinitionFilter(specs);
+
+        List<CassandraMetricDefinition> definitionList = new ArrayList<>();
+        List<String> dropwizardNameList = new ArrayList<>();
+        List<String> tableLabels = List.of("host", "cluster", "datacenter", "rack", "keyspace", "table");
+        List<String> keyspaceLabels = List.of("host", "cluster", "datacenter", "rack", "keyspace");
+        for (String keyspace : KEYSPACES) {
+            for (int table = 0; table < 10; table++) {
+                for (String metric : TABLE_METRICS) {
+                    definitionList.add(new CassandraMetricDefinition("org_apache_cassandra_metrics_table_" + metric + "_count", tableLabels,
+                            List.of("6cc2e5ce-e73f-4592-8d02-fd5e17a070e3", "production", "dc1", "rack1", keyspace, "table_" + table)));
+                    dropwizardNameList.add("org.apache.cassandra.metrics.Table." + metric + "." + keyspace + ".table_" + table);
+                }
+            }
+            for (String metric : TABLE_METRICS) {
+                definitionList.add(new CassandraMetricDefinition("org_apache_cassandra_metrics_keyspace_" + metric + "_count", keyspaceLabels,
+                        List.of("6cc2e5ce-e73f-4592-8d02-fd5e17a070e3", "production", "dc1", "rack1", keyspace)));
+                dropwizardNameList.add("org.apache.cassandra.metrics.keyspace." + metric + "." + keyspace);
+            }
+        }
+        for (String pool : new String[]{ "read_stage", "mutation_stage", "compaction_executor", "gossip_stage", "native_transport_requests" }) {
+            for (String metric : new String[]{ "active_tasks", "pending_tasks", "completed_tasks", "max_tasks_queued" }) {
+                definitionList.add(new CassandraMetricDefinition("org_apache_cassandra_metrics_threadpools_" + pool + "_" + metric, keyspaceLabels.subList(0, 4),
+                        List.of("6cc2e5ce-e73f-4592-8d02-fd5e17a070e3", "production", "dc1", "rack1")));
+                dropwizardNameList.add("org.apache.cassandra.metrics.ThreadPools." + metric + "." + pool);
+            }
+        }
+        definitions = definitionList.toArray(new CassandraMetricDefinition[0]);
+        dropwizardNames = dropwizardNameList.toArray(new String[0]);
+    }
+
+    @Benchmark
+    public void compiledFilter(Blackhole bh) {
+        for (int i = 0; i < definitions.length; i++) {
+            bh.consume(filter.matches(definitions[i], dropwizardNames[i]));
+        }
+    }
+
+    /**
+     * The evaluation before the specs were compiled
+     */
+    @Benchmark
+    public void labelMapFilter(Blackhole bh) {
+        for (int i = 0; i < definitions.length; i++) {
+            CassandraMetricDefinition definition = definitions[i];
+            HashMap<String, String> labels = new HashMap<>(definition.getLabelValues().size());
+            for (int j = 0; j < definition.getLabelValues().size(); j++) {
+                labels.put(definition.getLabelNames().get(j), definition.getLabelValues().get(j));
+            }
+            labels.put(FilteringSpec.METRIC_NAME_LABELNAME, definition.getMetricName());
+            labels.put(FilteringSpec.CASSANDRA_METRIC_NAME_LABELNAME, dropwizardNames[i]);
+
+            boolean keep = true;
+            for (FilteringSpec spec : specs) {
+                keep &= spec.filter(labels);
+            }
+            bh.consume(keep);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package io.k8ssandra.metrics.benchmark;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
+import io.k8ssandra.metrics.prometheus.TextFormatWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Text format scrapes of a registry where only activeTablesPercent of the tables' series change between the
+ * scrapes, with and without the cache of the encoded lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IdleSeriesBenchmark {
+
+    private static final String TABLE_PREFIX = "org.apache.cassandra.metrics.Table.";
+
+    @Param({ "1000" })
+    private int tables;
+
+    @Param({ "10" })
+    private int activeTablesPercent;
+
+    @Param({ "true", "false" })
+    private boolean cacheLines;
+
+    private CassandraDropwizardExports exporter;
+
+    private TextFormatWriter writer;
+
+    private Counter[] counters;
+    private Meter[] meters;
+    private Timer[] timers;
+    private AtomicLong[] gaugeValues;
+
+    private int activeTables;
+
+    @Setup(Level.Trial)
+    public void init() {
+        MetricRegistry registry = new MetricRegistry();
+        exporter = new CassandraDropwizardExports(registry);
+        writer = new TextFormatWriter(cacheLines);
+
+        counters = new Counter[tables];
+        meters = new Meter[tables];
+        timers = new Timer[tables];
+        gaugeValues = new AtomicLong[tables];
+        for (int i = 0; i < tables; i++) {
+            String scope = ".ks_" + (i % 10) + ".table_" + i;
+            counters[i] = registry.counter(TABLE_PREFIX + "PendingFlushes" + scope);
+            meters[i] = registry.meter(TABLE_PREFIX + "BytesFlushed" + scope);
+            timers[i] = registry.timer(TABLE_PREFIX + "ReadLatency" + scope);
+            timers[i].update(i + 1, TimeUnit.MICROSECONDS);
+            AtomicLong gaugeValue = new AtomicLong(i * 1024L);
+            gaugeValues[i] = gaugeValue;
+            registry.register(TABLE_PREFIX + "LiveDiskSpaceUsed" + scope, (Gauge<Double>) () -> gaugeValue.get() / 3.0);
+        }
+        activeTables = tables * activeTablesPercent / 100;
+    }
+
+    @Setup(Level.Invocation)
+    public void update() {
+        for (int i = 0; i < activeTables; i++) {
+            counters[i].inc();
+            meters[i].mark(1000);
+            timers[i].update(i, TimeUnit.MICROSECONDS);
+            gaugeValues[i].incrementAndGet();
+        }
+    }
+
+    @Benchmark
+    public void scrape(Blackhole bh) {
+        writer.reset();
+        exporter.write(writer);
+        bh.consume(writer.size());
+    }
+}
@@ -3,9 +3,18 @@ package io.k8ssandra.metrics.benchmark;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
+import io.k8ssandra.metrics.prometheus.TextFormatWriter;
+import io.prometheus.client.exporter.common.TextFormat;
 import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.infra.Blackhole;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
 @State(Scope.Benchmark)
 public class MetricRegistryParsingBenchmark {
 
@@ -13,6 +22,10 @@ public class MetricRegistryParsingBenchmark {
 
     private CassandraDropwizardExports exporter;
 
+    private ByteArrayOutputStream textFormatBuffer;
+
+    private TextFormatWriter textFormatWriter;
+
     @Param({ "1000" })
     private int metricsCount;
 
@@ -29,10 +42,31 @@ public class MetricRegistryParsingBenchmark {
             registry.register(String.format("g_nr_%d", i), (Gauge<Integer>) () -> 3);
             registry.register(String.format("gh_nr_%d", i), (Gauge<long[]>) () -> new long[]{1,2,3,0});
         }
+        textFormatBuffer = new ByteArrayOutputStream(1 << 16);
+        textFormatWriter = new TextFormatWriter();
     }
 
     @Benchmark
     public void registryParsing(Blackhole bh) {
         bh.consume(exporter.collect());
     }
+
+    /**
+     * The previous exposition path, MetricFamilySamples encoded with the simpleclient's TextFormat
+     */
+    @Benchmark
+    public void collectorTextFormat(Blackhole bh) throws IOException {
+        textFormatBuffer.reset();
+        Writer writer = new OutputStreamWriter(textFormatBuffer, StandardCharsets.UTF_8);
+        TextFormat.write004(writer, Collections.enumeration(exporter.collect()));
+        writer.flush();
+        bh.consume(textFormatBuffer.size());
+    }
+
+    @Benchmark
+    public void directTextFormat(Blackhole bh) {
+        textFormatWriter.reset();
+        exporter.write(textFormatWriter);
+        bh.consume(textFormatWriter.size());
+    }
 }
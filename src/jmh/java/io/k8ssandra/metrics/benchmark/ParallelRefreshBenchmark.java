@@ -0,0 +1,63 @@
+package io.k8ssandra.metrics.benchmark;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
+import io.k8ssandra.metrics.config.Configuration;
+import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
+import io.k8ssandra.metrics.prometheus.TextFormatWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scrape latency of a large schema with the families refreshed by an increasing amount of threads, 0 being the
+ * scraping thread only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelRefreshBenchmark {
+
+    private CassandraDropwizardExports exporter;
+
+    private TextFormatWriter textFormatWriter;
+
+    @Param({ "1000", "10000", "50000" })
+    private int seriesCount;
+
+    @Param({ "0", "2", "4", "8" })
+    private int refreshParallelism;
+
+    @Setup(Level.Trial)
+    public void init() {
+        MetricRegistry registry = new MetricRegistry();
+        Configuration configuration = new Configuration(new ArrayList<>());
+        configuration.getScrape().setRefreshParallelism(refreshParallelism);
+        exporter = new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(configuration.getFilters()), configuration);
+
+        // Roughly the mix of a table's metrics, the timers and histograms have 7 series each
+        for (int series = 0, i = 0; series < seriesCount; i++) {
+            registry.counter(String.format("c_nr_%d", i)).inc(i);
+            registry.register(String.format("g_nr_%d", i), (Gauge<Long>) () -> 3L);
+            registry.timer(String.format("t_nr_%d", i)).update(i, TimeUnit.MICROSECONDS);
+            registry.histogram(String.format("h_nr_%d", i)).update(i);
+            series += 16;
+        }
+        textFormatWriter = new TextFormatWriter();
+    }
+
+    @Benchmark
+    public void collect(Blackhole bh) {
+        bh.consume(exporter.collect());
+    }
+
+    @Benchmark
+    public void directTextFormat(Blackhole bh) {
+        textFormatWriter.reset();
+        exporter.write(textFormatWriter);
+        bh.consume(textFormatWriter.size());
+    }
+}
@@ -0,0 +1,101 @@
+package io.k8ssandra.metrics.benchmark;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
+import io.k8ssandra.metrics.builder.filter.FilteringSpec;
+import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registration of the table metrics at startup or when tables are created, with relabel rules dropping about 80% of
+ * them. With preFilter, the dropped metrics are rejected by name before their definitions are created.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+public class RegistrationBenchmark {
+
+    private static final String TABLE_PREFIX = "org.apache.cassandra.metrics.Table.";
+
+    // Kept by the rules
+    private static final String[] KEPT_GAUGES = { "LiveSSTableCount", "PendingCompactions", "LiveDiskSpaceUsed" };
+    private static final String[] KEPT_TIMERS = { "ReadLatency", "WriteLatency", "RangeLatency" };
+
+    private static final String[] DROPPED_GAUGES = {
+            "MemtableOnHeapSize", "MemtableOffHeapSize", "MemtableLiveDataSize", "AllMemtablesHeapSize",
+            "CompressionRatio", "BloomFilterFalseRatio", "BloomFilterDiskSpaceUsed", "IndexSummaryOffHeapMemoryUsed",
+            "KeyCacheHitRate", "PercentRepaired", "BytesRepaired", "BytesUnrepaired"
+    };
+    private static final String[] DROPPED_COUNTERS = { "BloomFilterFalsePositives", "RowCacheHit", "RowCacheMiss", "BytesFlushed" };
+    private static final String[] DROPPED_TIMERS = { "CasPrepare", "CasPropose", "CasCommit", "ViewReadTime" };
+    private static final String[] DROPPED_HISTOGRAMS = { "TombstoneScannedHistogram", "LiveScannedHistogram", "ColUpdateTimeDeltaHistogram" };
+
+    @Param({ "100", "1000" })
+    private int tables;
+
+    @Param({ "true", "false" })
+    private boolean preFilter;
+
+    private MetricRegistry registry;
+
+    private CassandraDropwizardExports exporter;
+
+    @Setup(Level.Invocation)
+    public void init() {
+        List<FilteringSpec> specs = new ArrayList<>();
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_all_memtables_.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_bloom_filter.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_compression_ratio", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_index_summary.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_key_cache.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_row_cache.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_bytes_.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_percent_repaired", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_cas_.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_view_.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__origname__"), "@", "org\\.apache\\.cassandra\\.metrics\\.Table\\..*Histogram\\..*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_memtable_.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_compression_.*", "drop"));
+        specs.add(new FilteringSpec(List.of("__origname__"), "@", "org\\.apache\\.cassandra\\.metrics\\.ColumnFamily\\..*", "drop"));
+        // These can not be decided before the definitions are created
+        specs.add(new FilteringSpec(List.of("keyspace"), "@", "system_traces", "drop"));
+        specs.add(new FilteringSpec(List.of("keyspace", "table"), "@", "system_schema@(aggregates|functions)", "drop"));
+
+        registry = new MetricRegistry();
+        exporter = new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(specs, preFilter));
+    }
+
+    @Benchmark
+    public void createTables(Blackhole bh) {
+        for (int table = 0; table < tables; table++) {
+            String scope = ".ks_" + (table % 10) + ".table_" + table;
+            for (String gauge : KEPT_GAUGES) {
+                registry.register(TABLE_PREFIX + gauge + scope, (Gauge<Long>) () -> 1L);
+            }
+            for (String gauge : DROPPED_GAUGES) {
+                registry.register(TABLE_PREFIX + gauge + scope, (Gauge<Long>) () -> 1L);
+            }
+            for (String counter : DROPPED_COUNTERS) {
+                registry.counter(TABLE_PREFIX + counter + scope);
+            }
+            for (String timer : KEPT_TIMERS) {
+                registry.timer(TABLE_PREFIX + timer + scope);
+            }
+            for (String timer : DROPPED_TIMERS) {
+                registry.timer(TABLE_PREFIX + timer + scope);
+            }
+            for (String histogram : DROPPED_HISTOGRAMS) {
+                registry.histogram(TABLE_PREFIX + histogram + scope);
+            }
+        }
+        bh.consume(exporter);
+    }
+}
@@ -0,0 +1,74 @@
+package io.k8ssandra.metrics.benchmark;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the values of the counter, meter and gauge series without encoding them. With the gc profiler,
+ * gc.alloc.rate.norm is the allocation per series. Reading the values allocates nothing, what remains is the gauges
+ * boxing their own values and the scrape's fixed cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(ValueReadBenchmark.SERIES)
+public class ValueReadBenchmark {
+
+    private static final String TABLE_PREFIX = "org.apache.cassandra.metrics.Table.";
+
+    private static final int TABLES = 1000;
+
+    // Counter, meter, long, double and boolean gauges of each table
+    static final int SERIES = TABLES * 5;
+
+    private CassandraDropwizardExports exporter;
+
+    @Setup(Level.Trial)
+    public void init() {
+        MetricRegistry registry = new MetricRegistry();
+        exporter = new CassandraDropwizardExports(registry);
+        for (int i = 0; i < TABLES; i++) {
+            String scope = ".ks_" + (i % 10) + ".table_" + i;
+            Counter counter = registry.counter(TABLE_PREFIX + "PendingFlushes" + scope);
+            counter.inc(i);
+            Meter meter = registry.meter(TABLE_PREFIX + "BytesFlushed" + scope);
+            meter.mark(i);
+
+            // Like Cassandra's gauges, classes with the value type
+            AtomicLong size = new AtomicLong(i * 1024L);
+            registry.register(TABLE_PREFIX + "LiveDiskSpaceUsed" + scope, new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return size.get();
+                }
+            });
+            double ratio = i / (double) TABLES;
+            registry.register(TABLE_PREFIX + "CompressionRatio" + scope, new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return ratio;
+                }
+            });
+            boolean repaired = i % 2 == 0;
+            registry.register(TABLE_PREFIX + "Repaired" + scope, new Gauge<Boolean>() {
+                @Override
+                public Boolean getValue() {
+                    return repaired;
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public void readValues(Blackhole bh) {
+        exporter.writeSamples((definition, sampleLabelIndex, value) -> bh.consume(value));
+    }
+}
@@ -0,0 +1,76 @@
+package io.k8ssandra.metrics.builder;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Sampling;
+import org.apache.cassandra.utils.EstimatedHistogram;
+
+/**
+ * Reads the bucket counts behind a summary definition, so that the buckets of several tables can be merged and the
+ * quantiles computed from the merged buckets. Averaging the tables' quantiles would not give the quantiles of the
+ * merged distribution.
+ */
+abstract class BucketSource {
+    // Multiplier of the offsets, such as nanoseconds to seconds
+    final double factor;
+
+    // Definition of the _count emitted by the summary's filler, null if it has its own
+    final CassandraMetricDefinition count;
+
+    private BucketSource(double factor, CassandraMetricDefinition count) {
+        this.factor = factor;
+        this.count = count;
+    }
+
+    /**
+     * @return the counts of each bucket, the last one being the overflow bucket. Not modified by the caller
+     */
+    abstract long[] getBucketCounts();
+
+    /**
+     * @return upper bounds of the buckets, without the overflow bucket
+     */
+    abstract long[] getOffsets(int bucketCount);
+
+    /**
+     * Buckets of a Timer or a Histogram
+     */
+    static BucketSource forSampling(Sampling sampling, double factor) {
+        HistogramBuckets buckets = HistogramBuckets.forMetric(sampling, 1, factor);
+        return new BucketSource(factor, null) {
+            @Override
+            long[] getBucketCounts() {
+                return buckets.bucketCounts(sampling.getSnapshot());
+            }
+
+            @Override
+            long[] getOffsets(int bucketCount) {
+                return buckets.getOffsets();
+            }
+        };
+    }
+
+    /**
+     * Buckets of Cassandra's long[] EstimatedHistogram gauges, such as EstimatedPartitionSizeHistogram
+     */
+    static BucketSource forHistogramGauge(Gauge<?> gauge, CassandraMetricDefinition count) {
+        return new BucketSource(1.0, count) {
+            private volatile long[] offsets = new long[0];
+
+            @Override
+            long[] getBucketCounts() {
+                long[] values = (long[]) gauge.getValue();
+                return values != null ? values : new long[0];
+            }
+
+            @Override
+            long[] getOffsets(int bucketCount) {
+                long[] offsets = this.offsets;
+                if (offsets.length != bucketCount - 1) {
+                    offsets = EstimatedHistogram.newOffsets(bucketCount - 1, false);
+                    this.offsets = offsets;
+                }
+                return offsets;
+            }
+        };
+    }
+}
@@ -0,0 +1,311 @@
+package io.k8ssandra.metrics.builder;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+import io.k8ssandra.metrics.config.CardinalityConfiguration;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the amount of exported series within the configured limits by folding the per-table series of the least
+ * active tables to a series with keyspace="other" and table="other" in each family.
+ *
+ * The tables are ranked by the growth of the counts of their activity metrics (by default the read and write latency
+ * timers) since the previous selection, or by the counts themselves when first seen. The activity metrics are indexed
+ * by their Dropwizard names when registered, so renaming the families does not change the ranking. The most active
+ * tables keep their series in every family as long as the family's and the node's limits allow. When the node's
+ * limit can not fit every table, the other series of each family are reserved first. The selection is made by a
+ * scrape at most once per selection interval, the tables created in between are exported until the next selection.
+ *
+ * Each family's folded definitions are published as a single immutable set, a scrape writes a definition either to
+ * its own series or to the other series.
+ */
+public class CardinalityBudget {
+    private static final org.slf4j.Logger logger = LoggerFactory.getLogger(CardinalityBudget.class);
+
+    static final String OTHER = "other";
+    static final Map<String, String> OTHER_LABEL_VALUES = Map.of(
+            CassandraMetricNameParser.KEYSPACE_LABEL_NAME, OTHER,
+            CassandraMetricNameParser.TABLE_LABEL_NAME, OTHER);
+
+    private final int maxSeriesPerFamily;
+    private final int maxSeriesPerNode;
+    private final long selectionIntervalNanos;
+
+    // Dropwizard name prefixes of the activity metrics, followed by .keyspace.table
+    private final List<String> activityMetrics;
+
+    // The registered activity metrics by their Dropwizard names
+    private final ConcurrentHashMap<String, Counting> activityMetricsByName = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean selecting = new AtomicBoolean();
+    private volatile long nextSelection;
+    private volatile boolean selected;
+
+    // Only accessed by the selecting thread
+    private Map<String, Long> previousActivity = new HashMap<>();
+    private Set<RefreshableMetricFamilySamples> foldingFamilies = new HashSet<>();
+
+    private volatile int foldedSeries;
+
+    public CardinalityBudget(CardinalityConfiguration configuration) {
+        this.maxSeriesPerFamily = configuration.getMaxSeriesPerFamily();
+        this.maxSeriesPerNode = configuration.getMaxSeriesPerNode();
+        this.selectionIntervalNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getSelectionIntervalMillis());
+        this.activityMetrics = configuration.getActivityMetrics();
+    }
+
+    public boolean isEnabled() {
+        return maxSeriesPerFamily > 0 || maxSeriesPerNode > 0;
+    }
+
+    /**
+     * Indexes the registry's activity metrics as they are registered and removed, if the limits are enabled
+     */
+    public void register(MetricRegistry registry) {
+        if (isEnabled()) {
+            registry.addListener(new ActivityListener());
+        }
+    }
+
+    /**
+     * Selects the kept tables again if the selection interval has passed. Concurrent scrapes do not wait for a
+     * running selection.
+     */
+    public void maybeSelect(Collection<RefreshableMetricFamilySamples> families, KeyspaceTableIndex keyspaceTableIndex) {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (selected && now - nextSelection < 0) {
+            return;
+        }
+        if (!selecting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            select(families, keyspaceTableIndex);
+            nextSelection = now + selectionIntervalNanos;
+            selected = true;
+        } finally {
+            selecting.set(false);
+        }
+    }
+
+    /**
+     * The next scrape selects the kept tables again, such as when the families were replaced
+     */
+    public void reselect() {
+        selected = false;
+    }
+
+    /**
+     * @return amount of series folded to the other series in the latest selection
+     */
+    public int getFoldedSeries() {
+        return foldedSeries;
+    }
+
+    private void select(Collection<RefreshableMetricFamilySamples> families, KeyspaceTableIndex keyspaceTableIndex) {
+        long start = System.nanoTime();
+
+        Map<String, Long> activity = new HashMap<>();
+        List<TableSeries> tables = new ArrayList<>();
+        keyspaceTableIndex.forEachTable((keyspace, table, tableFamilies) -> {
+            TableSeries tableSeries = new TableSeries(keyspace + '.' + table, new HashMap<>(tableFamilies));
+            long total = activityCount(tableSeries.name);
+            activity.put(tableSeries.name, total);
+            Long previous = previousActivity.get(tableSeries.name);
+            // Counters restart from zero when the table is recreated
+            tableSeries.activity = previous != null && previous <= total ? total - previous : total;
+            tables.add(tableSeries);
+        });
+        previousActivity = activity;
+        tables.sort(Comparator.comparingLong((TableSeries t) -> t.activity).reversed().thenComparing(t -> t.name));
+
+        // The series of the keyspaces and the other metrics are always exported
+        int nodeSeries = 0;
+        for (RefreshableMetricFamilySamples family : families) {
+            nodeSeries += unfoldableSeries(family);
+        }
+
+        // A family's other series have the shape of a single table's series
+        Map<RefreshableMetricFamilySamples, Integer> otherSeries = new HashMap<>();
+        int tableSeries = 0;
+        for (TableSeries table : tables) {
+            for (Map.Entry<RefreshableMetricFamilySamples, Integer> entry : table.series.entrySet()) {
+                otherSeries.merge(entry.getKey(), entry.getValue(), Math::max);
+                tableSeries += entry.getValue();
+            }
+        }
+        if (maxSeriesPerNode > 0 && nodeSeries + tableSeries > maxSeriesPerNode) {
+            // Any family may have to fold, so its other series must fit within the node's limit too
+            for (int series : otherSeries.values()) {
+                nodeSeries += series;
+            }
+        }
+
+        Map<RefreshableMetricFamilySamples, Integer> familySeries = new HashMap<>();
+        Map<RefreshableMetricFamilySamples, Set<CassandraMetricDefinition>> folding = new HashMap<>();
+        int folded = 0;
+        for (TableSeries table : tables) {
+            for (Map.Entry<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>> entry : table.families.entrySet()) {
+                RefreshableMetricFamilySamples family = entry.getKey();
+                int series = table.series.get(family);
+                int current = familySeries.getOrDefault(family, 0);
+                boolean keep = (maxSeriesPerFamily <= 0 || current + series <= maxSeriesPerFamily)
+                        && (maxSeriesPerNode <= 0 || nodeSeries + series <= maxSeriesPerNode);
+                if (keep) {
+                    familySeries.put(family, current + series);
+                    nodeSeries += series;
+                } else {
+                    folding.computeIfAbsent(family, f -> new HashSet<>()).addAll(entry.getValue());
+                    folded += series;
+                }
+            }
+        }
+
+        for (Map.Entry<RefreshableMetricFamilySamples, Set<CassandraMetricDefinition>> entry : folding.entrySet()) {
+            entry.getKey().setFolded(Collections.unmodifiableSet(entry.getValue()));
+        }
+        for (RefreshableMetricFamilySamples family : foldingFamilies) {
+            if (!folding.containsKey(family)) {
+                family.setFolded(Collections.emptySet());
+            }
+        }
+        foldingFamilies = folding.keySet();
+
+        if (folded != foldedSeries) {
+            logger.info("Folded {} series of {} tables to the other series, selected in {} ms", folded, tables.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        foldedSeries = folded;
+    }
+
+    /**
+     * @return series of the family that are not per-table
+     */
+    private static int unfoldableSeries(RefreshableMetricFamilySamples family) {
+        int[] series = new int[1];
+        family.forEachDefinition(definition -> {
+            if (definition.getLabelValue(CassandraMetricNameParser.TABLE_LABEL_NAME) == null) {
+                series[0] += RefreshableMetricFamilySamples.seriesCount(definition);
+            }
+        });
+        return series[0];
+    }
+
+    /**
+     * @return reads and writes (or the counts of the configured activity metrics) of the table so far
+     */
+    private long activityCount(String keyspaceTable) {
+        long total = 0;
+        for (String activityMetric : activityMetrics) {
+            Counting metric = activityMetricsByName.get(activityMetric + '.' + keyspaceTable);
+            if (metric != null) {
+                total += metric.getCount();
+            }
+        }
+        return total;
+    }
+
+    private boolean isActivityMetric(String dropwizardName) {
+        for (String activityMetric : activityMetrics) {
+            if (dropwizardName.length() > activityMetric.length() && dropwizardName.startsWith(activityMetric)
+                    && dropwizardName.charAt(activityMetric.length()) == '.') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private class ActivityListener extends MetricRegistryListener.Base {
+        private void added(String name, Counting metric) {
+            if (isActivityMetric(name)) {
+                activityMetricsByName.put(name, metric);
+            }
+        }
+
+        private void removed(String name) {
+            activityMetricsByName.remove(name);
+        }
+
+        @Override
+        public void onCounterAdded(String name, Counter counter) {
+            added(name, counter);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onHistogramAdded(String name, Histogram histogram) {
+            added(name, histogram);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onMeterAdded(String name, Meter meter) {
+            added(name, meter);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            removed(name);
+        }
+
+        @Override
+        public void onTimerAdded(String name, Timer timer) {
+            added(name, timer);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            removed(name);
+        }
+    }
+
+    private static class TableSeries {
+        private final String name;
+        private final Map<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>> families;
+        private long activity;
+
+        // Amount of series of the table in each family
+        private final Map<RefreshableMetricFamilySamples, Integer> series = new HashMap<>();
+
+        private TableSeries(String name, Map<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>> families) {
+            this.name = name;
+            this.families = families;
+            for (Map.Entry<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>> entry : families.entrySet()) {
+                int count = 0;
+                for (CassandraMetricDefinition definition : entry.getValue()) {
+                    count += RefreshableMetricFamilySamples.seriesCount(definition);
+                }
+                series.put(entry.getKey(), count);
+            }
+        }
+    }
+}
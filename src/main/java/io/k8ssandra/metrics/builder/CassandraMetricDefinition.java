@@ -3,24 +3,74 @@ package io.k8ssandra.metrics.builder;
 import io.prometheus.client.Collector;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
-import java.util.function.Supplier;
+import java.util.function.DoubleSupplier;
 
 public class CassandraMetricDefinition implements Consumer<List<Collector.MetricFamilySamples.Sample>> {
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(CassandraMetricDefinition.class);
 
+    // A NaN no gauge produces, so the first scrape does not count as an unchanged value
+    private static final long NO_VALUE_BITS = 0x7ff8dead0000beefL;
+
     private final List<String> labelNames;
     private final List<String> labelValues;
     private final String metricName;
-    private Supplier<Double> valueGetter;
 
-    private Consumer<List<Collector.MetricFamilySamples.Sample>> filler;
+    // Values of the last label in labelNames, if it varies per sample (such as the quantile)
+    private final String[] sampleLabelValues;
+
+    // sampleLabelValues as numbers (quantile, le) for the formats that do not use labels for them, NaN if not a number
+    private final double[] sampleLabelNumbers;
+
+    // UTF-8 encoded and escaped name{labels} of the series, these never change so there's no reason to re-encode them on every scrape
+    private final byte[] encodedSeries;
+    private final byte[][] encodedSampleSeries;
+
+    private Consumer<SampleSink> filler;
+
+    // Buckets behind the quantiles, only set for the summaries of rolled up families
+    private BucketSource bucketSource;
+
+    // Created on the first scrape with the line cache, racing scrapes may create it twice
+    private LineCache lineCache;
 
     public CassandraMetricDefinition(String metricName, List<String> labelNames, List<String> labelValues) {
+        this(metricName, labelNames, labelValues, null);
+    }
+
+    /**
+     * @param sampleLabelValues if not null, the last labelName has no value in labelValues. Instead, each sample sets it to one of these values
+     */
+    public CassandraMetricDefinition(String metricName, List<String> labelNames, List<String> labelValues, String[] sampleLabelValues) {
+        this(metricName, labelNames, labelValues, sampleLabelValues, encodeLabels(labelNames, labelValues));
+    }
+
+    CassandraMetricDefinition(String metricName, List<String> labelNames, List<String> labelValues, String[] sampleLabelValues, String encodedLabels) {
         this.labelNames = labelNames;
         this.labelValues = labelValues;
         this.metricName = metricName;
+        this.sampleLabelValues = sampleLabelValues;
+
+        this.encodedSeries = encodeSeries(metricName, encodedLabels, null, null);
+        if (sampleLabelValues != null) {
+            String sampleLabelName = labelNames.get(labelValues.size());
+            this.encodedSampleSeries = new byte[sampleLabelValues.length][];
+            for (int i = 0; i < sampleLabelValues.length; i++) {
+                encodedSampleSeries[i] = encodeSeries(metricName, encodedLabels, sampleLabelName, sampleLabelValues[i]);
+            }
+            this.sampleLabelNumbers = new double[sampleLabelValues.length];
+            for (int i = 0; i < sampleLabelValues.length; i++) {
+                sampleLabelNumbers[i] = parseNumber(sampleLabelValues[i]);
+            }
+        } else {
+            this.encodedSampleSeries = null;
+            this.sampleLabelNumbers = null;
+        }
     }
 
     public List<String> getLabelNames() {
@@ -35,26 +85,220 @@ public class CassandraMetricDefinition implements Consumer<List<Collector.Metric
         return metricName;
     }
 
-    void setValueGetter(Supplier<Double> valueGetter) {
-        this.valueGetter = valueGetter;
-        this.filler = samples -> samples.add(buildSample());
+    public String[] getSampleLabelValues() {
+        return sampleLabelValues;
+    }
+
+    /**
+     * @return the per-sample label value as a number, such as the quantile or the bucket's upper bound
+     */
+    public double getSampleLabelNumber(int sampleLabelIndex) {
+        return sampleLabelNumbers[sampleLabelIndex];
+    }
+
+    /**
+     * @param sampleLabelIndex index to the sampleLabelValues or -1 for the series without the per-sample label
+     * @return name{labels} of the series in the Prometheus text format, UTF-8 encoded
+     */
+    public byte[] getEncodedSeries(int sampleLabelIndex) {
+        return sampleLabelIndex >= 0 ? encodedSampleSeries[sampleLabelIndex] : encodedSeries;
     }
 
-    void setFiller(Consumer<List<Collector.MetricFamilySamples.Sample>> filler) {
+    /**
+     * @param valueGetter reads the value of the series without the per-sample label, a primitive so that reading
+     *                    it does not box
+     */
+    void setValueGetter(DoubleSupplier valueGetter) {
+        this.filler = sink -> sink.accept(this, -1, valueGetter.getAsDouble());
+    }
+
+    /**
+     * @param filler emits the samples to the SampleSink, referring to the sampleLabelValues by their index
+     */
+    void setFiller(Consumer<SampleSink> filler) {
         this.filler = filler;
     }
 
-    private Collector.MetricFamilySamples.Sample buildSample() {
+    /**
+     * @return a definition of the same series with the labels' values replaced
+     */
+    CassandraMetricDefinition withLabelValues(Map<String, String> replacedValues) {
+        List<String> values = new ArrayList<>(labelValues.size());
+        for (int i = 0; i < labelValues.size(); i++) {
+            values.add(replacedValues.getOrDefault(labelNames.get(i), labelValues.get(i)));
+        }
+        return new CassandraMetricDefinition(metricName, labelNames, values, sampleLabelValues);
+    }
+
+    void setBucketSource(BucketSource bucketSource) {
+        this.bucketSource = bucketSource;
+    }
+
+    BucketSource getBucketSource() {
+        return bucketSource;
+    }
+
+    /**
+     * @return value of the label, null if the definition does not have it
+     */
+    String getLabelValue(String labelName) {
+        for (int i = 0; i < labelValues.size(); i++) {
+            if (labelNames.get(i).equals(labelName)) {
+                return labelValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Emit the current values of this definition to the sink
+     */
+    public void fill(SampleSink sink) {
+        this.filler.accept(sink);
+    }
+
+    Collector.MetricFamilySamples.Sample buildSample(int sampleLabelIndex, double value) {
+        List<String> sampleLabels = getLabelValues();
+        if (sampleLabelIndex >= 0) {
+            sampleLabels = new ArrayList<>(labelValues.size() + 1);
+            sampleLabels.addAll(labelValues);
+            sampleLabels.add(sampleLabelValues[sampleLabelIndex]);
+        }
         return new Collector.MetricFamilySamples.Sample(
                 getMetricName(),
                 getLabelNames(),
-                getLabelValues(),
-                valueGetter.get()
+                sampleLabels,
+                value
         );
     }
 
+    /**
+     * @return the encoded line of the series if it was cached with the same value, otherwise null
+     */
+    public byte[] getEncodedLine(int sampleLabelIndex, double value) {
+        LineCache lineCache = this.lineCache;
+        if (lineCache == null) {
+            return null;
+        }
+        EncodedLine line = lineCache.lines[sampleLabelIndex + 1];
+        return line != null && line.valueBits == Double.doubleToRawLongBits(value) ? line.bytes : null;
+    }
+
+    /**
+     * Remembers the value of the series for the next scrape
+     *
+     * @return true if the value is the same as in the previous scrape, so its line is worth caching
+     */
+    public boolean isUnchanged(int sampleLabelIndex, double value) {
+        LineCache lineCache = this.lineCache;
+        if (lineCache == null) {
+            lineCache = new LineCache(sampleLabelValues != null ? sampleLabelValues.length + 1 : 1);
+            this.lineCache = lineCache;
+        }
+        long valueBits = Double.doubleToRawLongBits(value);
+        long previous = lineCache.lastValueBits[sampleLabelIndex + 1];
+        lineCache.lastValueBits[sampleLabelIndex + 1] = valueBits;
+        return previous == valueBits;
+    }
+
+    /**
+     * @param bytes the encoded line with the value, owned by the definition from now on
+     */
+    public void setEncodedLine(int sampleLabelIndex, double value, byte[] bytes) {
+        LineCache lineCache = this.lineCache;
+        if (lineCache != null) {
+            lineCache.lines[sampleLabelIndex + 1] = new EncodedLine(Double.doubleToRawLongBits(value), bytes);
+        }
+    }
+
+    /**
+     * Last values and encoded lines of the series, index 0 is the series without the per-sample label. Scrapes can
+     * race on these, but a line is only used if its own value matches, so a lost update only costs a re-encoding.
+     */
+    private static class LineCache {
+        private final long[] lastValueBits;
+        private final EncodedLine[] lines;
+
+        private LineCache(int size) {
+            lastValueBits = new long[size];
+            Arrays.fill(lastValueBits, NO_VALUE_BITS);
+            lines = new EncodedLine[size];
+        }
+    }
+
+    private static class EncodedLine {
+        private final long valueBits;
+        private final byte[] bytes;
+
+        private EncodedLine(long valueBits, byte[] bytes) {
+            this.valueBits = valueBits;
+            this.bytes = bytes;
+        }
+    }
+
     @Override
     public void accept(List<Collector.MetricFamilySamples.Sample> samples) {
-        this.filler.accept(samples);
+        fill((definition, sampleLabelIndex, value) -> samples.add(definition.buildSample(sampleLabelIndex, value)));
+    }
+
+    /**
+     * @return label="value" pairs separated by commas, with the values escaped for the Prometheus text format
+     */
+    static String encodeLabels(List<String> labelNames, List<String> labelValues) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < labelValues.size(); i++) {
+            appendLabel(builder, labelNames.get(i), labelValues.get(i));
+        }
+        return builder.toString();
+    }
+
+    static void appendLabel(StringBuilder builder, String labelName, String labelValue) {
+        if (builder.length() > 0) {
+            builder.append(',');
+        }
+        builder.append(labelName).append("=\"");
+        for (int i = 0; i < labelValue.length(); i++) {
+            char c = labelValue.charAt(i);
+            switch (c) {
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\"':
+                    builder.append("\\\"");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    private static double parseNumber(String value) {
+        switch (value) {
+            case "+Inf":
+                return Double.POSITIVE_INFINITY;
+            case "-Inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                try {
+                    return Double.parseDouble(value);
+                } catch (NumberFormatException e) {
+                    return Double.NaN;
+                }
+        }
+    }
+
+    private static byte[] encodeSeries(String metricName, String encodedLabels, String sampleLabelName, String sampleLabelValue) {
+        StringBuilder builder = new StringBuilder(encodedLabels);
+        if (sampleLabelName != null) {
+            appendLabel(builder, sampleLabelName, sampleLabelValue);
+        }
+        if (builder.length() == 0) {
+            return metricName.getBytes(StandardCharsets.UTF_8);
+        }
+        return (metricName + "{" + builder + "}").getBytes(StandardCharsets.UTF_8);
     }
 }
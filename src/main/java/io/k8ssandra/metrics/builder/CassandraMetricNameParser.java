@@ -4,6 +4,7 @@ import io.prometheus.client.Collector;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CassandraMetricNameParser {
     public final static String KEYSPACE_METRIC_PREFIX = "org.apache.cassandra.metrics.keyspace.";
@@ -12,12 +13,20 @@ public class CassandraMetricNameParser {
     private final List<String> defaultLabelNames;
     private final List<String> defaultLabelValues;
 
+    // Default labels are shared by all the definitions, escape them only once
+    private final String encodedDefaultLabels;
+
+    // Keyspace and table are removed from the names before cleaning, so all the tables share the same cleaned names
+    private static final int MAX_CLEANED_NAMES = 16384;
+    private final ConcurrentHashMap<String, String> cleanedNames = new ConcurrentHashMap<>();
+
     public final static String KEYSPACE_LABEL_NAME = "keyspace";
     public final static String TABLE_LABEL_NAME = "table";
 
     public CassandraMetricNameParser(List<String> defaultLabelNames, List<String> defaultLabelValues) {
         this.defaultLabelNames = defaultLabelNames;
         this.defaultLabelValues = defaultLabelValues;
+        this.encodedDefaultLabels = CassandraMetricDefinition.encodeLabels(defaultLabelNames, defaultLabelValues);
     }
 
     /**
@@ -28,6 +37,16 @@ public class CassandraMetricNameParser {
      * @return
      */
     public CassandraMetricDefinition parseDropwizardMetric(String dropwizardName, String suffix, List<String> additionalLabelNames, List<String> additionalLabelValues) {
+        return parseDropwizardMetric(dropwizardName, suffix, additionalLabelNames, additionalLabelValues, null);
+    }
+
+    /**
+     * Parse DropwizardMetricNames to a shorter version with labels added for Prometheus use. The series are encoded
+     * for the exposition here, so that scrapes only need to write the values.
+     *
+     * @param sampleLabelValues if not null, the last additionalLabelName has no value and each sample uses one of these (such as the quantile)
+     */
+    public CassandraMetricDefinition parseDropwizardMetric(String dropwizardName, String suffix, List<String> additionalLabelNames, List<String> additionalLabelValues, String[] sampleLabelValues) {
         String metricName = dropwizardName;
 
         List<String> labelNames = new ArrayList<>();
@@ -36,6 +55,8 @@ public class CassandraMetricNameParser {
         labelNames.addAll(defaultLabelNames);
         labelValues.addAll(defaultLabelValues);
 
+        StringBuilder encodedLabels = new StringBuilder(encodedDefaultLabels);
+
         if(dropwizardName.startsWith(KEYSPACE_METRIC_PREFIX)) {
             int keyspaceIndex = dropwizardName.lastIndexOf(".");
 
@@ -46,6 +67,7 @@ public class CassandraMetricNameParser {
             String keyspace = dropwizardName.substring(keyspaceIndex+1);
             labelNames.add(KEYSPACE_LABEL_NAME);
             labelValues.add(keyspace);
+            CassandraMetricDefinition.appendLabel(encodedLabels, KEYSPACE_LABEL_NAME, keyspace);
         } else if(dropwizardName.startsWith(TABLE_METRIC_PREFIX)) {
             int tableIndex = dropwizardName.lastIndexOf(".");
             // len(org.apache.cassandra.metrics.Table.) == 35
@@ -61,40 +83,140 @@ public class CassandraMetricNameParser {
             labelValues.add(keyspace);
             labelNames.add(TABLE_LABEL_NAME);
             labelValues.add(table);
+            CassandraMetricDefinition.appendLabel(encodedLabels, KEYSPACE_LABEL_NAME, keyspace);
+            CassandraMetricDefinition.appendLabel(encodedLabels, TABLE_LABEL_NAME, table);
         }
 
-        metricName = this.clean(Collector.sanitizeMetricName(metricName + suffix));
+        metricName = cleanedName(metricName + suffix);
 
         labelNames.addAll(additionalLabelNames);
         labelValues.addAll(additionalLabelValues);
+        for (int i = 0; i < additionalLabelValues.size(); i++) {
+            CassandraMetricDefinition.appendLabel(encodedLabels, additionalLabelNames.get(i), additionalLabelValues.get(i));
+        }
+
+        return new CassandraMetricDefinition(metricName, labelNames, labelValues, sampleLabelValues, encodedLabels.toString());
+    }
+
+    /**
+     * Metric name of the definitions without any suffix, without parsing the labels. The names of the definitions
+     * with a suffix start with this.
+     */
+    public String getMetricName(String dropwizardName) {
+        String metricName = dropwizardName;
+        if(dropwizardName.startsWith(KEYSPACE_METRIC_PREFIX)) {
+            metricName = dropwizardName.substring(0, dropwizardName.lastIndexOf("."));
+        } else if(dropwizardName.startsWith(TABLE_METRIC_PREFIX)) {
+            int tableIndex = dropwizardName.lastIndexOf(".");
+            metricName = dropwizardName.substring(0, dropwizardName.lastIndexOf(".", tableIndex - 1));
+        }
+        return cleanedName(metricName);
+    }
 
-        return new CassandraMetricDefinition(metricName, labelNames, labelValues);
+    private String cleanedName(String name) {
+        String cleaned = cleanedNames.get(name);
+        if (cleaned == null) {
+            cleaned = clean(Collector.sanitizeMetricName(name));
+            if (cleanedNames.size() < MAX_CLEANED_NAMES) {
+                cleanedNames.put(name, cleaned);
+            }
+        }
+        return cleaned;
     }
 
-    // This is the method used in the MCAC
-    private String clean(String name)
+    /**
+     * Same as the MCAC's regex based cleaning of the metric names, in two passes over the characters:
+     *
+     *   name = name.replaceAll("\\s*,\\s*", ",");
+     *   name = name.replaceAll("\\s+", "_");
+     *   name = name.replaceAll("\\\\", "_");
+     *   name = name.replaceAll("/", "_");
+     *   name = name.replaceAll("[^a-zA-Z0-9\\.\\_]+", ".");
+     *   name = name.replaceAll("\\.+", ".");
+     *   name = name.replaceAll("_+", "_");
+     *   // camelCase to snake_case
+     *   name = String.join("_", name.split("(?<!(^|[A-Z]))(?=[A-Z])|(?<!^)(?=[A-Z][a-z])"));
+     *   name = name.replaceAll("\\._", "\\.");
+     *   name = name.replaceAll("_+", "_");
+     *   return name.toLowerCase();
+     *
+     * Unlike toLowerCase(), the result does not depend on the default locale.
+     */
+    static String clean(String name)
     {
         // Special case for coda hale metrics
         if (name.startsWith("jvm"))
         {
-            name = name.replaceAll("\\-", "_");
-            return name.toLowerCase();
+            return name.replace('-', '_').toLowerCase();
+        }
+
+        int length = name.length();
+
+        // First pass, everything before the camelCase conversion. Only [a-zA-Z0-9_.] remain, without repeated _ or .
+        char[] chars = new char[length];
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            char replacement;
+            if (isWhitespace(c)) {
+                int end = i + 1;
+                while (end < length && isWhitespace(name.charAt(end))) {
+                    end++;
+                }
+                boolean nextToComma = (i > 0 && name.charAt(i - 1) == ',') || (end < length && name.charAt(end) == ',');
+                i = end - 1;
+                if (nextToComma) {
+                    continue;
+                }
+                replacement = '_';
+            } else if (c == '\\' || c == '/' || c == '_') {
+                replacement = '_';
+            } else if (isUpper(c) || isLower(c) || (c >= '0' && c <= '9')) {
+                replacement = c;
+            } else {
+                replacement = '.';
+            }
+            if ((replacement == '_' || replacement == '.') && size > 0 && chars[size - 1] == replacement) {
+                continue;
+            }
+            chars[size++] = replacement;
         }
 
-        name = name.replaceAll("\\s*,\\s*", ",");
-        name = name.replaceAll("\\s+", "_");
-        name = name.replaceAll("\\\\", "_");
-        name = name.replaceAll("/", "_");
+        // Second pass, camelCase to snake_case, ._ to . and lowercase
+        StringBuilder builder = new StringBuilder(size + 8);
+        char previous = 0;
+        for (int i = 0; i < size; i++) {
+            char c = chars[i];
+            if (i > 0 && isUpper(c) && (!isUpper(chars[i - 1]) || (i + 1 < size && isLower(chars[i + 1])))) {
+                appendCleaned(builder, '_', previous);
+                previous = '_';
+            }
+            appendCleaned(builder, c, previous);
+            previous = c;
+        }
+        return builder.toString();
+    }
 
-        name = name.replaceAll("[^a-zA-Z0-9\\.\\_]+", ".");
-        name = name.replaceAll("\\.+", ".");
-        name = name.replaceAll("_+", "_");
+    /**
+     * @param previous the previous character before dropping the _ after . and the repeated _
+     */
+    private static void appendCleaned(StringBuilder builder, char c, char previous) {
+        if (c == '_' && (previous == '.' || (builder.length() > 0 && builder.charAt(builder.length() - 1) == '_'))) {
+            return;
+        }
+        builder.append(isUpper(c) ? (char) (c + ('a' - 'A')) : c);
+    }
+
+    private static boolean isWhitespace(char c) {
+        // Same as the regex \s
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
 
-        //Convert camelCase to snake_case
-        name = String.join("_", name.split("(?<!(^|[A-Z]))(?=[A-Z])|(?<!^)(?=[A-Z][a-z])"));
-        name = name.replaceAll("\\._", "\\.");
-        name = name.replaceAll("_+", "_");
+    private static boolean isUpper(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
 
-        return name.toLowerCase();
+    private static boolean isLower(char c) {
+        return c >= 'a' && c <= 'z';
     }
 }
@@ -2,15 +2,25 @@ package io.k8ssandra.metrics.builder;
 
 import com.codahale.metrics.*;
 import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
+import io.k8ssandra.metrics.config.HistogramSpec;
+import io.k8ssandra.metrics.config.RollupSpec;
 import io.prometheus.client.Collector;
 import org.apache.cassandra.utils.EstimatedHistogram;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Supplier;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
 
 import static io.k8ssandra.metrics.builder.CassandraMetricsTools.PRECOMPUTED_QUANTILES;
 import static io.k8ssandra.metrics.builder.CassandraMetricsTools.PRECOMPUTED_QUANTILES_TEXT;
@@ -19,139 +29,470 @@ public class CassandraMetricRegistryListener implements MetricRegistryListener {
 
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(CassandraMetricRegistryListener.class);
 
+    // Names of Cassandra's long[] gauges
+    private static final Set<String> HISTOGRAM_GAUGE_NAMES = Set.of("EstimatedPartitionSizeHistogram", "EstimatedColumnCountHistogram");
+
     private final CassandraMetricNameParser parser;
 
-    private final CassandraMetricDefinitionFilter metricFilter;
+    // Replaced by setFilter() while holding the write lock, registrations read it while holding the read lock
+    private volatile CassandraMetricDefinitionFilter metricFilter;
+    private final ReentrantReadWriteLock filterLock = new ReentrantReadWriteLock();
 
     private final ConcurrentHashMap<String, RefreshableMetricFamilySamples> familyCache;
 
-    // This cache is used for the remove purpose, we need dropwizardName -> metricName mapping
-    private final ConcurrentHashMap<String, String> cache;
+    // Reverse index for the removals, dropwizardName -> the definitions it added
+    private final ConcurrentHashMap<String, Registration> cache;
+
+    // Export modes of the timer and histogram families, first match wins
+    private final List<HistogramSpec> histogramSpecs;
+
+    // Definitions by their keyspace and table labels
+    private final KeyspaceTableIndex keyspaceTableIndex;
+
+    private final RegistrationStatistics statistics;
+
+    // Thread re-evaluating the registry in setFilter(), its registrations and removals are not counted
+    private volatile Thread reevaluatingThread;
+
+    // Aggregations of the per-table series, first match wins
+    private final List<RollupSpec> rollupSpecs;
+
+    // family name + keyspace (empty for the node) -> the rollup, modified only while holding the family's entry
+    private final ConcurrentHashMap<String, TableRollup> rollups;
 
     public CassandraMetricRegistryListener(ConcurrentHashMap<String, RefreshableMetricFamilySamples> familyCache, CassandraMetricDefinitionFilter metricFilter) {
+        this(familyCache, metricFilter, new ArrayList<>(), new KeyspaceTableIndex(), new RegistrationStatistics(), new ArrayList<>());
+    }
+
+    public CassandraMetricRegistryListener(ConcurrentHashMap<String, RefreshableMetricFamilySamples> familyCache, CassandraMetricDefinitionFilter metricFilter, List<HistogramSpec> histogramSpecs, KeyspaceTableIndex keyspaceTableIndex, RegistrationStatistics statistics, List<RollupSpec> rollupSpecs) {
         parser = new CassandraMetricNameParser(CassandraMetricsTools.DEFAULT_LABEL_NAMES, CassandraMetricsTools.DEFAULT_LABEL_VALUES);
         cache = new ConcurrentHashMap<>();
         this.familyCache = familyCache;
         this.metricFilter = metricFilter;
+        this.histogramSpecs = histogramSpecs;
+        this.keyspaceTableIndex = keyspaceTableIndex;
+        this.statistics = statistics;
+        this.rollupSpecs = rollupSpecs;
+        this.rollups = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return true if the filter drops every definition of the metric, so there's no need to create them
+     */
+    private boolean isPreFiltered(String dropwizardName) {
+        if (metricFilter.isPreFiltering() && !metricFilter.mayMatch(dropwizardName, parser.getMetricName(dropwizardName))) {
+            count(RegistrationStatistics::rejected);
+            return true;
+        }
+        return false;
+    }
+
+    private void count(Consumer<RegistrationStatistics> event) {
+        if (Thread.currentThread() != reevaluatingThread) {
+            event.accept(statistics);
+        }
     }
 
     public void updateCache(String dropwizardName, String metricName, RefreshableMetricFamilySamples prototype) {
-        prototype.getDefinitions().removeIf(next -> !metricFilter.matches(next, dropwizardName));
+        List<CassandraMetricDefinition> definitions = prototype.getDefinitions();
+        CassandraMetricDefinition[] candidates = definitions.toArray(new CassandraMetricDefinition[0]);
+        definitions.removeIf(next -> !metricFilter.matches(next, dropwizardName));
 
-        if (prototype.getDefinitions().size() < 1) {
+        if (definitions.size() < 1) {
+            count(RegistrationStatistics::rejected);
             return;
         }
 
-        RefreshableMetricFamilySamples familySamples;
-        if (!familyCache.containsKey(metricName)) {
-            familyCache.put(metricName, prototype);
-            cache.put(dropwizardName, metricName);
-        } else {
-            familySamples = familyCache.get(metricName);
-            prototype.getDefinitions().forEach(familySamples::addDefinition);
+        // Only the per-table series are rolled up
+        RollupSpec rollupSpec = dropwizardName.startsWith(CassandraMetricNameParser.TABLE_METRIC_PREFIX) ? findRollupSpec(prototype.name) : null;
+
+        // The family is created, added to and removed from the cache atomically, concurrent registrations of the
+        // same family are serialized by the cache while other families are registered in parallel
+        RefreshableMetricFamilySamples.Node[] nodes = new RefreshableMetricFamilySamples.Node[definitions.size()];
+        TableRollup[] memberOf = rollupSpec != null ? new TableRollup[definitions.size()] : null;
+        RefreshableMetricFamilySamples.Node[] memberNodes = rollupSpec != null ? new RefreshableMetricFamilySamples.Node[definitions.size()] : null;
+        RefreshableMetricFamilySamples familySamples = familyCache.compute(metricName, (name, family) -> {
+            if (family == null) {
+                family = new RefreshableMetricFamilySamples(prototype.name, prototype.type, prototype.help);
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                CassandraMetricDefinition definition = definitions.get(i);
+                if (rollupSpec != null && definition.getLabelValue(CassandraMetricNameParser.TABLE_LABEL_NAME) != null) {
+                    String keyspace = rollupSpec.getBy() == RollupSpec.By.keyspace ? definition.getLabelValue(CassandraMetricNameParser.KEYSPACE_LABEL_NAME) : "";
+                    RefreshableMetricFamilySamples rolledFamily = family;
+                    memberOf[i] = rollups.computeIfAbsent(name + '\0' + keyspace, key -> new TableRollup(key, rolledFamily, rollupSpec.getBy()));
+                    memberNodes[i] = memberOf[i].addMember(definition, family, keyspaceTableIndex);
+                    if (!rollupSpec.isKeepTables()) {
+                        continue;
+                    }
+                }
+                nodes[i] = family.addDefinition(definition);
+            }
+            return family;
+        });
+        for (RefreshableMetricFamilySamples.Node node : nodes) {
+            if (node != null) {
+                keyspaceTableIndex.add(familySamples, node.getDefinition());
+            }
+        }
+
+        count(RegistrationStatistics::registered);
+        Registration previous = cache.put(dropwizardName, new Registration(metricName, familySamples, nodes, memberOf, memberNodes, candidates, definitions));
+        if (previous != null) {
+            // Registered again without a removal in between
+            remove(previous);
         }
     }
 
     public void removeFromCache(String dropwizardName) {
-        String metricName = cache.get(dropwizardName);
-        if(metricName == null) {
-            return;
+        Registration registration = cache.remove(dropwizardName);
+        if (registration != null) {
+            count(RegistrationStatistics::removed);
+            remove(registration);
         }
+    }
 
-        RefreshableMetricFamilySamples familySampler = familyCache.get(metricName);
+    private void remove(Registration registration) {
+        RefreshableMetricFamilySamples familySamples = registration.familySamples;
+        for (RefreshableMetricFamilySamples.Node node : registration.nodes) {
+            if (node != null) {
+                familySamples.removeDefinition(node);
+                keyspaceTableIndex.remove(familySamples, node.getDefinition());
+            }
+        }
+
+        // A concurrent registration either added to the family before this or creates a new one after it
+        familyCache.computeIfPresent(registration.metricName, (name, family) -> {
+            if (registration.memberOf != null) {
+                for (int i = 0; i < registration.memberOf.length; i++) {
+                    TableRollup rollup = registration.memberOf[i];
+                    if (rollup != null && rollup.removeMember(registration.memberNodes[i], familySamples, keyspaceTableIndex)) {
+                        rollups.remove(rollup.getKey(), rollup);
+                    }
+                }
+            }
+            return family == familySamples && family.size() == 0 ? null : family;
+        });
+    }
 
-        familySampler.getDefinitions().removeIf(cmd -> cmd.getMetricName().equals(metricName) ||
-                cmd.getMetricName().equals(metricName + "_count") ||
-                cmd.getMetricName().equals(metricName + "_total"));
+    /**
+     * Definitions a Dropwizard metric added to its family, directly or through a rollup
+     */
+    private static class Registration {
+        private final String metricName;
+        private final RefreshableMetricFamilySamples familySamples;
+        // Null for the definitions only added to a rollup
+        private final RefreshableMetricFamilySamples.Node[] nodes;
+        // Null if the family is not rolled up
+        private final TableRollup[] memberOf;
+        private final RefreshableMetricFamilySamples.Node[] memberNodes;
+        // All the definitions of the metric and whether the filter kept them
+        private final CassandraMetricDefinition[] candidates;
+        private final boolean[] kept;
+
+        private Registration(String metricName, RefreshableMetricFamilySamples familySamples, RefreshableMetricFamilySamples.Node[] nodes,
+                             TableRollup[] memberOf, RefreshableMetricFamilySamples.Node[] memberNodes,
+                             CassandraMetricDefinition[] candidates, List<CassandraMetricDefinition> keptDefinitions) {
+            this.metricName = metricName;
+            this.familySamples = familySamples;
+            this.nodes = nodes;
+            this.memberOf = memberOf;
+            this.memberNodes = memberNodes;
+            this.candidates = candidates;
+            this.kept = new boolean[candidates.length];
+            for (int i = 0; i < candidates.length; i++) {
+                kept[i] = keptDefinitions.contains(candidates[i]);
+            }
+        }
 
-        if(familySampler.getDefinitions().size() == 0) {
-            this.familyCache.remove(metricName);
-            cache.remove(dropwizardName);
+        /**
+         * @return true if the filter keeps the same definitions, so the registration and its fillers are still valid
+         */
+        private boolean isKeptAlike(CassandraMetricDefinitionFilter filter, String dropwizardName) {
+            for (int i = 0; i < candidates.length; i++) {
+                if (filter.matches(candidates[i], dropwizardName) != kept[i]) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
-    private void setGaugeHistogramFiller(Gauge gauge, CassandraMetricDefinition proto) {
-        proto.setFiller((samples) -> {
-            if(gauge.getValue() == null) {
-                return;
+    /**
+     * Re-evaluates the registry's metrics with a new filter. Only the metrics whose definitions are kept differently
+     * are removed and registered again, the families of the others are left as they are. The re-evaluation is not
+     * counted to the RegistrationStatistics.
+     *
+     * @return amount of the metrics added, removed or changed
+     */
+    public int setFilter(CassandraMetricDefinitionFilter metricFilter, MetricRegistry registry) {
+        // Registrations in progress finish with the previous filter and are re-evaluated below
+        filterLock.writeLock().lock();
+        try {
+            this.metricFilter = metricFilter;
+        } finally {
+            filterLock.writeLock().unlock();
+        }
+
+        List<String> changed = new ArrayList<>();
+        reevaluatingThread = Thread.currentThread();
+        try {
+            Map<String, Metric> metrics = registry.getMetrics();
+            for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+                String dropwizardName = entry.getKey();
+                Registration registration = cache.get(dropwizardName);
+                if (registration != null && registration.isKeptAlike(metricFilter, dropwizardName)) {
+                    continue;
+                }
+                if (registration == null && metricFilter.isPreFiltering()
+                        && !metricFilter.mayMatch(dropwizardName, parser.getMetricName(dropwizardName))) {
+                    // Still dropped entirely
+                    continue;
+                }
+                if (registration != null) {
+                    removeFromCache(dropwizardName);
+                }
+                add(dropwizardName, entry.getValue());
+                if (registration != null || cache.containsKey(dropwizardName)) {
+                    changed.add(dropwizardName);
+                }
             }
+
+            // Removed from (or replaced in) the registry while being re-evaluated
+            if (!changed.isEmpty()) {
+                Map<String, Metric> current = registry.getMetrics();
+                for (String dropwizardName : changed) {
+                    Metric metric = current.get(dropwizardName);
+                    if (metric != metrics.get(dropwizardName)) {
+                        removeFromCache(dropwizardName);
+                        if (metric != null) {
+                            add(dropwizardName, metric);
+                        }
+                    }
+                }
+            }
+        } finally {
+            reevaluatingThread = null;
+        }
+        return changed.size();
+    }
+
+    private void add(String dropwizardName, Metric metric) {
+        if (metric instanceof Gauge) {
+            addGauge(dropwizardName, (Gauge<?>) metric);
+        } else if (metric instanceof Counter) {
+            addCounter(dropwizardName, (Counter) metric);
+        } else if (metric instanceof Histogram) {
+            addHistogram(dropwizardName, (Histogram) metric);
+        } else if (metric instanceof Meter) {
+            addMeter(dropwizardName, (Meter) metric);
+        } else if (metric instanceof Timer) {
+            addTimer(dropwizardName, (Timer) metric);
+        }
+    }
+
+    /**
+     * Reads the gauge once per scrape and emits both the quantiles and the _count from the same values. The
+     * definitions dropped by the filter get no samples.
+     */
+    private void setGaugeHistogramFiller(String dropwizardName, Gauge gauge, CassandraMetricDefinition proto, CassandraMetricDefinition count) {
+        boolean quantiles = metricFilter.matches(proto, dropwizardName);
+        boolean counted = metricFilter.matches(count, dropwizardName);
+        Consumer<SampleSink> filler = (sink) -> {
             long[] inputValues = (long[]) gauge.getValue();
-            if (inputValues.length == 0) {
+            if (inputValues == null || inputValues.length == 0) {
                 // Empty
+                if (counted) {
+                    sink.accept(count, -1, 0.0);
+                }
                 return;
             }
 
             final EstimatedHistogram hist = new EstimatedHistogram(inputValues);
-            for(int i = 0; i < PRECOMPUTED_QUANTILES.length; i++) {
-                List<String> labelValues = new ArrayList<>(proto.getLabelValues().size() + 1);
-                int j = 0;
-                for(; j < proto.getLabelValues().size(); j++) {
-                    labelValues.add(j, proto.getLabelValues().get(j));
+            if (quantiles) {
+                for(int i = 0; i < PRECOMPUTED_QUANTILES.length; i++) {
+                    sink.accept(proto, i, hist.percentile(PRECOMPUTED_QUANTILES[i]));
                 }
-                labelValues.add(j, PRECOMPUTED_QUANTILES_TEXT[i]);
-                Collector.MetricFamilySamples.Sample sample = new Collector.MetricFamilySamples.Sample(
-                        proto.getMetricName(),
-                        proto.getLabelNames(),
-                        labelValues,
-                        hist.percentile(PRECOMPUTED_QUANTILES[i]));
-                samples.add(sample);
             }
-        });
+            if (counted) {
+                sink.accept(count, -1, (double) hist.count());
+            }
+        };
+
+        setSharedFiller(dropwizardName, filler, proto, count);
+    }
+
+    /**
+     * Sets the filler emitting the samples of all the definitions to the first definition kept by the filter, so the
+     * metric is read only once per scrape. The other definitions emit nothing by themselves.
+     */
+    private void setSharedFiller(String dropwizardName, Consumer<SampleSink> filler, CassandraMetricDefinition... definitions) {
+        boolean shared = false;
+        for (CassandraMetricDefinition definition : definitions) {
+            if (!shared && metricFilter.matches(definition, dropwizardName)) {
+                definition.setFiller(filler);
+                shared = true;
+            } else {
+                definition.setFiller(sink -> {});
+            }
+        }
+    }
+
+    private RollupSpec findRollupSpec(String familyName) {
+        for (RollupSpec rollupSpec : rollupSpecs) {
+            if (rollupSpec.matches(familyName)) {
+                return rollupSpec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the summaries of the family are rolled up, so their buckets are needed
+     */
+    private boolean isRolledUp(String dropwizardName, String familyName) {
+        return !rollupSpecs.isEmpty() && dropwizardName.startsWith(CassandraMetricNameParser.TABLE_METRIC_PREFIX) && findRollupSpec(familyName) != null;
     }
 
-    private Supplier<Double> fromGauge(final Gauge<?> gauge) {
+    private HistogramSpec findHistogramSpec(String familyName) {
+        for (HistogramSpec histogramSpec : histogramSpecs) {
+            if (histogramSpec.matches(familyName)) {
+                return histogramSpec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Export the timer or histogram as a Prometheus histogram of cumulative le buckets instead of a summary
+     */
+    private void addBucketedHistogram(String dropwizardName, String familyName, Sampling sampling, HistogramSpec histogramSpec, double factor) {
+        final HistogramBuckets buckets = HistogramBuckets.forMetric(sampling, histogramSpec.getBucketCoarsening(), factor);
+        final CassandraMetricDefinition bucket = parser.parseDropwizardMetric(dropwizardName, "_bucket", List.of("le"), new ArrayList<>(), buckets.getLeValues());
+        final CassandraMetricDefinition sum = parser.parseDropwizardMetric(dropwizardName, "_sum", new ArrayList<>(), new ArrayList<>());
+        final CassandraMetricDefinition count = parser.parseDropwizardMetric(dropwizardName, "_count", new ArrayList<>(), new ArrayList<>());
+
+        final CassandraMetricDefinition keptBucket = metricFilter.matches(bucket, dropwizardName) ? bucket : null;
+        final CassandraMetricDefinition keptSum = metricFilter.matches(sum, dropwizardName) ? sum : null;
+        final CassandraMetricDefinition keptCount = metricFilter.matches(count, dropwizardName) ? count : null;
+        setSharedFiller(dropwizardName, sink -> buckets.fill(sampling, sink, keptBucket, keptSum, keptCount), bucket, sum, count);
+
+        RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(familyName, Collector.Type.HISTOGRAM, "");
+        familySamples.addDefinition(bucket);
+        familySamples.addDefinition(sum);
+        familySamples.addDefinition(count);
+
+        updateCache(dropwizardName, familyName, familySamples);
+    }
+
+    /**
+     * Cassandra's long[] gauges walk every SSTable when read, so their type is detected from the name or the
+     * class' generic type when possible. Lambdas have no generic type left, these are read once.
+     */
+    static boolean isHistogramGauge(String dropwizardName, Gauge<?> gauge) {
+        for (String histogramGaugeName : HISTOGRAM_GAUGE_NAMES) {
+            int index = dropwizardName.indexOf(histogramGaugeName);
+            int end = index + histogramGaugeName.length();
+            if (index > 0 && dropwizardName.charAt(index - 1) == '.' && (end == dropwizardName.length() || dropwizardName.charAt(end) == '.')) {
+                return true;
+            }
+        }
+
+        Type valueType = gaugeValueType(gauge.getClass());
+        if (valueType instanceof Class) {
+            return valueType == long[].class;
+        }
+        return gauge.getValue() instanceof long[];
+    }
+
+    private static Type gaugeValueType(Class<?> gaugeClass) {
+        for (Class<?> c = gaugeClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Type genericInterface : c.getGenericInterfaces()) {
+                if (genericInterface instanceof ParameterizedType && ((ParameterizedType) genericInterface).getRawType() == Gauge.class) {
+                    return ((ParameterizedType) genericInterface).getActualTypeArguments()[0];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the conversion of the gauge's values once, by the gauge class' generic type. Lambdas have no generic type
+     * left, and a declared interface or supertype may hold any value, these are converted by their type on every read.
+     */
+    static DoubleSupplier fromGauge(final Gauge<?> gauge) {
+        Type valueType = gaugeValueType(gauge.getClass());
+        if (valueType instanceof ParameterizedType) {
+            valueType = ((ParameterizedType) valueType).getRawType();
+        }
+        if (valueType instanceof Class) {
+            Class<?> valueClass = (Class<?>) valueType;
+            if (Number.class.isAssignableFrom(valueClass)) {
+                return () -> {
+                    Number value = (Number) gauge.getValue();
+                    return value != null ? value.doubleValue() : 0;
+                };
+            }
+            if (valueClass == Boolean.class) {
+                return () -> Boolean.TRUE.equals(gauge.getValue()) ? 1 : 0;
+            }
+            if (Map.class.isAssignableFrom(valueClass) || Collection.class.isAssignableFrom(valueClass)
+                    || Modifier.isFinal(valueClass.getModifiers())) {
+                // Maps, lists and final classes that are never numbers (such as String), there's no single value to read.
+                // Interfaces and supertypes (Comparable, Serializable) may hold numbers and are read by the value's type
+                return () -> 0;
+            }
+        }
+
         return () -> {
             Object obj = gauge.getValue();
-            double value;
             if (obj instanceof Number) {
-                value = ((Number) obj).doubleValue();
+                return ((Number) obj).doubleValue();
             } else if (obj instanceof Boolean) {
-                value = ((Boolean) obj) ? 1 : 0;
-            } else {
-                // These are of type "HashMap<?, ?> and ArrayList<?>", but I haven't found any with actual data on my tests. Add specific parsing
-                // later if we find out something valuable is missing.
-                return 0.0;
+                return ((Boolean) obj) ? 1 : 0;
             }
-
-            return value;
+            // These are of type "HashMap<?, ?> and ArrayList<?>", but I haven't found any with actual data on my tests. Add specific parsing
+            // later if we find out something valuable is missing.
+            return 0;
         };
     }
 
     @Override
     public void onGaugeAdded(String dropwizardName, Gauge<?> gauge) {
-        if(gauge.getValue() instanceof long[]) {
-            // Treat this as a histogram, not gauge
-            final CassandraMetricDefinition proto = parser.parseDropwizardMetric(dropwizardName, "", List.of("quantile"), new ArrayList<>());
-            final CassandraMetricDefinition count = parser.parseDropwizardMetric(dropwizardName, "_count", new ArrayList<>(), new ArrayList<>());
+        filterLock.readLock().lock();
+        try {
+            addGauge(dropwizardName, gauge);
+        } finally {
+            filterLock.readLock().unlock();
+        }
+    }
 
-            setGaugeHistogramFiller(gauge, proto);
+    private void addGauge(String dropwizardName, Gauge<?> gauge) {
+        if (isPreFiltered(dropwizardName)) {
+            return;
+        }
 
-            count.setValueGetter(() -> {
-                if (gauge.getValue() == null) {
-                    return 0.0;
-                }
-                long[] inputValues = (long[]) gauge.getValue();
-                if (inputValues.length == 0) {
-                    // Empty
-                    return 0.0;
-                }
+        if(isHistogramGauge(dropwizardName, gauge)) {
+            // Treat this as a histogram, not gauge
+            final CassandraMetricDefinition proto = parser.parseDropwizardMetric(dropwizardName, "", List.of("quantile"), new ArrayList<>(), PRECOMPUTED_QUANTILES_TEXT);
+            final CassandraMetricDefinition count = parser.parseDropwizardMetric(dropwizardName, "_count", new ArrayList<>(), new ArrayList<>());
 
-                // _count
-                final EstimatedHistogram hist = new EstimatedHistogram(inputValues);
-                return (double) hist.count();
-            });
+            setGaugeHistogramFiller(dropwizardName, gauge, proto, count);
+            if (isRolledUp(dropwizardName, proto.getMetricName())) {
+                proto.setBucketSource(BucketSource.forHistogramGauge(gauge, metricFilter.matches(count, dropwizardName) ? count : null));
+            }
 
-            RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(proto.getMetricName(), Collector.Type.SUMMARY, "", new ArrayList<>());
+            RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(proto.getMetricName(), Collector.Type.SUMMARY, "");
             familySamples.addDefinition(proto);
             familySamples.addDefinition(count);
 
             updateCache(dropwizardName, proto.getMetricName(), familySamples);
             return;
         }
-        Supplier<Double> gaugeSupplier = fromGauge(gauge);
+        DoubleSupplier gaugeGetter = fromGauge(gauge);
         CassandraMetricDefinition sample = parser.parseDropwizardMetric(dropwizardName, "", new ArrayList<>(), new ArrayList<>());
-        sample.setValueGetter(gaugeSupplier);
-        RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(sample.getMetricName(), Collector.Type.GAUGE, "", new ArrayList<>());
+        sample.setValueGetter(gaugeGetter);
+        RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(sample.getMetricName(), Collector.Type.GAUGE, "");
         familySamples.addDefinition(sample);
         updateCache(dropwizardName, sample.getMetricName(), familySamples);
     }
@@ -163,10 +504,23 @@ public class CassandraMetricRegistryListener implements MetricRegistryListener {
 
     @Override
     public void onCounterAdded(String name, Counter counter) {
-        Supplier<Double> getValue = () -> (double) counter.getCount();
+        filterLock.readLock().lock();
+        try {
+            addCounter(name, counter);
+        } finally {
+            filterLock.readLock().unlock();
+        }
+    }
+
+    private void addCounter(String name, Counter counter) {
+        if (isPreFiltered(name)) {
+            return;
+        }
+
+        DoubleSupplier getValue = () -> (double) counter.getCount();
         CassandraMetricDefinition sampler = parser.parseDropwizardMetric(name, "", new ArrayList<>(), new ArrayList<>());
         sampler.setValueGetter(getValue);
-        RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(sampler.getMetricName(), Collector.Type.GAUGE, "", new ArrayList<>());
+        RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(sampler.getMetricName(), Collector.Type.GAUGE, "");
         familySamples.addDefinition(sampler);
         updateCache(name, sampler.getMetricName(), familySamples);
     }
@@ -178,15 +532,37 @@ public class CassandraMetricRegistryListener implements MetricRegistryListener {
 
     @Override
     public void onHistogramAdded(String dropwizardName, Histogram histogram) {
+        filterLock.readLock().lock();
+        try {
+            addHistogram(dropwizardName, histogram);
+        } finally {
+            filterLock.readLock().unlock();
+        }
+    }
+
+    private void addHistogram(String dropwizardName, Histogram histogram) {
+        if (isPreFiltered(dropwizardName)) {
+            return;
+        }
+
         // TODO Do we want extra processing for DecayingHistogram and EstimatedHistograms?
 
-        final CassandraMetricDefinition proto = parser.parseDropwizardMetric(dropwizardName, "", List.of("quantile"), new ArrayList<>());
+        final CassandraMetricDefinition proto = parser.parseDropwizardMetric(dropwizardName, "", List.of("quantile"), new ArrayList<>(), PRECOMPUTED_QUANTILES_TEXT);
+        HistogramSpec histogramSpec = findHistogramSpec(proto.getMetricName());
+        if (histogramSpec != null && histogramSpec.getMode() == HistogramSpec.Mode.histogram) {
+            addBucketedHistogram(dropwizardName, proto.getMetricName(), histogram, histogramSpec, 1.0);
+            return;
+        }
+
         final CassandraMetricDefinition count = parser.parseDropwizardMetric(dropwizardName, "_count", new ArrayList<>(), new ArrayList<>());
-        Supplier<Double> countSupplier = () -> (double) histogram.getCount();
+        DoubleSupplier countGetter = () -> (double) histogram.getCount();
 
-        RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(proto.getMetricName(), Collector.Type.SUMMARY, "", new ArrayList<>());
+        RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(proto.getMetricName(), Collector.Type.SUMMARY, "");
         setHistogramFiller(histogram, proto, 1.0);
-        count.setValueGetter(countSupplier);
+        if (isRolledUp(dropwizardName, proto.getMetricName())) {
+            proto.setBucketSource(BucketSource.forSampling(histogram, 1.0));
+        }
+        count.setValueGetter(countGetter);
         familySamples.addDefinition(proto);
         familySamples.addDefinition(count);
 
@@ -194,29 +570,14 @@ public class CassandraMetricRegistryListener implements MetricRegistryListener {
     }
 
     private static void setHistogramFiller(Histogram histogram, CassandraMetricDefinition proto, double factor) {
-        proto.setFiller((samples) -> {
+        ReservoirQuantiles quantiles = ReservoirQuantiles.forMetric(histogram);
+        proto.setFiller((sink) -> {
+            if (quantiles != null && quantiles.fill(sink, proto, factor)) {
+                return;
+            }
             Snapshot snapshot = histogram.getSnapshot();
-            double[] values = new double[]{
-                    snapshot.getMedian(),
-                    snapshot.get75thPercentile(),
-                    snapshot.get95thPercentile(),
-                    snapshot.get98thPercentile(),
-                    snapshot.get99thPercentile(),
-                    snapshot.get999thPercentile()
-            };
             for(int i = 0; i < PRECOMPUTED_QUANTILES.length; i++) {
-                List<String> labelValues = new ArrayList<>(proto.getLabelValues().size() + 1);
-                int j = 0;
-                for(; j < proto.getLabelValues().size(); j++) {
-                    labelValues.add(j, proto.getLabelValues().get(j));
-                }
-                labelValues.add(j, PRECOMPUTED_QUANTILES_TEXT[i]);
-                Collector.MetricFamilySamples.Sample sample = new Collector.MetricFamilySamples.Sample(
-                        proto.getMetricName(),
-                        proto.getLabelNames(),
-                        labelValues,
-                        values[i] * factor);
-                samples.add(sample);
+                sink.accept(proto, i, snapshot.getValue(PRECOMPUTED_QUANTILES[i]) * factor);
             }
         });
     }
@@ -228,11 +589,24 @@ public class CassandraMetricRegistryListener implements MetricRegistryListener {
 
     @Override
     public void onMeterAdded(String name, Meter meter) {
-        Supplier<Double> getValue = () -> (double) meter.getCount();
+        filterLock.readLock().lock();
+        try {
+            addMeter(name, meter);
+        } finally {
+            filterLock.readLock().unlock();
+        }
+    }
+
+    private void addMeter(String name, Meter meter) {
+        if (isPreFiltered(name)) {
+            return;
+        }
+
+        DoubleSupplier getValue = () -> (double) meter.getCount();
         CassandraMetricDefinition total = parser.parseDropwizardMetric(name, "_total", new ArrayList<>(), new ArrayList<>());
         total.setValueGetter(getValue);
 
-        RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(total.getMetricName(), Collector.Type.COUNTER, "", new ArrayList<>());
+        RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(total.getMetricName(), Collector.Type.COUNTER, "");
         familySamples.addDefinition(total);
         updateCache(name, total.getMetricName(), familySamples);
     }
@@ -243,44 +617,51 @@ public class CassandraMetricRegistryListener implements MetricRegistryListener {
     }
 
     private void setTimerFiller(Timer timer, CassandraMetricDefinition proto, double factor) {
-        proto.setFiller((samples) -> {
+        ReservoirQuantiles quantiles = ReservoirQuantiles.forMetric(timer);
+        proto.setFiller((sink) -> {
+            if (quantiles != null && quantiles.fill(sink, proto, factor)) {
+                return;
+            }
             Snapshot snapshot = timer.getSnapshot();
-            double[] values = new double[]{
-                    snapshot.getMedian(),
-                    snapshot.get75thPercentile(),
-                    snapshot.get95thPercentile(),
-                    snapshot.get98thPercentile(),
-                    snapshot.get99thPercentile(),
-                    snapshot.get999thPercentile()
-            };
             for(int i = 0; i < PRECOMPUTED_QUANTILES.length; i++) {
-                List<String> labelValues = new ArrayList<>(proto.getLabelValues().size() + 1);
-                int j = 0;
-                for(; j < proto.getLabelValues().size(); j++) {
-                    labelValues.add(j, proto.getLabelValues().get(j));
-                }
-                labelValues.add(j, PRECOMPUTED_QUANTILES_TEXT[i]);
-                Collector.MetricFamilySamples.Sample sample = new Collector.MetricFamilySamples.Sample(
-                        proto.getMetricName(),
-                        proto.getLabelNames(),
-                        labelValues,
-                        values[i] * factor);
-                samples.add(sample);
+                sink.accept(proto, i, snapshot.getValue(PRECOMPUTED_QUANTILES[i]) * factor);
             }
         });
     }
 
     @Override
     public void onTimerAdded(String dropwizardName, Timer timer) {
+        filterLock.readLock().lock();
+        try {
+            addTimer(dropwizardName, timer);
+        } finally {
+            filterLock.readLock().unlock();
+        }
+    }
+
+    private void addTimer(String dropwizardName, Timer timer) {
+        if (isPreFiltered(dropwizardName)) {
+            return;
+        }
+
         double factor = 1.0D / TimeUnit.SECONDS.toNanos(1L);
-        final CassandraMetricDefinition proto = parser.parseDropwizardMetric(dropwizardName, "", List.of("quantile"), new ArrayList<>());
+        final CassandraMetricDefinition proto = parser.parseDropwizardMetric(dropwizardName, "", List.of("quantile"), new ArrayList<>(), PRECOMPUTED_QUANTILES_TEXT);
+        HistogramSpec histogramSpec = findHistogramSpec(proto.getMetricName());
+        if (histogramSpec != null && histogramSpec.getMode() == HistogramSpec.Mode.histogram) {
+            addBucketedHistogram(dropwizardName, proto.getMetricName(), timer, histogramSpec, factor);
+            return;
+        }
+
         final CassandraMetricDefinition count = parser.parseDropwizardMetric(dropwizardName, "_count", new ArrayList<>(), new ArrayList<>());
-        Supplier<Double> getValue = () -> (double) timer.getCount();
+        DoubleSupplier getValue = () -> (double) timer.getCount();
 
         count.setValueGetter(getValue);
         setTimerFiller(timer, proto, factor);
+        if (isRolledUp(dropwizardName, proto.getMetricName())) {
+            proto.setBucketSource(BucketSource.forSampling(timer, factor));
+        }
 
-        RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(proto.getMetricName(), Collector.Type.SUMMARY, "", new ArrayList<>());
+        RefreshableMetricFamilySamples familySamples = new RefreshableMetricFamilySamples(proto.getMetricName(), Collector.Type.SUMMARY, "");
         familySamples.addDefinition(proto);
         familySamples.addDefinition(count);
 
@@ -0,0 +1,246 @@
+package io.k8ssandra.metrics.builder;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import io.prometheus.client.Collector;
+import org.apache.cassandra.metrics.DecayingEstimatedHistogramReservoir;
+import org.apache.cassandra.utils.EstimatedHistogram;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Converts a timer or a histogram to cumulative Prometheus histogram buckets. Cassandra's reservoirs keep the plain
+ * counts of their buckets next to the decaying ones, these only grow and are exported as is. Other reservoirs'
+ * snapshot values are counted to Cassandra's default buckets. Those are samples of recent values, so the buckets of
+ * such a histogram are not cumulative and go down as well as up.
+ */
+class HistogramBuckets {
+    private static final long[] DEFAULT_OFFSETS = EstimatedHistogram.newOffsets(DecayingEstimatedHistogramReservoir.DEFAULT_BUCKET_COUNT, false);
+
+    private final long[] offsets;
+
+    // True if the snapshot values are the bucket counts of the offsets
+    private final boolean bucketed;
+
+    // Indexes of the offsets exported as le boundaries, the last bucket (+Inf) is not included
+    private final int[] boundaries;
+
+    private final String[] leValues;
+
+    private final double factor;
+
+    // Cassandra reservoir's non-decaying counts, null if the snapshot is read instead
+    private final ReservoirBuckets reservoirBuckets;
+    private final AtomicLongArray cumulativeBuckets;
+
+    private HistogramBuckets(long[] offsets, boolean bucketed, int coarsening, double factor, ReservoirBuckets reservoirBuckets, AtomicLongArray cumulativeBuckets) {
+        this.offsets = offsets;
+        this.bucketed = bucketed;
+        this.factor = factor;
+        this.reservoirBuckets = reservoirBuckets;
+        this.cumulativeBuckets = cumulativeBuckets;
+
+        int boundaryCount = (offsets.length + coarsening - 1) / coarsening;
+        this.boundaries = new int[boundaryCount];
+        for (int i = 0; i < boundaryCount; i++) {
+            // The largest offset is always kept
+            boundaries[i] = Math.min((i + 1) * coarsening - 1, offsets.length - 1);
+        }
+
+        this.leValues = new String[boundaryCount + 1];
+        for (int i = 0; i < boundaryCount; i++) {
+            leValues[i] = Collector.doubleToGoString(offsets[boundaries[i]] * factor);
+        }
+        leValues[boundaryCount] = "+Inf";
+    }
+
+    /**
+     * @param sampling   Timer or Histogram
+     * @param coarsening amount of reservoir buckets merged to a single exported bucket
+     * @param factor     multiplier of the le boundaries and the sum, such as nanoseconds to seconds
+     */
+    static HistogramBuckets forMetric(Sampling sampling, int coarsening, double factor) {
+        Object reservoir = reservoir(sampling);
+        ReservoirBuckets reservoirBuckets = ReservoirBuckets.forReservoir(reservoir);
+        if (reservoirBuckets != null) {
+            AtomicLongArray cumulativeBuckets = reservoirBuckets.array("buckets");
+            return new HistogramBuckets(reservoirBuckets.getOffsets(), true, coarsening, factor, cumulativeBuckets != null ? reservoirBuckets : null, cumulativeBuckets);
+        }
+        long[] offsets = reservoirOffsets(reservoir);
+        if (offsets != null && offsets.length > 0) {
+            return new HistogramBuckets(offsets, true, coarsening, factor, null, null);
+        }
+        return new HistogramBuckets(DEFAULT_OFFSETS, false, coarsening, factor, null, null);
+    }
+
+    /**
+     * @return le label values of the exported buckets, the last one being +Inf
+     */
+    String[] getLeValues() {
+        return leValues;
+    }
+
+    long[] getOffsets() {
+        return offsets;
+    }
+
+    double getFactor() {
+        return factor;
+    }
+
+    /**
+     * @return the counts of the values in each offset's bucket, the last one counts the values above the largest
+     * offset. Owned by the snapshot if the reservoir's buckets are used as is
+     */
+    long[] bucketCounts(Snapshot snapshot) {
+        long[] values = snapshot.getValues();
+        if (bucketed && values.length == offsets.length + 1) {
+            return values;
+        }
+        long[] bucketCounts = new long[offsets.length + 1];
+        for (long value : values) {
+            int index = Arrays.binarySearch(offsets, value);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            bucketCounts[index]++;
+        }
+        return bucketCounts;
+    }
+
+    /**
+     * Emit the cumulative buckets, the sum and the count of the timer or histogram. Null definitions are skipped.
+     */
+    void fill(Sampling sampling, SampleSink sink, CassandraMetricDefinition bucket, CassandraMetricDefinition sum, CassandraMetricDefinition count) {
+        long[] bucketCounts;
+        double total;
+        if (cumulativeBuckets != null) {
+            bucketCounts = reservoirBuckets.sum(cumulativeBuckets, 1.0);
+            total = upperBoundSum(bucketCounts);
+        } else {
+            // Decaying or sampled values, not cumulative
+            long[] values = sampling.getSnapshot().getValues();
+            if (bucketed && values.length == offsets.length + 1) {
+                bucketCounts = values;
+                total = upperBoundSum(bucketCounts);
+            } else {
+                bucketCounts = new long[offsets.length + 1];
+                total = 0;
+                for (long value : values) {
+                    int index = Arrays.binarySearch(offsets, value);
+                    if (index < 0) {
+                        index = -index - 1;
+                    }
+                    bucketCounts[index]++;
+                    total += value;
+                }
+            }
+        }
+
+        long cumulative = 0;
+        int next = 0;
+        for (int i = 0; i < boundaries.length; i++) {
+            for (; next <= boundaries[i]; next++) {
+                cumulative += bucketCounts[next];
+            }
+            if (bucket != null) {
+                sink.accept(bucket, i, cumulative);
+            }
+        }
+        cumulative += bucketCounts[offsets.length];
+
+        if (bucket != null) {
+            sink.accept(bucket, boundaries.length, cumulative);
+        }
+        if (sum != null) {
+            sink.accept(sum, -1, total * factor);
+        }
+        if (count != null) {
+            // From the same buckets as +Inf, the metric's own count is read separately and could be ahead of them
+            sink.accept(count, -1, cumulative);
+        }
+    }
+
+    /**
+     * Cassandra estimates the values with the upper bound of their bucket, as does its snapshot's mean. The sum is
+     * an over-estimate of the actual sum, by up to the width of each value's bucket (about 20% with the default
+     * offsets). The values above the largest offset are not included.
+     */
+    private double upperBoundSum(long[] bucketCounts) {
+        double total = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            total += (double) bucketCounts[i] * offsets[i];
+        }
+        return total;
+    }
+
+    /**
+     * Estimates the quantile the same way as Cassandra's EstimatedHistogram, with the upper bound of the bucket. The
+     * values above the largest offset are estimated with it.
+     */
+    static double percentile(long[] offsets, long[] bucketCounts, double quantile) {
+        long total = 0;
+        for (long bucketCount : bucketCounts) {
+            total += bucketCount;
+        }
+        long rank = (long) Math.ceil(total * quantile);
+        if (rank == 0) {
+            return 0;
+        }
+        long elements = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            elements += bucketCounts[i];
+            if (elements >= rank) {
+                return offsets[i];
+            }
+        }
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * @return the bucket offsets of Cassandra's reservoir or null if the metric uses some other reservoir
+     */
+    private static long[] reservoirOffsets(Sampling sampling) {
+        return reservoirOffsets(reservoir(sampling));
+    }
+
+    static long[] reservoirOffsets(Object reservoir) {
+        if (reservoir == null) {
+            return null;
+        }
+        try {
+            Object offsets = declaredField(reservoir.getClass(), "bucketOffsets").get(reservoir);
+            return offsets instanceof long[] ? (long[]) offsets : null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the reservoir of the timer or histogram, null if it can not be accessed
+     */
+    static Object reservoir(Sampling sampling) {
+        try {
+            Object histogram = sampling;
+            if (sampling instanceof Timer) {
+                histogram = declaredField(Timer.class, "histogram").get(sampling);
+            }
+            if (!(histogram instanceof Histogram)) {
+                return null;
+            }
+            return declaredField(Histogram.class, "reservoir").get(histogram);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static Field declaredField(Class<?> clazz, String name) throws NoSuchFieldException {
+        Field field = clazz.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+}
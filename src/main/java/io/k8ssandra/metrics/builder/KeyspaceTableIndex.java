@@ -0,0 +1,133 @@
+package io.k8ssandra.metrics.builder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Secondary index of the definitions by the keyspace and table labels added by the CassandraMetricNameParser, so
+ * that the series of a keyspace or a table can be selected without going through all the families.
+ */
+public class KeyspaceTableIndex {
+    // Keyspace metrics are indexed with an empty table
+    private static final String NO_TABLE = "";
+
+    // keyspace -> table -> family -> definitions of the table in the family, in the order they were added
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>>>> index = new ConcurrentHashMap<>();
+
+    void add(RefreshableMetricFamilySamples family, CassandraMetricDefinition definition) {
+        String keyspace = definition.getLabelValue(CassandraMetricNameParser.KEYSPACE_LABEL_NAME);
+        if (keyspace == null) {
+            return;
+        }
+        String table = tableOf(definition);
+
+        // The keyspace's entries are only modified inside compute, so the empty ones can be removed safely
+        index.compute(keyspace, (k, tables) -> {
+            if (tables == null) {
+                tables = new ConcurrentHashMap<>();
+            }
+            tables.computeIfAbsent(table, t -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(family, f -> new CopyOnWriteArrayList<>())
+                    .add(definition);
+            return tables;
+        });
+    }
+
+    void remove(RefreshableMetricFamilySamples family, CassandraMetricDefinition definition) {
+        String keyspace = definition.getLabelValue(CassandraMetricNameParser.KEYSPACE_LABEL_NAME);
+        if (keyspace == null) {
+            return;
+        }
+        String table = tableOf(definition);
+
+        index.computeIfPresent(keyspace, (k, tables) -> {
+            ConcurrentHashMap<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>> families = tables.get(table);
+            if (families != null) {
+                List<CassandraMetricDefinition> definitions = families.get(family);
+                if (definitions != null && definitions.remove(definition) && definitions.isEmpty()) {
+                    families.remove(family);
+                    if (families.isEmpty()) {
+                        tables.remove(table);
+                    }
+                }
+            }
+            return tables.isEmpty() ? null : tables;
+        });
+    }
+
+    /**
+     * Selects the same series the full scrape exports for the keyspace or table, so that both agree on the same node:
+     * <ul>
+     *     <li>The tables folded by the CardinalityBudget are left out. Their other series has keyspace="other" and is
+     *     not selected by keyspace.</li>
+     *     <li>The keyspace rollups are indexed like the keyspace's own metrics, they are selected with the keyspace
+     *     but not with a table. The tables rolled up without keeping them are not in their families, so they are not
+     *     selected either. The node rollups have no keyspace and are never selected.</li>
+     * </ul>
+     *
+     * @param table null for all the tables of the keyspace and the keyspace's own metrics
+     * @return families with only the selected definitions, owned by the caller
+     */
+    public List<RefreshableMetricFamilySamples> select(String keyspace, String table) {
+        ConcurrentHashMap<String, ConcurrentHashMap<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>>> tables = index.get(keyspace);
+        if (tables == null) {
+            return new ArrayList<>();
+        }
+
+        Map<RefreshableMetricFamilySamples, RefreshableMetricFamilySamples> selected = new LinkedHashMap<>();
+        if (table != null) {
+            addSelected(selected, tables.get(table));
+        } else {
+            for (ConcurrentHashMap<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>> families : tables.values()) {
+                addSelected(selected, families);
+            }
+        }
+        return new ArrayList<>(selected.values());
+    }
+
+    private static void addSelected(Map<RefreshableMetricFamilySamples, RefreshableMetricFamilySamples> selected,
+                                    ConcurrentHashMap<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>> families) {
+        if (families == null) {
+            return;
+        }
+        for (Map.Entry<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>> entry : families.entrySet()) {
+            RefreshableMetricFamilySamples family = entry.getKey();
+            Set<CassandraMetricDefinition> folded = family.getFolded();
+            // The definitions of a table stay together, the protobuf format groups consecutive samples by their labels
+            for (CassandraMetricDefinition definition : entry.getValue()) {
+                if (!folded.contains(definition)) {
+                    selected.computeIfAbsent(family, f -> new RefreshableMetricFamilySamples(f.name, f.type, f.help)).addDefinition(definition);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calls the consumer with the definitions of each table by their family. The keyspaces' own metrics are not
+     * included.
+     */
+    void forEachTable(TableConsumer consumer) {
+        for (Map.Entry<String, ConcurrentHashMap<String, ConcurrentHashMap<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>>>> keyspace : index.entrySet()) {
+            for (Map.Entry<String, ConcurrentHashMap<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>>> table : keyspace.getValue().entrySet()) {
+                if (!table.getKey().equals(NO_TABLE)) {
+                    consumer.accept(keyspace.getKey(), table.getKey(), table.getValue());
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface TableConsumer {
+        void accept(String keyspace, String table, Map<RefreshableMetricFamilySamples, List<CassandraMetricDefinition>> families);
+    }
+
+    private static String tableOf(CassandraMetricDefinition definition) {
+        String table = definition.getLabelValue(CassandraMetricNameParser.TABLE_LABEL_NAME);
+        return table != null ? table : NO_TABLE;
+    }
+}
@@ -2,30 +2,245 @@ package io.k8ssandra.metrics.builder;
 
 import io.prometheus.client.Collector;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
-public class RefreshableMetricFamilySamples extends Collector.MetricFamilySamples {
-    private final List<CassandraMetricDefinition> definitions;
+/**
+ * A metric family and the definitions of its series. The samples are not stored here, every scrape builds its own
+ * (or writes them directly to a SampleSink), so concurrent scrapes never share mutable state.
+ *
+ * The definitions are kept in a linked list in the order they were added. Adding and removing a definition are
+ * constant time and do not copy the others, the scrapes read the list without locking.
+ */
+public class RefreshableMetricFamilySamples {
+    public final String name;
+    public final Collector.Type type;
+    public final String help;
 
-    public RefreshableMetricFamilySamples(String name, Collector.Type type, String help, List<Sample> samples) {
-        super(name, type, help, samples);
-        definitions = new CopyOnWriteArrayList<>();
+    // Sentinel, the first definition is head.next
+    private final Node head = new Node(null);
+    private Node tail = head;
+    private volatile int size;
+
+    // Duration of the latest sampled fill of the family, 0 if not sampled yet
+    private volatile long fillNanos;
+
+    // Definitions written to the other series instead of their own, replaced as a whole by the CardinalityBudget so
+    // that a scrape sees a single selection
+    private volatile Set<CassandraMetricDefinition> folded = Collections.emptySet();
+
+    // The other series by the folded definitions' metric names
+    private final ConcurrentHashMap<String, CassandraMetricDefinition> otherDefinitions = new ConcurrentHashMap<>();
+
+    public RefreshableMetricFamilySamples(String name, Collector.Type type, String help) {
+        // Same as Collector.MetricFamilySamples, counter's family name does not include the _total suffix
+        if (type == Collector.Type.COUNTER && name.endsWith("_total")) {
+            name = name.substring(0, name.length() - 6);
+        }
+        this.name = name;
+        this.type = type;
+        this.help = help;
+    }
+
+    /**
+     * Fetch the current values of all linked metricDefinitions to a new MetricFamilySamples owned by the caller
+     */
+    public Collector.MetricFamilySamples refreshSamples() {
+        List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>(size);
+        writeSamples((definition, sampleLabelIndex, value) -> samples.add(definition.buildSample(sampleLabelIndex, value)));
+        return new Collector.MetricFamilySamples(name, type, help, samples);
+    }
+
+    /**
+     * Emit the current values of all the linked metricDefinitions to the sink
+     */
+    public void writeSamples(SampleSink sink) {
+        Set<CassandraMetricDefinition> folded = this.folded;
+        if (!folded.isEmpty()) {
+            writeFoldedSamples(sink, folded);
+            return;
+        }
+        for (Node node = head.next; node != null; node = node.next) {
+            if (!node.removed) {
+                node.definition.fill(sink);
+            }
+        }
+    }
+
+    /**
+     * Writes the definitions that are not folded and then the other series, which sum the folded definitions'
+     * samples. Quantiles can not be summed, the other series has the largest quantile of the folded tables.
+     */
+    private void writeFoldedSamples(SampleSink sink, Set<CassandraMetricDefinition> foldedDefinitions) {
+        Map<String, FoldedSamples> folded = new LinkedHashMap<>();
+        SampleSink folder = (definition, sampleLabelIndex, value) -> folded
+                .computeIfAbsent(definition.getMetricName(), metricName -> new FoldedSamples(otherDefinitions.computeIfAbsent(metricName,
+                        name -> definition.withLabelValues(CardinalityBudget.OTHER_LABEL_VALUES))))
+                .add(sampleLabelIndex, value);
+
+        for (Node node = head.next; node != null; node = node.next) {
+            if (!node.removed) {
+                node.definition.fill(foldedDefinitions.contains(node.definition) ? folder : sink);
+            }
+        }
+        for (FoldedSamples samples : folded.values()) {
+            samples.write(sink);
+        }
+    }
+
+    /**
+     * @param folded immutable set of the definitions folded to the other series, empty if none are
+     */
+    void setFolded(Set<CassandraMetricDefinition> folded) {
+        this.folded = folded;
+    }
+
+    /**
+     * @return immutable set of the definitions folded to the other series, empty if none are
+     */
+    Set<CassandraMetricDefinition> getFolded() {
+        return folded;
     }
 
-    public void refreshSamples() {
-        // Fetch all linked metricDefinitions
-        samples.clear();
-        for (CassandraMetricDefinition definition : definitions) {
-            definition.accept(samples);
+    /**
+     * Calls the action with each current definition without copying them
+     */
+    void forEachDefinition(Consumer<CassandraMetricDefinition> action) {
+        for (Node node = head.next; node != null; node = node.next) {
+            if (!node.removed) {
+                action.accept(node.definition);
+            }
+        }
+    }
+
+    /**
+     * @return handle for removing the definition
+     */
+    public synchronized Node addDefinition(CassandraMetricDefinition definition) {
+        Node node = new Node(definition);
+        node.prev = tail;
+        tail.next = node;
+        tail = node;
+        size++;
+        return node;
+    }
+
+    /**
+     * Removes the definition added with the handle. Scrapes that already reached the definition continue past it.
+     */
+    public synchronized void removeDefinition(Node node) {
+        if (node.removed) {
+            return;
+        }
+        node.removed = true;
+        node.prev.next = node.next;
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        } else {
+            tail = node.prev;
         }
+        size--;
     }
 
-    public void addDefinition(CassandraMetricDefinition definition) {
-        definitions.add(definition);
+    public int size() {
+        return size;
     }
 
+    /**
+     * @return amount of series the definitions emit, the per-sample labels (such as quantiles) emit one each. The
+     * folded definitions are counted as the other series they were folded to
+     */
+    public int getSeriesCount() {
+        Set<CassandraMetricDefinition> folded = this.folded;
+        int series = 0;
+        for (Node node = head.next; node != null; node = node.next) {
+            if (!node.removed && !folded.contains(node.definition)) {
+                series += seriesCount(node.definition);
+            }
+        }
+        if (!folded.isEmpty()) {
+            for (CassandraMetricDefinition other : otherDefinitions.values()) {
+                series += seriesCount(other);
+            }
+        }
+        return series;
+    }
+
+    static int seriesCount(CassandraMetricDefinition definition) {
+        String[] sampleLabelValues = definition.getSampleLabelValues();
+        return sampleLabelValues != null ? sampleLabelValues.length : 1;
+    }
+
+    public void setFillNanos(long fillNanos) {
+        this.fillNanos = fillNanos;
+    }
+
+    public long getFillNanos() {
+        return fillNanos;
+    }
+
+    /**
+     * @return the current definitions, owned by the caller
+     */
     public List<CassandraMetricDefinition> getDefinitions() {
+        List<CassandraMetricDefinition> definitions = new ArrayList<>(size);
+        for (Node node = head.next; node != null; node = node.next) {
+            if (!node.removed) {
+                definitions.add(node.definition);
+            }
+        }
         return definitions;
     }
+
+    private static final class FoldedSamples {
+        private final CassandraMetricDefinition other;
+        private final boolean quantiles;
+        // Index 0 is the sample without the per-sample label
+        private final double[] values;
+        private final boolean[] present;
+
+        private FoldedSamples(CassandraMetricDefinition other) {
+            this.other = other;
+            String[] sampleLabelValues = other.getSampleLabelValues();
+            List<String> labelNames = other.getLabelNames();
+            this.quantiles = sampleLabelValues != null && labelNames.get(labelNames.size() - 1).equals("quantile");
+            this.values = new double[sampleLabelValues != null ? sampleLabelValues.length + 1 : 1];
+            this.present = new boolean[values.length];
+        }
+
+        private void add(int sampleLabelIndex, double value) {
+            int index = sampleLabelIndex + 1;
+            values[index] = !present[index] ? value : quantiles ? Math.max(values[index], value) : values[index] + value;
+            present[index] = true;
+        }
+
+        private void write(SampleSink sink) {
+            for (int i = 0; i < values.length; i++) {
+                if (present[i]) {
+                    sink.accept(other, i - 1, values[i]);
+                }
+            }
+        }
+    }
+
+    public static final class Node {
+        private final CassandraMetricDefinition definition;
+        private volatile Node next;
+        private Node prev;
+        private volatile boolean removed;
+
+        private Node(CassandraMetricDefinition definition) {
+            this.definition = definition;
+        }
+
+        public CassandraMetricDefinition getDefinition() {
+            return definition;
+        }
+    }
 }
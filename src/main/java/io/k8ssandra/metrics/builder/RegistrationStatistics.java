@@ -0,0 +1,47 @@
+package io.k8ssandra.metrics.builder;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of the Dropwizard metrics added to and removed from the registry, as seen by the
+ * CassandraMetricRegistryListener. Re-evaluating the metrics with reloaded filters is not counted, so the counts are
+ * neither reset nor inflated by a reload.
+ */
+public class RegistrationStatistics {
+    private final LongAdder registrations = new LongAdder();
+    private final LongAdder removals = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    void registered() {
+        registrations.increment();
+    }
+
+    void removed() {
+        removals.increment();
+    }
+
+    void rejected() {
+        rejections.increment();
+    }
+
+    /**
+     * @return metrics added to the families
+     */
+    public long getRegistrations() {
+        return registrations.sum();
+    }
+
+    /**
+     * @return metrics removed from the families
+     */
+    public long getRemovals() {
+        return removals.sum();
+    }
+
+    /**
+     * @return metrics dropped entirely by the filters, before or after their definitions were created
+     */
+    public long getRejections() {
+        return rejections.sum();
+    }
+}
@@ -0,0 +1,127 @@
+package io.k8ssandra.metrics.builder;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Layout of the bucket arrays of Cassandra's DecayingEstimatedHistogramReservoir. The reservoir keeps the decaying
+ * counts used by its quantiles and, since 3.0, the plain counts that only grow. Cassandra 4.0 spreads each bucket to
+ * stripes, whose indexes are resolved once with the reservoir's own stripedIndex().
+ */
+final class ReservoirBuckets {
+
+    // Summed to by a single reader at a time, a reader never calls another one
+    private static final ThreadLocal<long[]> scratch = ThreadLocal.withInitial(() -> new long[0]);
+
+    private final Object reservoir;
+
+    private final long[] offsets;
+
+    // Index of each stripe of each bucket in the arrays, the stripes of a bucket are consecutive
+    private final int[] stripedIndexes;
+    private final int stripes;
+    private final int maxIndex;
+
+    private ReservoirBuckets(Object reservoir, long[] offsets, int[] stripedIndexes, int stripes, int maxIndex) {
+        this.reservoir = reservoir;
+        this.offsets = offsets;
+        this.stripedIndexes = stripedIndexes;
+        this.stripes = stripes;
+        this.maxIndex = maxIndex;
+    }
+
+    /**
+     * @return layout of the reservoir, null if it is not one of Cassandra's
+     */
+    static ReservoirBuckets forReservoir(Object reservoir) {
+        long[] offsets = HistogramBuckets.reservoirOffsets(reservoir);
+        if (offsets == null || offsets.length == 0) {
+            return null;
+        }
+        try {
+            Class<?> reservoirClass = reservoir.getClass();
+            int stripes = 1;
+            Method stripedIndex = null;
+            if (hasField(reservoirClass, "nStripes")) {
+                stripes = HistogramBuckets.declaredField(reservoirClass, "nStripes").getInt(reservoir);
+                stripedIndex = reservoirClass.getDeclaredMethod("stripedIndex", int.class, int.class);
+                stripedIndex.setAccessible(true);
+            }
+            int bucketCount = offsets.length + 1;
+            int[] stripedIndexes = new int[bucketCount * stripes];
+            int maxIndex = 0;
+            for (int bucket = 0; bucket < bucketCount; bucket++) {
+                for (int stripe = 0; stripe < stripes; stripe++) {
+                    int index = stripedIndex != null ? (Integer) stripedIndex.invoke(reservoir, bucket, stripe) : bucket;
+                    if (index < 0) {
+                        return null;
+                    }
+                    stripedIndexes[bucket * stripes + stripe] = index;
+                    maxIndex = Math.max(maxIndex, index);
+                }
+            }
+            return new ReservoirBuckets(reservoir, offsets, stripedIndexes, stripes, maxIndex);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasField(Class<?> clazz, String name) {
+        try {
+            clazz.getDeclaredField(name);
+            return true;
+        } catch (NoSuchFieldException e) {
+            return false;
+        }
+    }
+
+    Object getReservoir() {
+        return reservoir;
+    }
+
+    /**
+     * @return upper bounds of the buckets, without the overflow bucket
+     */
+    long[] getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * @param name decayingBuckets or buckets
+     * @return the reservoir's array, null if it has no such array or it does not fit the layout
+     */
+    AtomicLongArray array(String name) {
+        try {
+            Object array = HistogramBuckets.declaredField(reservoir.getClass(), name).get(reservoir);
+            if (array instanceof AtomicLongArray && maxIndex < ((AtomicLongArray) array).length()) {
+                return (AtomicLongArray) array;
+            }
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sums the stripes of each bucket, divided by the rescale factor and rounded as Cassandra's snapshot does
+     *
+     * @return per-thread array of the counts of each bucket, the last one being the overflow bucket. Valid until
+     * the next call on the same thread
+     */
+    long[] sum(AtomicLongArray array, double rescaleFactor) {
+        int bucketCount = offsets.length + 1;
+        long[] counts = scratch.get();
+        if (counts.length < bucketCount) {
+            counts = new long[bucketCount];
+            scratch.set(counts);
+        }
+        for (int bucket = 0, index = 0; bucket < bucketCount; bucket++) {
+            long count = 0;
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                count += array.get(stripedIndexes[index++]);
+            }
+            counts[bucket] = rescaleFactor == 1.0 ? count : Math.round(count / rescaleFactor);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,177 @@
+package io.k8ssandra.metrics.builder;
+
+import com.codahale.metrics.Sampling;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+import static io.k8ssandra.metrics.builder.CassandraMetricsTools.PRECOMPUTED_QUANTILES;
+
+/**
+ * Reads the quantiles of Cassandra's DecayingEstimatedHistogramReservoir directly from its buckets. Its getSnapshot()
+ * copies and rescales the buckets into a new snapshot, and each quantile then scans them again. Here the stripes of
+ * the buckets are summed and rescaled in a single pass to a per-thread scratch array, and all the quantiles are
+ * found in one walk over it.
+ *
+ * The values match the snapshot's: the decayed bucket counts are divided by the current forward decay weight and
+ * rounded, and a quantile is the upper bound of the bucket it falls in. The reservoir's internals are accessed with
+ * reflection, so the reader is only created for a reservoir whose layout is recognized. Other reservoirs, and
+ * histograms with values above the largest offset, are read from their Snapshot. Like the snapshot, the reader first
+ * rescales a decaying reservoir to a new landmark when one is due, so that its weights do not grow without bound.
+ */
+final class ReservoirQuantiles {
+
+    // Sorted to ascending order so that they are found in a single walk, with the index of each in PRECOMPUTED_QUANTILES
+    private static final double[] QUANTILES = new double[PRECOMPUTED_QUANTILES.length];
+    private static final int[] QUANTILE_INDEXES;
+
+    static {
+        QUANTILE_INDEXES = IntStream.range(0, PRECOMPUTED_QUANTILES.length)
+                .boxed()
+                .sorted(Comparator.comparingDouble(i -> PRECOMPUTED_QUANTILES[i]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        for (int i = 0; i < QUANTILES.length; i++) {
+            QUANTILES[i] = PRECOMPUTED_QUANTILES[QUANTILE_INDEXES[i]];
+        }
+    }
+
+    private final ReservoirBuckets buckets;
+    private final AtomicLongArray decayingBuckets;
+
+    // ()void landmark rescale, (long)double forward decay weight and ()long current time, null if the reservoir does
+    // not decay
+    private final MethodHandle rescaleIfNeeded;
+    private final MethodHandle forwardDecayWeight;
+    private final MethodHandle now;
+
+    private ReservoirQuantiles(ReservoirBuckets buckets, AtomicLongArray decayingBuckets, MethodHandle rescaleIfNeeded, MethodHandle forwardDecayWeight, MethodHandle now) {
+        this.buckets = buckets;
+        this.decayingBuckets = decayingBuckets;
+        this.rescaleIfNeeded = rescaleIfNeeded;
+        this.forwardDecayWeight = forwardDecayWeight;
+        this.now = now;
+    }
+
+    /**
+     * @return reader of the timer's or histogram's reservoir, null if it is not one of Cassandra's
+     */
+    static ReservoirQuantiles forMetric(Sampling sampling) {
+        ReservoirBuckets buckets = ReservoirBuckets.forReservoir(HistogramBuckets.reservoir(sampling));
+        if (buckets == null) {
+            return null;
+        }
+        AtomicLongArray decayingBuckets = buckets.array("decayingBuckets");
+        if (decayingBuckets == null) {
+            return null;
+        }
+        try {
+            Object reservoir = buckets.getReservoir();
+            Class<?> reservoirClass = reservoir.getClass();
+            MethodHandle rescaleIfNeeded = null;
+            MethodHandle forwardDecayWeight = null;
+            MethodHandle now = null;
+            Method weightMethod = declaredMethod(reservoirClass, "forwardDecayWeight", long.class);
+            if (weightMethod != null) {
+                // The snapshot moves the decay landmark forward before reading the buckets, so must this
+                Method rescaleMethod = declaredMethod(reservoirClass, "rescaleIfNeeded");
+                Object clock = HistogramBuckets.declaredField(reservoirClass, "clock").get(reservoir);
+                Method nowMethod = clockMethod(clock);
+                if (rescaleMethod == null || nowMethod == null || weightMethod.getReturnType() != double.class) {
+                    return null;
+                }
+                rescaleIfNeeded = MethodHandles.lookup().unreflect(rescaleMethod).bindTo(reservoir)
+                        .asType(MethodType.methodType(void.class));
+                forwardDecayWeight = MethodHandles.lookup().unreflect(weightMethod).bindTo(reservoir);
+                now = MethodHandles.lookup().unreflect(nowMethod).bindTo(clock);
+            }
+            return new ReservoirQuantiles(buckets, decayingBuckets, rescaleIfNeeded, forwardDecayWeight, now);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Method declaredMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = clazz.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the current time method of Cassandra 4.0's MonotonicClock or the Dropwizard Clock of earlier versions
+     */
+    private static Method clockMethod(Object clock) {
+        if (clock == null) {
+            return null;
+        }
+        for (String name : new String[]{ "now", "getTime" }) {
+            for (Class<?> c = clock.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+                Method method = declaredMethod(c, name);
+                if (method != null && method.getReturnType() == long.class) {
+                    return method;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Emits the quantiles of the proto's samples, multiplied by the factor
+     *
+     * @return false without emitting anything if the quantiles can not be read from the buckets
+     */
+    boolean fill(SampleSink sink, CassandraMetricDefinition proto, double factor) {
+        double rescaleFactor = 1.0;
+        if (forwardDecayWeight != null) {
+            try {
+                rescaleIfNeeded.invokeExact();
+                rescaleFactor = (double) forwardDecayWeight.invokeExact((long) now.invokeExact());
+            } catch (Throwable e) {
+                return false;
+            }
+        }
+
+        long[] offsets = buckets.getOffsets();
+        long[] counts = buckets.sum(decayingBuckets, rescaleFactor);
+        long total = 0;
+        for (int bucket = 0; bucket <= offsets.length; bucket++) {
+            total += counts[bucket];
+        }
+        if (counts[offsets.length] > 0) {
+            // The snapshot decides what an overflowed histogram's quantiles are
+            return false;
+        }
+
+        if (total == 0) {
+            for (int quantile = 0; quantile < QUANTILES.length; quantile++) {
+                sink.accept(proto, QUANTILE_INDEXES[quantile], 0);
+            }
+            return true;
+        }
+
+        // Without an overflow the last rank is reached by the largest offset at the latest
+        int quantile = 0;
+        long rank = (long) Math.ceil(total * QUANTILES[0]);
+        long elements = 0;
+        for (int bucket = 0; bucket < offsets.length && quantile < QUANTILES.length; bucket++) {
+            elements += counts[bucket];
+            while (elements >= rank) {
+                sink.accept(proto, QUANTILE_INDEXES[quantile], offsets[bucket] * factor);
+                if (++quantile == QUANTILES.length) {
+                    break;
+                }
+                rank = (long) Math.ceil(total * QUANTILES[quantile]);
+            }
+        }
+        return true;
+    }
+}
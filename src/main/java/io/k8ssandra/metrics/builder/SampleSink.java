@@ -0,0 +1,16 @@
+package io.k8ssandra.metrics.builder;
+
+/**
+ * Receives the values of CassandraMetricDefinitions without materializing Collector.MetricFamilySamples.Sample
+ * instances. The exposition writers implement this to encode the values directly to their output.
+ */
+@FunctionalInterface
+public interface SampleSink {
+    /**
+     * @param definition the definition the value belongs to
+     * @param sampleLabelIndex index to {@link CassandraMetricDefinition#getSampleLabelValues()} (such as the quantile) or -1 if
+     *                         the sample has no per-sample label
+     * @param value the sample value
+     */
+    void accept(CassandraMetricDefinition definition, int sampleLabelIndex, double value);
+}
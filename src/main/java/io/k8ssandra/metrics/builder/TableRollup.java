@@ -0,0 +1,221 @@
+package io.k8ssandra.metrics.builder;
+
+import io.k8ssandra.metrics.config.RollupSpec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static io.k8ssandra.metrics.builder.CassandraMetricsTools.PRECOMPUTED_QUANTILES;
+
+/**
+ * Aggregate of the per-table definitions of a family in a keyspace, or in the whole node. Each distinct member
+ * metric name (such as the summary's quantiles and its _count) gets a rollup definition without the table label
+ * (and the keyspace label for the node) in the family. The members' values are summed, except for the summaries
+ * with a BucketSource, whose quantiles are computed from the merged buckets.
+ *
+ * The members and the rollup definitions are only modified while holding the family's entry in the family cache,
+ * the scrapes read them without locking.
+ */
+class TableRollup {
+    private final String key;
+    private final RollupSpec.By by;
+
+    // Per-table definitions, not in the family unless the tables are kept
+    private final RefreshableMetricFamilySamples members;
+
+    // Replaced when a new metric name is added, there are only a few
+    private volatile Rollup[] rollups = new Rollup[0];
+
+    // The sums of each rollup, reused by the scrapes of the same thread
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    TableRollup(String key, RefreshableMetricFamilySamples family, RollupSpec.By by) {
+        this.key = key;
+        this.by = by;
+        this.members = new RefreshableMetricFamilySamples(family.name, family.type, family.help);
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the member's handle for {@link #removeMember}
+     */
+    RefreshableMetricFamilySamples.Node addMember(CassandraMetricDefinition member, RefreshableMetricFamilySamples family, KeyspaceTableIndex keyspaceTableIndex) {
+        if (indexOf(rollups, member.getMetricName()) < 0) {
+            CassandraMetricDefinition definition = rollupDefinition(member);
+            // The first definition emits the samples of all of them, the members are read only once
+            definition.setFiller(rollups.length == 0 ? this::fill : sink -> {});
+
+            Rollup[] added = Arrays.copyOf(rollups, rollups.length + 1);
+            added[rollups.length] = new Rollup(definition, family.addDefinition(definition));
+            rollups = added;
+            keyspaceTableIndex.add(family, definition);
+        }
+        return members.addDefinition(member);
+    }
+
+    /**
+     * @return true if this was the last member, the rollup definitions were removed from the family
+     */
+    boolean removeMember(RefreshableMetricFamilySamples.Node member, RefreshableMetricFamilySamples family, KeyspaceTableIndex keyspaceTableIndex) {
+        members.removeDefinition(member);
+        if (members.size() > 0) {
+            return false;
+        }
+        for (Rollup rollup : rollups) {
+            family.removeDefinition(rollup.node);
+            keyspaceTableIndex.remove(family, rollup.definition);
+        }
+        rollups = new Rollup[0];
+        return true;
+    }
+
+    private CassandraMetricDefinition rollupDefinition(CassandraMetricDefinition member) {
+        List<String> memberLabelNames = member.getLabelNames();
+        List<String> memberLabelValues = member.getLabelValues();
+        List<String> labelNames = new ArrayList<>(memberLabelNames.size());
+        List<String> labelValues = new ArrayList<>(memberLabelValues.size());
+        for (int i = 0; i < memberLabelNames.size(); i++) {
+            String labelName = memberLabelNames.get(i);
+            if (labelName.equals(CassandraMetricNameParser.TABLE_LABEL_NAME)
+                    || (by == RollupSpec.By.node && labelName.equals(CassandraMetricNameParser.KEYSPACE_LABEL_NAME))) {
+                continue;
+            }
+            labelNames.add(labelName);
+            // The per-sample label has no value here
+            if (i < memberLabelValues.size()) {
+                labelValues.add(memberLabelValues.get(i));
+            }
+        }
+        return new CassandraMetricDefinition(member.getMetricName(), labelNames, labelValues, member.getSampleLabelValues());
+    }
+
+    private void fill(SampleSink sink) {
+        Rollup[] rollups = this.rollups;
+        Scratch scratch = this.scratch.get().reset(rollups);
+        double[][] sums = scratch.sums;
+        boolean[][] present = scratch.present;
+        long[][] mergedBuckets = scratch.mergedBuckets;
+        boolean[] merged = scratch.merged;
+
+        members.forEachDefinition(member -> {
+            BucketSource bucketSource = member.getBucketSource();
+            if (bucketSource == null) {
+                member.fill(scratch);
+                return;
+            }
+
+            int index = indexOf(rollups, member.getMetricName());
+            long[] bucketCounts = bucketSource.getBucketCounts();
+            if (index < 0 || bucketCounts.length == 0) {
+                return;
+            }
+            if (!merged[index]) {
+                merged[index] = true;
+                if (mergedBuckets[index] == null || mergedBuckets[index].length != bucketCounts.length) {
+                    mergedBuckets[index] = new long[bucketCounts.length];
+                } else {
+                    Arrays.fill(mergedBuckets[index], 0);
+                }
+                scratch.offsets[index] = bucketSource.getOffsets(bucketCounts.length);
+                scratch.factors[index] = bucketSource.factor;
+            } else if (mergedBuckets[index].length != bucketCounts.length) {
+                // Reservoirs with different buckets can not be merged
+                return;
+            }
+            long total = 0;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                mergedBuckets[index][i] += bucketCounts[i];
+                total += bucketCounts[i];
+            }
+            if (bucketSource.count != null) {
+                scratch.accept(bucketSource.count, -1, total);
+            }
+        });
+
+        for (int i = 0; i < rollups.length; i++) {
+            CassandraMetricDefinition definition = rollups[i].definition;
+            if (merged[i]) {
+                for (int q = 0; q < PRECOMPUTED_QUANTILES.length; q++) {
+                    sink.accept(definition, q, HistogramBuckets.percentile(scratch.offsets[i], mergedBuckets[i], PRECOMPUTED_QUANTILES[q]) * scratch.factors[i]);
+                }
+                continue;
+            }
+            for (int j = 0; j < sums[i].length; j++) {
+                if (present[i][j]) {
+                    sink.accept(definition, j - 1, sums[i][j]);
+                }
+            }
+        }
+    }
+
+    private static int indexOf(Rollup[] rollups, String metricName) {
+        for (int i = 0; i < rollups.length; i++) {
+            if (rollups[i].definition.getMetricName().equals(metricName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sums of the members' samples and merged buckets of each rollup, allocated again only when the rollups change
+     */
+    private static class Scratch implements SampleSink {
+        private Rollup[] rollups;
+        // Index 0 of the sums is the sample without the per-sample label
+        private double[][] sums;
+        private boolean[][] present;
+        private boolean[] merged;
+        private long[][] mergedBuckets;
+        private long[][] offsets;
+        private double[] factors;
+
+        private Scratch reset(Rollup[] rollups) {
+            if (this.rollups != rollups) {
+                this.rollups = rollups;
+                sums = new double[rollups.length][];
+                present = new boolean[rollups.length][];
+                merged = new boolean[rollups.length];
+                mergedBuckets = new long[rollups.length][];
+                offsets = new long[rollups.length][];
+                factors = new double[rollups.length];
+                for (int i = 0; i < rollups.length; i++) {
+                    String[] sampleLabelValues = rollups[i].definition.getSampleLabelValues();
+                    int size = sampleLabelValues != null ? sampleLabelValues.length + 1 : 1;
+                    sums[i] = new double[size];
+                    present[i] = new boolean[size];
+                }
+                return this;
+            }
+            for (int i = 0; i < rollups.length; i++) {
+                Arrays.fill(sums[i], 0);
+                Arrays.fill(present[i], false);
+            }
+            Arrays.fill(merged, false);
+            return this;
+        }
+
+        @Override
+        public void accept(CassandraMetricDefinition definition, int sampleLabelIndex, double value) {
+            int index = indexOf(rollups, definition.getMetricName());
+            if (index >= 0) {
+                sums[index][sampleLabelIndex + 1] += value;
+                present[index][sampleLabelIndex + 1] = true;
+            }
+        }
+    }
+
+    private static class Rollup {
+        private final CassandraMetricDefinition definition;
+        private final RefreshableMetricFamilySamples.Node node;
+
+        private Rollup(CassandraMetricDefinition definition, RefreshableMetricFamilySamples.Node node) {
+            this.definition = definition;
+            this.node = node;
+        }
+    }
+}
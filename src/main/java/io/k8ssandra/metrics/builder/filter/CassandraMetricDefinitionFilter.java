@@ -2,38 +2,118 @@ package io.k8ssandra.metrics.builder.filter;
 
 import io.k8ssandra.metrics.builder.CassandraMetricDefinition;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
+/**
+ * Evaluates the FilteringSpecs for the definitions. The specs are compiled once: every source label used by them gets
+ * a slot and each definition fills an array of the slots. The evaluation stops at the first spec that drops the
+ * definition.
+ *
+ * The specs that only use __origname__, or a prefix of __name__, are also evaluated before the definitions of a
+ * metric are created, see {@link #mayMatch(String, String)}.
+ */
 public class CassandraMetricDefinitionFilter {
 
-    private List<FilteringSpec> filteringSpecs;
+    private final CompiledFilteringSpec[] compiledSpecs;
+
+    // The specs that can reject all the definitions of a metric from its names
+    private final CompiledFilteringSpec[] preFilterSpecs;
+
+    // Slots of the source labels, __name__ and __origname__ always have the first two
+    private final HashMap<String, Integer> slotIndexes = new HashMap<>();
+    static final int METRIC_NAME_SLOT = 0;
+    static final int CASSANDRA_METRIC_NAME_SLOT = 1;
 
     public CassandraMetricDefinitionFilter(List<FilteringSpec> filters) {
-        this.filteringSpecs = filters;
+        this(filters, true);
     }
 
-    public boolean matches(CassandraMetricDefinition definition, String dropwizardName) {
-        boolean keep = true;
-        if(filteringSpecs.size() > 0) {
-            HashMap<String, String> labels = getLabels(definition, dropwizardName);
-            for (FilteringSpec filter : filteringSpecs) {
-                keep &= filter.filter(labels);
+    /**
+     * @param preFilter if false, {@link #mayMatch(String, String)} accepts every metric
+     */
+    public CassandraMetricDefinitionFilter(List<FilteringSpec> filters, boolean preFilter) {
+        slotIndexes.put(FilteringSpec.METRIC_NAME_LABELNAME, METRIC_NAME_SLOT);
+        slotIndexes.put(FilteringSpec.CASSANDRA_METRIC_NAME_LABELNAME, CASSANDRA_METRIC_NAME_SLOT);
+        for (FilteringSpec filter : filters) {
+            for (String sourceLabel : filter.getSourceLabels()) {
+                slotIndexes.putIfAbsent(sourceLabel, slotIndexes.size());
             }
         }
 
-        return keep;
+        this.compiledSpecs = new CompiledFilteringSpec[filters.size()];
+        for (int i = 0; i < compiledSpecs.length; i++) {
+            compiledSpecs[i] = new CompiledFilteringSpec(filters.get(i), slotIndexes);
+        }
+
+        List<CompiledFilteringSpec> preFilters = new ArrayList<>();
+        if (preFilter) {
+            for (CompiledFilteringSpec compiledSpec : compiledSpecs) {
+                if (compiledSpec.isPreFilter()) {
+                    preFilters.add(compiledSpec);
+                }
+            }
+        }
+        this.preFilterSpecs = preFilters.toArray(new CompiledFilteringSpec[0]);
+    }
+
+    /**
+     * @return true if {@link #mayMatch(String, String)} can reject metrics
+     */
+    public boolean isPreFiltering() {
+        return preFilterSpecs.length > 0;
+    }
+
+    /**
+     * Checks the metric before its definitions are created. The definitions would still need to be checked with
+     * {@link #matches(CassandraMetricDefinition, String)}.
+     *
+     * @param metricName name of the metric's definitions without the _count, _total and other suffixes
+     * @return false if every definition of the metric would be dropped
+     */
+    public boolean mayMatch(String dropwizardName, String metricName) {
+        if (preFilterSpecs.length == 0) {
+            return true;
+        }
+
+        String[] values = new String[slotIndexes.size()];
+        values[METRIC_NAME_SLOT] = metricName;
+        values[CASSANDRA_METRIC_NAME_SLOT] = dropwizardName;
+        for (CompiledFilteringSpec preFilterSpec : preFilterSpecs) {
+            if (preFilterSpec.dropsAll(values)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private HashMap<String, String> getLabels(CassandraMetricDefinition definition, String dropwizardName) {
-        HashMap<String, String> labels = new HashMap<>(definition.getLabelValues().size());
-        for(int i = 0; i < definition.getLabelValues().size(); i++) {
-            labels.put(definition.getLabelNames().get(i), definition.getLabelValues().get(i));
+    public boolean matches(CassandraMetricDefinition definition, String dropwizardName) {
+        if (compiledSpecs.length == 0) {
+            return true;
         }
 
-        labels.put(FilteringSpec.METRIC_NAME_LABELNAME, definition.getMetricName());
-        labels.put(FilteringSpec.CASSANDRA_METRIC_NAME_LABELNAME, dropwizardName);
+        String[] values = new String[slotIndexes.size()];
+        List<String> labelNames = definition.getLabelNames();
+        List<String> labelValues = definition.getLabelValues();
+        for (int i = 0; i < labelValues.size(); i++) {
+            Integer slot = slotIndexes.get(labelNames.get(i));
+            if (slot != null) {
+                values[slot] = labelValues.get(i);
+            }
+        }
+        values[METRIC_NAME_SLOT] = definition.getMetricName();
+        values[CASSANDRA_METRIC_NAME_SLOT] = dropwizardName;
+
+        for (CompiledFilteringSpec compiledSpec : compiledSpecs) {
+            if (!compiledSpec.keep(values)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        return labels;
+    CompiledFilteringSpec[] getCompiledSpecs() {
+        return compiledSpecs;
     }
 }
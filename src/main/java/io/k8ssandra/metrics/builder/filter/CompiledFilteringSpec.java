@@ -0,0 +1,164 @@
+package io.k8ssandra.metrics.builder.filter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * FilteringSpec with its source labels resolved to slots of the values array built by the
+ * CassandraMetricDefinitionFilter. A spec with a single source label and a regex that is a literal, or a literal
+ * followed by .*, is matched without the regex.
+ */
+class CompiledFilteringSpec {
+    enum MatchType { LITERAL, PREFIX, REGEX }
+
+    private static final String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    private final int[] slots;
+    private final boolean drop;
+    private final Pattern regex;
+    private final MatchType matchType;
+    // The literal or the prefix of the fast paths
+    private final String literal;
+
+    private final ThreadLocal<StringBuilder> joinBuffers = ThreadLocal.withInitial(StringBuilder::new);
+
+    /**
+     * @param slotIndexes slot of each label name, the spec's source labels must be included
+     */
+    CompiledFilteringSpec(FilteringSpec spec, Map<String, Integer> slotIndexes) {
+        List<String> sourceLabels = spec.getSourceLabels();
+        this.slots = new int[sourceLabels.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = slotIndexes.get(sourceLabels.get(i));
+        }
+        this.drop = spec.getAction() == FilteringSpec.Action.drop;
+        this.regex = spec.getRegex();
+
+        String unescaped = regex.flags() == 0 && slots.length == 1 ? unescapeLiteral(regex.pattern()) : null;
+        if (unescaped != null) {
+            this.matchType = MatchType.LITERAL;
+            this.literal = unescaped;
+        } else if (regex.flags() == 0 && slots.length == 1 && regex.pattern().endsWith(".*")
+                && (unescaped = unescapeLiteral(regex.pattern().substring(0, regex.pattern().length() - 2))) != null) {
+            this.matchType = MatchType.PREFIX;
+            this.literal = unescaped;
+        } else {
+            this.matchType = MatchType.REGEX;
+            this.literal = null;
+        }
+    }
+
+    MatchType getMatchType() {
+        return matchType;
+    }
+
+    /**
+     * @param values label values by slot, null if the definition does not have the label
+     * @return true if the definition is kept
+     */
+    boolean keep(String[] values) {
+        return matches(values) != drop;
+    }
+
+    /**
+     * @return true if the spec can be evaluated before the definitions are created
+     */
+    boolean isPreFilter() {
+        return onlyOriginalName() || (slots.length == 1 && slots[0] == CassandraMetricDefinitionFilter.METRIC_NAME_SLOT && matchType == MatchType.PREFIX);
+    }
+
+    /**
+     * @param values __name__ and __origname__ slots, __name__ without the suffix of the definitions
+     * @return true if the spec drops every definition of the metric
+     */
+    boolean dropsAll(String[] values) {
+        if (onlyOriginalName()) {
+            return !keep(values);
+        }
+
+        // The names of the definitions start with the name without the suffix, they can not be shorter than it
+        String metricName = values[CassandraMetricDefinitionFilter.METRIC_NAME_SLOT];
+        if (drop) {
+            return metricName.startsWith(literal) && !hasLineTerminator(metricName, literal.length());
+        }
+        return !metricName.startsWith(literal) && !literal.startsWith(metricName);
+    }
+
+    private boolean onlyOriginalName() {
+        for (int slot : slots) {
+            if (slot != CassandraMetricDefinitionFilter.CASSANDRA_METRIC_NAME_SLOT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(String[] values) {
+        if (slots.length == 1) {
+            String value = values[slots[0]];
+            if (value == null) {
+                value = "";
+            }
+            switch (matchType) {
+                case LITERAL:
+                    return value.equals(literal);
+                case PREFIX:
+                    // . does not match line terminators
+                    return value.startsWith(literal) && !hasLineTerminator(value, literal.length());
+                default:
+                    return regex.matcher(value).matches();
+            }
+        }
+
+        // Same as the FilteringSpec, the values are always joined with the default separator
+        StringBuilder joined = joinBuffers.get();
+        joined.setLength(0);
+        for (int i = 0; i < slots.length; i++) {
+            if (i > 0) {
+                joined.append(FilteringSpec.DEFAULT_SEPARATOR);
+            }
+            String value = values[slots[i]];
+            if (value != null) {
+                joined.append(value);
+            }
+        }
+        return regex.matcher(joined).matches();
+    }
+
+    private static boolean hasLineTerminator(String value, int from) {
+        for (int i = from; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the String matched by the regex if it has no other metacharacters than escaped punctuation, otherwise null
+     */
+    static String unescapeLiteral(String pattern) {
+        StringBuilder literal = new StringBuilder(pattern.length());
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == pattern.length()) {
+                    return null;
+                }
+                char escaped = pattern.charAt(++i);
+                // \d, \Q, \1 and such are not literals
+                if (Character.isLetterOrDigit(escaped) || escaped >= 0x80) {
+                    return null;
+                }
+                literal.append(escaped);
+            } else if (REGEX_METACHARACTERS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+}
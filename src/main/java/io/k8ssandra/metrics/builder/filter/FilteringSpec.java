@@ -51,6 +51,18 @@ public class FilteringSpec {
         this.action = Action.valueOf(action);
     }
 
+    List<String> getSourceLabels() {
+        return sourceLabels;
+    }
+
+    Pattern getRegex() {
+        return regexp;
+    }
+
+    Action getAction() {
+        return action;
+    }
+
     public boolean filter(Map<String, String> labels) {
         StringJoiner joiner = new StringJoiner(DEFAULT_SEPARATOR);
         for (String sourceLabel : sourceLabels) {
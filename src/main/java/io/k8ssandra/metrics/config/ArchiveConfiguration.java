@@ -0,0 +1,53 @@
+package io.k8ssandra.metrics.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Records the metrics to a fixed-size file on the node, so that the samples of a scraper outage can be backfilled
+ * later from the /archive endpoint. Disabled unless the path is set.
+ *
+ *     archive:
+ *       path: "/var/lib/cassandra/metrics.archive"
+ *       max_bytes: 67108864
+ *       interval_ms: 15000
+ */
+public class ArchiveConfiguration {
+    @JsonProperty("path")
+    private String path;
+
+    // Size of the file, the oldest snapshots are overwritten when it's full
+    @JsonProperty("max_bytes")
+    private long maxBytes;
+
+    // Time between the recorded snapshots
+    @JsonProperty("interval_ms")
+    private long intervalMillis;
+
+    public ArchiveConfiguration() {
+        path = null;
+        maxBytes = 64 * 1024 * 1024;
+        intervalMillis = 15000;
+    }
+
+    public ArchiveConfiguration(String path, long maxBytes, long intervalMillis) {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public boolean isEnabled() {
+        return path != null && !path.isEmpty();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+}
@@ -0,0 +1,70 @@
+package io.k8ssandra.metrics.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * Limits the amount of exported series. When a limit is exceeded, only the most active tables keep their own series,
+ * the rest are folded to a series with keyspace="other" and table="other".
+ *
+ *     cardinality:
+ *       max_series_per_family: 10000
+ *       max_series_per_node: 200000
+ *       selection_interval_ms: 60000
+ *       activity_metrics:
+ *         - org.apache.cassandra.metrics.Table.ReadLatency
+ *         - org.apache.cassandra.metrics.Table.WriteLatency
+ */
+public class CardinalityConfiguration {
+    private static final List<String> DEFAULT_ACTIVITY_METRICS = List.of(
+            "org.apache.cassandra.metrics.Table.ReadLatency",
+            "org.apache.cassandra.metrics.Table.WriteLatency");
+
+    // Largest amount of series in a family, 0 is unlimited
+    @JsonProperty("max_series_per_family")
+    private int maxSeriesPerFamily;
+
+    // Largest amount of series in all the families, 0 is unlimited
+    @JsonProperty("max_series_per_node")
+    private int maxSeriesPerNode;
+
+    // How often the kept tables are selected again by their activity
+    @JsonProperty("selection_interval_ms")
+    private long selectionIntervalMillis;
+
+    // Dropwizard names of the per-table metrics whose count ranks the tables, without the .keyspace.table suffix.
+    // Matched before any relabeling or rollup renames the families
+    @JsonProperty("activity_metrics")
+    private List<String> activityMetrics;
+
+    public CardinalityConfiguration() {
+        maxSeriesPerFamily = 0;
+        maxSeriesPerNode = 0;
+        selectionIntervalMillis = 60000;
+        activityMetrics = DEFAULT_ACTIVITY_METRICS;
+    }
+
+    public CardinalityConfiguration(int maxSeriesPerFamily, int maxSeriesPerNode, long selectionIntervalMillis) {
+        this.maxSeriesPerFamily = maxSeriesPerFamily;
+        this.maxSeriesPerNode = maxSeriesPerNode;
+        this.selectionIntervalMillis = selectionIntervalMillis;
+        this.activityMetrics = DEFAULT_ACTIVITY_METRICS;
+    }
+
+    public int getMaxSeriesPerFamily() {
+        return maxSeriesPerFamily;
+    }
+
+    public int getMaxSeriesPerNode() {
+        return maxSeriesPerNode;
+    }
+
+    public long getSelectionIntervalMillis() {
+        return selectionIntervalMillis;
+    }
+
+    public List<String> getActivityMetrics() {
+        return activityMetrics;
+    }
+}
@@ -10,20 +10,23 @@ public class ConfigReader {
     public static final String CONFIG_PATH_PROPERTY = "collector-config-path";
     public static final String CONFIG_PATH_DEFAULT = "/configs/metric-collector.yaml";
 
-    public static Configuration readConfig() {
+    public static String getConfigPath() {
         // Check env variable if there's any changes to the config path
         String configPath = System.getProperty(CONFIG_PATH_PROPERTY);
         if(configPath == null) {
             configPath = CONFIG_PATH_DEFAULT;
         }
+        return configPath;
+    }
 
-        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+    public static Configuration readConfig() {
+        String configPath = getConfigPath();
         File configFile = new File(configPath);
 
         // FileNotFoundException should be thrown if override is used
         if(configFile.exists() || !configPath.equals(CONFIG_PATH_DEFAULT)) {
             try {
-                return mapper.readValue(configFile, Configuration.class);
+                return readConfig(configFile);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -31,4 +34,9 @@ public class ConfigReader {
 
         return new Configuration();
     }
+
+    public static Configuration readConfig(File configFile) throws IOException {
+        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+        return mapper.readValue(configFile, Configuration.class);
+    }
 }
@@ -0,0 +1,94 @@
+package io.k8ssandra.metrics.config;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Watches the configuration file and reads it again when its contents change. The file's directory is watched, not
+ * only the file, since Kubernetes updates mounted ConfigMaps by swapping a symlink in it.
+ *
+ * A configuration that can not be read is logged and ignored, the previous one stays in use.
+ */
+public class ConfigWatcher implements Closeable {
+    private static final org.slf4j.Logger logger = LoggerFactory.getLogger(ConfigWatcher.class);
+
+    // Editors and ConfigMap updates change the directory several times in a row
+    private static final long SETTLE_MILLIS = 100;
+
+    private final Path configFile;
+    private final Consumer<Configuration> listener;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    private byte[] contents;
+
+    /**
+     * @param listener called from the watcher thread with each changed configuration
+     */
+    public ConfigWatcher(Path configFile, Consumer<Configuration> listener) throws IOException {
+        this.configFile = configFile.toAbsolutePath();
+        this.listener = listener;
+        this.contents = Files.readAllBytes(this.configFile);
+
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.configFile.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        this.thread = new Thread(this::watch, "metrics-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Thread.sleep(SETTLE_MILLIS);
+                key.pollEvents();
+                if (!key.reset()) {
+                    logger.warn("Stopped watching {}, its directory is no longer accessible", configFile);
+                    return;
+                }
+                reloadIfChanged();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    private void reloadIfChanged() {
+        try {
+            if (!Files.exists(configFile)) {
+                return;
+            }
+            byte[] changed = Files.readAllBytes(configFile);
+            if (Arrays.equals(contents, changed)) {
+                return;
+            }
+            contents = changed;
+
+            Configuration configuration = ConfigReader.readConfig(configFile.toFile());
+            logger.info("Configuration {} changed, reloading", configFile);
+            listener.accept(configuration);
+        } catch (Exception e) {
+            logger.error("Failed to reload the configuration {}, keeping the previous one", configFile, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+}
@@ -10,15 +10,119 @@ public class Configuration {
     @JsonProperty("filters")
     private List<FilteringSpec> filters;
 
+    @JsonProperty("scrape")
+    private ScrapeConfiguration scrape;
+
+    @JsonProperty("histograms")
+    private List<HistogramSpec> histograms;
+
+    @JsonProperty("rollups")
+    private List<RollupSpec> rollups;
+
+    @JsonProperty("cardinality")
+    private CardinalityConfiguration cardinality;
+
+    @JsonProperty("remote_write")
+    private RemoteWriteConfiguration remoteWrite;
+
+    @JsonProperty("archive")
+    private ArchiveConfiguration archive;
+
+    @JsonProperty("http")
+    private HttpConfiguration http;
+
     public Configuration() {
         filters = new ArrayList<>();
+        scrape = new ScrapeConfiguration();
+        histograms = new ArrayList<>();
+        rollups = new ArrayList<>();
+        cardinality = new CardinalityConfiguration();
+        remoteWrite = new RemoteWriteConfiguration();
+        archive = new ArchiveConfiguration();
+        http = new HttpConfiguration();
     }
 
+    /**
+     * Defaults for everything but the filters, the other sections can be replaced with their setters
+     */
     public Configuration(List<FilteringSpec> filters) {
+        this(filters, new ScrapeConfiguration(), new ArrayList<>(), new ArrayList<>(), new CardinalityConfiguration(), new RemoteWriteConfiguration(),
+                new ArchiveConfiguration(), new HttpConfiguration());
+    }
+
+    public Configuration(List<FilteringSpec> filters, ScrapeConfiguration scrape, List<HistogramSpec> histograms, List<RollupSpec> rollups, CardinalityConfiguration cardinality,
+                         RemoteWriteConfiguration remoteWrite, ArchiveConfiguration archive, HttpConfiguration http) {
         this.filters = filters;
+        this.scrape = scrape;
+        this.histograms = histograms;
+        this.rollups = rollups;
+        this.cardinality = cardinality;
+        this.remoteWrite = remoteWrite;
+        this.archive = archive;
+        this.http = http;
     }
 
     public List<FilteringSpec> getFilters() {
         return filters;
     }
+
+    public ScrapeConfiguration getScrape() {
+        return scrape;
+    }
+
+    public List<HistogramSpec> getHistograms() {
+        return histograms;
+    }
+
+    public List<RollupSpec> getRollups() {
+        return rollups;
+    }
+
+    public CardinalityConfiguration getCardinality() {
+        return cardinality;
+    }
+
+    public RemoteWriteConfiguration getRemoteWrite() {
+        return remoteWrite;
+    }
+
+    public ArchiveConfiguration getArchive() {
+        return archive;
+    }
+
+    public HttpConfiguration getHttp() {
+        return http;
+    }
+
+    public void setFilters(List<FilteringSpec> filters) {
+        this.filters = filters;
+    }
+
+    public void setScrape(ScrapeConfiguration scrape) {
+        this.scrape = scrape;
+    }
+
+    public void setHistograms(List<HistogramSpec> histograms) {
+        this.histograms = histograms;
+    }
+
+    public void setRollups(List<RollupSpec> rollups) {
+        this.rollups = rollups;
+    }
+
+    public void setCardinality(CardinalityConfiguration cardinality) {
+        this.cardinality = cardinality;
+    }
+
+    public void setRemoteWrite(RemoteWriteConfiguration remoteWrite) {
+        this.remoteWrite = remoteWrite;
+    }
+
+    public void setArchive(ArchiveConfiguration archive) {
+        this.archive = archive;
+    }
+
+    public void setHttp(HttpConfiguration http) {
+        this.http = http;
+    }
 }
@@ -0,0 +1,52 @@
+package io.k8ssandra.metrics.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.regex.Pattern;
+
+/**
+ * Selects how the timers and histograms of the matching metric families are exported.
+ *
+ *             - regex: "org_apache_cassandra_metrics_table_.*_latency"
+ *               mode: "histogram"
+ *               bucket_coarsening: 4
+ *
+ * The regex is matched against the family name. The summary mode exports the precomputed quantiles, the histogram
+ * mode cumulative _bucket{le=...}, _sum and _count series of the reservoir's buckets, keeping only every
+ * bucket_coarsening'th bucket boundary.
+ */
+public class HistogramSpec {
+    public enum Mode { summary, histogram };
+
+    @JsonProperty("regex")
+    private Pattern regexp;
+
+    @JsonProperty("mode")
+    private Mode mode;
+
+    @JsonProperty("bucket_coarsening")
+    private int bucketCoarsening;
+
+    public HistogramSpec() {
+        mode = Mode.histogram;
+        bucketCoarsening = 1;
+    }
+
+    public HistogramSpec(String regex, String mode, int bucketCoarsening) {
+        this.regexp = Pattern.compile(regex);
+        this.mode = Mode.valueOf(mode);
+        this.bucketCoarsening = bucketCoarsening;
+    }
+
+    public boolean matches(String familyName) {
+        return regexp.matcher(familyName).matches();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getBucketCoarsening() {
+        return Math.max(1, bucketCoarsening);
+    }
+}
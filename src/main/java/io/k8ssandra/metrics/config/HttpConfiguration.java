@@ -0,0 +1,129 @@
+package io.k8ssandra.metrics.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The HTTP server serving the metrics. Scrapes beyond the concurrent and queued requests are answered with 503 instead
+ * of waiting for a thread.
+ *
+ * The write timeout applies to each request of the metrics server only. The read timeout is a JVM-wide setting of the
+ * JDK's HTTP server, see read_timeout_ms before enabling it.
+ *
+ *     http:
+ *       address: "0.0.0.0"
+ *       port: 9104
+ *       max_concurrent_requests: 5
+ *       max_queued_requests: 20
+ *       read_timeout_ms: 0
+ *       write_timeout_ms: 30000
+ *       virtual_threads: false
+ */
+public class HttpConfiguration {
+    // Address to bind to, all the interfaces if not set
+    @JsonProperty("address")
+    private String address;
+
+    @JsonProperty("port")
+    private int port;
+
+    // Requests served at the same time
+    @JsonProperty("max_concurrent_requests")
+    private int maxConcurrentRequests;
+
+    // Requests waiting for one of the concurrent ones to finish
+    @JsonProperty("max_queued_requests")
+    private int maxQueuedRequests;
+
+    // Time to receive the request, the connection is closed when exceeded. 0 (the default) for no limit.
+    // WARNING: not specific to the metrics server. The JDK's server has no per-server setting, so this sets the
+    // process-wide system property sun.net.httpserver.maxReqTime (in whole seconds), which applies to EVERY
+    // com.sun.net.httpserver server in the Cassandra JVM. It is also best effort: it has no effect if such a server was
+    // started before the metrics server, or if the property is already set on the command line. Both cases are logged
+    @JsonProperty("read_timeout_ms")
+    private long readTimeoutMillis;
+
+    // Time to produce and send the response of each request, the connection is aborted when exceeded. 0 for no limit
+    @JsonProperty("write_timeout_ms")
+    private long writeTimeoutMillis;
+
+    // Serve each request on its own virtual thread, if the JVM has them. Platform threads are used otherwise
+    @JsonProperty("virtual_threads")
+    private boolean virtualThreads;
+
+    public HttpConfiguration() {
+        address = null;
+        port = 9104;
+        maxConcurrentRequests = 5;
+        maxQueuedRequests = 20;
+        readTimeoutMillis = 0;
+        writeTimeoutMillis = 0;
+        virtualThreads = false;
+    }
+
+    public HttpConfiguration(String address, int port, int maxConcurrentRequests, int maxQueuedRequests, long readTimeoutMillis, long writeTimeoutMillis,
+                             boolean virtualThreads) {
+        this.address = address;
+        this.port = port;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxQueuedRequests = maxQueuedRequests;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.virtualThreads = virtualThreads;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    public long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public long getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+    public void setReadTimeoutMillis(long readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public void setWriteTimeoutMillis(long writeTimeoutMillis) {
+        this.writeTimeoutMillis = writeTimeoutMillis;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+}
@@ -0,0 +1,97 @@
+package io.k8ssandra.metrics.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Pushes the metrics to a Prometheus remote_write endpoint, for environments where the nodes can not be scraped.
+ * Disabled unless the url is set.
+ *
+ *     remote_write:
+ *       url: "http://prometheus:9090/api/v1/write"
+ *       interval_ms: 15000
+ *       max_samples_per_request: 2000
+ *       max_buffered_bytes: 16777216
+ *       timeout_ms: 10000
+ *       min_backoff_ms: 1000
+ *       max_backoff_ms: 60000
+ */
+public class RemoteWriteConfiguration {
+    @JsonProperty("url")
+    private String url;
+
+    // Time between the collections
+    @JsonProperty("interval_ms")
+    private long intervalMillis;
+
+    // Samples in one request, the collection is split to several requests
+    @JsonProperty("max_samples_per_request")
+    private int maxSamplesPerRequest;
+
+    // Compressed requests waiting to be sent, the oldest are dropped when exceeded
+    @JsonProperty("max_buffered_bytes")
+    private long maxBufferedBytes;
+
+    // Connect and read timeout of a request
+    @JsonProperty("timeout_ms")
+    private int timeoutMillis;
+
+    // The wait before resending a failed request, doubled for every consecutive failure up to the maximum
+    @JsonProperty("min_backoff_ms")
+    private long minBackoffMillis;
+
+    @JsonProperty("max_backoff_ms")
+    private long maxBackoffMillis;
+
+    public RemoteWriteConfiguration() {
+        url = null;
+        intervalMillis = 15000;
+        maxSamplesPerRequest = 2000;
+        maxBufferedBytes = 16 * 1024 * 1024;
+        timeoutMillis = 10000;
+        minBackoffMillis = 1000;
+        maxBackoffMillis = 60000;
+    }
+
+    public RemoteWriteConfiguration(String url, long intervalMillis, int maxSamplesPerRequest, long maxBufferedBytes, int timeoutMillis,
+                                    long minBackoffMillis, long maxBackoffMillis) {
+        this.url = url;
+        this.intervalMillis = intervalMillis;
+        this.maxSamplesPerRequest = maxSamplesPerRequest;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.timeoutMillis = timeoutMillis;
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public boolean isEnabled() {
+        return url != null && !url.isEmpty();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public int getMaxSamplesPerRequest() {
+        return maxSamplesPerRequest;
+    }
+
+    public long getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    public int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public long getMinBackoffMillis() {
+        return minBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+}
@@ -0,0 +1,53 @@
+package io.k8ssandra.metrics.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.regex.Pattern;
+
+/**
+ * Aggregates the per-table series of the matching families on the node.
+ *
+ *             - regex: "org_apache_cassandra_metrics_table_.*"
+ *               by: "keyspace"
+ *               keep_tables: false
+ *
+ * The regex is matched against the family name. Counters, meters, gauges and the buckets of the histogram mode are
+ * summed, the summaries of the timers, histograms and long[] gauges are computed from the merged buckets of the
+ * tables' reservoirs. The keyspace rollup keeps the keyspace label, the node rollup aggregates all the tables of the
+ * node. The rollups replace the per-table series unless keep_tables is set.
+ */
+public class RollupSpec {
+    public enum By { keyspace, node };
+
+    @JsonProperty("regex")
+    private Pattern regexp;
+
+    @JsonProperty("by")
+    private By by;
+
+    @JsonProperty("keep_tables")
+    private boolean keepTables;
+
+    public RollupSpec() {
+        by = By.keyspace;
+        keepTables = false;
+    }
+
+    public RollupSpec(String regex, String by, boolean keepTables) {
+        this.regexp = Pattern.compile(regex);
+        this.by = By.valueOf(by);
+        this.keepTables = keepTables;
+    }
+
+    public boolean matches(String familyName) {
+        return regexp.matcher(familyName).matches();
+    }
+
+    public By getBy() {
+        return by;
+    }
+
+    public boolean isKeepTables() {
+        return keepTables;
+    }
+}
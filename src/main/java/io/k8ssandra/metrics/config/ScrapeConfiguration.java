@@ -0,0 +1,108 @@
+package io.k8ssandra.metrics.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Controls how the scrapes of the Cassandra metrics are executed.
+ *
+ *     scrape:
+ *       coalesce: true
+ *       freshness_window_ms: 2000
+ *       max_concurrent_collections: 1
+ *       refresh_parallelism: 4
+ *       fill_time_sample_interval: 16
+ *       cache_encoded_lines: true
+ */
+public class ScrapeConfiguration {
+    private static final int DEFAULT_FILL_TIME_SAMPLE_INTERVAL = 16;
+
+    // Scrapes arriving during a running collection share its result
+    @JsonProperty("coalesce")
+    private boolean coalesce;
+
+    // With coalescing, results younger than this are served from the cache
+    @JsonProperty("freshness_window_ms")
+    private long freshnessWindowMillis;
+
+    // Maximum amount of collections running at the same time, 0 is unlimited
+    @JsonProperty("max_concurrent_collections")
+    private int maxConcurrentCollections;
+
+    // Amount of threads refreshing the families of a single scrape, 0 refreshes them in the scraping thread
+    @JsonProperty("refresh_parallelism")
+    private int refreshParallelism;
+
+    // One in this many scrapes measures the fill time of each family, 0 never measures them
+    @JsonProperty("fill_time_sample_interval")
+    private int fillTimeSampleInterval;
+
+    // The text formats copy the lines of the series with unchanged values from the previous scrape
+    @JsonProperty("cache_encoded_lines")
+    private boolean cacheEncodedLines;
+
+    public ScrapeConfiguration() {
+        coalesce = false;
+        freshnessWindowMillis = 0;
+        maxConcurrentCollections = 0;
+        refreshParallelism = 0;
+        fillTimeSampleInterval = DEFAULT_FILL_TIME_SAMPLE_INTERVAL;
+        cacheEncodedLines = true;
+    }
+
+    public ScrapeConfiguration(boolean coalesce, long freshnessWindowMillis, int maxConcurrentCollections, int refreshParallelism, int fillTimeSampleInterval, boolean cacheEncodedLines) {
+        this.coalesce = coalesce;
+        this.freshnessWindowMillis = freshnessWindowMillis;
+        this.maxConcurrentCollections = maxConcurrentCollections;
+        this.refreshParallelism = refreshParallelism;
+        this.fillTimeSampleInterval = fillTimeSampleInterval;
+        this.cacheEncodedLines = cacheEncodedLines;
+    }
+
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    public long getFreshnessWindowMillis() {
+        return freshnessWindowMillis;
+    }
+
+    public int getMaxConcurrentCollections() {
+        return maxConcurrentCollections;
+    }
+
+    public int getRefreshParallelism() {
+        return refreshParallelism;
+    }
+
+    public int getFillTimeSampleInterval() {
+        return fillTimeSampleInterval;
+    }
+
+    public boolean isCacheEncodedLines() {
+        return cacheEncodedLines;
+    }
+
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    public void setFreshnessWindowMillis(long freshnessWindowMillis) {
+        this.freshnessWindowMillis = freshnessWindowMillis;
+    }
+
+    public void setMaxConcurrentCollections(int maxConcurrentCollections) {
+        this.maxConcurrentCollections = maxConcurrentCollections;
+    }
+
+    public void setRefreshParallelism(int refreshParallelism) {
+        this.refreshParallelism = refreshParallelism;
+    }
+
+    public void setFillTimeSampleInterval(int fillTimeSampleInterval) {
+        this.fillTimeSampleInterval = fillTimeSampleInterval;
+    }
+
+    public void setCacheEncodedLines(boolean cacheEncodedLines) {
+        this.cacheEncodedLines = cacheEncodedLines;
+    }
+}
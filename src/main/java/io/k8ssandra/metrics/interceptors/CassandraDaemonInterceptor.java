@@ -2,9 +2,13 @@ package io.k8ssandra.metrics.interceptors;
 
 import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
 import io.k8ssandra.metrics.config.ConfigReader;
+import io.k8ssandra.metrics.config.ConfigWatcher;
 import io.k8ssandra.metrics.config.Configuration;
 import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
-import io.prometheus.client.exporter.HTTPServer;
+import io.k8ssandra.metrics.prometheus.MetricsHttpServer;
+import io.k8ssandra.metrics.prometheus.RemoteWritePusher;
+import io.k8ssandra.metrics.prometheus.SampleArchive;
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.hotspot.DefaultExports;
 import net.bytebuddy.agent.builder.AgentBuilder.Transformer;
 import net.bytebuddy.description.type.TypeDescription;
@@ -16,6 +20,8 @@ import org.apache.cassandra.metrics.CassandraMetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.Callable;
 
 public class CassandraDaemonInterceptor
@@ -42,18 +48,69 @@ public class CassandraDaemonInterceptor
         // Initialize filtering
         CassandraMetricDefinitionFilter filter = new CassandraMetricDefinitionFilter(config.getFilters());
 
-        // Add Cassandra metrics
-        new CassandraDropwizardExports(CassandraMetricsRegistry.Metrics, filter).register();
+        // Add Cassandra metrics, these are written directly by the MetricsHttpServer and not through the CollectorRegistry
+        CassandraDropwizardExports exports = new CassandraDropwizardExports(CassandraMetricsRegistry.Metrics, filter, config);
 
-        // Add JVM metrics
+        // Add JVM metrics and the exporter's own
         DefaultExports.initialize();
+        exports.getExporterMetrics().register();
+
+        // Record them on the node for backfilling the scraper outages
+        SampleArchive sampleArchive = null;
+        if (config.getArchive().isEnabled()) {
+            try {
+                sampleArchive = new SampleArchive(exports, config.getArchive());
+                sampleArchive.start();
+            } catch (IOException | RuntimeException e) {
+                logger.error("Unable to open the metrics archive {}, the metrics will not be recorded", config.getArchive().getPath(), e);
+            }
+        }
+        final SampleArchive archive = sampleArchive;
 
         // Share them from HTTP server
-        final HTTPServer server = new HTTPServer.Builder()
-                .withPort(9104)
-                .build();
+        final MetricsHttpServer server = new MetricsHttpServer(config.getHttp(), exports, CollectorRegistry.defaultRegistry, archive);
+
+        // Push them too where the node can not be scraped
+        RemoteWritePusher pusher = null;
+        if (config.getRemoteWrite().isEnabled()) {
+            try {
+                pusher = new RemoteWritePusher(exports, CollectorRegistry.defaultRegistry, config.getRemoteWrite());
+                pusher.register();
+                pusher.start();
+            } catch (IOException e) {
+                logger.error("Invalid remote_write url {}, the metrics will not be pushed", config.getRemoteWrite().getUrl(), e);
+            }
+        }
+        final RemoteWritePusher remoteWritePusher = pusher;
+
+        // Reload the filters when the configuration file changes
+        ConfigWatcher watcher = null;
+        File configFile = new File(ConfigReader.getConfigPath());
+        if (configFile.exists()) {
+            try {
+                watcher = new ConfigWatcher(configFile.toPath(), changed -> exports.setFilter(new CassandraMetricDefinitionFilter(changed.getFilters())));
+            } catch (IOException e) {
+                logger.warn("Unable to watch {} for changes, the filters will not be reloaded", configFile, e);
+            }
+        }
+        final ConfigWatcher configWatcher = watcher;
 
         logger.info("Metrics collector started");
-        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            if (remoteWritePusher != null) {
+                remoteWritePusher.close();
+            }
+            if (archive != null) {
+                archive.close();
+            }
+            if (configWatcher != null) {
+                try {
+                    configWatcher.close();
+                } catch (IOException e) {
+                    logger.debug("Failed to close the configuration watcher", e);
+                }
+            }
+        }));
     }
 }
@@ -2,15 +2,36 @@ package io.k8ssandra.metrics.prometheus;
 
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.builder.CardinalityBudget;
 import io.k8ssandra.metrics.builder.CassandraMetricRegistryListener;
+import io.k8ssandra.metrics.builder.KeyspaceTableIndex;
 import io.k8ssandra.metrics.builder.RefreshableMetricFamilySamples;
+import io.k8ssandra.metrics.builder.RegistrationStatistics;
+import io.k8ssandra.metrics.builder.SampleSink;
 import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
+import io.k8ssandra.metrics.config.Configuration;
+import io.k8ssandra.metrics.config.HistogramSpec;
+import io.k8ssandra.metrics.config.RollupSpec;
+import io.k8ssandra.metrics.config.ScrapeConfiguration;
 import io.prometheus.client.Collector;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Collect Dropwizard metrics from CassandraMetricRegistry. This is modified version of the Prometheus' client_java's DropwizardExports
@@ -21,7 +42,56 @@ public class CassandraDropwizardExports extends Collector implements Collector.D
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(CassandraDropwizardExports.class);
     private final MetricRegistry registry;
 
-    private ConcurrentHashMap<String, RefreshableMetricFamilySamples> familyCache;
+    private final ConcurrentHashMap<String, RefreshableMetricFamilySamples> familyCache;
+
+    // Definitions of familyCache by keyspace and table
+    private final KeyspaceTableIndex keyspaceTableIndex;
+
+    private final CassandraMetricRegistryListener listener;
+
+    private final RegistrationStatistics registrationStatistics;
+
+    private final ExporterMetrics exporterMetrics;
+
+    // Folds the least active tables' series when the families grow over the limits
+    private final CardinalityBudget cardinalityBudget;
+
+    // Suffixes of the sample names, a family is also selected by the names of its samples
+    private static final String[] SAMPLE_NAME_SUFFIXES = { "_total", "_count", "_sum", "_bucket" };
+
+    private final List<HistogramSpec> histogramSpecs;
+
+    private final List<RollupSpec> rollupSpecs;
+
+    // Limits the amount of collections running at the same time, null if unlimited
+    private final Semaphore collectionPermits;
+
+    // Share the results between concurrent (and recent) scrapes, null if coalescing is disabled
+    private final ScrapeCoalescer<List<MetricFamilySamples>> collectCoalescer;
+    private final boolean coalesce;
+    private final long freshnessWindowMillis;
+
+    // The text format writers should cache the lines of the unchanged series
+    private final boolean cacheEncodedLines;
+
+    // Coalesced writes of each exposition format, by content type
+    private final ConcurrentHashMap<String, CoalescedWrite> coalescedWrites;
+
+    // Smaller schemas are not worth splitting between threads
+    private static final int PARALLEL_REFRESH_THRESHOLD = 256;
+
+    // Refreshes the families in chunks, null if the families are refreshed in the scraping thread
+    private final ForkJoinPool refreshPool;
+
+    private final int refreshParallelism;
+
+    // Sets of chunk writers kept for reuse without a limit of concurrent collections
+    private static final int DEFAULT_POOLED_CHUNK_WRITERS = 4;
+
+    // Writers for the chunks by content type, merged in order after the refresh. Pooled instead of per thread, as the
+    // scraping threads may be virtual threads serving a single request. Null without parallel refresh
+    private final ConcurrentHashMap<String, ArrayBlockingQueue<ExpositionWriter[]>> chunkWriters;
+    private final int pooledChunkWriters;
 
     /**
      * Creates a new CassandraDropwizardExports with {@link MetricFilter#ALL}.
@@ -39,27 +109,371 @@ public class CassandraDropwizardExports extends Collector implements Collector.D
      * @param metricFilter a custom metric filter.
      */
     public CassandraDropwizardExports(MetricRegistry registry, CassandraMetricDefinitionFilter metricFilter) {
+        this(registry, metricFilter, new Configuration());
+    }
+
+    /**
+     * Creates a new CassandraDropwizardExports with a custom {@link MetricFilter} and scrape settings.
+     *
+     * @param registry      a metric registry to export in prometheus.
+     * @param metricFilter  a custom metric filter.
+     * @param configuration scrape settings
+     */
+    public CassandraDropwizardExports(MetricRegistry registry, CassandraMetricDefinitionFilter metricFilter, Configuration configuration) {
         this.registry = registry;
         this.familyCache = new ConcurrentHashMap<>();
-        registry.addListener(new CassandraMetricRegistryListener(this.familyCache, metricFilter));
+
+        ScrapeConfiguration scrapeConfiguration = configuration.getScrape();
+        this.collectionPermits = scrapeConfiguration.getMaxConcurrentCollections() > 0 ? new Semaphore(scrapeConfiguration.getMaxConcurrentCollections()) : null;
+        if (scrapeConfiguration.isCoalesce()) {
+            this.collectCoalescer = new ScrapeCoalescer<>(scrapeConfiguration.getFreshnessWindowMillis());
+        } else {
+            this.collectCoalescer = null;
+        }
+        this.coalesce = scrapeConfiguration.isCoalesce();
+        this.freshnessWindowMillis = scrapeConfiguration.getFreshnessWindowMillis();
+        this.cacheEncodedLines = scrapeConfiguration.isCacheEncodedLines();
+        this.coalescedWrites = new ConcurrentHashMap<>();
+
+        this.refreshParallelism = scrapeConfiguration.getRefreshParallelism();
+        this.pooledChunkWriters = scrapeConfiguration.getMaxConcurrentCollections() > 0 ? scrapeConfiguration.getMaxConcurrentCollections() : DEFAULT_POOLED_CHUNK_WRITERS;
+        if (refreshParallelism > 0) {
+            this.refreshPool = new ForkJoinPool(refreshParallelism, new RefreshThreadFactory(), null, false);
+            this.chunkWriters = new ConcurrentHashMap<>();
+        } else {
+            this.refreshPool = null;
+            this.chunkWriters = null;
+        }
+
+        this.histogramSpecs = configuration.getHistograms();
+        this.rollupSpecs = configuration.getRollups();
+        this.keyspaceTableIndex = new KeyspaceTableIndex();
+        this.registrationStatistics = new RegistrationStatistics();
+        this.cardinalityBudget = new CardinalityBudget(configuration.getCardinality());
+        this.exporterMetrics = new ExporterMetrics(() -> this.familyCache.values(), registrationStatistics, cardinalityBudget, scrapeConfiguration.getFillTimeSampleInterval());
+        this.listener = new CassandraMetricRegistryListener(this.familyCache, metricFilter, histogramSpecs, keyspaceTableIndex, registrationStatistics, rollupSpecs);
+        registry.addListener(listener);
+        cardinalityBudget.register(registry);
+    }
+
+    /**
+     * Re-evaluates the registry's metrics with a new filter. Only the metrics the new filter keeps differently are
+     * added to or removed from the families, the rest of the families and their caches are left as they are.
+     */
+    public synchronized void setFilter(CassandraMetricDefinitionFilter metricFilter) {
+        long start = System.nanoTime();
+        int previousSize = familyCache.size();
+        int changed = listener.setFilter(metricFilter, registry);
+        if (changed > 0) {
+            cardinalityBudget.reselect();
+        }
+        logger.info("Filters changed, {} metric families instead of {}, {} metrics re-evaluated in {} ms",
+                familyCache.size(), previousSize, changed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * @return true if the text format writers should cache the encoded lines of the series with unchanged values
+     */
+    public boolean isCacheEncodedLines() {
+        return cacheEncodedLines;
+    }
+
+    /**
+     * @return the exporter's own metrics, to be registered to the CollectorRegistry
+     */
+    public ExporterMetrics getExporterMetrics() {
+        return exporterMetrics;
     }
 
     @Override
     public List<MetricFamilySamples> collect() {
         try {
-            for (RefreshableMetricFamilySamples value : familyCache.values()) {
-                value.refreshSamples();
+            if (collectCoalescer != null) {
+                return collectCoalescer.get(this::collectFamilies);
             }
-
-            return new ArrayList<>(familyCache.values());
+            return collectFamilies();
         } catch (Exception e) {
             logger.error("Failed to parse metrics", e);
             throw new RuntimeException(e);
         }
     }
 
+    private List<MetricFamilySamples> collectFamilies() {
+        acquireCollectionPermit();
+        try {
+            // Each scrape gets its own samples, concurrent scrapes do not share anything mutable
+            cardinalityBudget.maybeSelect(familyCache.values(), keyspaceTableIndex);
+            boolean timed = exporterMetrics.sampleFillTime();
+            List<MetricFamilySamples> familySamples;
+            if (refreshPool != null && familyCache.size() >= PARALLEL_REFRESH_THRESHOLD) {
+                RefreshableMetricFamilySamples[] families = familyCache.values().toArray(new RefreshableMetricFamilySamples[0]);
+                familySamples = refreshPool.submit(() -> Arrays.stream(families)
+                        .parallel()
+                        .map(family -> refreshSamples(family, timed))
+                        .collect(Collectors.toList())).join();
+            } else {
+                familySamples = new ArrayList<>(familyCache.size());
+                for (RefreshableMetricFamilySamples value : familyCache.values()) {
+                    familySamples.add(refreshSamples(value, timed));
+                }
+            }
+
+            // Coalesced scrapes share the result
+            return Collections.unmodifiableList(familySamples);
+        } finally {
+            releaseCollectionPermit();
+        }
+    }
+
+    private static MetricFamilySamples refreshSamples(RefreshableMetricFamilySamples family, boolean timed) {
+        if (!timed) {
+            return family.refreshSamples();
+        }
+        long start = System.nanoTime();
+        MetricFamilySamples samples = family.refreshSamples();
+        family.setFillNanos(System.nanoTime() - start);
+        return samples;
+    }
+
+    private static void writeFamily(ExpositionWriter writer, RefreshableMetricFamilySamples family, boolean timed) {
+        if (!timed) {
+            writer.writeFamily(family);
+            return;
+        }
+        long start = System.nanoTime();
+        writer.writeFamily(family);
+        family.setFillNanos(System.nanoTime() - start);
+    }
+
+    /**
+     * Writes all the metric families directly to the writer without creating the MetricFamilySamples' Samples.
+     *
+     * @param writer a writer owned by the calling thread
+     */
+    public void write(ExpositionWriter writer) {
+        if (coalesce) {
+            CoalescedWrite coalescedWrite = coalescedWrites.computeIfAbsent(writer.getContentType(), contentType -> new CoalescedWrite(writer.newWriter(), freshnessWindowMillis));
+            writer.write(coalescedWrite.coalescer.get(() -> {
+                // Only one coalesced collection runs at a time, so the writer can be reused
+                coalescedWrite.writer.reset();
+                writeFamilies(coalescedWrite.writer);
+                return coalescedWrite.writer.toByteArray();
+            }));
+            return;
+        }
+        writeFamilies(writer);
+    }
+
+    private void writeFamilies(ExpositionWriter writer) {
+        acquireCollectionPermit();
+        try {
+            cardinalityBudget.maybeSelect(familyCache.values(), keyspaceTableIndex);
+            boolean timed = exporterMetrics.sampleFillTime();
+            if (refreshPool != null && familyCache.size() >= PARALLEL_REFRESH_THRESHOLD) {
+                writeFamiliesInParallel(writer, familyCache, timed);
+                return;
+            }
+            for (RefreshableMetricFamilySamples value : familyCache.values()) {
+                writeFamily(writer, value, timed);
+            }
+        } finally {
+            releaseCollectionPermit();
+        }
+    }
+
+    private void writeFamiliesInParallel(ExpositionWriter writer, ConcurrentHashMap<String, RefreshableMetricFamilySamples> familyCache, boolean timed) {
+        RefreshableMetricFamilySamples[] families = familyCache.values().toArray(new RefreshableMetricFamilySamples[0]);
+        ArrayBlockingQueue<ExpositionWriter[]> pool = chunkWriters.computeIfAbsent(writer.getContentType(), contentType -> new ArrayBlockingQueue<>(pooledChunkWriters));
+        ExpositionWriter[] chunks = pool.poll();
+        if (chunks == null) {
+            chunks = new ExpositionWriter[refreshParallelism];
+            for (int i = 0; i < refreshParallelism; i++) {
+                chunks[i] = writer.newWriter();
+            }
+        }
+        try {
+            writeChunks(chunks, families, timed);
+            for (ExpositionWriter chunkWriter : chunks) {
+                writer.append(chunkWriter);
+            }
+        } finally {
+            pool.offer(chunks);
+        }
+    }
+
+    private void writeChunks(ExpositionWriter[] chunks, RefreshableMetricFamilySamples[] families, boolean timed) {
+        int chunkSize = (families.length + chunks.length - 1) / chunks.length;
+        refreshPool.submit(() -> IntStream.range(0, chunks.length)
+                .parallel()
+                .forEach(chunk -> {
+                    ExpositionWriter chunkWriter = chunks[chunk];
+                    chunkWriter.reset();
+                    int end = Math.min(families.length, (chunk + 1) * chunkSize);
+                    for (int i = chunk * chunkSize; i < end; i++) {
+                        writeFamily(chunkWriter, families[i], timed);
+                    }
+                })).join();
+    }
+
+    /**
+     * Calls the sink with the samples of all the metric families in the calling thread, without encoding them. The
+     * samples of a family are consecutive, in the same order as in the scrapes.
+     */
+    public void writeSamples(SampleSink sink) {
+        acquireCollectionPermit();
+        try {
+            cardinalityBudget.maybeSelect(familyCache.values(), keyspaceTableIndex);
+            for (RefreshableMetricFamilySamples family : familyCache.values()) {
+                family.writeSamples(sink);
+            }
+        } finally {
+            releaseCollectionPermit();
+        }
+    }
+
+    /**
+     * Writes only the selected metric families. Only these are refreshed, the cost depends on the amount of selected
+     * series and not on the size of the registry. The writes are not coalesced.
+     *
+     * @param names    family names or the names of their samples, a family is written with all its samples. Empty
+     *                 selects all the families
+     * @param keyspace only the series with this keyspace label, null for all
+     * @param table    only the series with this table label, null for all. Requires the keyspace
+     */
+    public void write(ExpositionWriter writer, Set<String> names, String keyspace, String table) {
+        if (names.isEmpty() && keyspace == null) {
+            write(writer);
+            return;
+        }
+        acquireCollectionPermit();
+        try {
+            for (RefreshableMetricFamilySamples family : selectFamilies(names, keyspace, table)) {
+                writer.writeFamily(family);
+            }
+        } finally {
+            releaseCollectionPermit();
+        }
+    }
+
+    /**
+     * Same as {@link #write(ExpositionWriter, Set, String, String)}, but creates MetricFamilySamples
+     */
+    public List<MetricFamilySamples> collect(Set<String> names, String keyspace, String table) {
+        if (names.isEmpty() && keyspace == null) {
+            return collect();
+        }
+        acquireCollectionPermit();
+        try {
+            List<MetricFamilySamples> familySamples = new ArrayList<>();
+            for (RefreshableMetricFamilySamples family : selectFamilies(names, keyspace, table)) {
+                familySamples.add(family.refreshSamples());
+            }
+            return familySamples;
+        } finally {
+            releaseCollectionPermit();
+        }
+    }
+
+    private Collection<RefreshableMetricFamilySamples> selectFamilies(Set<String> names, String keyspace, String table) {
+        // The selected series are folded like in the full scrapes, even if none ran yet
+        cardinalityBudget.maybeSelect(familyCache.values(), keyspaceTableIndex);
+        if (keyspace != null) {
+            List<RefreshableMetricFamilySamples> selected = keyspaceTableIndex.select(keyspace, table);
+            if (!names.isEmpty()) {
+                selected.removeIf(family -> !isSelected(family, names));
+            }
+            return selected;
+        }
+
+        Set<RefreshableMetricFamilySamples> selected = new LinkedHashSet<>();
+        for (String name : names) {
+            RefreshableMetricFamilySamples family = findFamily(familyCache, name);
+            if (family != null) {
+                selected.add(family);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return the family with the name, or with a sample of the name
+     */
+    private static RefreshableMetricFamilySamples findFamily(ConcurrentHashMap<String, RefreshableMetricFamilySamples> familyCache, String name) {
+        RefreshableMetricFamilySamples family = familyCache.get(name);
+        if (family != null) {
+            return family;
+        }
+        // Counter families are cached by the name of their _total sample
+        family = familyCache.get(name + "_total");
+        if (family != null && family.type == Type.COUNTER) {
+            return family;
+        }
+        for (String suffix : SAMPLE_NAME_SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                family = familyCache.get(name.substring(0, name.length() - suffix.length()));
+                if (family != null) {
+                    return family;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSelected(RefreshableMetricFamilySamples family, Set<String> names) {
+        if (names.contains(family.name)) {
+            return true;
+        }
+        for (String suffix : SAMPLE_NAME_SUFFIXES) {
+            if (names.contains(family.name + suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void acquireCollectionPermit() {
+        if (collectionPermits != null) {
+            collectionPermits.acquireUninterruptibly();
+        }
+    }
+
+    private void releaseCollectionPermit() {
+        if (collectionPermits != null) {
+            collectionPermits.release();
+        }
+    }
+
+    private static class CoalescedWrite {
+        private final ExpositionWriter writer;
+        private final ScrapeCoalescer<byte[]> coalescer;
+
+        private CoalescedWrite(ExpositionWriter writer, long freshnessWindowMillis) {
+            this.writer = writer;
+            this.coalescer = new ScrapeCoalescer<>(freshnessWindowMillis);
+        }
+    }
+
+    private static class RefreshThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("metrics-refresh-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * @return the current families without samples
+     */
     @Override
     public List<MetricFamilySamples> describe() {
-        return new ArrayList<>();
+        List<MetricFamilySamples> descriptions = new ArrayList<>(familyCache.size());
+        for (RefreshableMetricFamilySamples family : familyCache.values()) {
+            descriptions.add(new MetricFamilySamples(family.name, family.type, family.help, new ArrayList<>()));
+        }
+        return descriptions;
     }
 }
\ No newline at end of file
@@ -0,0 +1,190 @@
+package io.k8ssandra.metrics.prometheus;
+
+import io.k8ssandra.metrics.builder.CardinalityBudget;
+import io.k8ssandra.metrics.builder.RefreshableMetricFamilySamples;
+import io.k8ssandra.metrics.builder.RegistrationStatistics;
+import io.prometheus.client.Collector;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The exporter's own metrics: the cost of the scrapes, the size of the exported schema and the most expensive
+ * families. Register this to the CollectorRegistry served next to the Cassandra metrics.
+ *
+ * The fill time of the families is only measured in one of fillTimeSampleInterval scrapes, the other scrapes do not
+ * read the clock per family.
+ */
+public class ExporterMetrics extends Collector {
+    private static final String PREFIX = "mcac_exporter_";
+
+    // Upper bounds of the scrape duration buckets, in seconds
+    private static final double[] DURATION_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    // Amount of families reported by their fill time
+    static final int TOP_FAMILIES = 10;
+
+    private final Supplier<Collection<RefreshableMetricFamilySamples>> families;
+    private final RegistrationStatistics registrationStatistics;
+    private final CardinalityBudget cardinalityBudget;
+    private final int fillTimeSampleInterval;
+
+    private final AtomicLong scrapes = new AtomicLong();
+
+    // Cumulative counts of the buckets, the last one is +Inf
+    private final AtomicLongArray durationBuckets = new AtomicLongArray(DURATION_BUCKETS.length + 1);
+    private final DoubleAdder durationSum = new DoubleAdder();
+    private final LongAdder scrapedBytes = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+
+    private volatile long lastScrapeBytes;
+    private volatile long lastAllocatedBytes = -1;
+
+    // Null if the JVM can not measure the allocations of a thread
+    private final com.sun.management.ThreadMXBean threadBean;
+
+    /**
+     * @param families               the currently exported families
+     * @param fillTimeSampleInterval one in this many scrapes measures the fill times, 0 never
+     */
+    public ExporterMetrics(Supplier<Collection<RefreshableMetricFamilySamples>> families, RegistrationStatistics registrationStatistics,
+                           CardinalityBudget cardinalityBudget, int fillTimeSampleInterval) {
+        this.families = families;
+        this.registrationStatistics = registrationStatistics;
+        this.cardinalityBudget = cardinalityBudget;
+        this.fillTimeSampleInterval = fillTimeSampleInterval;
+        this.threadBean = allocationMeasuringThreadBean();
+    }
+
+    private static com.sun.management.ThreadMXBean allocationMeasuringThreadBean() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+                if (threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled()) {
+                    return threadBean;
+                }
+            }
+        } catch (LinkageError e) {
+            // Not a HotSpot based JVM
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the fill times should be measured in this scrape
+     */
+    boolean sampleFillTime() {
+        return fillTimeSampleInterval > 0 && scrapes.getAndIncrement() % fillTimeSampleInterval == 0;
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, or -1 if not measurable
+     */
+    long threadAllocatedBytes() {
+        return threadBean != null ? threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    /**
+     * @param allocatedBytes allocated by the scraping thread, -1 if not measured. The allocations of the refresh
+     *                       threads are not included
+     */
+    void recordScrape(long durationNanos, long bytes, long allocatedBytes) {
+        double seconds = durationNanos / 1e9;
+        durationSum.add(seconds);
+        for (int i = 0; i < DURATION_BUCKETS.length; i++) {
+            if (seconds <= DURATION_BUCKETS[i]) {
+                durationBuckets.incrementAndGet(i);
+            }
+        }
+        durationBuckets.incrementAndGet(DURATION_BUCKETS.length);
+
+        scrapedBytes.add(bytes);
+        lastScrapeBytes = bytes;
+        if (allocatedBytes >= 0) {
+            this.allocatedBytes.add(allocatedBytes);
+            lastAllocatedBytes = allocatedBytes;
+        }
+    }
+
+    /**
+     * A request was answered with 503 because the HTTP server had no room for it
+     */
+    void recordRejectedRequest() {
+        rejectedRequests.increment();
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> collected = new ArrayList<>();
+
+        List<MetricFamilySamples.Sample> durationSamples = new ArrayList<>(DURATION_BUCKETS.length + 3);
+        for (int i = 0; i < DURATION_BUCKETS.length; i++) {
+            durationSamples.add(new MetricFamilySamples.Sample(PREFIX + "scrape_duration_seconds_bucket", List.of("le"), List.of(doubleToGoString(DURATION_BUCKETS[i])), durationBuckets.get(i)));
+        }
+        long count = durationBuckets.get(DURATION_BUCKETS.length);
+        durationSamples.add(new MetricFamilySamples.Sample(PREFIX + "scrape_duration_seconds_bucket", List.of("le"), List.of("+Inf"), count));
+        durationSamples.add(new MetricFamilySamples.Sample(PREFIX + "scrape_duration_seconds_count", List.of(), List.of(), count));
+        durationSamples.add(new MetricFamilySamples.Sample(PREFIX + "scrape_duration_seconds_sum", List.of(), List.of(), durationSum.sum()));
+        collected.add(new MetricFamilySamples(PREFIX + "scrape_duration_seconds", Type.HISTOGRAM, "Duration of the scrapes served over HTTP", durationSamples));
+
+        collected.add(counter("scraped_bytes", "Uncompressed bytes of the served scrapes", scrapedBytes.sum()));
+        collected.add(gauge("last_scrape_bytes", "Uncompressed bytes of the latest scrape", lastScrapeBytes));
+        collected.add(counter("rejected_requests", "HTTP requests answered with 503 because the concurrent and queued requests were full", rejectedRequests.sum()));
+        if (threadBean != null) {
+            collected.add(counter("scrape_allocated_bytes", "Bytes allocated by the threads serving the scrapes", allocatedBytes.sum()));
+            collected.add(gauge("last_scrape_allocated_bytes", "Bytes allocated by the thread serving the latest scrape", Math.max(0, lastAllocatedBytes)));
+        }
+
+        collected.add(counter("registrations", "Dropwizard metrics added to the exported families", registrationStatistics.getRegistrations()));
+        collected.add(counter("removals", "Dropwizard metrics removed from the exported families", registrationStatistics.getRemovals()));
+        collected.add(counter("filter_rejections", "Dropwizard metrics dropped entirely by the filters", registrationStatistics.getRejections()));
+
+        int familyCount = 0;
+        int seriesCount = 0;
+        // The cheapest families are at the head, replaced when a more expensive one is found
+        PriorityQueue<RefreshableMetricFamilySamples> topFamilies = new PriorityQueue<>(TOP_FAMILIES + 1, Comparator.comparingLong(RefreshableMetricFamilySamples::getFillNanos));
+        for (RefreshableMetricFamilySamples family : families.get()) {
+            familyCount++;
+            seriesCount += family.getSeriesCount();
+            if (family.getFillNanos() > 0) {
+                topFamilies.add(family);
+                if (topFamilies.size() > TOP_FAMILIES) {
+                    topFamilies.poll();
+                }
+            }
+        }
+        collected.add(gauge("families", "Exported metric families", familyCount));
+        collected.add(gauge("series", "Exported series", seriesCount));
+        collected.add(gauge("folded_series", "Series of the least active tables folded to the other series by the cardinality limits", cardinalityBudget.getFoldedSeries()));
+
+        List<MetricFamilySamples.Sample> fillSamples = new ArrayList<>(topFamilies.size());
+        for (RefreshableMetricFamilySamples family : topFamilies) {
+            fillSamples.add(new MetricFamilySamples.Sample(PREFIX + "family_fill_seconds", List.of("family"), List.of(family.name), family.getFillNanos() / 1e9));
+        }
+        collected.add(new MetricFamilySamples(PREFIX + "family_fill_seconds", Type.GAUGE,
+                "Latest sampled time to read and encode the family, the " + TOP_FAMILIES + " most expensive families", fillSamples));
+
+        return collected;
+    }
+
+    private static MetricFamilySamples counter(String name, String help, double value) {
+        return new MetricFamilySamples(PREFIX + name, Type.COUNTER, help,
+                List.of(new MetricFamilySamples.Sample(PREFIX + name + "_total", List.of(), List.of(), value)));
+    }
+
+    private static MetricFamilySamples gauge(String name, String help, double value) {
+        return new MetricFamilySamples(PREFIX + name, Type.GAUGE, help,
+                List.of(new MetricFamilySamples.Sample(PREFIX + name, List.of(), List.of(), value)));
+    }
+}
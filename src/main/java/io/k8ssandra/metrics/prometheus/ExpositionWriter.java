@@ -0,0 +1,162 @@
+package io.k8ssandra.metrics.prometheus;
+
+import io.k8ssandra.metrics.builder.RefreshableMetricFamilySamples;
+import io.k8ssandra.metrics.builder.SampleSink;
+import io.prometheus.client.Collector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+
+/**
+ * Encodes metric families in one of the Prometheus exposition formats directly to a reusable byte buffer.
+ *
+ * Instances are not thread-safe, each scraping thread should use its own and {@link #reset()} it between scrapes.
+ */
+public abstract class ExpositionWriter extends ByteArrayOutputStream implements SampleSink {
+    private static final int INITIAL_SIZE = 1 << 16;
+
+    protected ExpositionWriter() {
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * @return the Content-Type of the encoded format
+     */
+    public abstract String getContentType();
+
+    /**
+     * @return a new, empty writer of the same format
+     */
+    public abstract ExpositionWriter newWriter();
+
+    /**
+     * Write the family and all its samples
+     */
+    public abstract void writeFamily(RefreshableMetricFamilySamples family);
+
+    /**
+     * Write the families of other collectors (such as the JVM metrics) and finish the exposition
+     */
+    public abstract void writeCollectorFamilies(Enumeration<Collector.MetricFamilySamples> families) throws IOException;
+
+    @Override
+    public void write(byte[] b) {
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, buf, count, b.length);
+        count += b.length;
+    }
+
+    /**
+     * Append everything written to the other writer
+     */
+    void append(ExpositionWriter other) {
+        ensureCapacity(other.count);
+        System.arraycopy(other.buf, 0, buf, count, other.count);
+        count += other.count;
+    }
+
+    void writeByte(int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+
+    void writeAscii(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buf[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    /**
+     * Write the character at index i of the String as UTF-8
+     *
+     * @return index of the last character used, surrogate pairs use two
+     */
+    int writeUtf8(String s, int i) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+            writeByte(c);
+        } else if (c < 0x800) {
+            writeByte(0xc0 | (c >> 6));
+            writeByte(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, s.charAt(++i));
+            writeByte(0xf0 | (codePoint >> 18));
+            writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+            writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+            writeByte(0x80 | (codePoint & 0x3f));
+        } else {
+            writeByte(0xe0 | (c >> 12));
+            writeByte(0x80 | ((c >> 6) & 0x3f));
+            writeByte(0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    /**
+     * @return length of the String in UTF-8, as written by {@link #writeUtf8(String, int)}
+     */
+    static int utf8Length(String s) {
+        int length = s.length();
+        int utf8Length = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // Four bytes for the two chars
+                    utf8Length += 2;
+                    i++;
+                } else {
+                    utf8Length += 2;
+                }
+            } else if (c >= 0x80) {
+                utf8Length++;
+            }
+        }
+        return utf8Length;
+    }
+
+    /**
+     * Write the value as a protobuf varint
+     */
+    void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    /**
+     * @return bytes written by {@link #writeVarint(long)}
+     */
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Write the value as little-endian, such as protobuf's fixed64 and double
+     */
+    void writeFixed64(long value) {
+        ensureCapacity(8);
+        for (int i = 0; i < 8; i++) {
+            buf[count++] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    void ensureCapacity(int additional) {
+        if (count + additional > buf.length) {
+            byte[] grown = new byte[Math.max(buf.length << 1, count + additional)];
+            System.arraycopy(buf, 0, grown, 0, count);
+            buf = grown;
+        }
+    }
+}
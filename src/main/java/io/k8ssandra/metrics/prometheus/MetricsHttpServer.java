@@ -0,0 +1,727 @@
+package io.k8ssandra.metrics.prometheus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.k8ssandra.metrics.config.HttpConfiguration;
+import io.prometheus.client.CollectorRegistry;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the Cassandra metrics over HTTP. Replaces the simpleclient's HTTPServer, which requires every Collector to
+ * create MetricFamilySamples, with a handler that encodes the CassandraDropwizardExports directly to a pooled
+ * reusable buffer. Other collectors in the CollectorRegistry (such as the JVM metrics) are appended after them.
+ *
+ * The exposition format is negotiated with the Accept header: the Prometheus text format, OpenMetrics text or the
+ * delimited Prometheus protobuf format.
+ *
+ * The families can be selected with name[] query parameters, like in the simpleclient's HTTPServer. The keyspace and
+ * table query parameters select only the series of the keyspace or table, without the other collectors' families.
+ * These are the same series the full scrape exports for them, the tables folded by the cardinality limits are left
+ * out and the keyspace rollups are included.
+ *
+ * The duration, size and allocations of the served scrapes are recorded to the exporter's {@link ExporterMetrics}.
+ *
+ * With a {@link SampleArchive}, /archive serves the recorded samples for backfilling, optionally limited with the
+ * start and end query parameters in Unix seconds.
+ *
+ * At most max_concurrent_requests requests are served at the same time and max_queued_requests wait for them, the
+ * requests beyond those are answered with 503 by a couple of separate threads. When these are busy too, the connection
+ * is closed without an answer. A slow or stuck scraper can so only hold its own thread, and the server's threads and
+ * queues are bounded. With virtual threads, every request gets its own virtual thread and
+ * the same bounds are applied before serving it.
+ */
+public class MetricsHttpServer implements Closeable {
+    private static final org.slf4j.Logger logger = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+    // Answers the requests without room with 503
+    private static final ThreadLocal<Boolean> rejecting = ThreadLocal.withInitial(() -> false);
+
+    // Bounds of the threads answering 503, the connections beyond these are closed
+    static final int REJECTING_THREADS = 2;
+    static final int MAX_QUEUED_REJECTIONS = 16;
+
+    private final HttpServer server;
+    private final ExecutorService executorService;
+    private final ExecutorService rejectingExecutor;
+
+    // Aborts the exchanges not answered within the write timeout, null without one
+    private final ScheduledExecutorService timeoutScheduler;
+
+    /**
+     * Binds to the configured address and port
+     *
+     * @param configuration address, threads and timeouts of the server
+     * @param exports       Cassandra metrics, these should not be registered to the registry
+     * @param registry      registry of the other collectors to serve
+     * @param archive       recorded samples to serve from /archive, null for none
+     */
+    public MetricsHttpServer(HttpConfiguration configuration, CassandraDropwizardExports exports, CollectorRegistry registry, SampleArchive archive) throws IOException {
+        InetSocketAddress address = configuration.getAddress() == null || configuration.getAddress().isEmpty()
+                ? new InetSocketAddress(configuration.getPort())
+                : new InetSocketAddress(configuration.getAddress(), configuration.getPort());
+        int maxConcurrent = Math.max(1, configuration.getMaxConcurrentRequests());
+        int maxQueued = Math.max(0, configuration.getMaxQueuedRequests());
+
+        setReadTimeoutProperty(configuration.getReadTimeoutMillis());
+        long writeTimeoutMillis = configuration.getWriteTimeoutMillis();
+        if (writeTimeoutMillis > 0) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("metrics-http-timeout-"));
+            scheduler.setRemoveOnCancelPolicy(true);
+            timeoutScheduler = scheduler;
+        } else {
+            timeoutScheduler = null;
+        }
+
+        ExporterMetrics exporterMetrics = exports.getExporterMetrics();
+        ExecutorService virtualThreads = configuration.isVirtualThreads() ? newVirtualThreadPerTaskExecutor() : null;
+        RequestLimiter limiter = null;
+        if (virtualThreads != null) {
+            executorService = virtualThreads;
+            rejectingExecutor = null;
+            limiter = new RequestLimiter(maxConcurrent, maxQueued);
+        } else {
+            if (configuration.isVirtualThreads()) {
+                logger.warn("Virtual threads are not available in this JVM, serving the metrics with platform threads");
+            }
+            // The JDK reads the request before the handler can answer 503, so a slow client holds a rejecting thread
+            // too. Beyond the rejecting threads and their queue, the server closes the connection without an answer.
+            rejectingExecutor = new ThreadPoolExecutor(REJECTING_THREADS, REJECTING_THREADS, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(MAX_QUEUED_REJECTIONS), new DaemonThreadFactory("metrics-http-rejecting-"),
+                    (task, executor) -> {
+                        exporterMetrics.recordRejectedRequest();
+                        throw new RejectedExecutionException("No room to answer the request with 503");
+                    });
+            BlockingQueue<Runnable> queue = maxQueued > 0 ? new ArrayBlockingQueue<>(maxQueued) : new SynchronousQueue<>();
+            executorService = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0, TimeUnit.MILLISECONDS, queue, new DaemonThreadFactory("metrics-http-"),
+                    (task, executor) -> rejectingExecutor.execute(() -> {
+                        rejecting.set(true);
+                        try {
+                            task.run();
+                        } finally {
+                            rejecting.set(false);
+                        }
+                    }));
+        }
+
+        HttpHandler handler = new LimitedHandler(new MetricsHandler(exports, registry, maxConcurrent), limiter, exporterMetrics, timeoutScheduler, writeTimeoutMillis);
+        server = HttpServer.create(address, 3);
+        server.createContext("/", handler);
+        server.createContext("/metrics", handler);
+        server.createContext("/-/healthy", new LimitedHandler(new HealthyHandler(), limiter, exporterMetrics, timeoutScheduler, writeTimeoutMillis));
+        if (archive != null) {
+            server.createContext("/archive", new LimitedHandler(new ArchiveHandler(archive), limiter, exporterMetrics, timeoutScheduler, writeTimeoutMillis));
+        }
+
+        server.setExecutor(executorService);
+        server.start();
+    }
+
+    /**
+     * The JDK's server only has a JVM wide timeout for receiving the requests, in whole seconds. It is read once, when
+     * the first com.sun.net.httpserver server of the JVM is started, so it does not apply if another one was started
+     * before, and it applies to every other server of the Cassandra JVM started after. A property set on the command
+     * line is kept.
+     */
+    private static void setReadTimeoutProperty(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        String name = "sun.net.httpserver.maxReqTime";
+        String seconds = Long.toString(Math.max(1, (millis + 999) / 1000));
+        String previous = System.getProperty(name);
+        if (previous != null && !previous.equals(seconds)) {
+            logger.warn("{} is already set to {} seconds, ignoring the configured read_timeout_ms {}", name, previous, millis);
+            return;
+        }
+        System.setProperty(name, seconds);
+        logger.warn("read_timeout_ms sets {} to {} seconds for every com.sun.net.httpserver server of the JVM, not only " +
+                "the metrics server. It has no effect if one was started before the metrics server", name, seconds);
+    }
+
+    /**
+     * @return executor of a virtual thread for each task, null if the JVM has no virtual threads
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // A preview feature in Java 19 and 20
+            logger.debug("Unable to create virtual threads", e);
+            return null;
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executorService.shutdown();
+        if (rejectingExecutor != null) {
+            rejectingExecutor.shutdown();
+        }
+        if (timeoutScheduler != null) {
+            timeoutScheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Bounds the requests served and waiting at the same time, when the executor does not. Each virtual thread waits
+     * for its turn here instead of in the executor's queue.
+     */
+    static class RequestLimiter {
+        private final Semaphore permits;
+        private final int maxQueued;
+        private final AtomicInteger queued = new AtomicInteger();
+
+        RequestLimiter(int maxConcurrent, int maxQueued) {
+            this.permits = new Semaphore(maxConcurrent, true);
+            this.maxQueued = maxQueued;
+        }
+
+        /**
+         * Waits for a turn to serve the request
+         *
+         * @return false without waiting if the queue is full
+         */
+        boolean acquire() throws InterruptedException {
+            if (permits.tryAcquire()) {
+                return true;
+            }
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                return false;
+            }
+            try {
+                permits.acquire();
+                return true;
+            } finally {
+                queued.decrementAndGet();
+            }
+        }
+
+        void release() {
+            permits.release();
+        }
+    }
+
+    /**
+     * Answers the requests without room with 503 before they are served, and aborts the exchanges not answered within
+     * the write timeout.
+     *
+     * The exchange's streams are not thread-safe, so only the serving thread writes to them. Its writes go through a
+     * {@link DeadlineOutputStream}, which fails them once the deadline has passed. A write blocked on a stuck client
+     * can not check the deadline, so the timeout task interrupts the serving thread instead: the JDK server writes to
+     * an interruptible SocketChannel, which is then closed without flushing anything. The interrupt never outlives the
+     * request, it is cleared before the serving thread returns.
+     */
+    static class LimitedHandler implements HttpHandler {
+        private final HttpHandler handler;
+        private final RequestLimiter limiter;
+        private final ExporterMetrics exporterMetrics;
+        private final ScheduledExecutorService timeoutScheduler;
+        private final long writeTimeoutMillis;
+
+        /**
+         * @param limiter          null if the executor bounds the requests
+         * @param timeoutScheduler null if there's no write timeout
+         */
+        LimitedHandler(HttpHandler handler, RequestLimiter limiter, ExporterMetrics exporterMetrics, ScheduledExecutorService timeoutScheduler,
+                       long writeTimeoutMillis) {
+            this.handler = handler;
+            this.limiter = limiter;
+            this.exporterMetrics = exporterMetrics;
+            this.timeoutScheduler = timeoutScheduler;
+            this.writeTimeoutMillis = writeTimeoutMillis;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (rejecting.get()) {
+                reject(exchange);
+                return;
+            }
+            if (limiter == null) {
+                handleWithinTimeout(exchange);
+                return;
+            }
+
+            boolean acquired;
+            try {
+                acquired = limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exchange.close();
+                return;
+            }
+            if (!acquired) {
+                reject(exchange);
+                return;
+            }
+            try {
+                handleWithinTimeout(exchange);
+            } finally {
+                limiter.release();
+            }
+        }
+
+        private void handleWithinTimeout(HttpExchange exchange) throws IOException {
+            if (timeoutScheduler == null) {
+                handler.handle(exchange);
+                return;
+            }
+            ResponseDeadline deadline = new ResponseDeadline(Thread.currentThread(), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis));
+            exchange.setStreams(null, new DeadlineOutputStream(exchange.getResponseBody(), deadline));
+            ScheduledFuture<?> timeout = timeoutScheduler.schedule(deadline::expire, writeTimeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                handler.handle(exchange);
+            } finally {
+                timeout.cancel(false);
+                if (deadline.finish()) {
+                    logger.warn("Response to {} not written in {} ms, aborted the connection", exchange.getRemoteAddress(), writeTimeoutMillis);
+                }
+            }
+        }
+
+        private void reject(HttpExchange exchange) throws IOException {
+            exporterMetrics.recordRejectedRequest();
+            try {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(503, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Write deadline of a single exchange, expired by the serving thread itself or by the timeout task
+     */
+    static class ResponseDeadline {
+        private static final int RUNNING = 0;
+        private static final int EXPIRED = 1;
+        private static final int FINISHED = 2;
+
+        private final Thread servingThread;
+        private final long deadlineNanos;
+        private int state = RUNNING;
+
+        ResponseDeadline(Thread servingThread, long deadlineNanos) {
+            this.servingThread = servingThread;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Aborts the exchange's channel by interrupting the serving thread, unless the exchange is finished already
+         */
+        synchronized void expire() {
+            if (state == RUNNING) {
+                state = EXPIRED;
+                servingThread.interrupt();
+            }
+        }
+
+        /**
+         * @return true if the deadline has passed, the exchange's channel is then aborted by the next write
+         */
+        boolean isExpired() {
+            if (System.nanoTime() - deadlineNanos >= 0) {
+                expire();
+            }
+            synchronized (this) {
+                return state == EXPIRED;
+            }
+        }
+
+        /**
+         * Called by the serving thread when it is done with the exchange, clears the interrupt of an expiration
+         *
+         * @return true if the deadline expired
+         */
+        synchronized boolean finish() {
+            boolean expired = state == EXPIRED;
+            if (expired) {
+                Thread.interrupted();
+            }
+            state = FINISHED;
+            return expired;
+        }
+    }
+
+    /**
+     * Fails the writes once the exchange's deadline has passed. The writes are split to slices so that a slow client
+     * does not get a whole response written past the deadline.
+     */
+    static class DeadlineOutputStream extends FilterOutputStream {
+        private static final int SLICE = 16 * 1024;
+
+        private final ResponseDeadline deadline;
+
+        DeadlineOutputStream(OutputStream out, ResponseDeadline deadline) {
+            super(out);
+            this.deadline = deadline;
+        }
+
+        private void checkDeadline() throws IOException {
+            if (deadline.isExpired()) {
+                throw new InterruptedIOException("Response not written before the write timeout");
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkDeadline();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int written = 0; written < len; written += SLICE) {
+                checkDeadline();
+                out.write(b, off + written, Math.min(SLICE, len - written));
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkDeadline();
+            out.flush();
+        }
+    }
+
+    /**
+     * Writers kept for reuse, at most one for each concurrently served request
+     */
+    static class WriterPool {
+        private final ArrayBlockingQueue<ExpositionWriter> writers;
+        private final Supplier<ExpositionWriter> factory;
+
+        WriterPool(int capacity, Supplier<ExpositionWriter> factory) {
+            this.writers = new ArrayBlockingQueue<>(capacity);
+            this.factory = factory;
+        }
+
+        ExpositionWriter take() {
+            ExpositionWriter writer = writers.poll();
+            return writer != null ? writer : factory.get();
+        }
+
+        void release(ExpositionWriter writer) {
+            writers.offer(writer);
+        }
+    }
+
+    static class MetricsHandler implements HttpHandler {
+        private final CassandraDropwizardExports exports;
+        private final CollectorRegistry registry;
+
+        // Pooled instead of per thread, a virtual thread serves a single request
+        private final WriterPool textWriters;
+        private final WriterPool openMetricsWriters;
+        private final WriterPool protobufWriters;
+
+        /**
+         * @param maxConcurrent requests served at the same time, as many writers are kept
+         */
+        MetricsHandler(CassandraDropwizardExports exports, CollectorRegistry registry, int maxConcurrent) {
+            this.exports = exports;
+            this.registry = registry;
+            this.textWriters = new WriterPool(maxConcurrent, () -> new TextFormatWriter(exports.isCacheEncodedLines()));
+            this.openMetricsWriters = new WriterPool(maxConcurrent, () -> new OpenMetricsWriter(exports.isCacheEncodedLines()));
+            this.protobufWriters = new WriterPool(maxConcurrent, ProtobufWriter::new);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            ExporterMetrics exporterMetrics = exports.getExporterMetrics();
+            long start = System.nanoTime();
+            long allocatedAtStart = exporterMetrics.threadAllocatedBytes();
+            WriterPool pool = poolFor(negotiate(exchange.getRequestHeaders().getFirst("Accept")));
+            ExpositionWriter writer = pool.take();
+            try {
+                writer.reset();
+
+                Selection selection = Selection.parse(exchange.getRequestURI().getRawQuery());
+                if (selection.names.isEmpty() && selection.keyspace == null) {
+                    exports.write(writer);
+                    writer.writeCollectorFamilies(registry.metricFamilySamples());
+                } else {
+                    exports.write(writer, selection.names, selection.keyspace, selection.table);
+                    writer.writeCollectorFamilies(selection.keyspace == null
+                            ? registry.filteredMetricFamilySamples(selection.names)
+                            : Collections.emptyEnumeration());
+                }
+
+                exchange.getResponseHeaders().set("Content-Type", writer.getContentType());
+                if (shouldUseCompression(exchange)) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    exchange.sendResponseHeaders(200, 0);
+                    try (GZIPOutputStream os = new GZIPOutputStream(exchange.getResponseBody())) {
+                        writer.writeTo(os);
+                    }
+                } else {
+                    exchange.sendResponseHeaders(200, writer.size());
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        writer.writeTo(os);
+                    }
+                }
+
+                long allocatedAtEnd = exporterMetrics.threadAllocatedBytes();
+                exporterMetrics.recordScrape(System.nanoTime() - start, writer.size(),
+                        allocatedAtStart >= 0 && allocatedAtEnd >= 0 ? allocatedAtEnd - allocatedAtStart : -1);
+            } catch (Exception e) {
+                logger.error("Failed to serve metrics", e);
+                throw e;
+            } finally {
+                pool.release(writer);
+                exchange.close();
+            }
+        }
+
+        private WriterPool poolFor(String contentType) {
+            switch (contentType) {
+                case ProtobufWriter.CONTENT_TYPE_PROTOBUF:
+                    return protobufWriters;
+                case OpenMetricsWriter.CONTENT_TYPE_OPENMETRICS_100:
+                    return openMetricsWriters;
+                default:
+                    return textWriters;
+            }
+        }
+
+        /**
+         * Picks the supported format with the highest quality in the Accept header. Without a supported format, the
+         * Prometheus text format is used.
+         *
+         * @return content type of the format
+         */
+        static String negotiate(String acceptHeader) {
+            String contentType = TextFormatWriter.CONTENT_TYPE_004;
+            if (acceptHeader == null) {
+                return contentType;
+            }
+
+            double bestQuality = 0;
+            for (String mediaRange : acceptHeader.split(",")) {
+                String[] parameters = mediaRange.split(";");
+                String mediaType = parameters[0].trim().toLowerCase(Locale.ROOT);
+                double quality = 1.0;
+                boolean delimited = false;
+                boolean metricFamily = false;
+                for (int i = 1; i < parameters.length; i++) {
+                    String parameter = parameters[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            quality = Double.parseDouble(parameter.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    } else if (parameter.equals("proto=io.prometheus.client.MetricFamily")) {
+                        metricFamily = true;
+                    } else if (parameter.equals("encoding=delimited")) {
+                        delimited = true;
+                    }
+                }
+
+                String candidate;
+                switch (mediaType) {
+                    case "application/vnd.google.protobuf":
+                        candidate = metricFamily && delimited ? ProtobufWriter.CONTENT_TYPE_PROTOBUF : null;
+                        break;
+                    case "application/openmetrics-text":
+                        candidate = OpenMetricsWriter.CONTENT_TYPE_OPENMETRICS_100;
+                        break;
+                    case "text/plain":
+                    case "text/*":
+                    case "*/*":
+                        candidate = TextFormatWriter.CONTENT_TYPE_004;
+                        break;
+                    default:
+                        candidate = null;
+                }
+                if (candidate != null && quality > bestQuality) {
+                    bestQuality = quality;
+                    contentType = candidate;
+                }
+            }
+            return contentType;
+        }
+
+        static boolean shouldUseCompression(HttpExchange exchange) {
+            String encodingHeaders = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (encodingHeaders == null) {
+                return false;
+            }
+            for (String encoding : encodingHeaders.split(",")) {
+                if (encoding.trim().equalsIgnoreCase("gzip")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Families and series selected by the query parameters
+     */
+    static class Selection {
+        final Set<String> names = new HashSet<>();
+        String keyspace;
+        String table;
+
+        static Selection parse(String rawQuery) {
+            Selection selection = new Selection();
+            if (rawQuery == null) {
+                return selection;
+            }
+            for (String parameter : rawQuery.split("&")) {
+                int separator = parameter.indexOf('=');
+                if (separator < 0) {
+                    continue;
+                }
+                String name = URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8);
+                String value = URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+                switch (name) {
+                    case "name[]":
+                        selection.names.add(value);
+                        break;
+                    case "keyspace":
+                        selection.keyspace = value;
+                        break;
+                    case "table":
+                        selection.table = value;
+                        break;
+                    default:
+                }
+            }
+            if (selection.keyspace == null) {
+                // Table names are only unique within the keyspace
+                selection.table = null;
+            }
+            return selection;
+        }
+    }
+
+    static class ArchiveHandler implements HttpHandler {
+        private final SampleArchive archive;
+
+        ArchiveHandler(SampleArchive archive) {
+            this.archive = archive;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                long fromMillis = Long.MIN_VALUE;
+                long toMillis = Long.MAX_VALUE;
+                String rawQuery = exchange.getRequestURI().getRawQuery();
+                if (rawQuery != null) {
+                    for (String parameter : rawQuery.split("&")) {
+                        int separator = parameter.indexOf('=');
+                        if (separator < 0) {
+                            continue;
+                        }
+                        String value = URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+                        try {
+                            switch (parameter.substring(0, separator)) {
+                                case "start":
+                                    fromMillis = (long) (Double.parseDouble(value) * 1000);
+                                    break;
+                                case "end":
+                                    toMillis = (long) (Double.parseDouble(value) * 1000);
+                                    break;
+                                default:
+                            }
+                        } catch (NumberFormatException e) {
+                            exchange.sendResponseHeaders(400, -1);
+                            return;
+                        }
+                    }
+                }
+
+                exchange.getResponseHeaders().set("Content-Type", OpenMetricsWriter.CONTENT_TYPE_OPENMETRICS_100);
+                if (MetricsHandler.shouldUseCompression(exchange)) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    exchange.sendResponseHeaders(200, 0);
+                    try (GZIPOutputStream os = new GZIPOutputStream(exchange.getResponseBody())) {
+                        archive.replay(os, fromMillis, toMillis);
+                    }
+                } else {
+                    exchange.sendResponseHeaders(200, 0);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        archive.replay(os, fromMillis, toMillis);
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("Failed to serve the archived metrics", e);
+                throw e;
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    static class HealthyHandler implements HttpHandler {
+        private static final byte[] RESPONSE = "Exporter is Healthy.".getBytes(StandardCharsets.UTF_8);
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(RESPONSE);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String namePrefix;
+
+        DaemonThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
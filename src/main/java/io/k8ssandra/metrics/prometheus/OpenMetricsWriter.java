@@ -0,0 +1,109 @@
+package io.k8ssandra.metrics.prometheus;
+
+import io.k8ssandra.metrics.builder.RefreshableMetricFamilySamples;
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+
+/**
+ * Encodes metric families in the OpenMetrics text format (version 1.0.0). The samples are written the same way as in
+ * the Prometheus text format, only the metadata lines and the terminating # EOF differ.
+ */
+public class OpenMetricsWriter extends TextFormatWriter {
+    public static final String CONTENT_TYPE_OPENMETRICS_100 = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE_OPENMETRICS_100;
+    }
+
+    public OpenMetricsWriter() {
+        this(false);
+    }
+
+    /**
+     * @param cacheLines cache the encoded lines of the series whose value did not change, the samples are written
+     *                   the same way in both text formats
+     */
+    public OpenMetricsWriter(boolean cacheLines) {
+        super(cacheLines);
+    }
+
+    @Override
+    public ExpositionWriter newWriter() {
+        return new OpenMetricsWriter(cacheLines);
+    }
+
+    /**
+     * Write the TYPE and HELP lines of the family followed by all its samples. Unlike in the Prometheus text format,
+     * counter families are named without the _total suffix of their samples.
+     */
+    @Override
+    public void writeFamily(RefreshableMetricFamilySamples family) {
+        writeAscii("# TYPE ");
+        writeAscii(family.name);
+        writeByte(' ');
+        writeAscii(typeString(family.type));
+        writeByte('\n');
+
+        if (!family.help.isEmpty()) {
+            writeAscii("# HELP ");
+            writeAscii(family.name);
+            writeByte(' ');
+            writeEscapedHelp(family.help);
+            writeByte('\n');
+        }
+
+        family.writeSamples(this);
+    }
+
+    /**
+     * Writes the other collectors' families using the simpleclient, which also terminates the exposition with # EOF
+     */
+    @Override
+    public void writeCollectorFamilies(Enumeration<Collector.MetricFamilySamples> families) throws IOException {
+        Writer writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+        TextFormat.writeOpenMetrics100(writer, families);
+        writer.flush();
+    }
+
+    @Override
+    void writeEscapedHelp(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                writeByte('\\');
+                writeByte('\\');
+            } else if (c == '\n') {
+                writeByte('\\');
+                writeByte('n');
+            } else if (c == '"') {
+                writeByte('\\');
+                writeByte('"');
+            } else {
+                i = writeUtf8(s, i);
+            }
+        }
+    }
+
+    private static String typeString(Collector.Type type) {
+        switch (type) {
+            case GAUGE:
+                return "gauge";
+            case COUNTER:
+                return "counter";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+                return "histogram";
+            default:
+                return "unknown";
+        }
+    }
+}
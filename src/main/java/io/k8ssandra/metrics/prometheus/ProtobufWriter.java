@@ -0,0 +1,356 @@
+package io.k8ssandra.metrics.prometheus;
+
+import io.k8ssandra.metrics.builder.CassandraMetricDefinition;
+import io.k8ssandra.metrics.builder.RefreshableMetricFamilySamples;
+import io.prometheus.client.Collector;
+
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Encodes metric families in the Prometheus protobuf format, length-delimited io.prometheus.client.MetricFamily
+ * messages. The messages are encoded by hand straight from the definitions, without generated classes.
+ *
+ * Consecutive samples with the same labels (such as the quantiles and the _count of a summary) are written to the same
+ * Metric message. The length prefixes of the messages are inserted once the message is complete.
+ */
+public class ProtobufWriter extends ExpositionWriter {
+    public static final String CONTENT_TYPE_PROTOBUF = "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited";
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+    // MetricFamily
+    private static final int FAMILY_NAME = 1;
+    private static final int FAMILY_HELP = 2;
+    private static final int FAMILY_TYPE = 3;
+    private static final int FAMILY_METRIC = 4;
+
+    // MetricType
+    private static final int TYPE_COUNTER = 0;
+    private static final int TYPE_GAUGE = 1;
+    private static final int TYPE_SUMMARY = 2;
+    private static final int TYPE_UNTYPED = 3;
+    private static final int TYPE_HISTOGRAM = 4;
+
+    // Metric
+    private static final int METRIC_LABEL = 1;
+    private static final int METRIC_GAUGE = 2;
+    private static final int METRIC_COUNTER = 3;
+    private static final int METRIC_SUMMARY = 4;
+    private static final int METRIC_UNTYPED = 5;
+    private static final int METRIC_HISTOGRAM = 7;
+
+    // LabelPair
+    private static final int LABEL_NAME = 1;
+    private static final int LABEL_VALUE = 2;
+
+    // Gauge, Counter and Untyped
+    private static final int VALUE = 1;
+
+    // Summary and Histogram
+    private static final int SAMPLE_COUNT = 1;
+    private static final int SAMPLE_SUM = 2;
+    private static final int QUANTILE = 3;
+    private static final int BUCKET = 3;
+
+    // Quantile and Bucket
+    private static final int QUANTILE_QUANTILE = 1;
+    private static final int QUANTILE_VALUE = 2;
+    private static final int BUCKET_CUMULATIVE_COUNT = 1;
+    private static final int BUCKET_UPPER_BOUND = 2;
+
+    // What the sample is in the Metric message
+    private static final int KIND_VALUE = 0;
+    private static final int KIND_BOUND = 1;
+    private static final int KIND_SUM = 2;
+    private static final int KIND_COUNT = 3;
+
+    private int familyType;
+
+    // Labels of the open Metric message, null if there's none
+    private List<String> metricLabelValues;
+    private int metricLabelCount;
+    private int metricStart;
+    // Start of the open Summary or Histogram message inside the Metric, -1 if there's none
+    private int valueStart;
+
+    // The kind of samples of the previous definition, these are the same for all its samples
+    private CassandraMetricDefinition previousDefinition;
+    private int previousKind;
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE_PROTOBUF;
+    }
+
+    @Override
+    public ExpositionWriter newWriter() {
+        return new ProtobufWriter();
+    }
+
+    @Override
+    public void writeFamily(RefreshableMetricFamilySamples family) {
+        int familyStart = startFamily(family.type == Collector.Type.COUNTER ? family.name + "_total" : family.name, family.help, family.type);
+        family.writeSamples(this);
+        endFamily(familyStart);
+    }
+
+    @Override
+    public void accept(CassandraMetricDefinition definition, int sampleLabelIndex, double value) {
+        if (definition != previousDefinition) {
+            previousDefinition = definition;
+            previousKind = KIND_VALUE;
+            if (familyType == TYPE_SUMMARY || familyType == TYPE_HISTOGRAM) {
+                previousKind = definition.getMetricName().endsWith("_sum") ? KIND_SUM : KIND_COUNT;
+            }
+        }
+        if (sampleLabelIndex >= 0) {
+            sample(definition.getLabelNames(), definition.getLabelValues(), definition.getLabelValues().size(), KIND_BOUND, definition.getSampleLabelNumber(sampleLabelIndex), value);
+        } else {
+            sample(definition.getLabelNames(), definition.getLabelValues(), definition.getLabelValues().size(), previousKind, 0, value);
+        }
+    }
+
+    @Override
+    public void writeCollectorFamilies(Enumeration<Collector.MetricFamilySamples> families) {
+        while (families.hasMoreElements()) {
+            writeFamily(families.nextElement());
+        }
+    }
+
+    /**
+     * Converts the simpleclient's family, the samples are grouped to Metric messages the same way as in the
+     * Prometheus' text format parser
+     */
+    void writeFamily(Collector.MetricFamilySamples family) {
+        String name = family.name;
+        switch (family.type) {
+            case COUNTER:
+                name = family.name + "_total";
+                break;
+            case INFO:
+                name = family.name + "_info";
+                break;
+            default:
+                break;
+        }
+
+        int familyStart = startFamily(name, family.help, family.type);
+        for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+            int labelCount = sample.labelNames.size();
+            if (familyType == TYPE_SUMMARY || familyType == TYPE_HISTOGRAM) {
+                String boundLabel = familyType == TYPE_SUMMARY ? "quantile" : "le";
+                String bucketName = familyType == TYPE_SUMMARY ? name : name + "_bucket";
+                if (sample.name.equals(name + "_count")) {
+                    sample(sample.labelNames, sample.labelValues, labelCount, KIND_COUNT, 0, sample.value);
+                } else if (sample.name.equals(name + "_sum")) {
+                    sample(sample.labelNames, sample.labelValues, labelCount, KIND_SUM, 0, sample.value);
+                } else if (sample.name.equals(bucketName) && labelCount > 0 && sample.labelNames.get(labelCount - 1).equals(boundLabel)) {
+                    String bound = sample.labelValues.get(labelCount - 1);
+                    sample(sample.labelNames, sample.labelValues, labelCount - 1, KIND_BOUND, parseBound(bound), sample.value);
+                }
+            } else if (sample.name.equals(name)) {
+                // Skips the _created samples
+                sample(sample.labelNames, sample.labelValues, labelCount, KIND_VALUE, 0, sample.value);
+            }
+        }
+        endFamily(familyStart);
+    }
+
+    private int startFamily(String name, String help, Collector.Type type) {
+        int familyStart = count;
+        familyType = protobufType(type);
+        writeString(FAMILY_NAME, name);
+        if (!help.isEmpty()) {
+            writeString(FAMILY_HELP, help);
+        }
+        if (familyType != TYPE_COUNTER) {
+            // Zero is the default
+            writeTag(FAMILY_TYPE, WIRETYPE_VARINT);
+            writeVarint(familyType);
+        }
+        return familyStart;
+    }
+
+    private void endFamily(int familyStart) {
+        endMetric();
+        previousDefinition = null;
+        // Delimited by the length of the message
+        insertLength(familyStart);
+    }
+
+    private void sample(List<String> labelNames, List<String> labelValues, int labelCount, int kind, double bound, double value) {
+        if (metricLabelValues == null || !sameLabels(labelValues, labelCount)) {
+            endMetric();
+            startMetric(labelNames, labelValues, labelCount);
+        }
+
+        switch (familyType) {
+            case TYPE_SUMMARY:
+                if (kind == KIND_BOUND) {
+                    writeTag(QUANTILE, WIRETYPE_LENGTH_DELIMITED);
+                    writeVarint(18);
+                    writeDouble(QUANTILE_QUANTILE, bound);
+                    writeDouble(QUANTILE_VALUE, value);
+                } else {
+                    writeSumOrCount(kind, value);
+                }
+                break;
+            case TYPE_HISTOGRAM:
+                if (kind == KIND_BOUND) {
+                    long cumulativeCount = (long) value;
+                    writeTag(BUCKET, WIRETYPE_LENGTH_DELIMITED);
+                    writeVarint(1 + varintSize(cumulativeCount) + 9);
+                    writeTag(BUCKET_CUMULATIVE_COUNT, WIRETYPE_VARINT);
+                    writeVarint(cumulativeCount);
+                    writeDouble(BUCKET_UPPER_BOUND, bound);
+                } else {
+                    writeSumOrCount(kind, value);
+                }
+                break;
+            case TYPE_COUNTER:
+                writeValue(METRIC_COUNTER, value);
+                break;
+            case TYPE_GAUGE:
+                writeValue(METRIC_GAUGE, value);
+                break;
+            default:
+                writeValue(METRIC_UNTYPED, value);
+        }
+    }
+
+    private boolean sameLabels(List<String> labelValues, int labelCount) {
+        if (labelValues == metricLabelValues && labelCount == metricLabelCount) {
+            return true;
+        }
+        if (labelCount != metricLabelCount) {
+            return false;
+        }
+        for (int i = 0; i < labelCount; i++) {
+            if (!labelValues.get(i).equals(metricLabelValues.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void startMetric(List<String> labelNames, List<String> labelValues, int labelCount) {
+        writeTag(FAMILY_METRIC, WIRETYPE_LENGTH_DELIMITED);
+        metricStart = count;
+        metricLabelValues = labelValues;
+        metricLabelCount = labelCount;
+
+        for (int i = 0; i < labelCount; i++) {
+            String labelName = labelNames.get(i);
+            String labelValue = labelValues.get(i);
+            int nameLength = utf8Length(labelName);
+            int valueLength = utf8Length(labelValue);
+            writeTag(METRIC_LABEL, WIRETYPE_LENGTH_DELIMITED);
+            writeVarint(1 + varintSize(nameLength) + nameLength + 1 + varintSize(valueLength) + valueLength);
+            writeString(LABEL_NAME, labelName, nameLength);
+            writeString(LABEL_VALUE, labelValue, valueLength);
+        }
+
+        if (familyType == TYPE_SUMMARY || familyType == TYPE_HISTOGRAM) {
+            writeTag(familyType == TYPE_SUMMARY ? METRIC_SUMMARY : METRIC_HISTOGRAM, WIRETYPE_LENGTH_DELIMITED);
+            valueStart = count;
+        } else {
+            valueStart = -1;
+        }
+    }
+
+    private void endMetric() {
+        if (metricLabelValues == null) {
+            return;
+        }
+        if (valueStart >= 0) {
+            insertLength(valueStart);
+        }
+        insertLength(metricStart);
+        metricLabelValues = null;
+    }
+
+    private void writeSumOrCount(int kind, double value) {
+        if (kind == KIND_SUM) {
+            writeDouble(SAMPLE_SUM, value);
+        } else {
+            writeTag(SAMPLE_COUNT, WIRETYPE_VARINT);
+            writeVarint((long) value);
+        }
+    }
+
+    private void writeValue(int field, double value) {
+        writeTag(field, WIRETYPE_LENGTH_DELIMITED);
+        writeVarint(9);
+        writeDouble(VALUE, value);
+    }
+
+    /**
+     * Prefix everything written after the start with its length
+     */
+    private void insertLength(int start) {
+        int length = count - start;
+        int prefixSize = varintSize(length);
+        ensureCapacity(prefixSize);
+        System.arraycopy(buf, start, buf, start + prefixSize, length);
+        int end = count + prefixSize;
+        count = start;
+        writeVarint(length);
+        count = end;
+    }
+
+    private void writeString(int field, String value) {
+        writeString(field, value, utf8Length(value));
+    }
+
+    private void writeString(int field, String value, int utf8Length) {
+        writeTag(field, WIRETYPE_LENGTH_DELIMITED);
+        writeVarint(utf8Length);
+        for (int i = 0; i < value.length(); i++) {
+            i = writeUtf8(value, i);
+        }
+    }
+
+    private void writeTag(int field, int wireType) {
+        writeByte((field << 3) | wireType);
+    }
+
+    private void writeDouble(int field, double value) {
+        writeTag(field, WIRETYPE_FIXED64);
+        writeFixed64(Double.doubleToRawLongBits(value));
+    }
+
+    private static double parseBound(String bound) {
+        switch (bound) {
+            case "+Inf":
+                return Double.POSITIVE_INFINITY;
+            case "-Inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                try {
+                    return Double.parseDouble(bound);
+                } catch (NumberFormatException e) {
+                    return Double.NaN;
+                }
+        }
+    }
+
+    private static int protobufType(Collector.Type type) {
+        switch (type) {
+            case COUNTER:
+                return TYPE_COUNTER;
+            case GAUGE:
+            case INFO:
+            case STATE_SET:
+                return TYPE_GAUGE;
+            case SUMMARY:
+                return TYPE_SUMMARY;
+            case HISTOGRAM:
+                return TYPE_HISTOGRAM;
+            default:
+                return TYPE_UNTYPED;
+        }
+    }
+}
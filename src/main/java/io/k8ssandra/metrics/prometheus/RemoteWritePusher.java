@@ -0,0 +1,217 @@
+package io.k8ssandra.metrics.prometheus;
+
+import io.k8ssandra.metrics.config.RemoteWriteConfiguration;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes the Cassandra metrics and the other collectors' families to a Prometheus remote_write endpoint, for
+ * environments where the nodes can not be scraped.
+ *
+ * A single daemon thread collects the metrics every interval, splits them to requests of at most
+ * max_samples_per_request samples and sends them Snappy compressed. Requests that fail with a network error, a 5xx
+ * or a 429 status are kept and sent again after a backoff, in the order they were collected. At most
+ * max_buffered_bytes of compressed requests are kept, the oldest are dropped first. Requests rejected with other 4xx
+ * statuses are dropped, sending them again would not succeed.
+ *
+ * Cassandra's threads never wait for the pushes, the pushing thread only reads the metrics like a scrape does.
+ */
+public class RemoteWritePusher extends Collector implements Closeable {
+    private static final org.slf4j.Logger logger = LoggerFactory.getLogger(RemoteWritePusher.class);
+
+    private static final String PREFIX = "mcac_exporter_remote_write_";
+
+    private final CassandraDropwizardExports exports;
+    private final CollectorRegistry registry;
+    private final RemoteWriteConfiguration configuration;
+    private final URL url;
+
+    // Only accessed by the pushing thread
+    private final RemoteWriteWriter writer = new RemoteWriteWriter();
+    private final ArrayDeque<Request> pending = new ArrayDeque<>();
+    private long pendingBytes;
+    private long backoffMillis;
+    private long retryAtNanos;
+
+    private final LongAdder sentSamples = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder droppedSamples = new LongAdder();
+    private volatile long bufferedBytes;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param registry other collectors to push, null for only the Cassandra metrics
+     */
+    public RemoteWritePusher(CassandraDropwizardExports exports, CollectorRegistry registry, RemoteWriteConfiguration configuration) throws IOException {
+        this.exports = exports;
+        this.registry = registry;
+        this.configuration = configuration;
+        this.url = new URL(configuration.getUrl());
+    }
+
+    /**
+     * Starts pushing every interval in a daemon thread
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-remote-write");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::pushSafely, configuration.getIntervalMillis(), configuration.getIntervalMillis(), TimeUnit.MILLISECONDS);
+        logger.info("Pushing the metrics to {} every {} ms", url, configuration.getIntervalMillis());
+    }
+
+    private void pushSafely() {
+        try {
+            push();
+        } catch (Exception e) {
+            // An exception would cancel the following pushes
+            logger.error("Failed to push the metrics to {}", url, e);
+        }
+    }
+
+    /**
+     * Collects the metrics to the pending requests and sends as many of them as the endpoint accepts. Called by the
+     * pushing thread.
+     */
+    void push() throws IOException {
+        writer.reset();
+        exports.write(writer);
+        if (registry != null) {
+            writer.writeCollectorFamilies(registry.metricFamilySamples());
+        }
+        writer.forEachBatch(configuration.getMaxSamplesPerRequest(), (encoded, offset, length, series) ->
+                enqueue(new Request(Snappy.compress(encoded, offset, length), series)));
+        send();
+    }
+
+    private void enqueue(Request request) {
+        pending.addLast(request);
+        pendingBytes += request.body.length;
+        while (pendingBytes > configuration.getMaxBufferedBytes() && pending.size() > 1) {
+            Request dropped = pending.removeFirst();
+            pendingBytes -= dropped.body.length;
+            droppedSamples.add(dropped.samples);
+        }
+        bufferedBytes = pendingBytes;
+    }
+
+    private void send() {
+        if (backoffMillis > 0 && System.nanoTime() - retryAtNanos < 0) {
+            return;
+        }
+        while (!pending.isEmpty()) {
+            Request request = pending.peekFirst();
+            int status;
+            try {
+                status = post(request.body);
+            } catch (IOException e) {
+                logger.debug("Failed to send {} samples to {}", request.samples, url, e);
+                status = -1;
+            }
+
+            if (status / 100 == 2) {
+                sentSamples.add(request.samples);
+                sentBytes.add(request.body.length);
+            } else {
+                failedRequests.increment();
+                if (status == -1 || status == 429 || status / 100 == 5) {
+                    backoffMillis = backoffMillis == 0 ? configuration.getMinBackoffMillis() : Math.min(backoffMillis * 2, configuration.getMaxBackoffMillis());
+                    retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+                    logger.debug("Sending to {} failed with status {}, retrying in {} ms", url, status, backoffMillis);
+                    break;
+                }
+                logger.warn("Dropped {} samples rejected by {} with status {}", request.samples, url, status);
+                droppedSamples.add(request.samples);
+            }
+            pending.removeFirst();
+            pendingBytes -= request.body.length;
+            bufferedBytes = pendingBytes;
+            backoffMillis = 0;
+        }
+    }
+
+    private int post(byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(configuration.getTimeoutMillis());
+            connection.setReadTimeout(configuration.getTimeoutMillis());
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", RemoteWriteWriter.CONTENT_TYPE_REMOTE_WRITE);
+            connection.setRequestProperty("Content-Encoding", "snappy");
+            connection.setRequestProperty("X-Prometheus-Remote-Write-Version", "0.1.0");
+            connection.setRequestProperty("User-Agent", "mcac-remote-write");
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body);
+            }
+            int status = connection.getResponseCode();
+            // Read the response fully so that the connection can be reused
+            try (InputStream is = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (is != null) {
+                    is.readAllBytes();
+                }
+            }
+            return status;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> collected = new ArrayList<>();
+        collected.add(counter("sent_samples", "Samples accepted by the remote_write endpoint", sentSamples.sum()));
+        collected.add(counter("sent_bytes", "Compressed bytes of the requests accepted by the remote_write endpoint", sentBytes.sum()));
+        collected.add(counter("failed_requests", "Requests to the remote_write endpoint that failed", failedRequests.sum()));
+        collected.add(counter("dropped_samples", "Samples dropped because the buffer was full or the endpoint rejected them", droppedSamples.sum()));
+        collected.add(new MetricFamilySamples(PREFIX + "buffered_bytes", Type.GAUGE, "Compressed bytes of the requests waiting to be sent",
+                List.of(new MetricFamilySamples.Sample(PREFIX + "buffered_bytes", List.of(), List.of(), bufferedBytes))));
+        return collected;
+    }
+
+    private static MetricFamilySamples counter(String name, String help, double value) {
+        return new MetricFamilySamples(PREFIX + name, Type.COUNTER, help,
+                List.of(new MetricFamilySamples.Sample(PREFIX + name + "_total", List.of(), List.of(), value)));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static final class Request {
+        private final byte[] body;
+        private final int samples;
+
+        private Request(byte[] body, int samples) {
+            this.body = body;
+            this.samples = samples;
+        }
+    }
+}
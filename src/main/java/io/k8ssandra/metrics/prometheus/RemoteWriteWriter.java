@@ -0,0 +1,211 @@
+package io.k8ssandra.metrics.prometheus;
+
+import io.k8ssandra.metrics.builder.CassandraMetricDefinition;
+import io.k8ssandra.metrics.builder.RefreshableMetricFamilySamples;
+import io.prometheus.client.Collector;
+
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Encodes the samples as the TimeSeries of a Prometheus remote_write WriteRequest, uncompressed. Every sample is its
+ * own TimeSeries with the metric name in the __name__ label and the labels sorted by their names, as the protocol
+ * requires.
+ *
+ * The output is a sequence of WriteRequest.timeseries fields, so the output of several writers can be appended and
+ * any consecutive run of TimeSeries is a valid WriteRequest, see {@link #forEachBatch(int, BatchConsumer)}.
+ * The samples of a family are timestamped with the time the family was started.
+ */
+public class RemoteWriteWriter extends ExpositionWriter {
+    public static final String CONTENT_TYPE_REMOTE_WRITE = "application/x-protobuf";
+
+    private static final String NAME_LABEL = "__name__";
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+    // WriteRequest
+    private static final int REQUEST_TIMESERIES = 1;
+
+    // TimeSeries
+    private static final int SERIES_LABEL = 1;
+    private static final int SERIES_SAMPLE = 2;
+
+    // Label
+    private static final int LABEL_NAME = 1;
+    private static final int LABEL_VALUE = 2;
+
+    // Sample
+    private static final int SAMPLE_VALUE = 1;
+    private static final int SAMPLE_TIMESTAMP = 2;
+
+    private long timestampMillis;
+
+    // Labels of the current sample, sorted by the order array
+    private String[] labelNames = new String[16];
+    private String[] labelValues = new String[16];
+    private int[] labelLengths = new int[32];
+    private int[] order = new int[16];
+    private int labelCount;
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE_REMOTE_WRITE;
+    }
+
+    @Override
+    public ExpositionWriter newWriter() {
+        return new RemoteWriteWriter();
+    }
+
+    @Override
+    public void writeFamily(RefreshableMetricFamilySamples family) {
+        timestampMillis = System.currentTimeMillis();
+        family.writeSamples(this);
+    }
+
+    @Override
+    public void accept(CassandraMetricDefinition definition, int sampleLabelIndex, double value) {
+        List<String> names = definition.getLabelNames();
+        List<String> values = definition.getLabelValues();
+        int count = values.size();
+        startLabels(definition.getMetricName(), count + 1);
+        for (int i = 0; i < count; i++) {
+            addLabel(names.get(i), values.get(i));
+        }
+        if (sampleLabelIndex >= 0) {
+            addLabel(names.get(count), definition.getSampleLabelValues()[sampleLabelIndex]);
+        }
+        writeSeries(value);
+    }
+
+    @Override
+    public void writeCollectorFamilies(Enumeration<Collector.MetricFamilySamples> families) {
+        while (families.hasMoreElements()) {
+            Collector.MetricFamilySamples family = families.nextElement();
+            timestampMillis = System.currentTimeMillis();
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                int count = sample.labelNames.size();
+                startLabels(sample.name, count);
+                for (int i = 0; i < count; i++) {
+                    addLabel(sample.labelNames.get(i), sample.labelValues.get(i));
+                }
+                writeSeries(sample.value);
+            }
+        }
+    }
+
+    private void startLabels(String metricName, int additional) {
+        int capacity = additional + 1;
+        if (labelNames.length < capacity) {
+            labelNames = new String[capacity];
+            labelValues = new String[capacity];
+            labelLengths = new int[capacity * 2];
+            order = new int[capacity];
+        }
+        labelCount = 0;
+        addLabel(NAME_LABEL, metricName);
+    }
+
+    /**
+     * Adds the label in the order of the label names, the labels of a series are usually few
+     */
+    private void addLabel(String name, String value) {
+        int i = labelCount;
+        labelNames[i] = name;
+        labelValues[i] = value;
+        int position = labelCount;
+        while (position > 0 && labelNames[order[position - 1]].compareTo(name) > 0) {
+            order[position] = order[position - 1];
+            position--;
+        }
+        order[position] = i;
+        labelCount++;
+    }
+
+    private void writeSeries(double value) {
+        int seriesLength = 0;
+        for (int i = 0; i < labelCount; i++) {
+            int nameLength = utf8Length(labelNames[i]);
+            int valueLength = utf8Length(labelValues[i]);
+            labelLengths[2 * i] = nameLength;
+            labelLengths[2 * i + 1] = valueLength;
+            int labelLength = labelLength(nameLength, valueLength);
+            seriesLength += 1 + varintSize(labelLength) + labelLength;
+        }
+        int sampleLength = 1 + 8 + 1 + varintSize(timestampMillis);
+        seriesLength += 1 + varintSize(sampleLength) + sampleLength;
+
+        writeTag(REQUEST_TIMESERIES, WIRETYPE_LENGTH_DELIMITED);
+        writeVarint(seriesLength);
+        for (int position = 0; position < labelCount; position++) {
+            int i = order[position];
+            int nameLength = labelLengths[2 * i];
+            int valueLength = labelLengths[2 * i + 1];
+            writeTag(SERIES_LABEL, WIRETYPE_LENGTH_DELIMITED);
+            writeVarint(labelLength(nameLength, valueLength));
+            writeString(LABEL_NAME, labelNames[i], nameLength);
+            writeString(LABEL_VALUE, labelValues[i], valueLength);
+        }
+        writeTag(SERIES_SAMPLE, WIRETYPE_LENGTH_DELIMITED);
+        writeVarint(sampleLength);
+        writeTag(SAMPLE_VALUE, WIRETYPE_FIXED64);
+        writeFixed64(Double.doubleToRawLongBits(value));
+        writeTag(SAMPLE_TIMESTAMP, WIRETYPE_VARINT);
+        writeVarint(timestampMillis);
+    }
+
+    private static int labelLength(int nameLength, int valueLength) {
+        return 1 + varintSize(nameLength) + nameLength + 1 + varintSize(valueLength) + valueLength;
+    }
+
+    private void writeString(int field, String value, int utf8Length) {
+        writeTag(field, WIRETYPE_LENGTH_DELIMITED);
+        writeVarint(utf8Length);
+        for (int i = 0; i < value.length(); i++) {
+            i = writeUtf8(value, i);
+        }
+    }
+
+    private void writeTag(int field, int wireType) {
+        writeByte((field << 3) | wireType);
+    }
+
+    /**
+     * Calls the consumer with the consecutive runs of at most maxSeries TimeSeries written so far, each one the
+     * contents of a WriteRequest
+     */
+    void forEachBatch(int maxSeries, BatchConsumer consumer) {
+        int start = 0;
+        int series = 0;
+        int position = 0;
+        while (position < count) {
+            // Skip the tag, then the TimeSeries by its length
+            position++;
+            int seriesLength = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[position++];
+                seriesLength |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            position += seriesLength;
+
+            if (++series == maxSeries) {
+                consumer.accept(buf, start, position - start, series);
+                start = position;
+                series = 0;
+            }
+        }
+        if (series > 0) {
+            consumer.accept(buf, start, position - start, series);
+        }
+    }
+
+    @FunctionalInterface
+    interface BatchConsumer {
+        void accept(byte[] encoded, int offset, int length, int series);
+    }
+}
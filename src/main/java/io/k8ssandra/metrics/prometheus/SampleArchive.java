@@ -0,0 +1,495 @@
+package io.k8ssandra.metrics.prometheus;
+
+import io.k8ssandra.metrics.builder.CassandraMetricDefinition;
+import io.k8ssandra.metrics.config.ArchiveConfiguration;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Records snapshots of all the exported series to a fixed-size memory-mapped file, so that the samples of a scraper
+ * outage can be backfilled later. The oldest snapshots are overwritten when the file is full.
+ *
+ * A snapshot is either a keyframe, with the encoded series deflated and their values, or a delta with only the values
+ * XORed with the previous snapshot's. The XOR of an unchanged value is a single byte, and a slowly growing counter
+ * only changes the high bits of the mantissa, which are written first. A keyframe is written when the series change
+ * and at least every {@value #KEYFRAME_INTERVAL} snapshots, the deltas are useless once their keyframe is overwritten.
+ *
+ * Every record has a magic number, its length, a sequence number and a CRC32. The file is never forced to disk, the
+ * snapshots survive a restart of the JVM in the page cache. When the file is opened, the records are found by scanning
+ * it and the ones with an invalid CRC are skipped, so a crash in the middle of a write or a truncated file only lose
+ * the damaged records. Recording continues after the newest valid record.
+ *
+ * Snapshots are recorded by a daemon thread, the scrapes never wait for the file.
+ */
+public class SampleArchive implements Closeable {
+    private static final org.slf4j.Logger logger = LoggerFactory.getLogger(SampleArchive.class);
+
+    private static final long FILE_MAGIC = 0x4D43414341524331L;
+    private static final int FILE_HEADER_SIZE = 64;
+
+    private static final int RECORD_MAGIC = 0x4D434152;
+    // Magic, length, sequence and CRC
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    private static final byte TYPE_KEYFRAME = 1;
+    private static final byte TYPE_DELTA = 2;
+
+    static final int KEYFRAME_INTERVAL = 32;
+
+    // Replayed samples are written to the response in chunks of this size
+    private static final int FLUSH_BYTES = 1 << 20;
+
+    private final CassandraDropwizardExports exports;
+    private final long intervalMillis;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    // Valid records in the order of their sequence, guarded by itself
+    private final ArrayDeque<RecordInfo> records = new ArrayDeque<>();
+
+    // Only accessed by the recording thread
+    private int writePosition;
+    private long nextSequence;
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream(1 << 16);
+    private Snapshot current = new Snapshot();
+    private Snapshot previous = new Snapshot();
+    private boolean hasPrevious;
+    private int snapshotsSinceKeyframe;
+
+    private ScheduledExecutorService scheduler;
+
+    public SampleArchive(CassandraDropwizardExports exports, ArchiveConfiguration configuration) throws IOException {
+        this(exports, Path.of(configuration.getPath()), configuration.getMaxBytes(), configuration.getIntervalMillis());
+    }
+
+    /**
+     * Opens the archive, creating or resizing the file if needed
+     */
+    public SampleArchive(CassandraDropwizardExports exports, Path path, long maxBytes, long intervalMillis) throws IOException {
+        if (maxBytes < FILE_HEADER_SIZE * 16 || maxBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Archive size must be between 1 KiB and 2 GiB, was " + maxBytes);
+        }
+        this.exports = exports;
+        this.intervalMillis = intervalMillis;
+        this.capacity = (int) maxBytes;
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (file.length() != capacity) {
+                if (file.length() > 0) {
+                    logger.info("Resizing the metrics archive {} from {} to {} bytes", path, file.length(), capacity);
+                }
+                file.setLength(capacity);
+            }
+            // The mapping stays valid after the file is closed
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        if (buffer.getLong(0) != FILE_MAGIC) {
+            buffer.putLong(0, FILE_MAGIC);
+        }
+        recover();
+        logger.info("Opened the metrics archive {} with {} snapshots", path, records.size());
+    }
+
+    /**
+     * Finds the valid records of the file and continues after the newest one
+     */
+    private void recover() {
+        List<RecordInfo> found = new ArrayList<>();
+        int position = FILE_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= capacity) {
+            RecordInfo record = validRecord(position);
+            if (record != null) {
+                found.add(record);
+                position += record.length;
+            } else {
+                position++;
+            }
+        }
+        found.sort(Comparator.comparingLong(record -> record.sequence));
+
+        writePosition = FILE_HEADER_SIZE;
+        nextSequence = 0;
+        if (!found.isEmpty()) {
+            RecordInfo newest = found.get(found.size() - 1);
+            writePosition = newest.position + newest.length;
+            nextSequence = newest.sequence + 1;
+        }
+        records.addAll(found);
+    }
+
+    /**
+     * @return the record at the position if it's intact, otherwise null
+     */
+    private RecordInfo validRecord(int position) {
+        if (buffer.getInt(position) != RECORD_MAGIC) {
+            return null;
+        }
+        int length = buffer.getInt(position + 4);
+        if (length <= 0 || length > capacity - position - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        byte[] bytes = readPayload(position, length);
+        long sequence = buffer.getLong(position + 8);
+        if (buffer.getInt(position + 16) != checksum(sequence, bytes, length)) {
+            return null;
+        }
+        ByteBuffer payload = ByteBuffer.wrap(bytes);
+        payload.get();
+        return new RecordInfo(position, RECORD_HEADER_SIZE + length, sequence, readVarint(payload));
+    }
+
+    private byte[] readPayload(int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(position + RECORD_HEADER_SIZE);
+        source.get(bytes);
+        return bytes;
+    }
+
+    private static int checksum(long sequence, byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < 8; i++) {
+            crc.update((int) (sequence >>> (8 * i)));
+        }
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Starts recording every interval in a daemon thread
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-archive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                record(System.currentTimeMillis());
+            } catch (Exception e) {
+                // An exception would cancel the following snapshots
+                logger.error("Failed to record the metrics snapshot", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a snapshot of all the series. Called by the recording thread.
+     */
+    void record(long timestampMillis) throws IOException {
+        Snapshot snapshot = current;
+        snapshot.size = 0;
+        exports.writeSamples(snapshot::add);
+
+        boolean keyframe = !hasPrevious || snapshotsSinceKeyframe >= KEYFRAME_INTERVAL || !snapshot.sameSeries(previous);
+        payload.reset();
+        payload.write(keyframe ? TYPE_KEYFRAME : TYPE_DELTA);
+        writeVarint(payload, timestampMillis);
+        writeVarint(payload, snapshot.size);
+        if (keyframe) {
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DeflaterOutputStream os = new DeflaterOutputStream(deflated, deflater, 1 << 16)) {
+                ByteArrayOutputStream series = new ByteArrayOutputStream();
+                for (int i = 0; i < snapshot.size; i++) {
+                    byte[] encoded = snapshot.definitions[i].getEncodedSeries(snapshot.sampleLabelIndexes[i]);
+                    writeVarint(series, encoded.length);
+                    series.write(encoded);
+                    if (series.size() >= 1 << 16) {
+                        series.writeTo(os);
+                        series.reset();
+                    }
+                }
+                series.writeTo(os);
+            } finally {
+                deflater.end();
+            }
+            writeVarint(payload, deflated.size());
+            deflated.writeTo(payload);
+        }
+        for (int i = 0; i < snapshot.size; i++) {
+            long previousBits = keyframe ? 0 : previous.values[i];
+            // The changed bits of the mantissa are usually the high ones
+            writeVarint(payload, Long.reverse(snapshot.values[i] ^ previousBits));
+        }
+
+        if (!append(timestampMillis)) {
+            hasPrevious = false;
+            return;
+        }
+        current = previous;
+        previous = snapshot;
+        hasPrevious = true;
+        snapshotsSinceKeyframe = keyframe ? 1 : snapshotsSinceKeyframe + 1;
+    }
+
+    /**
+     * Writes the payload as the next record, overwriting the oldest records
+     *
+     * @return false if the record does not fit the file
+     */
+    private boolean append(long timestampMillis) {
+        int length = payload.size();
+        int recordLength = RECORD_HEADER_SIZE + length;
+        if (recordLength > (capacity - FILE_HEADER_SIZE) / 2) {
+            logger.warn("The metrics snapshot of {} bytes does not fit the archive of {} bytes, increase its max_bytes", length, capacity);
+            return false;
+        }
+        if (writePosition + recordLength > capacity) {
+            writePosition = FILE_HEADER_SIZE;
+        }
+        int position = writePosition;
+        long sequence = nextSequence++;
+
+        synchronized (records) {
+            records.removeIf(record -> record.position < position + recordLength && position < record.position + record.length);
+        }
+
+        byte[] bytes = payload.toByteArray();
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + RECORD_HEADER_SIZE);
+        target.put(bytes, 0, length);
+        buffer.putInt(position, RECORD_MAGIC);
+        buffer.putInt(position + 4, length);
+        buffer.putLong(position + 8, sequence);
+        buffer.putInt(position + 16, checksum(sequence, bytes, length));
+
+        synchronized (records) {
+            records.addLast(new RecordInfo(position, recordLength, sequence, timestampMillis));
+        }
+        writePosition = position + recordLength;
+        return true;
+    }
+
+    /**
+     * @return timestamps of the recorded snapshots, oldest first
+     */
+    public List<Long> getTimestamps() {
+        List<Long> timestamps = new ArrayList<>();
+        synchronized (records) {
+            for (RecordInfo record : records) {
+                timestamps.add(record.timestampMillis);
+            }
+        }
+        return timestamps;
+    }
+
+    /**
+     * Writes the recorded samples between the timestamps in the OpenMetrics text format with their timestamps, in
+     * the order they were recorded, as accepted by promtool tsdb create-blocks-from openmetrics. Snapshots whose
+     * keyframe was already overwritten are skipped.
+     */
+    public void replay(OutputStream out, long fromMillis, long toMillis) throws IOException {
+        List<RecordInfo> replayed;
+        synchronized (records) {
+            replayed = new ArrayList<>(records);
+        }
+
+        TextFormatWriter writer = new TextFormatWriter(false);
+        byte[][] series = null;
+        long[] values = null;
+        long expectedSequence = -1;
+        for (RecordInfo record : replayed) {
+            if (record.timestampMillis > toMillis) {
+                break;
+            }
+            ByteBuffer payload = readRecord(record);
+            if (payload == null) {
+                // Overwritten while replaying
+                series = null;
+                continue;
+            }
+            byte type = payload.get();
+            long timestampMillis = readVarint(payload);
+            int size = (int) readVarint(payload);
+            if (type == TYPE_KEYFRAME) {
+                series = inflateSeries(payload, size);
+                values = new long[size];
+            } else if (series == null || record.sequence != expectedSequence || series.length != size) {
+                series = null;
+                continue;
+            }
+            for (int i = 0; i < size; i++) {
+                values[i] ^= Long.reverse(readVarint(payload));
+            }
+            expectedSequence = record.sequence + 1;
+
+            if (timestampMillis < fromMillis) {
+                continue;
+            }
+            for (int i = 0; i < size; i++) {
+                writer.write(series[i]);
+                writer.writeByte(' ');
+                writer.writeDouble(Double.longBitsToDouble(values[i]));
+                writer.writeByte(' ');
+                writeTimestamp(writer, timestampMillis);
+                writer.writeByte('\n');
+                if (writer.size() >= FLUSH_BYTES) {
+                    writer.writeTo(out);
+                    writer.reset();
+                }
+            }
+        }
+        writer.writeAscii("# EOF\n");
+        writer.writeTo(out);
+    }
+
+    /**
+     * @return the payload of the record, or null if it was overwritten
+     */
+    private ByteBuffer readRecord(RecordInfo record) {
+        int length = record.length - RECORD_HEADER_SIZE;
+        byte[] bytes = readPayload(record.position, length);
+        if (buffer.getInt(record.position) != RECORD_MAGIC || buffer.getLong(record.position + 8) != record.sequence
+                || buffer.getInt(record.position + 16) != checksum(record.sequence, bytes, length)) {
+            return null;
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static byte[][] inflateSeries(ByteBuffer payload, int size) throws IOException {
+        int deflatedLength = (int) readVarint(payload);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload.array(), payload.position(), deflatedLength);
+            payload.position(payload.position() + deflatedLength);
+
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream(deflatedLength * 4);
+            byte[] chunk = new byte[1 << 16];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated keyframe in the metrics archive");
+                }
+                inflated.write(chunk, 0, n);
+            }
+
+            ByteBuffer encoded = ByteBuffer.wrap(inflated.toByteArray());
+            byte[][] series = new byte[size][];
+            for (int i = 0; i < size; i++) {
+                series[i] = new byte[(int) readVarint(encoded)];
+                encoded.get(series[i]);
+            }
+            return series;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid keyframe in the metrics archive", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * OpenMetrics timestamps are in seconds
+     */
+    private static void writeTimestamp(TextFormatWriter writer, long timestampMillis) {
+        writer.writeLong(timestampMillis / 1000);
+        long millis = timestampMillis % 1000;
+        writer.writeByte('.');
+        writer.writeByte((int) ('0' + millis / 100));
+        writer.writeByte((int) ('0' + millis / 10 % 10));
+        writer.writeByte((int) ('0' + millis % 10));
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * The samples of a snapshot by their definition and sample label
+     */
+    private static final class Snapshot {
+        private CassandraMetricDefinition[] definitions = new CassandraMetricDefinition[1024];
+        private int[] sampleLabelIndexes = new int[1024];
+        private long[] values = new long[1024];
+        private int size;
+
+        private void add(CassandraMetricDefinition definition, int sampleLabelIndex, double value) {
+            if (size == definitions.length) {
+                definitions = Arrays.copyOf(definitions, size * 2);
+                sampleLabelIndexes = Arrays.copyOf(sampleLabelIndexes, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            definitions[size] = definition;
+            sampleLabelIndexes[size] = sampleLabelIndex;
+            values[size] = Double.doubleToRawLongBits(value);
+            size++;
+        }
+
+        private boolean sameSeries(Snapshot other) {
+            if (size != other.size) {
+                return false;
+            }
+            for (int i = 0; i < size; i++) {
+                if (definitions[i] != other.definitions[i] || sampleLabelIndexes[i] != other.sampleLabelIndexes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class RecordInfo {
+        private final int position;
+        // Including the header
+        private final int length;
+        private final long sequence;
+        private final long timestampMillis;
+
+        private RecordInfo(int position, int length, long sequence, long timestampMillis) {
+            this.position = position;
+            this.length = length;
+            this.sequence = sequence;
+            this.timestampMillis = timestampMillis;
+        }
+    }
+}
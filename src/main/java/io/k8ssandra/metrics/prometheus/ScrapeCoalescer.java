@@ -0,0 +1,92 @@
+package io.k8ssandra.metrics.prometheus;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight execution of a scrape. Callers arriving while a collection is running wait for it and share its
+ * result, and results younger than the freshness window are returned without collecting again.
+ *
+ * @param <T> result of the collection, shared between the callers so it must not be modified by them
+ */
+public class ScrapeCoalescer<T> {
+    private final long freshnessNanos;
+
+    private final Object lock = new Object();
+
+    // Guarded by lock
+    private CompletableFuture<T> inFlight;
+
+    private volatile Result<T> latest;
+
+    /**
+     * @param freshnessMillis how long a finished collection is served to new callers, 0 only shares the running collection
+     */
+    public ScrapeCoalescer(long freshnessMillis) {
+        this.freshnessNanos = freshnessMillis * 1_000_000L;
+    }
+
+    /**
+     * @param collector the collection to run if there is no running or fresh enough result
+     */
+    public T get(Supplier<T> collector) {
+        Result<T> result = latest;
+        if (isFresh(result)) {
+            return result.value;
+        }
+
+        CompletableFuture<T> future;
+        boolean owner = false;
+        synchronized (lock) {
+            result = latest;
+            if (isFresh(result)) {
+                return result.value;
+            }
+            if (inFlight == null) {
+                inFlight = new CompletableFuture<>();
+                owner = true;
+            }
+            future = inFlight;
+        }
+
+        if (owner) {
+            try {
+                T value = collector.get();
+                latest = new Result<>(value, System.nanoTime());
+                future.complete(value);
+                return value;
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                synchronized (lock) {
+                    inFlight = null;
+                }
+            }
+        }
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private boolean isFresh(Result<T> result) {
+        return result != null && freshnessNanos > 0 && System.nanoTime() - result.collectedAt < freshnessNanos;
+    }
+
+    private static class Result<T> {
+        private final T value;
+        private final long collectedAt;
+
+        private Result(T value, long collectedAt) {
+            this.value = value;
+            this.collectedAt = collectedAt;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package io.k8ssandra.metrics.prometheus;
+
+import java.util.Arrays;
+
+/**
+ * Compresses to the Snappy block format required by the Prometheus remote_write protocol, without the native
+ * snappy-java library in the Cassandra JVM.
+ *
+ * The input is compressed in 64 KiB fragments like in the reference implementation, so every copy fits in the two-byte
+ * offset form. Matches are found with a hash table of the four-byte sequences, the ratio is close to the reference
+ * implementation with the repetitive label sets of the metrics.
+ */
+final class Snappy {
+    private static final int FRAGMENT_SIZE = 1 << 16;
+    private static final int HASH_BITS = 14;
+    private static final int MAX_COPY_LENGTH = 64;
+
+    private static final int TAG_LITERAL = 0;
+    private static final int TAG_COPY_2 = 2;
+
+    private Snappy() {
+    }
+
+    /**
+     * @return the compressed bytes of input[offset, offset + length)
+     */
+    static byte[] compress(byte[] input, int offset, int length) {
+        // Worst case of the format, incompressible input is written as literals
+        byte[] output = new byte[32 + length + length / 6];
+        int[] table = new int[1 << HASH_BITS];
+
+        int out = writeVarint(output, 0, length);
+        for (int start = offset; start < offset + length; start += FRAGMENT_SIZE) {
+            out = compressFragment(input, start, Math.min(offset + length, start + FRAGMENT_SIZE), output, out, table);
+        }
+
+        byte[] compressed = new byte[out];
+        System.arraycopy(output, 0, compressed, 0, out);
+        return compressed;
+    }
+
+    private static int compressFragment(byte[] input, int start, int end, byte[] output, int out, int[] table) {
+        // Positions relative to the fragment, -1 is an empty slot
+        Arrays.fill(table, -1);
+        int literalStart = start;
+        int i = start;
+        while (i + 4 <= end) {
+            int bytes = readInt(input, i);
+            int hash = (bytes * 0x1e35a7bd) >>> (32 - HASH_BITS);
+            int candidate = table[hash];
+            table[hash] = i - start;
+            if (candidate < 0 || readInt(input, start + candidate) != bytes) {
+                i++;
+                continue;
+            }
+
+            int matchStart = start + candidate;
+            int matchLength = 4;
+            while (i + matchLength < end && input[matchStart + matchLength] == input[i + matchLength]) {
+                matchLength++;
+            }
+
+            out = writeLiteral(input, literalStart, i - literalStart, output, out);
+            int copyOffset = i - matchStart;
+            for (int remaining = matchLength; remaining > 0; ) {
+                int copyLength = Math.min(remaining, MAX_COPY_LENGTH);
+                output[out++] = (byte) (((copyLength - 1) << 2) | TAG_COPY_2);
+                output[out++] = (byte) copyOffset;
+                output[out++] = (byte) (copyOffset >>> 8);
+                remaining -= copyLength;
+            }
+            i += matchLength;
+            literalStart = i;
+        }
+        return writeLiteral(input, literalStart, end - literalStart, output, out);
+    }
+
+    private static int writeLiteral(byte[] input, int start, int length, byte[] output, int out) {
+        if (length == 0) {
+            return out;
+        }
+        int n = length - 1;
+        if (n < 60) {
+            output[out++] = (byte) ((n << 2) | TAG_LITERAL);
+        } else if (n < 1 << 8) {
+            output[out++] = (byte) ((60 << 2) | TAG_LITERAL);
+            output[out++] = (byte) n;
+        } else {
+            // Fragments are at most 64 KiB
+            output[out++] = (byte) ((61 << 2) | TAG_LITERAL);
+            output[out++] = (byte) n;
+            output[out++] = (byte) (n >>> 8);
+        }
+        System.arraycopy(input, start, output, out, length);
+        return out + length;
+    }
+
+    private static int writeVarint(byte[] output, int out, int value) {
+        while ((value & ~0x7F) != 0) {
+            output[out++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output[out++] = (byte) value;
+        return out;
+    }
+
+    private static int readInt(byte[] input, int i) {
+        return (input[i] & 0xFF) | (input[i + 1] & 0xFF) << 8 | (input[i + 2] & 0xFF) << 16 | (input[i + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,285 @@
+package io.k8ssandra.metrics.prometheus;
+
+import io.k8ssandra.metrics.builder.CassandraMetricDefinition;
+import io.k8ssandra.metrics.builder.RefreshableMetricFamilySamples;
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Enumeration;
+
+/**
+ * Encodes metric families in the Prometheus text format (version 0.0.4) directly to a reusable byte buffer. Unlike
+ * the simpleclient's TextFormat, this does not require Collector.MetricFamilySamples.Sample instances or building
+ * Strings for the series, the series are encoded when the CassandraMetricDefinition is created and only the values
+ * are formatted on scrape.
+ *
+ * Instances are not thread-safe, each scraping thread should use its own and {@link #reset()} it between scrapes.
+ */
+public class TextFormatWriter extends ExpositionWriter {
+    public static final String CONTENT_TYPE_004 = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Largest amount of significant digits written directly for non-integer values, values that need more to be read
+    // back exactly are written with Double.toString()
+    private static final int SIGNIFICANT_DIGITS = 15;
+    private static final long MAX_MANTISSA = 1_000_000_000_000_000L;
+    private static final long MIN_MANTISSA = MAX_MANTISSA / 10;
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final byte[] digits = new byte[20];
+
+    // Copy the lines of the series with unchanged values from the previous scrapes instead of encoding them
+    final boolean cacheLines;
+
+    public TextFormatWriter() {
+        this(false);
+    }
+
+    /**
+     * @param cacheLines cache the encoded lines of the series whose value did not change between two scrapes. Costs
+     *                   about the size of one exposition of memory
+     */
+    public TextFormatWriter(boolean cacheLines) {
+        this.cacheLines = cacheLines;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE_004;
+    }
+
+    @Override
+    public ExpositionWriter newWriter() {
+        return new TextFormatWriter(cacheLines);
+    }
+
+    /**
+     * Write the HELP and TYPE lines of the family followed by all its samples
+     */
+    @Override
+    public void writeFamily(RefreshableMetricFamilySamples family) {
+        writeAscii("# HELP ");
+        writeFamilyName(family);
+        writeByte(' ');
+        writeEscapedHelp(family.help);
+        writeByte('\n');
+
+        writeAscii("# TYPE ");
+        writeFamilyName(family);
+        writeByte(' ');
+        writeAscii(typeString(family.type));
+        writeByte('\n');
+
+        family.writeSamples(this);
+    }
+
+    @Override
+    public void accept(CassandraMetricDefinition definition, int sampleLabelIndex, double value) {
+        if (!cacheLines) {
+            writeLine(definition, sampleLabelIndex, value);
+            return;
+        }
+
+        byte[] line = definition.getEncodedLine(sampleLabelIndex, value);
+        if (line != null) {
+            write(line);
+            return;
+        }
+        int start = count;
+        writeLine(definition, sampleLabelIndex, value);
+        // Only the idle series are cached, the busy ones would allocate a new line on every scrape
+        if (definition.isUnchanged(sampleLabelIndex, value)) {
+            definition.setEncodedLine(sampleLabelIndex, value, Arrays.copyOfRange(buf, start, count));
+        }
+    }
+
+    private void writeLine(CassandraMetricDefinition definition, int sampleLabelIndex, double value) {
+        write(definition.getEncodedSeries(sampleLabelIndex));
+        writeByte(' ');
+        writeDouble(value);
+        writeByte('\n');
+    }
+
+    @Override
+    public void writeCollectorFamilies(Enumeration<Collector.MetricFamilySamples> families) throws IOException {
+        Writer writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+        TextFormat.write004(writer, families);
+        writer.flush();
+    }
+
+    private void writeFamilyName(RefreshableMetricFamilySamples family) {
+        writeAscii(family.name);
+        if (family.type == Collector.Type.COUNTER) {
+            writeAscii("_total");
+        }
+    }
+
+    private static String typeString(Collector.Type type) {
+        switch (type) {
+            case GAUGE:
+                return "gauge";
+            case COUNTER:
+                return "counter";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+                return "histogram";
+            default:
+                return "untyped";
+        }
+    }
+
+    void writeDouble(double value) {
+        if (Double.isNaN(value)) {
+            writeAscii("NaN");
+            return;
+        }
+        if (Double.isInfinite(value)) {
+            writeAscii(value > 0 ? "+Inf" : "-Inf");
+            return;
+        }
+
+        long integer = (long) value;
+        if (integer == value && integer > -MAX_MANTISSA && integer < MAX_MANTISSA) {
+            // Counters and most gauges
+            writeLong(integer);
+            return;
+        }
+
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+
+        int exponent = (int) Math.floor(Math.log10(value));
+        long mantissa = scale(value, exponent);
+        if (mantissa >= MAX_MANTISSA) {
+            // log10 was rounded down or the rounding carried over to the next power of ten
+            mantissa = scale(value, ++exponent);
+        } else if (mantissa >= 0 && mantissa < MIN_MANTISSA) {
+            // log10 was rounded up
+            mantissa = scale(value, --exponent);
+        }
+        if (mantissa < 0 || mantissa >= MAX_MANTISSA || !roundTrips(value, mantissa, exponent)) {
+            // Scaling would no longer be exact or the value needs more than 15 digits (0.30000000000000004), rare
+            // enough for measured values to not care about the allocation
+            writeAscii(Double.toString(value));
+            return;
+        }
+
+        int length = SIGNIFICANT_DIGITS;
+        while (mantissa % 10 == 0 && length > 1) {
+            mantissa /= 10;
+            length--;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            digits[i] = (byte) ('0' + mantissa % 10);
+            mantissa /= 10;
+        }
+
+        if (exponent >= 0 && exponent < SIGNIFICANT_DIGITS) {
+            writeDigits(0, Math.min(length, exponent + 1));
+            for (int i = length; i <= exponent; i++) {
+                writeByte('0');
+            }
+            if (length > exponent + 1) {
+                writeByte('.');
+                writeDigits(exponent + 1, length);
+            }
+        } else if (exponent < 0 && exponent >= -5) {
+            writeByte('0');
+            writeByte('.');
+            for (int i = exponent + 1; i < 0; i++) {
+                writeByte('0');
+            }
+            writeDigits(0, length);
+        } else {
+            writeByte(digits[0]);
+            if (length > 1) {
+                writeByte('.');
+                writeDigits(1, length);
+            }
+            writeByte('e');
+            writeLong(exponent);
+        }
+    }
+
+    /**
+     * @return value scaled to SIGNIFICANT_DIGITS digits (assuming the exponent is right) or -1 if it can't be done with a single
+     * exactly representable power of ten
+     */
+    private static long scale(double value, int exponent) {
+        int shift = SIGNIFICANT_DIGITS - 1 - exponent;
+        if (shift < -22 || shift > 22) {
+            return -1;
+        }
+        return Math.round(shift >= 0 ? value * POWERS_OF_TEN[shift] : value / POWERS_OF_TEN[-shift]);
+    }
+
+    /**
+     * @return true if the mantissa scaled back by the exponent parses to exactly the value. The mantissa and the power
+     * of ten are both exactly representable, so a single division or multiplication is correctly rounded just like
+     * Double.parseDouble() of the written digits.
+     */
+    private static boolean roundTrips(double value, long mantissa, int exponent) {
+        int shift = SIGNIFICANT_DIGITS - 1 - exponent;
+        double parsed = shift >= 0 ? mantissa / POWERS_OF_TEN[shift] : mantissa * POWERS_OF_TEN[-shift];
+        return parsed == value;
+    }
+
+    private void writeDigits(int from, int to) {
+        ensureCapacity(to - from);
+        System.arraycopy(digits, from, buf, count, to - from);
+        count += to - from;
+    }
+
+    void writeLong(long value) {
+        if (value < 0) {
+            writeByte('-');
+            if (value == Long.MIN_VALUE) {
+                writeAscii("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        int length = 0;
+        do {
+            digits[digits.length - 1 - length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        ensureCapacity(length);
+        System.arraycopy(digits, digits.length - length, buf, count, length);
+        count += length;
+    }
+
+    /**
+     * Writes the String as UTF-8, escaping the characters not allowed in the HELP text
+     */
+    void writeEscapedHelp(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                writeByte('\\');
+                writeByte('\\');
+            } else if (c == '\n') {
+                writeByte('\\');
+                writeByte('n');
+            } else {
+                i = writeUtf8(s, i);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package io.k8ssandra.metrics.builder;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
+import io.k8ssandra.metrics.builder.filter.FilteringSpec;
+import io.k8ssandra.metrics.config.CardinalityConfiguration;
+import io.k8ssandra.metrics.config.Configuration;
+import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
+import io.prometheus.client.Collector;
+import org.apache.cassandra.metrics.DecayingEstimatedHistogramReservoir;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CardinalityBudgetTest {
+
+    private static final int TABLES = 10;
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final Timer[] timers = new Timer[TABLES];
+    private long selectionIntervalMillis = 0;
+
+    private CassandraDropwizardExports exporter(int maxSeriesPerFamily, int maxSeriesPerNode) {
+        return exporter(maxSeriesPerFamily, maxSeriesPerNode, new ArrayList<>());
+    }
+
+    private CassandraDropwizardExports exporter(int maxSeriesPerFamily, int maxSeriesPerNode, List<FilteringSpec> filters) {
+        for (int i = 0; i < TABLES; i++) {
+            registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes.ks.t" + i).inc(i);
+            timers[i] = registry.register("org.apache.cassandra.metrics.Table.ReadLatency.ks.t" + i, new Timer(new DecayingEstimatedHistogramReservoir()));
+            timers[i].update(i + 1, TimeUnit.MILLISECONDS);
+        }
+        registry.counter("org.apache.cassandra.metrics.keyspace.PendingFlushes.ks").inc(100);
+
+        Configuration configuration = new Configuration(new ArrayList<>());
+        configuration.setCardinality(new CardinalityConfiguration(maxSeriesPerFamily, maxSeriesPerNode, selectionIntervalMillis));
+        return new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(filters), configuration);
+    }
+
+    private void activity(int table, int reads) {
+        for (int i = 0; i < reads; i++) {
+            timers[table].update(5, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Collector.MetricFamilySamples family(List<Collector.MetricFamilySamples> collect, String name) {
+        for (Collector.MetricFamilySamples family : collect) {
+            if (family.name.equals(name)) {
+                return family;
+            }
+        }
+        throw new AssertionError(name);
+    }
+
+    private static Set<String> tables(Collector.MetricFamilySamples family) {
+        Set<String> tables = new HashSet<>();
+        for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+            int index = sample.labelNames.indexOf("table");
+            tables.add(index >= 0 ? sample.labelValues.get(index) : "");
+        }
+        return tables;
+    }
+
+    @Test
+    void foldLeastActiveTables() {
+        // A summary has 7 series, 3 tables fit
+        CassandraDropwizardExports exporter = exporter(21, 0);
+        activity(7, 30);
+        activity(3, 20);
+        activity(5, 10);
+
+        List<Collector.MetricFamilySamples> collect = exporter.collect();
+        Collector.MetricFamilySamples latency = family(collect, "org_apache_cassandra_metrics_table_read_latency");
+        assertEquals(Set.of("t7", "t3", "t5", "other"), tables(latency));
+        assertEquals(4 * 7, latency.samples.size());
+        for (Collector.MetricFamilySamples.Sample sample : latency.samples) {
+            if (sample.labelValues.contains("other")) {
+                assertEquals("other", sample.labelValues.get(sample.labelNames.indexOf("keyspace")));
+                if (sample.name.endsWith("_count")) {
+                    // The folded tables' counts are summed
+                    assertEquals(7.0, sample.value);
+                } else {
+                    // The largest quantile of the folded tables, t9 had a single 10 ms read
+                    assertTrue(sample.value >= 0.01, sample.toString());
+                }
+            }
+        }
+
+        // The other families fit
+        assertEquals(TABLES, family(collect, "org_apache_cassandra_metrics_table_pending_flushes").samples.size());
+        assertEquals(1, family(collect, "org_apache_cassandra_metrics_keyspace_pending_flushes").samples.size());
+        assertEquals(7 * 7.0, folded(exporter));
+
+        // Selected again by the activity since the previous selection
+        activity(0, 50);
+        activity(1, 50);
+        latency = family(exporter.collect(), "org_apache_cassandra_metrics_table_read_latency");
+        assertTrue(tables(latency).containsAll(Set.of("t0", "t1", "other")));
+        assertEquals(4, tables(latency).size());
+    }
+
+    @Test
+    void selectiveScrapeFoldsLikeFullScrape() {
+        // The same selection for all the scrapes, the first one is selective
+        selectionIntervalMillis = 60000;
+        CassandraDropwizardExports exporter = exporter(21, 0);
+        activity(7, 30);
+        activity(3, 20);
+        activity(5, 10);
+
+        Map<String, Double> keyspace = series(exporter.collect(Set.of(), "ks", null));
+        Map<String, Double> table = series(exporter.collect(Set.of(), "ks", "t9"));
+        Map<String, Double> full = series(exporter.collect());
+        assertTrue(keyspace.size() > 0);
+        // Same series with the same values, the folded tables are only in the other series
+        for (Map.Entry<String, Double> entry : keyspace.entrySet()) {
+            assertEquals(full.get(entry.getKey()), entry.getValue(), entry.getKey());
+        }
+        assertTrue(keyspace.keySet().stream().noneMatch(key -> key.contains("other") || key.contains("read_latency") && key.contains("t9")));
+        for (String key : table.keySet()) {
+            assertTrue(full.containsKey(key), key);
+            assertFalse(key.contains("read_latency"), key);
+        }
+        assertFalse(table.isEmpty());
+    }
+
+    private static Map<String, Double> series(List<Collector.MetricFamilySamples> collect) {
+        Map<String, Double> series = new HashMap<>();
+        for (Collector.MetricFamilySamples family : collect) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                series.put(sample.name + sample.labelNames + sample.labelValues, sample.value);
+            }
+        }
+        return series;
+    }
+
+    @Test
+    void rankedByDropwizardMetrics() {
+        // The timers rank the tables even when their families are not exported
+        CassandraDropwizardExports exporter = exporter(3, 0, List.of(
+                new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_read_latency.*", "drop")));
+        activity(7, 30);
+        activity(3, 20);
+        activity(5, 10);
+
+        List<Collector.MetricFamilySamples> collect = exporter.collect();
+        assertEquals(Set.of("t7", "t3", "t5", "other"), tables(family(collect, "org_apache_cassandra_metrics_table_pending_flushes")));
+        assertEquals(7.0, folded(exporter));
+    }
+
+    @Test
+    void nodeLimit() {
+        // The keyspace's series is always exported and each family's other series are reserved, then the most active
+        // tables in every family
+        int limit = 1 + (1 + 7) + (1 + 7);
+        CassandraDropwizardExports exporter = exporter(0, limit);
+        activity(4, 10);
+
+        List<Collector.MetricFamilySamples> collect = exporter.collect();
+        assertEquals(Set.of("t4", "other"), tables(family(collect, "org_apache_cassandra_metrics_table_read_latency")));
+        assertEquals(Set.of("t4", "other"), tables(family(collect, "org_apache_cassandra_metrics_table_pending_flushes")));
+        assertEquals(1, family(collect, "org_apache_cassandra_metrics_keyspace_pending_flushes").samples.size());
+        assertEquals(9 * 8.0, folded(exporter));
+
+        // The other series count in the node's limit
+        int series = 0;
+        for (Collector.MetricFamilySamples family : collect) {
+            series += family.samples.size();
+        }
+        assertEquals(limit, series);
+    }
+
+    @Test
+    void unlimited() {
+        CassandraDropwizardExports exporter = exporter(0, 0);
+        List<Collector.MetricFamilySamples> collect = exporter.collect();
+        assertEquals(TABLES * 7, family(collect, "org_apache_cassandra_metrics_table_read_latency").samples.size());
+        assertEquals(0.0, folded(exporter));
+    }
+
+    private static double folded(CassandraDropwizardExports exporter) {
+        for (Collector.MetricFamilySamples family : exporter.getExporterMetrics().collect()) {
+            if (family.name.equals("mcac_exporter_folded_series")) {
+                return family.samples.get(0).value;
+            }
+        }
+        throw new AssertionError();
+    }
+}
@@ -1,7 +1,13 @@
 package io.k8ssandra.metrics.builder;
 
+import io.prometheus.client.Collector;
 import org.junit.jupiter.api.Test;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -30,6 +36,98 @@ public class MetricsParsingTest {
         assertEquals("aggregates", labels.get("table"));
     }
 
+    @Test
+    void encodedSeries() {
+        String dropwizardName = "org.apache.cassandra.metrics.Table.ReadLatency.system_schema.aggregates";
+
+        CassandraMetricNameParser parser = new CassandraMetricNameParser(Arrays.asList("host", "cluster"), Arrays.asList("h1", "Test \"Cluster\""));
+        CassandraMetricDefinition metricDefinition = parser.parseDropwizardMetric(dropwizardName, "", List.of("quantile"), new ArrayList<>(), new String[]{"0.5", "0.99"});
+
+        assertEquals("org_apache_cassandra_metrics_table_read_latency{host=\"h1\",cluster=\"Test \\\"Cluster\\\"\",keyspace=\"system_schema\",table=\"aggregates\"}",
+                new String(metricDefinition.getEncodedSeries(-1), StandardCharsets.UTF_8));
+        assertEquals("org_apache_cassandra_metrics_table_read_latency{host=\"h1\",cluster=\"Test \\\"Cluster\\\"\",keyspace=\"system_schema\",table=\"aggregates\",quantile=\"0.99\"}",
+                new String(metricDefinition.getEncodedSeries(1), StandardCharsets.UTF_8));
+
+        CassandraMetricNameParser noLabels = new CassandraMetricNameParser(List.of(), List.of());
+        assertEquals("jvm_gc", new String(noLabels.parseDropwizardMetric("jvm.gc", "", List.of(), List.of()).getEncodedSeries(-1), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void cleanMatchesRegexCleaning() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("cassandra-4.0-metric-names.txt");
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    names.add(line);
+                }
+            }
+        }
+        assertTrue(names.size() > 500);
+
+        for (String name : names) {
+            for (String suffix : new String[]{"", "_count", "_total", "_bucket"}) {
+                String sanitized = Collector.sanitizeMetricName(name + suffix);
+                assertEquals(regexClean(sanitized), CassandraMetricNameParser.clean(sanitized), name + suffix);
+            }
+            assertEquals(regexClean(name), CassandraMetricNameParser.clean(name), name);
+        }
+
+        // The pre-filter relies on the names with suffixes starting with the name without one
+        CassandraMetricNameParser parser = new CassandraMetricNameParser(List.of(), List.of());
+        for (String name : names) {
+            String metricName = parser.getMetricName(name);
+            assertEquals(parser.parseDropwizardMetric(name, "", List.of(), List.of()).getMetricName(), metricName);
+            for (String suffix : new String[]{"_count", "_total", "_bucket", "_sum"}) {
+                assertTrue(parser.parseDropwizardMetric(name, suffix, List.of(), List.of()).getMetricName().startsWith(metricName), name + suffix);
+            }
+        }
+
+        String alphabet = "aZbYcXAB09_.-,:/\\ \t\n";
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            char[] chars = new char[1 + random.nextInt(24)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+            String name = new String(chars);
+            assertEquals(regexClean(name), CassandraMetricNameParser.clean(name), name);
+        }
+    }
+
+    @Test
+    void cleanedNamesAreShared() {
+        CassandraMetricNameParser parser = new CassandraMetricNameParser(List.of(), List.of());
+        String first = parser.parseDropwizardMetric("org.apache.cassandra.metrics.Table.ReadLatency.ks1.t1", "_count", List.of(), List.of()).getMetricName();
+        String second = parser.parseDropwizardMetric("org.apache.cassandra.metrics.Table.ReadLatency.ks2.t2", "_count", List.of(), List.of()).getMetricName();
+        assertEquals("org_apache_cassandra_metrics_table_read_latency_count", first);
+        assertTrue(first == second);
+    }
+
+    // The regex based cleaning, as it was before it was replaced with a scanner
+    private static String regexClean(String name) {
+        if (name.startsWith("jvm")) {
+            name = name.replaceAll("\\-", "_");
+            return name.toLowerCase();
+        }
+
+        name = name.replaceAll("\\s*,\\s*", ",");
+        name = name.replaceAll("\\s+", "_");
+        name = name.replaceAll("\\\\", "_");
+        name = name.replaceAll("/", "_");
+
+        name = name.replaceAll("[^a-zA-Z0-9\\.\\_]+", ".");
+        name = name.replaceAll("\\.+", ".");
+        name = name.replaceAll("_+", "_");
+
+        name = String.join("_", name.split("(?<!(^|[A-Z]))(?=[A-Z])|(?<!^)(?=[A-Z][a-z])"));
+        name = name.replaceAll("\\._", "\\.");
+        name = name.replaceAll("_+", "_");
+
+        return name.toLowerCase();
+    }
+
     private Map<String, String> toLabelMap(List<String> labelNames, List<String> labelValues) {
         Iterator<String> keyIter = labelNames.iterator();
         Iterator<String> valIter = labelValues.iterator();
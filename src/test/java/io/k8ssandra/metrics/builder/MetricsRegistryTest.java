@@ -1,16 +1,33 @@
 package io.k8ssandra.metrics.builder;
 
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
 import io.k8ssandra.metrics.builder.filter.FilteringSpec;
+import io.k8ssandra.metrics.config.Configuration;
+import io.k8ssandra.metrics.config.HistogramSpec;
 import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
 import io.prometheus.client.Collector;
+import org.apache.cassandra.metrics.DecayingEstimatedHistogramReservoir;
 import org.junit.jupiter.api.Test;
 
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class MetricsRegistryTest {
@@ -72,4 +89,360 @@ public class MetricsRegistryTest {
         collect = exporter.collect();
         assertEquals(0, collect.size());
     }
+
+    @Test
+    void gaugeValueConversions() {
+        assertEquals(42.0, CassandraMetricRegistryListener.fromGauge(new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return 42L;
+            }
+        }).getAsDouble());
+        assertEquals(0.25, CassandraMetricRegistryListener.fromGauge(new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return 0.25;
+            }
+        }).getAsDouble());
+        assertEquals(1.0, CassandraMetricRegistryListener.fromGauge(new Gauge<Boolean>() {
+            @Override
+            public Boolean getValue() {
+                return true;
+            }
+        }).getAsDouble());
+        assertEquals(0.0, CassandraMetricRegistryListener.fromGauge(new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return null;
+            }
+        }).getAsDouble());
+        // Not read at all
+        assertEquals(0.0, CassandraMetricRegistryListener.fromGauge(new Gauge<Map<String, Long>>() {
+            @Override
+            public Map<String, Long> getValue() {
+                throw new AssertionError();
+            }
+        }).getAsDouble());
+        assertEquals(0.0, CassandraMetricRegistryListener.fromGauge(new Gauge<String>() {
+            @Override
+            public String getValue() {
+                throw new AssertionError();
+            }
+        }).getAsDouble());
+
+        // Interfaces and supertypes are converted by the value's type
+        assertEquals(7.0, CassandraMetricRegistryListener.fromGauge(new Gauge<Comparable<?>>() {
+            @Override
+            public Comparable<?> getValue() {
+                return 7L;
+            }
+        }).getAsDouble());
+        assertEquals(1.0, CassandraMetricRegistryListener.fromGauge(new Gauge<Serializable>() {
+            @Override
+            public Serializable getValue() {
+                return true;
+            }
+        }).getAsDouble());
+
+        // Lambdas are converted by the value's type
+        assertEquals(3.0, CassandraMetricRegistryListener.fromGauge((Gauge<Integer>) () -> 3).getAsDouble());
+        assertEquals(0.0, CassandraMetricRegistryListener.fromGauge((Gauge<Boolean>) () -> false).getAsDouble());
+        assertEquals(0.0, CassandraMetricRegistryListener.fromGauge((Gauge<String>) () -> "value").getAsDouble());
+    }
+
+    @Test
+    void histogramGaugeReadOncePerScrape() {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry);
+        AtomicInteger reads = new AtomicInteger();
+        registry.register("org.apache.cassandra.metrics.Table.EstimatedPartitionSizeHistogram.ks.tbl", (Gauge<long[]>) () -> {
+            reads.incrementAndGet();
+            return new long[]{1,2,3,0};
+        });
+        assertEquals(0, reads.get());
+
+        List<Collector.MetricFamilySamples> collect = exporter.collect();
+        assertEquals(1, reads.get());
+        assertEquals(1, collect.size());
+        assertEquals(Collector.Type.SUMMARY, collect.get(0).type);
+        assertEquals(7, collect.get(0).samples.size());
+
+        Collector.MetricFamilySamples.Sample count = collect.get(0).samples.get(6);
+        assertTrue(count.name.endsWith("_count"));
+        assertEquals(6.0, count.value);
+
+        exporter.collect();
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    void filteredHistogramGaugeKeepsCount() {
+        MetricRegistry registry = new MetricRegistry();
+        FilteringSpec spec = new FilteringSpec(List.of("__name__"), "", "gh_nr_[0-9]+", "drop");
+        CassandraMetricDefinitionFilter metricFilter = new CassandraMetricDefinitionFilter(List.of(spec));
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry, metricFilter);
+        registry.register("gh_nr_0", (Gauge<long[]>) () -> new long[]{1,2,3,0});
+
+        List<Collector.MetricFamilySamples> collect = exporter.collect();
+        assertEquals(1, collect.size());
+        assertEquals(1, collect.get(0).samples.size());
+        assertEquals("gh_nr_0_count", collect.get(0).samples.get(0).name);
+    }
+
+    @Test
+    void histogramModeExportsCumulativeBuckets() {
+        MetricRegistry registry = new MetricRegistry();
+        List<HistogramSpec> histograms = List.of(new HistogramSpec(".*latency", "histogram", 4));
+        Configuration configuration = new Configuration(new ArrayList<>());
+        configuration.setHistograms(histograms);
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(configuration.getFilters()), configuration);
+
+        Timer timer = registry.register("read_latency", new Timer(new DecayingEstimatedHistogramReservoir()));
+        Histogram histogram = registry.histogram("write_latency");
+        registry.timer("range_timer");
+        for (int i = 1; i <= 100; i++) {
+            timer.update(i, TimeUnit.MICROSECONDS);
+            histogram.update(i * 1000);
+        }
+
+        List<Collector.MetricFamilySamples> collect = exporter.collect();
+        assertEquals(3, collect.size());
+        for (Collector.MetricFamilySamples family : collect) {
+            if (family.name.equals("range_timer")) {
+                assertEquals(Collector.Type.SUMMARY, family.type);
+                continue;
+            }
+            assertEquals(Collector.Type.HISTOGRAM, family.type);
+
+            // 164 offsets coarsened by 4 and +Inf, then _sum and _count
+            assertEquals(41 + 1 + 2, family.samples.size());
+            double previous = 0;
+            double previousLe = 0;
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                if (!sample.name.endsWith("_bucket")) {
+                    continue;
+                }
+                assertEquals("le", sample.labelNames.get(sample.labelNames.size() - 1));
+                double le = Double.parseDouble(sample.labelValues.get(sample.labelValues.size() - 1).replace("+Inf", "Infinity"));
+                assertTrue(le > previousLe);
+                assertTrue(sample.value >= previous);
+                previous = sample.value;
+                previousLe = le;
+            }
+            Collector.MetricFamilySamples.Sample sum = family.samples.get(family.samples.size() - 2);
+            Collector.MetricFamilySamples.Sample count = family.samples.get(family.samples.size() - 1);
+            assertEquals(family.name + "_sum", sum.name);
+            assertEquals(family.name + "_count", count.name);
+            assertEquals(100.0, count.value);
+            // The +Inf bucket and the count are read from the same buckets
+            assertEquals(count.value, previous);
+            assertTrue(sum.value > 0);
+        }
+
+        registry.remove("read_latency");
+        registry.remove("write_latency");
+        registry.remove("range_timer");
+        assertEquals(0, exporter.collect().size());
+    }
+
+    @Test
+    void histogramModeBucketsDoNotDecay() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        List<HistogramSpec> histograms = List.of(new HistogramSpec(".*latency", "histogram", 1));
+        Configuration configuration = new Configuration(new ArrayList<>());
+        configuration.setHistograms(histograms);
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(configuration.getFilters()), configuration);
+
+        DecayingEstimatedHistogramReservoir reservoir = new DecayingEstimatedHistogramReservoir();
+        Timer timer = registry.register("read_latency", new Timer(reservoir));
+        for (int i = 1; i <= 100; i++) {
+            timer.update(i, TimeUnit.MICROSECONDS);
+        }
+        List<Collector.MetricFamilySamples.Sample> before = exporter.collect().get(0).samples;
+
+        // All of the values have decayed away from the quantiles, the buckets are counters still
+        Field decayingBuckets = DecayingEstimatedHistogramReservoir.class.getDeclaredField("decayingBuckets");
+        decayingBuckets.setAccessible(true);
+        AtomicLongArray decaying = (AtomicLongArray) decayingBuckets.get(reservoir);
+        for (int i = 0; i < decaying.length(); i++) {
+            decaying.set(i, 0);
+        }
+        timer.update(1, TimeUnit.SECONDS);
+
+        List<Collector.MetricFamilySamples.Sample> after = exporter.collect().get(0).samples;
+        assertEquals(before.size(), after.size());
+        for (int i = 0; i < before.size(); i++) {
+            assertTrue(after.get(i).value >= before.get(i).value);
+        }
+        assertEquals(101.0, after.get(after.size() - 1).value);
+        assertEquals(101.0, after.get(after.size() - 3).value);
+    }
+
+    @Test
+    void filterChangeReevaluatesRegistry() {
+        MetricRegistry registry = new MetricRegistry();
+        FilteringSpec dropTables = new FilteringSpec(List.of("__name__"), "", "org_apache_cassandra_metrics_table_.*", "drop");
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(List.of(dropTables)));
+        registry.counter("org.apache.cassandra.metrics.Table.BytesFlushed.ks.t1");
+        registry.timer("org.apache.cassandra.metrics.Table.ReadLatency.ks.t1");
+        registry.register("org.apache.cassandra.metrics.Storage.Load", (Gauge<Long>) () -> 1L);
+        assertEquals(1, exporter.collect().size());
+
+        FilteringSpec dropStorage = new FilteringSpec(List.of("__name__"), "", "org_apache_cassandra_metrics_storage_.*", "drop");
+        exporter.setFilter(new CassandraMetricDefinitionFilter(List.of(dropStorage)));
+        List<Collector.MetricFamilySamples> collect = exporter.collect();
+        assertEquals(2, collect.size());
+        for (Collector.MetricFamilySamples family : collect) {
+            assertTrue(family.name.startsWith("org_apache_cassandra_metrics_table_"));
+        }
+
+        // The new filter applies to the metrics added and removed after the change
+        registry.timer("org.apache.cassandra.metrics.Table.WriteLatency.ks.t1");
+        registry.register("org.apache.cassandra.metrics.Storage.Exceptions", (Gauge<Long>) () -> 1L);
+        assertEquals(3, exporter.collect().size());
+        registry.remove("org.apache.cassandra.metrics.Table.WriteLatency.ks.t1");
+        assertEquals(2, exporter.collect().size());
+    }
+
+    @Test
+    void filterChangeKeepsUnchangedFamilies() {
+        MetricRegistry registry = new MetricRegistry();
+        ConcurrentHashMap<String, RefreshableMetricFamilySamples> familyCache = new ConcurrentHashMap<>();
+        FilteringSpec dropTables = new FilteringSpec(List.of("__name__"), "", "org_apache_cassandra_metrics_table_.*", "drop");
+        CassandraMetricRegistryListener listener = new CassandraMetricRegistryListener(familyCache, new CassandraMetricDefinitionFilter(List.of(dropTables)));
+        registry.addListener(listener);
+        registry.counter("org.apache.cassandra.metrics.Table.BytesFlushed.ks.t1");
+        registry.timer("org.apache.cassandra.metrics.Table.ReadLatency.ks.t1");
+        registry.register("org.apache.cassandra.metrics.Storage.Load", (Gauge<Long>) () -> 1L);
+        registry.register("org.apache.cassandra.metrics.Storage.Exceptions", (Gauge<Long>) () -> 1L);
+        assertEquals(2, familyCache.size());
+        RefreshableMetricFamilySamples load = familyCache.get("org_apache_cassandra_metrics_storage_load");
+
+        // Only the timer's _count is newly kept, and one of the gauges is dropped. The other one stays as it is
+        FilteringSpec dropExceptionsAndQuantiles = new FilteringSpec(List.of("__name__"), "", "org_apache_cassandra_metrics_(table_bytes_flushed|table_read_latency|storage_exceptions)", "drop");
+        assertEquals(2, listener.setFilter(new CassandraMetricDefinitionFilter(List.of(dropExceptionsAndQuantiles)), registry));
+        assertEquals(2, familyCache.size());
+        assertSame(load, familyCache.get("org_apache_cassandra_metrics_storage_load"));
+        RefreshableMetricFamilySamples readLatency = familyCache.get("org_apache_cassandra_metrics_table_read_latency");
+        assertEquals(1, readLatency.size());
+
+        assertEquals(0, listener.setFilter(new CassandraMetricDefinitionFilter(List.of(dropExceptionsAndQuantiles)), registry));
+        assertSame(readLatency, familyCache.get("org_apache_cassandra_metrics_table_read_latency"));
+
+        // Filters applied to the registrations after the change
+        registry.remove("org.apache.cassandra.metrics.Table.ReadLatency.ks.t1");
+        registry.timer("org.apache.cassandra.metrics.Table.ReadLatency.ks.t1");
+        assertEquals(1, familyCache.get("org_apache_cassandra_metrics_table_read_latency").size());
+    }
+
+    @Test
+    void removalOnlyRemovesTheTablesSeries() {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry);
+        for (int i = 0; i < 3; i++) {
+            registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes.ks.t" + i);
+            registry.timer("org.apache.cassandra.metrics.Table.ReadLatency.ks.t" + i);
+        }
+        registry.remove("org.apache.cassandra.metrics.Table.PendingFlushes.ks.t0");
+        registry.remove("org.apache.cassandra.metrics.Table.ReadLatency.ks.t1");
+
+        List<Collector.MetricFamilySamples> collect = exporter.collect();
+        assertEquals(2, collect.size());
+        for (Collector.MetricFamilySamples family : collect) {
+            if (family.name.endsWith("pending_flushes")) {
+                assertEquals(2, family.samples.size());
+            } else {
+                assertEquals(2 * 7, family.samples.size());
+            }
+        }
+
+        for (int i = 0; i < 3; i++) {
+            registry.remove("org.apache.cassandra.metrics.Table.PendingFlushes.ks.t" + i);
+            registry.remove("org.apache.cassandra.metrics.Table.ReadLatency.ks.t" + i);
+        }
+        assertEquals(0, exporter.collect().size());
+    }
+
+    @Test
+    void tableChurnDoesNotLeak() {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry);
+        registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes.ks.permanent");
+        registry.timer("org.apache.cassandra.metrics.Table.ReadLatency.ks.permanent");
+
+        long usedAfterWarmup = 0;
+        for (int cycle = 0; cycle < 100_000; cycle++) {
+            String table = ".ks.t" + cycle;
+            registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes" + table);
+            registry.timer("org.apache.cassandra.metrics.Table.ReadLatency" + table);
+            registry.register("org.apache.cassandra.metrics.Table.LiveDiskSpaceUsed" + table, (Gauge<Long>) () -> 1L);
+            if (cycle % 10_000 == 0) {
+                assertEquals(3, exporter.collect().size());
+            }
+            registry.remove("org.apache.cassandra.metrics.Table.PendingFlushes" + table);
+            registry.remove("org.apache.cassandra.metrics.Table.ReadLatency" + table);
+            registry.remove("org.apache.cassandra.metrics.Table.LiveDiskSpaceUsed" + table);
+
+            if (cycle == 10_000) {
+                usedAfterWarmup = usedMemory();
+            }
+        }
+
+        List<Collector.MetricFamilySamples> collect = exporter.collect();
+        assertEquals(2, collect.size());
+        for (Collector.MetricFamilySamples family : collect) {
+            assertEquals(family.name.endsWith("pending_flushes") ? 1 : 7, family.samples.size());
+        }
+        // 90k leaked tables would take tens of megabytes
+        assertTrue(usedMemory() - usedAfterWarmup < 16 * 1024 * 1024);
+    }
+
+    @Test
+    void concurrentRegistrationKeepsAllDefinitions() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry);
+        int threads = 8;
+        int tablesPerThread = 500;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String keyspace = ".ks" + t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < tablesPerThread; i++) {
+                        registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes" + keyspace + ".t" + i);
+                        registry.timer("org.apache.cassandra.metrics.Table.ReadLatency" + keyspace + ".t" + i);
+                        // Some families are emptied and created again meanwhile
+                        if (i % 2 == 0) {
+                            registry.remove("org.apache.cassandra.metrics.Table.PendingFlushes" + keyspace + ".t" + i);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        List<Collector.MetricFamilySamples> collect = exporter.collect();
+        assertEquals(2, collect.size());
+        for (Collector.MetricFamilySamples family : collect) {
+            if (family.name.endsWith("pending_flushes")) {
+                assertEquals(threads * tablesPerThread / 2, family.samples.size());
+            } else {
+                assertEquals(threads * tablesPerThread * 7, family.samples.size());
+            }
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
 }
@@ -0,0 +1,229 @@
+package io.k8ssandra.metrics.builder;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.apache.cassandra.metrics.DecayingEstimatedHistogramReservoir;
+import org.apache.cassandra.utils.EstimatedHistogram;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.DoubleUnaryOperator;
+
+import static io.k8ssandra.metrics.builder.CassandraMetricsTools.PRECOMPUTED_QUANTILES;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReservoirQuantilesTest {
+
+    @Test
+    void sameAsSnapshot() {
+        Random random = new Random(42);
+        Histogram histogram = new Histogram(new DecayingEstimatedHistogramReservoir());
+        ReservoirQuantiles quantiles = ReservoirQuantiles.forMetric(histogram);
+        assertNotNull(quantiles);
+
+        assertQuantiles(histogram.getSnapshot()::getValue, quantiles, 1.0);
+        for (int i = 0; i < 1000; i++) {
+            histogram.update((long) Math.abs(random.nextGaussian() * 5000));
+            if (i % 97 == 0) {
+                assertQuantiles(histogram.getSnapshot()::getValue, quantiles, 1.0);
+            }
+        }
+        assertQuantiles(histogram.getSnapshot()::getValue, quantiles, 0.001);
+    }
+
+    @Test
+    void timer() {
+        Timer timer = new Timer(new DecayingEstimatedHistogramReservoir());
+        ReservoirQuantiles quantiles = ReservoirQuantiles.forMetric(timer);
+        assertNotNull(quantiles);
+        for (long i = 1; i <= 100; i++) {
+            timer.update(i, TimeUnit.MICROSECONDS);
+        }
+        assertQuantiles(timer.getSnapshot()::getValue, quantiles, 1.0 / 1000);
+    }
+
+    @Test
+    void stripedAndDecaying() {
+        StripedReservoir reservoir = new StripedReservoir();
+        Histogram histogram = new Histogram(reservoir);
+        ReservoirQuantiles quantiles = ReservoirQuantiles.forMetric(histogram);
+        assertNotNull(quantiles);
+
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            // Older values weigh less and are rounded away from the snapshot
+            reservoir.clock.time = i / 10;
+            reservoir.update((long) Math.abs(random.nextGaussian() * 100000), i);
+            if (i % 101 == 0) {
+                assertQuantiles(reservoir::quantile, quantiles, 1.0);
+            }
+        }
+        reservoir.clock.time += 120;
+        assertQuantiles(reservoir::quantile, quantiles, 1.0);
+
+        // Everything has decayed
+        reservoir.clock.time += 10000;
+        assertQuantiles(reservoir::quantile, quantiles, 1.0);
+    }
+
+    @Test
+    void rescaledPastLandmarkInterval() {
+        StripedReservoir reservoir = new StripedReservoir();
+        ReservoirQuantiles quantiles = ReservoirQuantiles.forMetric(new Histogram(reservoir));
+        assertNotNull(quantiles);
+        for (int i = 0; i < 1000; i++) {
+            reservoir.clock.time = 900 + i / 10;
+            reservoir.update(i * 100L, i);
+        }
+
+        // Read before any snapshot, the reader moves the landmark itself
+        reservoir.clock.time = StripedReservoir.LANDMARK_RESET_INTERVAL + 5;
+        double[] values = new double[PRECOMPUTED_QUANTILES.length];
+        assertTrue(quantiles.fill((definition, index, value) -> values[index] = value, null, 1.0));
+        assertEquals(reservoir.clock.time, reservoir.decayLandmark);
+        for (int i = 0; i < PRECOMPUTED_QUANTILES.length; i++) {
+            assertEquals(reservoir.quantile(PRECOMPUTED_QUANTILES[i]), values[i]);
+        }
+        assertTrue(values[values.length - 1] > 0);
+    }
+
+    @Test
+    void overflowFallsBack() {
+        DecayingEstimatedHistogramReservoir reservoir = new DecayingEstimatedHistogramReservoir();
+        Histogram histogram = new Histogram(reservoir);
+        ReservoirQuantiles quantiles = ReservoirQuantiles.forMetric(histogram);
+        histogram.update(10);
+        assertTrue(quantiles.fill((definition, index, value) -> {}, null, 1.0));
+
+        histogram.update(Long.MAX_VALUE);
+        assertFalse(quantiles.fill((definition, index, value) -> {
+            throw new AssertionError("No quantiles are emitted when falling back");
+        }, null, 1.0));
+    }
+
+    @Test
+    void otherReservoirs() {
+        assertNull(ReservoirQuantiles.forMetric(new Histogram(new ExponentiallyDecayingReservoir())));
+        assertNull(ReservoirQuantiles.forMetric(new Timer()));
+    }
+
+    private static void assertQuantiles(DoubleUnaryOperator expected, ReservoirQuantiles quantiles, double factor) {
+        double[] values = new double[PRECOMPUTED_QUANTILES.length];
+        int[] emitted = new int[1];
+        assertTrue(quantiles.fill((definition, index, value) -> {
+            values[index] = value;
+            emitted[0]++;
+        }, null, factor));
+        assertEquals(PRECOMPUTED_QUANTILES.length, emitted[0]);
+        for (int i = 0; i < PRECOMPUTED_QUANTILES.length; i++) {
+            assertEquals(expected.applyAsDouble(PRECOMPUTED_QUANTILES[i]) * factor, values[i]);
+        }
+    }
+
+    /**
+     * Layout of Cassandra 4.0's reservoir: each bucket is spread to stripes, and the decayed counts are divided by the
+     * current forward decay weight and rounded when the snapshot is taken.
+     */
+    static class StripedReservoir implements Reservoir {
+        static class Clock {
+            long time;
+
+            public long now() {
+                return time;
+            }
+        }
+
+        // Rescaled to a new landmark after this much time, like Cassandra does every 30 minutes
+        static final long LANDMARK_RESET_INTERVAL = 1000;
+
+        private final Clock clock = new Clock();
+        private long decayLandmark;
+        private final long[] bucketOffsets = EstimatedHistogram.newOffsets(90, false);
+        private final int nStripes = 4;
+        private final int distributionPrime = 17;
+        private final AtomicLongArray decayingBuckets = new AtomicLongArray((bucketOffsets.length + 1) * nStripes);
+
+        private double forwardDecayWeight(long now) {
+            return Math.exp((now - decayLandmark) / 30.0);
+        }
+
+        private void rescaleIfNeeded() {
+            long now = clock.now();
+            if (now - decayLandmark >= LANDMARK_RESET_INTERVAL) {
+                double rescaleFactor = forwardDecayWeight(now);
+                decayLandmark = now;
+                for (int i = 0; i < decayingBuckets.length(); i++) {
+                    decayingBuckets.set(i, Math.round(decayingBuckets.get(i) / rescaleFactor));
+                }
+            }
+        }
+
+        private int stripedIndex(int offsetIndex, int stripe) {
+            return ((offsetIndex * nStripes + stripe) * distributionPrime) % decayingBuckets.length();
+        }
+
+        void update(long value, int thread) {
+            rescaleIfNeeded();
+            int index = Arrays.binarySearch(bucketOffsets, value);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            decayingBuckets.addAndGet(stripedIndex(index, thread & (nStripes - 1)), Math.round(forwardDecayWeight(clock.now())));
+        }
+
+        @Override
+        public void update(long value) {
+            update(value, 0);
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return quantile of the snapshot as Cassandra takes it
+         */
+        double quantile(double quantile) {
+            rescaleIfNeeded();
+            double rescaleFactor = forwardDecayWeight(clock.now());
+            long[] buckets = new long[bucketOffsets.length + 1];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                long value = 0;
+                for (int stripe = 0; stripe < nStripes; stripe++) {
+                    value += decayingBuckets.get(stripedIndex(i, stripe));
+                }
+                buckets[i] = Math.round(value / rescaleFactor);
+                count += buckets[i];
+            }
+            long qcount = (long) Math.ceil(count * quantile);
+            if (qcount == 0) {
+                return 0;
+            }
+            long elements = 0;
+            for (int i = 0; i < buckets.length - 1; i++) {
+                elements += buckets[i];
+                if (elements >= qcount) {
+                    return bucketOffsets[i];
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+}
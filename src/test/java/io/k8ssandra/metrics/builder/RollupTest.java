@@ -0,0 +1,194 @@
+package io.k8ssandra.metrics.builder;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
+import io.k8ssandra.metrics.config.Configuration;
+import io.k8ssandra.metrics.config.HistogramSpec;
+import io.k8ssandra.metrics.config.RollupSpec;
+import io.k8ssandra.metrics.prometheus.CassandraDropwizardExports;
+import io.prometheus.client.Collector;
+import org.apache.cassandra.metrics.DecayingEstimatedHistogramReservoir;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RollupTest {
+
+    private static CassandraDropwizardExports exporter(MetricRegistry registry, List<HistogramSpec> histogramSpecs, RollupSpec... rollupSpecs) {
+        Configuration configuration = new Configuration(new ArrayList<>());
+        configuration.setHistograms(histogramSpecs);
+        configuration.setRollups(List.of(rollupSpecs));
+        return new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(new ArrayList<>()), configuration);
+    }
+
+    private static Collector.MetricFamilySamples family(CassandraDropwizardExports exporter, String name) {
+        for (Collector.MetricFamilySamples family : exporter.collect()) {
+            if (family.name.equals(name)) {
+                return family;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return sample name{keyspace,quantile/le} -> value
+     */
+    private static Map<String, Double> samples(Collector.MetricFamilySamples family) {
+        Map<String, Double> samples = new HashMap<>();
+        for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+            assertFalse(sample.labelNames.contains("table"));
+            StringBuilder key = new StringBuilder(sample.name);
+            for (String labelName : List.of("keyspace", "quantile", "le")) {
+                int index = sample.labelNames.indexOf(labelName);
+                if (index >= 0) {
+                    key.append(' ').append(sample.labelValues.get(index));
+                }
+            }
+            assertNull(samples.put(key.toString(), sample.value));
+        }
+        return samples;
+    }
+
+    @Test
+    void sumByKeyspace() {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = exporter(registry, new ArrayList<>(), new RollupSpec("org_apache_cassandra_metrics_table_.*", "keyspace", false));
+        for (String keyspace : new String[]{ "ks1", "ks2" }) {
+            for (int i = 1; i <= 3; i++) {
+                registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes." + keyspace + ".t" + i).inc(i);
+                registry.meter("org.apache.cassandra.metrics.Table.BytesFlushed." + keyspace + ".t" + i).mark(i * 100L);
+                long value = i * 10L;
+                registry.register("org.apache.cassandra.metrics.Table.LiveDiskSpaceUsed." + keyspace + ".t" + i, (Gauge<Long>) () -> value);
+            }
+        }
+        // Not a table metric
+        registry.counter("org.apache.cassandra.metrics.keyspace.PendingFlushes.ks1").inc(1000);
+
+        Map<String, Double> pendingFlushes = samples(family(exporter, "org_apache_cassandra_metrics_table_pending_flushes"));
+        assertEquals(2, pendingFlushes.size());
+        assertEquals(6.0, pendingFlushes.get("org_apache_cassandra_metrics_table_pending_flushes ks1").doubleValue());
+        assertEquals(6.0, pendingFlushes.get("org_apache_cassandra_metrics_table_pending_flushes ks2").doubleValue());
+        assertEquals(600.0, samples(family(exporter, "org_apache_cassandra_metrics_table_bytes_flushed")).get("org_apache_cassandra_metrics_table_bytes_flushed_total ks1").doubleValue());
+        assertEquals(60.0, samples(family(exporter, "org_apache_cassandra_metrics_table_live_disk_space_used")).get("org_apache_cassandra_metrics_table_live_disk_space_used ks2").doubleValue());
+        assertEquals(1, family(exporter, "org_apache_cassandra_metrics_keyspace_pending_flushes").samples.size());
+
+        // A keyspace scrape has the keyspace's rollups, the rolled up tables are not kept
+        Map<String, Double> selected = new HashMap<>();
+        for (Collector.MetricFamilySamples family : exporter.collect(Set.of(), "ks1", null)) {
+            selected.putAll(samples(family));
+        }
+        assertEquals(6.0, selected.get("org_apache_cassandra_metrics_table_pending_flushes ks1").doubleValue());
+        assertEquals(600.0, selected.get("org_apache_cassandra_metrics_table_bytes_flushed_total ks1").doubleValue());
+        assertFalse(selected.containsKey("org_apache_cassandra_metrics_table_pending_flushes ks2"));
+        assertTrue(exporter.collect(Set.of(), "ks1", "t1").stream().allMatch(family -> family.samples.isEmpty()));
+
+        // The rollup follows the tables
+        registry.remove("org.apache.cassandra.metrics.Table.PendingFlushes.ks1.t3");
+        pendingFlushes = samples(family(exporter, "org_apache_cassandra_metrics_table_pending_flushes"));
+        assertEquals(3.0, pendingFlushes.get("org_apache_cassandra_metrics_table_pending_flushes ks1").doubleValue());
+        registry.remove("org.apache.cassandra.metrics.Table.PendingFlushes.ks1.t1");
+        registry.remove("org.apache.cassandra.metrics.Table.PendingFlushes.ks1.t2");
+        pendingFlushes = samples(family(exporter, "org_apache_cassandra_metrics_table_pending_flushes"));
+        assertEquals(1, pendingFlushes.size());
+        for (int i = 1; i <= 3; i++) {
+            registry.remove("org.apache.cassandra.metrics.Table.PendingFlushes.ks2.t" + i);
+        }
+        assertNull(family(exporter, "org_apache_cassandra_metrics_table_pending_flushes"));
+    }
+
+    @Test
+    void sumByNodeKeepingTables() {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = exporter(registry, new ArrayList<>(), new RollupSpec("org_apache_cassandra_metrics_table_pending_flushes", "node", true));
+        for (String keyspace : new String[]{ "ks1", "ks2" }) {
+            for (int i = 1; i <= 3; i++) {
+                registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes." + keyspace + ".t" + i).inc(i);
+            }
+        }
+
+        Collector.MetricFamilySamples family = family(exporter, "org_apache_cassandra_metrics_table_pending_flushes");
+        assertEquals(1 + 6, family.samples.size());
+        int rollups = 0;
+        for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+            if (!sample.labelNames.contains("table")) {
+                assertFalse(sample.labelNames.contains("keyspace"));
+                assertEquals(12.0, sample.value);
+                rollups++;
+            }
+        }
+        assertEquals(1, rollups);
+    }
+
+    @Test
+    void summariesMergeBuckets() {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = exporter(registry, new ArrayList<>(), new RollupSpec("org_apache_cassandra_metrics_table_.*", "node", false));
+
+        // The quantiles of the rollup are those of all the values in a single reservoir
+        Timer all = new Timer(new DecayingEstimatedHistogramReservoir());
+        for (int table = 0; table < 4; table++) {
+            Timer timer = registry.register("org.apache.cassandra.metrics.Table.ReadLatency.ks.t" + table, new Timer(new DecayingEstimatedHistogramReservoir()));
+            for (int i = 1; i <= 100; i++) {
+                // Each table has a different distribution
+                timer.update(i * (table + 1) * (table + 1), TimeUnit.MICROSECONDS);
+                all.update(i * (table + 1) * (table + 1), TimeUnit.MICROSECONDS);
+            }
+        }
+        Map<String, Double> latency = samples(family(exporter, "org_apache_cassandra_metrics_table_read_latency"));
+        assertEquals(CassandraMetricsTools.PRECOMPUTED_QUANTILES.length + 1, latency.size());
+        for (int i = 0; i < CassandraMetricsTools.PRECOMPUTED_QUANTILES.length; i++) {
+            double expected = all.getSnapshot().getValue(CassandraMetricsTools.PRECOMPUTED_QUANTILES[i]) / TimeUnit.SECONDS.toNanos(1);
+            assertEquals(expected, latency.get("org_apache_cassandra_metrics_table_read_latency " + CassandraMetricsTools.PRECOMPUTED_QUANTILES_TEXT[i]).doubleValue(), expected * 1e-9);
+        }
+        assertEquals(400.0, latency.get("org_apache_cassandra_metrics_table_read_latency_count").doubleValue());
+
+        // long[] gauges merge their buckets too
+        registry.register("org.apache.cassandra.metrics.Table.EstimatedPartitionSizeHistogram.ks.t1", (Gauge<long[]>) () -> new long[]{ 0, 10, 0, 0, 0 });
+        registry.register("org.apache.cassandra.metrics.Table.EstimatedPartitionSizeHistogram.ks.t2", (Gauge<long[]>) () -> new long[]{ 0, 0, 0, 30, 0 });
+        Map<String, Double> partitionSize = samples(family(exporter, "org_apache_cassandra_metrics_table_estimated_partition_size_histogram"));
+        assertEquals(40.0, partitionSize.get("org_apache_cassandra_metrics_table_estimated_partition_size_histogram_count").doubleValue());
+        // Offsets 1, 2, 3, 4
+        assertEquals(4.0, partitionSize.get("org_apache_cassandra_metrics_table_estimated_partition_size_histogram 0.5").doubleValue());
+        assertEquals(4.0, partitionSize.get("org_apache_cassandra_metrics_table_estimated_partition_size_histogram 0.75").doubleValue());
+    }
+
+    @Test
+    void histogramBucketsAreSummed() {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = exporter(registry, List.of(new HistogramSpec("org_apache_cassandra_metrics_table_.*_latency", "histogram", 8)),
+                new RollupSpec("org_apache_cassandra_metrics_table_.*", "keyspace", false));
+        Timer all = registry.register("org.apache.cassandra.metrics.Table.WriteLatency.ks2.t1", new Timer(new DecayingEstimatedHistogramReservoir()));
+        for (int table = 0; table < 3; table++) {
+            Timer timer = registry.register("org.apache.cassandra.metrics.Table.WriteLatency.ks1.t" + table, new Timer(new DecayingEstimatedHistogramReservoir()));
+            for (int i = 1; i <= 50; i++) {
+                timer.update(i * (table + 1), TimeUnit.MILLISECONDS);
+                all.update(i * (table + 1), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // ks2 has a single table with all the values of ks1's tables
+        Collector.MetricFamilySamples family = family(exporter, "org_apache_cassandra_metrics_table_write_latency");
+        Map<String, Double> ks1 = new HashMap<>();
+        Map<String, Double> ks2 = new HashMap<>();
+        for (Map.Entry<String, Double> entry : samples(family).entrySet()) {
+            String[] parts = entry.getKey().split(" ");
+            String series = parts[0] + (parts.length > 2 ? " " + parts[2] : "");
+            (parts[1].equals("ks1") ? ks1 : ks2).put(series, entry.getValue());
+        }
+        assertTrue(ks1.size() > 3);
+        assertEquals(ks2, ks1);
+        assertEquals(150.0, ks1.get("org_apache_cassandra_metrics_table_write_latency_count").doubleValue());
+    }
+}
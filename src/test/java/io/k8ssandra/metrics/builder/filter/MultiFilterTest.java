@@ -1,12 +1,17 @@
 package io.k8ssandra.metrics.builder.filter;
 
 import io.k8ssandra.metrics.builder.CassandraMetricDefinition;
+import io.k8ssandra.metrics.builder.CassandraMetricNameParser;
 import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class MultiFilterTest {
 
@@ -81,4 +86,97 @@ public class MultiFilterTest {
         assertEquals("org_apache_cassandra_metrics_keyspace_range_latency_count", passed.get(0).getMetricName());
         assertEquals("production", passed.get(0).getLabelValues().get(1));
     }
+
+    @Test
+    public void CompiledSpecsMatchFilteringSpecs() {
+        List<FilteringSpec> specs = List.of(
+                new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_range_latency_count", "drop"),
+                new FilteringSpec(List.of("__origname__"), "@", "org\\.apache\\.cassandra\\.metrics\\.Table\\..*", "drop"),
+                new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_keyspace_.*", "keep"),
+                new FilteringSpec(List.of("keyspace"), "@", "system.*", "drop"),
+                new FilteringSpec(List.of("__name__", "table"), "@", "(org_apache_cassandra_metrics_table_.*)@dropped_columns", "keep"),
+                new FilteringSpec(List.of("table", "keyspace"), "@", "@", "drop"),
+                new FilteringSpec(List.of("missing"), "@", "", "keep"),
+                new FilteringSpec(List.of("cluster"), "@", "Test Cluster", "keep"),
+                new FilteringSpec(List.of("__name__"), "@", ".*", "keep"));
+
+        assertEquals(CompiledFilteringSpec.MatchType.LITERAL, new CassandraMetricDefinitionFilter(specs.subList(0, 1)).getCompiledSpecs()[0].getMatchType());
+        assertEquals(CompiledFilteringSpec.MatchType.PREFIX, new CassandraMetricDefinitionFilter(specs.subList(1, 2)).getCompiledSpecs()[0].getMatchType());
+        assertEquals(CompiledFilteringSpec.MatchType.REGEX, new CassandraMetricDefinitionFilter(specs.subList(4, 5)).getCompiledSpecs()[0].getMatchType());
+        assertNull(CompiledFilteringSpec.unescapeLiteral("a\\d"));
+        assertNull(CompiledFilteringSpec.unescapeLiteral("a\\"));
+        assertEquals("a.b", CompiledFilteringSpec.unescapeLiteral("a\\.b"));
+
+        List<CassandraMetricDefinition> definitions = List.of(
+                new CassandraMetricDefinition("org_apache_cassandra_metrics_table_range_latency_count",
+                        List.of("host", "cluster", "keyspace", "table"), List.of("h1", "Test Cluster", "system", "peers_v2")),
+                new CassandraMetricDefinition("org_apache_cassandra_metrics_table_read_latency",
+                        List.of("host", "cluster", "keyspace", "table", "quantile"), List.of("h1", "Test Cluster", "ks", "dropped_columns")),
+                new CassandraMetricDefinition("org_apache_cassandra_metrics_keyspace_read_latency",
+                        List.of("cluster", "keyspace"), List.of("Test Cluster", "ks")),
+                new CassandraMetricDefinition("org_apache_cassandra_metrics_keyspace_read_latency",
+                        List.of("cluster", "keyspace"), List.of("Test Cluster", "system_auth")),
+                new CassandraMetricDefinition("org_apache_cassandra_metrics_keyspace_read_latency\nx",
+                        List.of("cluster"), List.of("production")),
+                new CassandraMetricDefinition("jvm_classes_loaded_total", List.of(), List.of()));
+        String[] dropwizardNames = {"", "org.apache.cassandra.metrics.Table.ReadLatency.ks.t", "org.apache.cassandra.metrics.Table.\n", "jvm.classes.loaded"};
+
+        // Every pair of specs in both orders, against every definition
+        for (FilteringSpec first : specs) {
+            for (FilteringSpec second : specs) {
+                CassandraMetricDefinitionFilter filter = new CassandraMetricDefinitionFilter(List.of(first, second));
+                for (CassandraMetricDefinition definition : definitions) {
+                    for (String dropwizardName : dropwizardNames) {
+                        HashMap<String, String> labels = new HashMap<>();
+                        for (int i = 0; i < definition.getLabelValues().size(); i++) {
+                            labels.put(definition.getLabelNames().get(i), definition.getLabelValues().get(i));
+                        }
+                        labels.put(FilteringSpec.METRIC_NAME_LABELNAME, definition.getMetricName());
+                        labels.put(FilteringSpec.CASSANDRA_METRIC_NAME_LABELNAME, dropwizardName);
+
+                        boolean expected = first.filter(labels) && second.filter(labels);
+                        assertEquals(expected, filter.matches(definition, dropwizardName));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void PreFilterRejectsOnlyDroppedMetrics() {
+        List<FilteringSpec> specs = List.of(
+                new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_bloom.*", "drop"),
+                new FilteringSpec(List.of("__origname__"), "@", "org\\.apache\\.cassandra\\.metrics\\.ThreadPools\\..*", "drop"),
+                new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_.*", "keep"),
+                new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_keyspace_read_latency_count", "drop"),
+                new FilteringSpec(List.of("keyspace"), "@", "system", "drop"));
+        CassandraMetricDefinitionFilter filter = new CassandraMetricDefinitionFilter(specs);
+        assertTrue(filter.isPreFiltering());
+        assertFalse(new CassandraMetricDefinitionFilter(specs, false).isPreFiltering());
+
+        CassandraMetricNameParser parser = new CassandraMetricNameParser(List.of("cluster"), List.of("Test Cluster"));
+        String[] dropwizardNames = {
+                "org.apache.cassandra.metrics.Table.BloomFilterFalsePositives.ks.t",
+                "org.apache.cassandra.metrics.Table.ReadLatency.system.local",
+                "org.apache.cassandra.metrics.Table.ReadLatency.ks.t",
+                "org.apache.cassandra.metrics.keyspace.ReadLatency.ks",
+                "org.apache.cassandra.metrics.ThreadPools.ActiveTasks.request.ReadStage",
+                "org.apache.cassandra.metrics.Storage.Load",
+                "jvm.memory.heap.used",
+                "org.apache"
+        };
+        boolean[] preFiltered = { true, false, false, false, true, false, true, false };
+
+        for (int i = 0; i < dropwizardNames.length; i++) {
+            String dropwizardName = dropwizardNames[i];
+            boolean mayMatch = filter.mayMatch(dropwizardName, parser.getMetricName(dropwizardName));
+            assertEquals(preFiltered[i], !mayMatch, dropwizardName);
+            if (!mayMatch) {
+                for (String suffix : new String[]{ "", "_count", "_total", "_bucket", "_sum" }) {
+                    CassandraMetricDefinition definition = parser.parseDropwizardMetric(dropwizardName, suffix, List.of(), List.of());
+                    assertFalse(filter.matches(definition, dropwizardName), dropwizardName + suffix);
+                }
+            }
+        }
+    }
 }
@@ -5,6 +5,8 @@ import org.junit.jupiter.api.Test;
 import java.net.URL;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ConfigReaderTest {
 
@@ -12,6 +14,14 @@ public class ConfigReaderTest {
     void readEmptyConfig() {
         Configuration configuration = ConfigReader.readConfig();
         assertEquals(0, configuration.getFilters().size());
+        assertEquals(0, configuration.getRollups().size());
+        assertEquals(0, configuration.getCardinality().getMaxSeriesPerFamily());
+        assertFalse(configuration.getRemoteWrite().isEnabled());
+        assertFalse(configuration.getArchive().isEnabled());
+        assertEquals(9104, configuration.getHttp().getPort());
+        assertFalse(configuration.getHttp().isVirtualThreads());
+        assertFalse(configuration.getScrape().isCoalesce());
+        assertEquals(0, configuration.getScrape().getMaxConcurrentCollections());
     }
 
     @Test
@@ -22,5 +32,36 @@ public class ConfigReaderTest {
         System.setProperty(ConfigReader.CONFIG_PATH_PROPERTY, resource.getFile());
         Configuration configuration = ConfigReader.readConfig();
         assertEquals(2, configuration.getFilters().size());
+        assertTrue(configuration.getScrape().isCoalesce());
+        assertEquals(2000, configuration.getScrape().getFreshnessWindowMillis());
+        assertEquals(1, configuration.getScrape().getMaxConcurrentCollections());
+        assertEquals(1, configuration.getHistograms().size());
+        assertEquals(HistogramSpec.Mode.histogram, configuration.getHistograms().get(0).getMode());
+        assertEquals(4, configuration.getHistograms().get(0).getBucketCoarsening());
+        assertTrue(configuration.getHistograms().get(0).matches("org_apache_cassandra_metrics_table_read_latency"));
+        assertEquals(2, configuration.getRollups().size());
+        assertEquals(RollupSpec.By.node, configuration.getRollups().get(0).getBy());
+        assertFalse(configuration.getRollups().get(0).isKeepTables());
+        assertEquals(RollupSpec.By.keyspace, configuration.getRollups().get(1).getBy());
+        assertTrue(configuration.getRollups().get(1).isKeepTables());
+        assertEquals(10000, configuration.getCardinality().getMaxSeriesPerFamily());
+        assertEquals(200000, configuration.getCardinality().getMaxSeriesPerNode());
+        assertEquals(30000, configuration.getCardinality().getSelectionIntervalMillis());
+        assertTrue(configuration.getRemoteWrite().isEnabled());
+        assertEquals("http://localhost:9090/api/v1/write", configuration.getRemoteWrite().getUrl());
+        assertEquals(30000, configuration.getRemoteWrite().getIntervalMillis());
+        assertEquals(500, configuration.getRemoteWrite().getMaxSamplesPerRequest());
+        assertEquals(10000, configuration.getRemoteWrite().getTimeoutMillis());
+        assertTrue(configuration.getArchive().isEnabled());
+        assertEquals("/tmp/metrics.archive", configuration.getArchive().getPath());
+        assertEquals(1048576, configuration.getArchive().getMaxBytes());
+        assertEquals(15000, configuration.getArchive().getIntervalMillis());
+        assertEquals("127.0.0.1", configuration.getHttp().getAddress());
+        assertEquals(9105, configuration.getHttp().getPort());
+        assertEquals(2, configuration.getHttp().getMaxConcurrentRequests());
+        assertEquals(20, configuration.getHttp().getMaxQueuedRequests());
+        assertEquals(5000, configuration.getHttp().getReadTimeoutMillis());
+        assertEquals(0, configuration.getHttp().getWriteTimeoutMillis());
+        assertTrue(configuration.getHttp().isVirtualThreads());
     }
 }
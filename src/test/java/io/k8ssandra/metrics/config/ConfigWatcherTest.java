@@ -0,0 +1,55 @@
+package io.k8ssandra.metrics.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ConfigWatcherTest {
+
+    private static final String ONE_FILTER = "filters:\n" +
+            "  - source_labels: [\"__name__\"]\n" +
+            "    separator: \"@\"\n" +
+            "    regex: \"jvm_.*\"\n" +
+            "    action: \"drop\"\n";
+
+    private static final String TWO_FILTERS = ONE_FILTER +
+            "  - source_labels: [\"table\"]\n" +
+            "    separator: \"@\"\n" +
+            "    regex: \".+\"\n" +
+            "    action: \"drop\"\n";
+
+    @Test
+    void reloadsChangedConfiguration() throws Exception {
+        Path directory = Files.createTempDirectory("metric-collector");
+        Path configFile = directory.resolve("metric-collector.yaml");
+        Files.write(configFile, ONE_FILTER.getBytes(StandardCharsets.UTF_8));
+
+        LinkedBlockingQueue<Configuration> reloaded = new LinkedBlockingQueue<>();
+        try (ConfigWatcher ignored = new ConfigWatcher(configFile, reloaded::add)) {
+            Files.write(configFile, TWO_FILTERS.getBytes(StandardCharsets.UTF_8));
+            Configuration configuration = reloaded.poll(10, TimeUnit.SECONDS);
+            assertEquals(2, configuration.getFilters().size());
+
+            // Same contents are not reloaded, an unreadable configuration is ignored
+            Files.write(configFile, TWO_FILTERS.getBytes(StandardCharsets.UTF_8));
+            Files.write(configFile.resolveSibling("other.yaml"), "filters: [".getBytes(StandardCharsets.UTF_8));
+            Files.write(configFile, "filters: [".getBytes(StandardCharsets.UTF_8));
+            assertNull(reloaded.poll(500, TimeUnit.MILLISECONDS));
+
+            // Replaced like a ConfigMap update
+            Path replacement = directory.resolve("..replacement");
+            Files.write(replacement, ONE_FILTER.getBytes(StandardCharsets.UTF_8));
+            Files.move(replacement, configFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            configuration = reloaded.poll(10, TimeUnit.SECONDS);
+            assertEquals(1, configuration.getFilters().size());
+        }
+    }
+}
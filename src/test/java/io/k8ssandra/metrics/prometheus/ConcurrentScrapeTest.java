@@ -0,0 +1,144 @@
+package io.k8ssandra.metrics.prometheus;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
+import io.k8ssandra.metrics.config.Configuration;
+import io.prometheus.client.Collector;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ConcurrentScrapeTest {
+
+    private static final int METRICS_COUNT = 100;
+    private static final int SCRAPERS = 8;
+    private static final int SCRAPES = 200;
+
+    @Test
+    void concurrentScrapersSeeCompleteFamilies() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        scrapeConcurrently(registry, new CassandraDropwizardExports(registry));
+    }
+
+    @Test
+    void coalescedScrapersSeeCompleteFamilies() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        Configuration configuration = new Configuration(new ArrayList<>());
+        configuration.getScrape().setCoalesce(true);
+        configuration.getScrape().setFreshnessWindowMillis(10);
+        configuration.getScrape().setMaxConcurrentCollections(1);
+        scrapeConcurrently(registry, new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(configuration.getFilters()), configuration));
+    }
+
+    @Test
+    void parallelRefreshScrapersSeeCompleteFamilies() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        Configuration configuration = new Configuration(new ArrayList<>());
+        configuration.getScrape().setRefreshParallelism(4);
+        scrapeConcurrently(registry, new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(configuration.getFilters()), configuration));
+    }
+
+    @Test
+    void parallelRefreshWritesSameSeries() {
+        MetricRegistry registry = new MetricRegistry();
+        Configuration configuration = new Configuration(new ArrayList<>());
+        configuration.getScrape().setRefreshParallelism(3);
+        CassandraDropwizardExports sequential = new CassandraDropwizardExports(registry);
+        CassandraDropwizardExports parallel = new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(configuration.getFilters()), configuration);
+        for (int i = 0; i < METRICS_COUNT; i++) {
+            registry.counter(String.format("c_nr_%d", i)).inc(i);
+            registry.timer(String.format("t_nr_%d", i)).update(i, TimeUnit.MILLISECONDS);
+            registry.register(String.format("gh_nr_%d", i), (Gauge<long[]>) () -> new long[]{1,2,3,0});
+        }
+
+        TextFormatWriter sequentialWriter = new TextFormatWriter();
+        sequential.write(sequentialWriter);
+        TextFormatWriter parallelWriter = new TextFormatWriter();
+        parallel.write(parallelWriter);
+        assertEquals(sortedLines(sequentialWriter), sortedLines(parallelWriter));
+
+        List<Collector.MetricFamilySamples> families = parallel.collect();
+        verifyFamilies(families);
+    }
+
+    private static List<String> sortedLines(TextFormatWriter writer) {
+        List<String> lines = new ArrayList<>(List.of(writer.toString(StandardCharsets.UTF_8).split("\n")));
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private void scrapeConcurrently(MetricRegistry registry, CassandraDropwizardExports exporter) throws Exception {
+        for (int i = 0; i < METRICS_COUNT; i++) {
+            registry.counter(String.format("c_nr_%d", i));
+            registry.timer(String.format("t_nr_%d", i));
+            registry.register(String.format("gh_nr_%d", i), (Gauge<long[]>) () -> new long[]{1,2,3,0});
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(SCRAPERS + 1);
+        try {
+            // Keep updating the values while scraping
+            executor.submit(() -> {
+                while (running.get()) {
+                    for (int i = 0; i < METRICS_COUNT; i++) {
+                        registry.counter(String.format("c_nr_%d", i)).inc();
+                        registry.timer(String.format("t_nr_%d", i)).update(i, TimeUnit.MILLISECONDS);
+                    }
+                }
+            });
+
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> scrapers = new ArrayList<>(SCRAPERS);
+            for (int s = 0; s < SCRAPERS; s++) {
+                boolean direct = s % 2 == 0;
+                scrapers.add(executor.submit((Callable<Integer>) () -> {
+                    start.await();
+                    TextFormatWriter writer = new TextFormatWriter();
+                    for (int i = 0; i < SCRAPES; i++) {
+                        if (direct) {
+                            writer.reset();
+                            exporter.write(writer);
+                        } else {
+                            verifyFamilies(exporter.collect());
+                        }
+                    }
+                    return SCRAPES;
+                }));
+            }
+            start.countDown();
+
+            for (Future<Integer> scraper : scrapers) {
+                assertEquals(SCRAPES, scraper.get(60, TimeUnit.SECONDS).intValue());
+            }
+        } finally {
+            running.set(false);
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void verifyFamilies(List<Collector.MetricFamilySamples> families) {
+        assertEquals(3 * METRICS_COUNT, families.size());
+        for (Collector.MetricFamilySamples family : families) {
+            if (family.type == Collector.Type.SUMMARY) {
+                // Quantiles and _count
+                assertEquals(7, family.samples.size(), family.name);
+            } else {
+                assertEquals(1, family.samples.size(), family.name);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package io.k8ssandra.metrics.prometheus;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
+import io.k8ssandra.metrics.builder.filter.FilteringSpec;
+import io.k8ssandra.metrics.config.Configuration;
+import io.prometheus.client.Collector;
+import io.k8ssandra.metrics.config.HttpConfiguration;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ExporterMetricsTest {
+
+    private static CassandraDropwizardExports exporter(MetricRegistry registry, int fillTimeSampleInterval) {
+        List<FilteringSpec> specs = List.of(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_bytes_flushed.*", "drop"));
+        Configuration configuration = new Configuration(specs);
+        configuration.getScrape().setFillTimeSampleInterval(fillTimeSampleInterval);
+        return new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(specs, true), configuration);
+    }
+
+    private static Map<String, Double> values(ExporterMetrics metrics) {
+        Map<String, Double> values = new HashMap<>();
+        for (Collector.MetricFamilySamples family : metrics.collect()) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                values.put(sample.name + (sample.labelValues.isEmpty() ? "" : sample.labelValues), sample.value);
+            }
+        }
+        return values;
+    }
+
+    @Test
+    void registrationCounts() {
+        MetricRegistry registry = new MetricRegistry();
+        for (String table : new String[]{ "t1", "t2", "t3" }) {
+            registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes.ks." + table);
+            registry.meter("org.apache.cassandra.metrics.Table.BytesFlushed.ks." + table);
+            registry.timer("org.apache.cassandra.metrics.Table.ReadLatency.ks." + table);
+        }
+        CassandraDropwizardExports exporter = exporter(registry, 0);
+        registry.remove("org.apache.cassandra.metrics.Table.ReadLatency.ks.t3");
+
+        Map<String, Double> values = values(exporter.getExporterMetrics());
+        assertEquals(6.0, values.get("mcac_exporter_registrations_total").doubleValue());
+        assertEquals(1.0, values.get("mcac_exporter_removals_total").doubleValue());
+        assertEquals(3.0, values.get("mcac_exporter_filter_rejections_total").doubleValue());
+        assertEquals(2.0, values.get("mcac_exporter_families").doubleValue());
+        // A summary emits its quantiles and the _count
+        assertEquals(3 + 2 * 7.0, values.get("mcac_exporter_series").doubleValue());
+
+        // Reloading the filters neither resets nor counts the registrations
+        exporter.setFilter(new CassandraMetricDefinitionFilter(new ArrayList<>()));
+        values = values(exporter.getExporterMetrics());
+        assertEquals(6.0, values.get("mcac_exporter_registrations_total").doubleValue());
+        assertEquals(1.0, values.get("mcac_exporter_removals_total").doubleValue());
+        assertEquals(3.0, values.get("mcac_exporter_filter_rejections_total").doubleValue());
+        assertEquals(3.0, values.get("mcac_exporter_families").doubleValue());
+        exporter.setFilter(new CassandraMetricDefinitionFilter(List.of(new FilteringSpec(List.of("__name__"), "@", "org_apache_cassandra_metrics_table_read_latency.*", "drop"))));
+        values = values(exporter.getExporterMetrics());
+        assertEquals(6.0, values.get("mcac_exporter_registrations_total").doubleValue());
+        assertEquals(1.0, values.get("mcac_exporter_removals_total").doubleValue());
+        assertEquals(3.0, values.get("mcac_exporter_filter_rejections_total").doubleValue());
+        assertEquals(2.0, values.get("mcac_exporter_families").doubleValue());
+
+        // Registrations after the reload are counted
+        registry.timer("org.apache.cassandra.metrics.Table.ReadLatency.ks.t4");
+        registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes.ks.t4");
+        values = values(exporter.getExporterMetrics());
+        assertEquals(7.0, values.get("mcac_exporter_registrations_total").doubleValue());
+        assertEquals(4.0, values.get("mcac_exporter_filter_rejections_total").doubleValue());
+    }
+
+    @Test
+    void scrapeCosts() throws IOException {
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < 20; i++) {
+            registry.register("org.apache.cassandra.metrics.Storage.Gauge" + i, (Gauge<Long>) () -> 1L);
+            registry.timer("org.apache.cassandra.metrics.Table.ReadLatency.ks.t" + i);
+        }
+        CassandraDropwizardExports exporter = exporter(registry, 1);
+        CollectorRegistry collectorRegistry = new CollectorRegistry();
+        exporter.getExporterMetrics().register(collectorRegistry);
+
+        HttpConfiguration http = new HttpConfiguration();
+        http.setAddress("localhost");
+        http.setPort(0);
+        try (MetricsHttpServer server = new MetricsHttpServer(http, exporter, collectorRegistry, null)) {
+            String first = get(server);
+            assertTrue(first.contains("mcac_exporter_scrape_duration_seconds_count 0.0"));
+
+            String second = get(server);
+            assertTrue(second.contains("mcac_exporter_scrape_duration_seconds_count 1.0"));
+            assertTrue(second.contains("mcac_exporter_scrape_duration_seconds_bucket{le=\"+Inf\",} 1.0"));
+            assertTrue(second.contains("mcac_exporter_last_scrape_bytes " + first.length() + ".0"));
+        }
+
+        Map<String, Double> values = values(exporter.getExporterMetrics());
+        assertEquals(2.0, values.get("mcac_exporter_scrape_duration_seconds_count").doubleValue());
+        if (values.containsKey("mcac_exporter_last_scrape_allocated_bytes")) {
+            assertTrue(values.get("mcac_exporter_last_scrape_allocated_bytes") > 0);
+        }
+
+        // Only the most expensive families are reported
+        int reported = 0;
+        for (Collector.MetricFamilySamples family : exporter.getExporterMetrics().collect()) {
+            if (family.name.equals("mcac_exporter_family_fill_seconds")) {
+                reported = family.samples.size();
+                for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                    assertTrue(sample.value > 0);
+                }
+            }
+        }
+        assertEquals(ExporterMetrics.TOP_FAMILIES, reported);
+    }
+
+    @Test
+    void fillTimesAreSampled() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.timer("org.apache.cassandra.metrics.Table.ReadLatency.ks.t1");
+        CassandraDropwizardExports exporter = exporter(registry, 4);
+        ExporterMetrics metrics = exporter.getExporterMetrics();
+
+        int sampled = 0;
+        for (int i = 0; i < 12; i++) {
+            if (metrics.sampleFillTime()) {
+                sampled++;
+            }
+        }
+        assertEquals(3, sampled);
+        assertFalse(exporter(registry, 0).getExporterMetrics().sampleFillTime());
+    }
+
+    private static String get(MetricsHttpServer server) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/metrics").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        try (InputStream is = connection.getInputStream()) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
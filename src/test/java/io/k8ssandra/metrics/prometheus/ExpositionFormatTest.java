@@ -0,0 +1,318 @@
+package io.k8ssandra.metrics.prometheus;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.builder.filter.CassandraMetricDefinitionFilter;
+import io.k8ssandra.metrics.config.Configuration;
+import io.k8ssandra.metrics.config.HistogramSpec;
+import io.prometheus.client.Collector;
+import io.k8ssandra.metrics.config.HttpConfiguration;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ExpositionFormatTest {
+
+    private static final String PROMETHEUS_PROTOBUF_ACCEPT = "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7,text/plain;version=0.0.4;q=0.3,*/*;q=0.1";
+    private static final String PROMETHEUS_OPENMETRICS_ACCEPT = "application/openmetrics-text;version=1.0.0,application/openmetrics-text;version=0.0.1;q=0.75,text/plain;version=0.0.4;q=0.5,*/*;q=0.1";
+
+    @Test
+    void negotiateContentType() {
+        assertEquals(TextFormatWriter.CONTENT_TYPE_004, MetricsHttpServer.MetricsHandler.negotiate(null));
+        assertEquals(TextFormatWriter.CONTENT_TYPE_004, MetricsHttpServer.MetricsHandler.negotiate("*/*"));
+        assertEquals(TextFormatWriter.CONTENT_TYPE_004, MetricsHttpServer.MetricsHandler.negotiate("application/json"));
+        assertEquals(ProtobufWriter.CONTENT_TYPE_PROTOBUF, MetricsHttpServer.MetricsHandler.negotiate(PROMETHEUS_PROTOBUF_ACCEPT));
+        assertEquals(OpenMetricsWriter.CONTENT_TYPE_OPENMETRICS_100, MetricsHttpServer.MetricsHandler.negotiate(PROMETHEUS_OPENMETRICS_ACCEPT));
+        // Only the delimited MetricFamily messages are supported
+        assertEquals(TextFormatWriter.CONTENT_TYPE_004, MetricsHttpServer.MetricsHandler.negotiate("application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=text,text/plain;q=0.1"));
+        assertEquals(TextFormatWriter.CONTENT_TYPE_004, MetricsHttpServer.MetricsHandler.negotiate("application/openmetrics-text;q=0.2,text/plain;q=0.5"));
+    }
+
+    @Test
+    void openMetricsFamilies() throws IOException {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry);
+        registry.meter("requests").mark(3);
+        registry.counter("org.apache.cassandra.metrics.Table.ReadCount.system.peers").inc(5);
+
+        OpenMetricsWriter writer = new OpenMetricsWriter();
+        exporter.write(writer);
+        writer.writeCollectorFamilies(Collections.emptyEnumeration());
+        String exposition = writer.toString(StandardCharsets.UTF_8);
+
+        assertTrue(exposition.contains("# TYPE requests counter\nrequests_total{"));
+        assertTrue(exposition.contains("# TYPE org_apache_cassandra_metrics_table_read_count gauge\n"));
+        assertTrue(exposition.contains("keyspace=\"system\",table=\"peers\"} 5\n"));
+        assertTrue(exposition.endsWith("\n# EOF\n"));
+    }
+
+    @Test
+    void protobufSameSeriesAsCollect() {
+        MetricRegistry registry = new MetricRegistry();
+        List<HistogramSpec> histograms = List.of(new HistogramSpec("hb_.*", "histogram", 8));
+        Configuration configuration = new Configuration(new ArrayList<>());
+        configuration.setHistograms(histograms);
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry, new CassandraMetricDefinitionFilter(configuration.getFilters()), configuration);
+        for (int i = 0; i < 10; i++) {
+            registry.counter(String.format("c_nr_%d", i)).inc(i);
+            registry.meter(String.format("m_nr_%d", i)).mark(i * 1000L);
+            registry.timer(String.format("t_nr_%d", i)).update(i * 1234L, TimeUnit.MICROSECONDS);
+            registry.histogram(String.format("hb_nr_%d", i)).update(i * 7);
+            registry.register(String.format("g_nr_%d", i), (Gauge<Double>) () -> 3.14);
+            registry.register(String.format("gh_nr_%d", i), (Gauge<long[]>) () -> new long[]{1,2,3,0});
+            registry.counter(String.format("org.apache.cassandra.metrics.Table.ReadCount.ks_%d.tbl \"quoted\" \u00e4", i)).inc();
+        }
+
+        ProtobufWriter writer = new ProtobufWriter();
+        exporter.write(writer);
+        Map<String, Double> decoded = decode(writer.toByteArray());
+
+        Map<String, Double> expected = series(exporter.collect());
+        assertEquals(expected, decoded);
+
+        // Buffer is reusable
+        writer.reset();
+        exporter.write(writer);
+        assertEquals(expected, decode(writer.toByteArray()));
+    }
+
+    @Test
+    void protobufCollectorFamilies() {
+        List<String> labelNames = List.of("pool");
+        List<String> quantileLabelNames = List.of("pool", "quantile");
+        List<Collector.MetricFamilySamples.Sample> samples = List.of(
+                new Collector.MetricFamilySamples.Sample("gc_pause", quantileLabelNames, List.of("young", "0.5"), 0.25),
+                new Collector.MetricFamilySamples.Sample("gc_pause", quantileLabelNames, List.of("young", "0.99"), 1.5),
+                new Collector.MetricFamilySamples.Sample("gc_pause_count", labelNames, List.of("young"), 12),
+                new Collector.MetricFamilySamples.Sample("gc_pause_sum", labelNames, List.of("young"), 4.5),
+                new Collector.MetricFamilySamples.Sample("gc_pause_count", labelNames, List.of("old"), 1));
+        List<Collector.MetricFamilySamples> families = List.of(
+                new Collector.MetricFamilySamples("gc_pause", Collector.Type.SUMMARY, "GC pauses", samples),
+                new Collector.MetricFamilySamples("threads", Collector.Type.GAUGE, "", List.of(
+                        new Collector.MetricFamilySamples.Sample("threads", List.of(), List.of(), 42))));
+
+        ProtobufWriter writer = new ProtobufWriter();
+        writer.writeCollectorFamilies(Collections.enumeration(families));
+        assertEquals(series(families), decode(writer.toByteArray()));
+    }
+
+    @Test
+    void serveNegotiatedFormat() throws IOException {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry);
+        registry.counter("org.apache.cassandra.metrics.Table.ReadCount.system.peers").inc(5);
+
+        HttpConfiguration http = new HttpConfiguration();
+        http.setAddress("localhost");
+        http.setPort(0);
+        try (MetricsHttpServer server = new MetricsHttpServer(http, exporter, new CollectorRegistry(), null)) {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/metrics").openConnection();
+            connection.setRequestProperty("Accept", PROMETHEUS_PROTOBUF_ACCEPT);
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(ProtobufWriter.CONTENT_TYPE_PROTOBUF, connection.getContentType());
+            try (InputStream is = connection.getInputStream()) {
+                assertEquals(series(exporter.collect()), decode(is.readAllBytes()));
+            }
+
+            connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/metrics").openConnection();
+            connection.setRequestProperty("Accept", PROMETHEUS_OPENMETRICS_ACCEPT);
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(OpenMetricsWriter.CONTENT_TYPE_OPENMETRICS_100, connection.getContentType());
+            try (InputStream is = connection.getInputStream()) {
+                assertTrue(new String(is.readAllBytes(), StandardCharsets.UTF_8).endsWith("# EOF\n"));
+            }
+        }
+    }
+
+    /**
+     * Sample name{labels} to value, with the quantile and le formatted the same way as after decoding
+     */
+    private static Map<String, Double> series(List<Collector.MetricFamilySamples> families) {
+        Map<String, Double> series = new HashMap<>();
+        for (Collector.MetricFamilySamples family : families) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                List<String> labelValues = new ArrayList<>(sample.labelValues);
+                int last = labelValues.size() - 1;
+                if (last >= 0 && (sample.labelNames.get(last).equals("quantile") || sample.labelNames.get(last).equals("le"))) {
+                    labelValues.set(last, Double.toString(Double.parseDouble(labelValues.get(last).replace("Inf", "Infinity"))));
+                }
+                series.put(key(sample.name, sample.labelNames, labelValues), sample.value);
+            }
+        }
+        return series;
+    }
+
+    private static String key(String name, List<String> labelNames, List<String> labelValues) {
+        StringBuilder key = new StringBuilder(name).append('{');
+        for (int i = 0; i < labelNames.size(); i++) {
+            key.append(labelNames.get(i)).append("=\"").append(labelValues.get(i)).append("\",");
+        }
+        return key.append('}').toString();
+    }
+
+    /**
+     * Decodes delimited MetricFamily messages to the same series as the text format
+     */
+    private static Map<String, Double> decode(byte[] bytes) {
+        Map<String, Double> series = new HashMap<>();
+        ProtoReader input = new ProtoReader(bytes, 0, bytes.length);
+        while (input.hasMore()) {
+            ProtoReader family = input.delimited();
+            String name = null;
+            long type = 0;
+            List<ProtoReader> metrics = new ArrayList<>();
+            while (family.hasMore()) {
+                long tag = family.varint();
+                switch ((int) (tag >>> 3)) {
+                    case 1:
+                        name = family.string();
+                        break;
+                    case 2:
+                        family.string();
+                        break;
+                    case 3:
+                        type = family.varint();
+                        break;
+                    case 4:
+                        metrics.add(family.delimited());
+                        break;
+                    default:
+                        throw new AssertionError("Unknown MetricFamily field " + tag);
+                }
+            }
+
+            for (ProtoReader metric : metrics) {
+                List<String> labelNames = new ArrayList<>();
+                List<String> labelValues = new ArrayList<>();
+                while (metric.hasMore()) {
+                    long tag = metric.varint();
+                    int field = (int) (tag >>> 3);
+                    ProtoReader message = metric.delimited();
+                    if (field == 1) {
+                        message.varint();
+                        labelNames.add(message.string());
+                        message.varint();
+                        labelValues.add(message.string());
+                        continue;
+                    }
+                    switch (field) {
+                        case 2:
+                        case 3:
+                        case 5:
+                            assertEquals(type, field == 2 ? 1 : field == 3 ? 0 : 3);
+                            message.varint();
+                            series.put(key(name, labelNames, labelValues), message.fixed64());
+                            break;
+                        case 4:
+                        case 7:
+                            assertEquals(type, field == 4 ? 2 : 4);
+                            String boundLabel = field == 4 ? "quantile" : "le";
+                            String boundName = field == 4 ? name : name + "_bucket";
+                            while (message.hasMore()) {
+                                long valueTag = message.varint();
+                                switch ((int) (valueTag >>> 3)) {
+                                    case 1:
+                                        series.put(key(name + "_count", labelNames, labelValues), (double) message.varint());
+                                        break;
+                                    case 2:
+                                        series.put(key(name + "_sum", labelNames, labelValues), message.fixed64());
+                                        break;
+                                    case 3:
+                                        ProtoReader bound = message.delimited();
+                                        double boundValue;
+                                        double value;
+                                        if (field == 4) {
+                                            bound.varint();
+                                            boundValue = bound.fixed64();
+                                            bound.varint();
+                                            value = bound.fixed64();
+                                        } else {
+                                            bound.varint();
+                                            value = bound.varint();
+                                            bound.varint();
+                                            boundValue = bound.fixed64();
+                                        }
+                                        List<String> boundLabelNames = new ArrayList<>(labelNames);
+                                        boundLabelNames.add(boundLabel);
+                                        List<String> boundLabelValues = new ArrayList<>(labelValues);
+                                        boundLabelValues.add(Double.toString(boundValue));
+                                        series.put(key(boundName, boundLabelNames, boundLabelValues), value);
+                                        break;
+                                    default:
+                                        throw new AssertionError("Unknown field " + valueTag);
+                                }
+                            }
+                            break;
+                        default:
+                            throw new AssertionError("Unknown Metric field " + tag);
+                    }
+                }
+            }
+        }
+        return series;
+    }
+
+    private static class ProtoReader {
+        private final byte[] bytes;
+        private int position;
+        private final int end;
+
+        private ProtoReader(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        boolean hasMore() {
+            return position < end;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        double fixed64() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits |= (bytes[position++] & 0xFFL) << (8 * i);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        ProtoReader delimited() {
+            int length = (int) varint();
+            ProtoReader reader = new ProtoReader(bytes, position, position + length);
+            position += length;
+            assertTrue(position <= end);
+            return reader;
+        }
+
+        String string() {
+            int length = (int) varint();
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
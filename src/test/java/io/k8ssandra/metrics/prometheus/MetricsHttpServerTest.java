@@ -0,0 +1,317 @@
+package io.k8ssandra.metrics.prometheus;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.config.HttpConfiguration;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MetricsHttpServerTest {
+
+    @Test
+    void rejectBeyondQueue() throws Exception {
+        rejectBeyondQueue(false);
+    }
+
+    @Test
+    void rejectBeyondQueueWithVirtualThreads() throws Exception {
+        // Platform threads are used where the JVM has no virtual threads, the bounds are the same
+        rejectBeyondQueue(true);
+    }
+
+    private void rejectBeyondQueue(boolean virtualThreads) throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // The gauge is read when registered too
+        AtomicBoolean blocking = new AtomicBoolean();
+        registry.register("blocking_gauge", (Gauge<Long>) () -> {
+            if (!blocking.get()) {
+                return 1L;
+            }
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 1L;
+        });
+        CassandraDropwizardExports exports = new CassandraDropwizardExports(registry);
+        HttpConfiguration configuration = new HttpConfiguration("localhost", 0, 1, 1, 0, 0, virtualThreads);
+        blocking.set(true);
+
+        ExecutorService clients = Executors.newFixedThreadPool(3);
+        try (MetricsHttpServer server = new MetricsHttpServer(configuration, exports, new CollectorRegistry(), null)) {
+            List<Future<Integer>> statuses = new ArrayList<>();
+            statuses.add(clients.submit(() -> scrape(server.getPort())));
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+            // One waits for the scrape in progress, the other one has no room
+            statuses.add(clients.submit(() -> scrape(server.getPort())));
+            statuses.add(clients.submit(() -> scrape(server.getPort())));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (rejectedRequests(exports) < 1 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1.0, rejectedRequests(exports));
+
+            release.countDown();
+            List<Integer> codes = new ArrayList<>();
+            for (Future<Integer> status : statuses) {
+                codes.add(status.get(10, TimeUnit.SECONDS));
+            }
+            Collections.sort(codes);
+            assertEquals(List.of(200, 200, 503), codes);
+
+            // Served normally again
+            assertEquals(200, scrape(server.getPort()));
+        } finally {
+            release.countDown();
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    void rejectionsAreBounded() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean blocking = new AtomicBoolean();
+        registry.register("blocking_gauge", (Gauge<Long>) () -> {
+            if (blocking.get()) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return 1L;
+        });
+        CassandraDropwizardExports exports = new CassandraDropwizardExports(registry);
+        HttpConfiguration configuration = new HttpConfiguration("localhost", 0, 1, 0, 0, 0, false);
+        blocking.set(true);
+
+        ExecutorService clients = Executors.newSingleThreadExecutor();
+        List<Socket> slowClients = new ArrayList<>();
+        try (MetricsHttpServer server = new MetricsHttpServer(configuration, exports, new CollectorRegistry(), null)) {
+            Future<Integer> served = clients.submit(() -> scrape(server.getPort()));
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+            // Clients that do not finish their requests hold the rejecting threads and fill their queue
+            int rejections = MetricsHttpServer.REJECTING_THREADS + MetricsHttpServer.MAX_QUEUED_REJECTIONS + 1;
+            for (int i = 0; i < rejections; i++) {
+                Socket socket = new Socket("localhost", server.getPort());
+                socket.setSoTimeout(10_000);
+                socket.getOutputStream().write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n".getBytes(StandardCharsets.US_ASCII));
+                socket.getOutputStream().flush();
+                slowClients.add(socket);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (rejectedRequests(exports) < 1 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1.0, rejectedRequests(exports));
+
+            int answered = 0;
+            int closed = 0;
+            for (Socket socket : slowClients) {
+                try {
+                    socket.getOutputStream().write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                    socket.getOutputStream().flush();
+                    byte[] status = new byte[12];
+                    int read = socket.getInputStream().readNBytes(status, 0, status.length);
+                    if (read == status.length && new String(status, StandardCharsets.US_ASCII).equals("HTTP/1.1 503")) {
+                        answered++;
+                    } else {
+                        closed++;
+                    }
+                } catch (IOException e) {
+                    closed++;
+                }
+            }
+            assertEquals(rejections - 1, answered);
+            assertEquals(1, closed);
+            assertEquals((double) rejections, rejectedRequests(exports));
+
+            release.countDown();
+            assertEquals(200, (int) served.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            for (Socket socket : slowClients) {
+                socket.close();
+            }
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    void writeTimeoutClosesConnection() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean blocking = new AtomicBoolean();
+        registry.register("blocking_gauge", (Gauge<Long>) () -> {
+            if (blocking.get()) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return 1L;
+        });
+        CassandraDropwizardExports exports = new CassandraDropwizardExports(registry);
+        HttpConfiguration configuration = new HttpConfiguration("localhost", 0, 1, 1, 0, 200, false);
+
+        try (MetricsHttpServer server = new MetricsHttpServer(configuration, exports, new CollectorRegistry(), null)) {
+            assertEquals(200, scrape(server.getPort()));
+
+            blocking.set(true);
+            long start = System.nanoTime();
+            try (Socket socket = new Socket("localhost", server.getPort())) {
+                socket.setSoTimeout(10_000);
+                socket.getOutputStream().write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                socket.getOutputStream().flush();
+                int read;
+                try {
+                    read = socket.getInputStream().read();
+                } catch (IOException e) {
+                    read = -1;
+                }
+                assertEquals(-1, read);
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+            // The serving thread is back once the collection returns
+            release.countDown();
+            blocking.set(false);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            int status = 0;
+            while (status != 200 && System.nanoTime() < deadline) {
+                status = scrape(server.getPort());
+            }
+            assertEquals(200, status);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void writeTimeoutAbortsStuckClient() throws Exception {
+        // Several megabytes of response, more than the socket buffers hold
+        MetricRegistry registry = new MetricRegistry();
+        String longName = "org.apache.cassandra.metrics.Table.ReadCount.ks." + "t".repeat(1000);
+        for (int i = 0; i < 10_000; i++) {
+            registry.counter(longName + i).inc();
+        }
+        CassandraDropwizardExports exports = new CassandraDropwizardExports(registry);
+        HttpConfiguration configuration = new HttpConfiguration("localhost", 0, 1, 0, 0, 500, false);
+
+        try (MetricsHttpServer server = new MetricsHttpServer(configuration, exports, new CollectorRegistry(), null);
+             Socket stuck = new Socket()) {
+            stuck.setReceiveBufferSize(4096);
+            stuck.connect(new InetSocketAddress("localhost", server.getPort()));
+            stuck.getOutputStream().write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            stuck.getOutputStream().flush();
+
+            // The client never reads, the only serving thread is released by the timeout
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            int status = 0;
+            while (status != 200 && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+                status = scrape(server.getPort());
+            }
+            assertEquals(200, status);
+            assertFalse(Thread.currentThread().isInterrupted());
+        }
+    }
+
+    @Test
+    void deadlineInterruptDoesNotOutliveRequest() {
+        MetricsHttpServer.ResponseDeadline deadline = new MetricsHttpServer.ResponseDeadline(Thread.currentThread(), System.nanoTime() - 1);
+        assertTrue(deadline.isExpired());
+        assertTrue(Thread.currentThread().isInterrupted());
+        assertTrue(deadline.finish());
+        assertFalse(Thread.currentThread().isInterrupted());
+
+        // Expiring after the request is finished does nothing
+        deadline.expire();
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    void limiterQueue() throws Exception {
+        MetricsHttpServer.RequestLimiter limiter = new MetricsHttpServer.RequestLimiter(1, 1);
+        assertTrue(limiter.acquire());
+
+        AtomicBoolean queuedAcquired = new AtomicBoolean();
+        Thread queued = new Thread(() -> {
+            try {
+                queuedAcquired.set(limiter.acquire());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        queued.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (queued.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // Neither served nor queued
+        assertFalse(limiter.acquire());
+
+        limiter.release();
+        queued.join(10_000);
+        assertTrue(queuedAcquired.get());
+        limiter.release();
+        assertTrue(limiter.acquire());
+    }
+
+    private static int scrape(int port) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/metrics").openConnection();
+        try {
+            int status = connection.getResponseCode();
+            if (status == 200) {
+                try (InputStream is = connection.getInputStream()) {
+                    is.readAllBytes();
+                }
+            }
+            return status;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static double rejectedRequests(CassandraDropwizardExports exports) {
+        for (Collector.MetricFamilySamples family : exports.getExporterMetrics().collect()) {
+            if (family.name.equals("mcac_exporter_rejected_requests")) {
+                return family.samples.get(0).value;
+            }
+        }
+        return -1;
+    }
+}
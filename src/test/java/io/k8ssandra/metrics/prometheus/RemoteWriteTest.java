@@ -0,0 +1,351 @@
+package io.k8ssandra.metrics.prometheus;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpServer;
+import io.k8ssandra.metrics.config.RemoteWriteConfiguration;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RemoteWriteTest {
+
+    private FakeReceiver receiver;
+
+    @BeforeEach
+    void startReceiver() throws IOException {
+        receiver = new FakeReceiver();
+    }
+
+    @AfterEach
+    void stopReceiver() {
+        receiver.close();
+    }
+
+    private static MetricRegistry tableMetrics(int tables) {
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < tables; i++) {
+            registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes.ks.t" + i).inc(i);
+            registry.timer("org.apache.cassandra.metrics.Table.ReadLatency.ks.t" + i).update(i + 1, TimeUnit.MILLISECONDS);
+        }
+        return registry;
+    }
+
+    private RemoteWritePusher pusher(CassandraDropwizardExports exports, CollectorRegistry registry, int maxSamplesPerRequest, long maxBufferedBytes) throws IOException {
+        return new RemoteWritePusher(exports, registry, new RemoteWriteConfiguration(receiver.url(), 1000, maxSamplesPerRequest, maxBufferedBytes, 5000, 0, 0));
+    }
+
+    @Test
+    void pushAllSamples() throws IOException {
+        CassandraDropwizardExports exports = new CassandraDropwizardExports(tableMetrics(100));
+        CollectorRegistry registry = new CollectorRegistry();
+        registry.register(new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                return List.of(new MetricFamilySamples("jvm_threads", Type.GAUGE, "", List.of(
+                        new MetricFamilySamples.Sample("jvm_threads", List.of("state"), List.of("runnable"), 10))));
+            }
+        });
+        RemoteWritePusher pusher = pusher(exports, registry, 64, 1 << 20);
+        pusher.push();
+
+        // Every sample of the scrape with its labels
+        Map<Map<String, String>, Double> expected = new HashMap<>();
+        for (Collector.MetricFamilySamples family : exports.collect()) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                Map<String, String> labels = new TreeMap<>();
+                labels.put("__name__", sample.name);
+                for (int i = 0; i < sample.labelNames.size(); i++) {
+                    labels.put(sample.labelNames.get(i), sample.labelValues.get(i));
+                }
+                expected.put(labels, sample.value);
+            }
+        }
+        expected.put(Map.of("__name__", "jvm_threads", "state", "runnable"), 10.0);
+        assertEquals(100 + 100 * 7 + 1, expected.size());
+
+        assertEquals((expected.size() + 63) / 64, receiver.requests.get());
+        Map<Map<String, String>, Double> received = new HashMap<>();
+        for (Series series : receiver.series) {
+            received.put(series.labels, series.value);
+            assertTrue(Math.abs(System.currentTimeMillis() - series.timestamp) < 60000);
+        }
+        assertEquals(expected, received);
+        assertEquals(expected.size(), receiver.series.size());
+        assertEquals(expected.size(), value(pusher, "mcac_exporter_remote_write_sent_samples"));
+    }
+
+    @Test
+    void retryInOrder() throws IOException {
+        CassandraDropwizardExports exports = new CassandraDropwizardExports(tableMetrics(10));
+        RemoteWritePusher pusher = pusher(exports, null, 1000, 1 << 20);
+
+        receiver.status = 503;
+        pusher.push();
+        pusher.push();
+        assertEquals(0, receiver.series.size());
+        assertEquals(2, value(pusher, "mcac_exporter_remote_write_failed_requests"));
+        assertTrue(value(pusher, "mcac_exporter_remote_write_buffered_bytes") > 0);
+
+        // The buffered collections are sent first
+        receiver.status = 204;
+        pusher.push();
+        assertEquals(3 * 80, receiver.series.size());
+        for (int i = 1; i < receiver.series.size(); i++) {
+            assertTrue(receiver.series.get(i - 1).timestamp <= receiver.series.get(i).timestamp);
+        }
+        assertEquals(0, value(pusher, "mcac_exporter_remote_write_buffered_bytes"));
+        assertEquals(0, value(pusher, "mcac_exporter_remote_write_dropped_samples"));
+    }
+
+    @Test
+    void bufferedDuringBackoff() throws IOException {
+        CassandraDropwizardExports exports = new CassandraDropwizardExports(tableMetrics(10));
+        RemoteWritePusher pusher = new RemoteWritePusher(exports, null, new RemoteWriteConfiguration(receiver.url(), 1000, 1000, 1 << 20, 5000, 60000, 60000));
+
+        receiver.status = 503;
+        pusher.push();
+        double buffered = value(pusher, "mcac_exporter_remote_write_buffered_bytes");
+        assertTrue(buffered > 0);
+
+        // Not sent before the backoff has passed, but buffered
+        pusher.push();
+        assertEquals(1, value(pusher, "mcac_exporter_remote_write_failed_requests"));
+        assertTrue(value(pusher, "mcac_exporter_remote_write_buffered_bytes") > buffered);
+    }
+
+    @Test
+    void boundedBuffer() throws IOException {
+        CassandraDropwizardExports exports = new CassandraDropwizardExports(tableMetrics(10));
+        // A collection is 80 samples in 8 requests
+        RemoteWritePusher pusher = pusher(exports, null, 10, 8 * 1024);
+
+        receiver.status = 503;
+        for (int i = 0; i < 100; i++) {
+            pusher.push();
+        }
+        assertTrue(value(pusher, "mcac_exporter_remote_write_buffered_bytes") <= 8 * 1024);
+        assertTrue(value(pusher, "mcac_exporter_remote_write_dropped_samples") > 0);
+
+        // The newest collections are kept
+        receiver.status = 200;
+        pusher.push();
+        assertEquals(101 * 80, receiver.series.size() + value(pusher, "mcac_exporter_remote_write_dropped_samples"), 0);
+    }
+
+    @Test
+    void dropRejected() throws IOException {
+        CassandraDropwizardExports exports = new CassandraDropwizardExports(tableMetrics(10));
+        RemoteWritePusher pusher = pusher(exports, null, 1000, 1 << 20);
+
+        receiver.status = 400;
+        pusher.push();
+        assertEquals(80, value(pusher, "mcac_exporter_remote_write_dropped_samples"));
+        assertEquals(0, value(pusher, "mcac_exporter_remote_write_buffered_bytes"));
+    }
+
+    @Test
+    void largePush() throws IOException {
+        // The requests are larger than the 64 KiB fragments of the compression
+        CassandraDropwizardExports exports = new CassandraDropwizardExports(tableMetrics(2000));
+        RemoteWritePusher pusher = pusher(exports, null, 5000, 64 << 20);
+        for (int i = 0; i < 3; i++) {
+            pusher.push();
+        }
+        assertEquals(3 * 2000 * 8, receiver.series.size());
+        assertEquals(3 * 2000 * 8, value(pusher, "mcac_exporter_remote_write_sent_samples"));
+        // The label sets compress well
+        assertTrue(value(pusher, "mcac_exporter_remote_write_sent_bytes") < receiver.uncompressedBytes.get() / 4);
+    }
+
+    @Test
+    void snappyRoundTrip() {
+        Random random = new Random(7);
+        for (int size : new int[]{ 0, 1, 3, 4, 63, 64, 65, 300, 70000, 200000 }) {
+            byte[] input = new byte[size];
+            for (int i = 0; i < size; i++) {
+                // Runs of a small alphabet compress, the random bytes in between do not
+                input[i] = (byte) (i % 1000 < 500 ? 'a' + random.nextInt(3) : random.nextInt());
+            }
+            assertArrayEquals(input, uncompress(Snappy.compress(input, 0, size)));
+        }
+    }
+
+    private static double value(Collector collector, String name) {
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                if (sample.name.equals(name) || sample.name.equals(name + "_total")) {
+                    return sample.value;
+                }
+            }
+        }
+        throw new AssertionError(name);
+    }
+
+    private static class Series {
+        private final Map<String, String> labels = new TreeMap<>();
+        private double value;
+        private long timestamp;
+    }
+
+    /**
+     * Decodes the WriteRequests like a Prometheus remote_write receiver
+     */
+    private static class FakeReceiver {
+        private final HttpServer server;
+        private final List<Series> series = new CopyOnWriteArrayList<>();
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger uncompressedBytes = new AtomicInteger();
+        private volatile int status = 204;
+
+        private FakeReceiver() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/api/v1/write", exchange -> {
+                byte[] body;
+                try (InputStream is = exchange.getRequestBody()) {
+                    body = is.readAllBytes();
+                }
+                if (status / 100 == 2) {
+                    assertEquals("snappy", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                    assertEquals("application/x-protobuf", exchange.getRequestHeaders().getFirst("Content-Type"));
+                    byte[] request = uncompress(body);
+                    uncompressedBytes.addAndGet(request.length);
+                    series.addAll(parseWriteRequest(request));
+                    requests.incrementAndGet();
+                }
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            });
+            server.start();
+        }
+
+        private String url() {
+            return "http://localhost:" + server.getAddress().getPort() + "/api/v1/write";
+        }
+
+        private void close() {
+            server.stop(0);
+        }
+    }
+
+    private static List<Series> parseWriteRequest(byte[] request) {
+        List<Series> parsed = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(request).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            assertEquals(0x0a, buffer.get());
+            int seriesEnd = (int) readVarint(buffer) + buffer.position();
+            Series series = new Series();
+            String previousName = "";
+            while (buffer.position() < seriesEnd) {
+                int tag = buffer.get();
+                int length = (int) readVarint(buffer);
+                if (tag == 0x0a) {
+                    assertEquals(0x0a, buffer.get());
+                    String name = readString(buffer);
+                    assertEquals(0x12, buffer.get());
+                    String value = readString(buffer);
+                    // Labels are sorted by their names
+                    assertTrue(previousName.compareTo(name) < 0, name);
+                    previousName = name;
+                    series.labels.put(name, value);
+                } else {
+                    assertEquals(0x12, tag);
+                    int sampleEnd = buffer.position() + length;
+                    assertEquals(0x09, buffer.get());
+                    series.value = buffer.getDouble();
+                    assertEquals(0x10, buffer.get());
+                    series.timestamp = readVarint(buffer);
+                    assertEquals(sampleEnd, buffer.position());
+                }
+            }
+            assertEquals("__name__", series.labels.keySet().iterator().next());
+            parsed.add(series);
+        }
+        return parsed;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[(int) readVarint(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Snappy block format decoder
+     */
+    private static byte[] uncompress(byte[] compressed) {
+        ByteBuffer input = ByteBuffer.wrap(compressed).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] output = new byte[(int) readVarint(input)];
+        int out = 0;
+        while (input.hasRemaining()) {
+            int tag = input.get() & 0xFF;
+            int length;
+            int offset;
+            switch (tag & 3) {
+                case 0:
+                    length = tag >>> 2;
+                    if (length >= 60) {
+                        int bytes = length - 59;
+                        length = 0;
+                        for (int i = 0; i < bytes; i++) {
+                            length |= (input.get() & 0xFF) << (8 * i);
+                        }
+                    }
+                    length++;
+                    input.get(output, out, length);
+                    out += length;
+                    continue;
+                case 1:
+                    length = 4 + ((tag >>> 2) & 7);
+                    offset = ((tag >>> 5) << 8) | (input.get() & 0xFF);
+                    break;
+                case 2:
+                    length = 1 + (tag >>> 2);
+                    offset = input.getShort() & 0xFFFF;
+                    break;
+                default:
+                    length = 1 + (tag >>> 2);
+                    offset = input.getInt();
+            }
+            assertTrue(offset > 0 && offset <= out);
+            for (int i = 0; i < length; i++, out++) {
+                output[out] = output[out - offset];
+            }
+        }
+        assertEquals(output.length, out);
+        return output;
+    }
+}
@@ -0,0 +1,223 @@
+package io.k8ssandra.metrics.prometheus;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.config.HttpConfiguration;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SampleArchiveTest {
+
+    private static final long START = 1_700_000_000_000L;
+    private static final long INTERVAL = 15_000;
+
+    private Path directory;
+    private Path file;
+    private MetricRegistry registry;
+    private List<Counter> counters;
+    private CassandraDropwizardExports exports;
+
+    @BeforeEach
+    void setup() throws IOException {
+        directory = Files.createTempDirectory("archive");
+        file = directory.resolve("metrics.archive");
+        registry = new MetricRegistry();
+        counters = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            counters.add(registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes.ks.t" + i));
+        }
+        exports = new CassandraDropwizardExports(registry);
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory);
+    }
+
+    private void record(SampleArchive archive, int from, int to) throws IOException {
+        for (int snapshot = from; snapshot < to; snapshot++) {
+            for (int i = 0; i < counters.size(); i++) {
+                // Table i grows by i each snapshot
+                counters.get(i).inc(i);
+            }
+            archive.record(START + snapshot * INTERVAL);
+        }
+    }
+
+    /**
+     * @return value of the table's series by the snapshot's timestamp
+     */
+    private static Map<Long, Double> replay(SampleArchive archive, String table, long from, long to) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.replay(out, from, to);
+        return parse(out.toString(StandardCharsets.UTF_8), table);
+    }
+
+    private static Map<Long, Double> parse(String text, String table) {
+        assertTrue(text.endsWith("# EOF\n"));
+        Map<Long, Double> values = new TreeMap<>();
+        for (String line : text.split("\n")) {
+            if (line.startsWith("#") || !line.contains("table=\"" + table + "\"")) {
+                continue;
+            }
+            assertTrue(line.startsWith("org_apache_cassandra_metrics_table_pending_flushes{"), line);
+            String[] parts = line.substring(line.indexOf('}') + 2).split(" ");
+            values.put((long) (Double.parseDouble(parts[1]) * 1000), Double.parseDouble(parts[0]));
+        }
+        return values;
+    }
+
+    @Test
+    void recordAndReplay() throws IOException {
+        try (SampleArchive archive = new SampleArchive(exports, file, 1 << 20, INTERVAL)) {
+            record(archive, 0, 100);
+
+            Map<Long, Double> t3 = replay(archive, "t3", Long.MIN_VALUE, Long.MAX_VALUE);
+            assertEquals(100, t3.size());
+            for (int snapshot = 0; snapshot < 100; snapshot++) {
+                assertEquals(3.0 * (snapshot + 1), t3.get(START + snapshot * INTERVAL).doubleValue());
+            }
+
+            // The range includes both ends
+            Map<Long, Double> range = replay(archive, "t7", START + 50 * INTERVAL, START + 59 * INTERVAL);
+            assertEquals(10, range.size());
+            assertEquals(7.0 * 51, range.get(START + 50 * INTERVAL).doubleValue());
+        }
+    }
+
+    @Test
+    void newSeriesStartKeyframe() throws IOException {
+        try (SampleArchive archive = new SampleArchive(exports, file, 1 << 20, INTERVAL)) {
+            record(archive, 0, 3);
+            counters.add(registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes.ks.t20"));
+            record(archive, 3, 6);
+            registry.remove("org.apache.cassandra.metrics.Table.PendingFlushes.ks.t0");
+            record(archive, 6, 9);
+
+            assertEquals(Map.of(START + 3 * INTERVAL, 20.0, START + 4 * INTERVAL, 40.0, START + 5 * INTERVAL, 60.0,
+                    START + 6 * INTERVAL, 80.0, START + 7 * INTERVAL, 100.0, START + 8 * INTERVAL, 120.0),
+                    replay(archive, "t20", Long.MIN_VALUE, Long.MAX_VALUE));
+            assertEquals(6, replay(archive, "t0", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        }
+    }
+
+    @Test
+    void ringOverwritesOldest() throws IOException {
+        try (SampleArchive archive = new SampleArchive(exports, file, 16 * 1024, INTERVAL)) {
+            record(archive, 0, 2000);
+            assertEquals(16 * 1024, Files.size(file));
+
+            List<Long> timestamps = archive.getTimestamps();
+            assertTrue(timestamps.size() < 2000);
+            assertEquals(START + 1999 * INTERVAL, timestamps.get(timestamps.size() - 1).longValue());
+
+            // The snapshots after the oldest surviving keyframe, up to the newest
+            Map<Long, Double> t5 = replay(archive, "t5", Long.MIN_VALUE, Long.MAX_VALUE);
+            assertTrue(t5.size() > SampleArchive.KEYFRAME_INTERVAL);
+            assertTrue(t5.size() <= timestamps.size());
+            long expected = START + (2000 - t5.size()) * INTERVAL;
+            for (Map.Entry<Long, Double> entry : t5.entrySet()) {
+                assertEquals(expected, entry.getKey().longValue());
+                assertEquals(5.0 * ((expected - START) / INTERVAL + 1), entry.getValue().doubleValue());
+                expected += INTERVAL;
+            }
+        }
+    }
+
+    @Test
+    void restart() throws IOException {
+        try (SampleArchive archive = new SampleArchive(exports, file, 64 * 1024, INTERVAL)) {
+            record(archive, 0, 10);
+        }
+        try (SampleArchive archive = new SampleArchive(exports, file, 64 * 1024, INTERVAL)) {
+            assertEquals(10, archive.getTimestamps().size());
+            record(archive, 10, 20);
+            Map<Long, Double> t2 = replay(archive, "t2", Long.MIN_VALUE, Long.MAX_VALUE);
+            assertEquals(20, t2.size());
+            assertEquals(40.0, t2.get(START + 19 * INTERVAL).doubleValue());
+        }
+
+        // Until the ring is full, and after
+        for (int restart = 0; restart < 20; restart++) {
+            try (SampleArchive archive = new SampleArchive(exports, file, 64 * 1024, INTERVAL)) {
+                record(archive, 20 + restart * 50, 70 + restart * 50);
+                List<Long> timestamps = archive.getTimestamps();
+                assertEquals(START + (69 + restart * 50) * INTERVAL, timestamps.get(timestamps.size() - 1).longValue());
+            }
+        }
+    }
+
+    @Test
+    void truncatedAndCorrupted() throws IOException {
+        int recorded;
+        try (SampleArchive archive = new SampleArchive(exports, file, 64 * 1024, INTERVAL)) {
+            record(archive, 0, 1000);
+            recorded = archive.getTimestamps().size();
+        }
+
+        // Cut in the middle of a record, and damage another one
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(20 * 1024 + 7);
+            raf.seek(10 * 1024);
+            raf.write(0x55);
+        }
+
+        try (SampleArchive archive = new SampleArchive(exports, file, 64 * 1024, INTERVAL)) {
+            assertEquals(64 * 1024, Files.size(file));
+            List<Long> timestamps = archive.getTimestamps();
+            assertTrue(timestamps.size() > 0);
+            assertTrue(timestamps.size() < recorded - 1);
+
+            // The surviving snapshots replay with their own values
+            for (Map.Entry<Long, Double> entry : replay(archive, "t4", Long.MIN_VALUE, Long.MAX_VALUE).entrySet()) {
+                assertEquals(4.0 * ((entry.getKey() - START) / INTERVAL + 1), entry.getValue().doubleValue());
+            }
+
+            // Recording continues after the newest one
+            record(archive, 1000, 1010);
+            Map<Long, Double> t4 = replay(archive, "t4", START + 1000 * INTERVAL, Long.MAX_VALUE);
+            assertEquals(10, t4.size());
+            assertEquals(4.0 * 1010, t4.get(START + 1009 * INTERVAL).doubleValue());
+        }
+    }
+
+    @Test
+    void serveArchive() throws IOException {
+        HttpConfiguration http = new HttpConfiguration();
+        http.setAddress("localhost");
+        http.setPort(0);
+        try (SampleArchive archive = new SampleArchive(exports, file, 1 << 20, INTERVAL);
+             MetricsHttpServer server = new MetricsHttpServer(http, exports, new CollectorRegistry(), archive)) {
+            record(archive, 0, 10);
+
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/archive?start="
+                    + (START + 5 * INTERVAL) / 1000 + "&end=" + (START + 7 * INTERVAL) / 1000.0).openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(OpenMetricsWriter.CONTENT_TYPE_OPENMETRICS_100, connection.getContentType());
+            try (InputStream is = connection.getInputStream()) {
+                Map<Long, Double> t1 = parse(new String(is.readAllBytes(), StandardCharsets.UTF_8), "t1");
+                assertEquals(Map.of(START + 5 * INTERVAL, 6.0, START + 6 * INTERVAL, 7.0, START + 7 * INTERVAL, 8.0), t1);
+            }
+        }
+    }
+}
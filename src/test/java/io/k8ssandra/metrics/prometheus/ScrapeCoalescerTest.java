@@ -0,0 +1,82 @@
+package io.k8ssandra.metrics.prometheus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ScrapeCoalescerTest {
+
+    private static final int SCRAPERS = 8;
+
+    @Test
+    void concurrentCallersShareCollection() throws Exception {
+        ScrapeCoalescer<Integer> coalescer = new ScrapeCoalescer<>(0);
+        AtomicInteger collections = new AtomicInteger();
+        CountDownLatch collecting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(SCRAPERS);
+        try {
+            Callable<Integer> scrape = () -> coalescer.get(() -> {
+                collecting.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return collections.incrementAndGet();
+            });
+
+            List<Future<Integer>> scrapers = new ArrayList<>(SCRAPERS);
+            scrapers.add(executor.submit(scrape));
+            collecting.await();
+            for (int i = 1; i < SCRAPERS; i++) {
+                scrapers.add(executor.submit(scrape));
+            }
+            // Give the others time to join the running collection
+            Thread.sleep(200);
+            release.countDown();
+
+            for (Future<Integer> scraper : scrapers) {
+                assertEquals(1, scraper.get(10, TimeUnit.SECONDS).intValue());
+            }
+            assertEquals(1, collections.get());
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void freshResultIsReused() {
+        AtomicInteger collections = new AtomicInteger();
+
+        ScrapeCoalescer<Integer> coalescer = new ScrapeCoalescer<>(60_000);
+        assertEquals(1, coalescer.get(collections::incrementAndGet).intValue());
+        assertEquals(1, coalescer.get(collections::incrementAndGet).intValue());
+
+        ScrapeCoalescer<Integer> uncached = new ScrapeCoalescer<>(0);
+        assertEquals(2, uncached.get(collections::incrementAndGet).intValue());
+        assertEquals(3, uncached.get(collections::incrementAndGet).intValue());
+    }
+
+    @Test
+    void failedCollectionIsNotCached() {
+        ScrapeCoalescer<Integer> coalescer = new ScrapeCoalescer<>(60_000);
+        assertThrows(IllegalStateException.class, () -> coalescer.get(() -> {
+            throw new IllegalStateException();
+        }));
+        assertEquals(5, coalescer.get(() -> 5).intValue());
+    }
+}
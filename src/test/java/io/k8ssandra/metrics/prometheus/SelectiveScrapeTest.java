@@ -0,0 +1,158 @@
+package io.k8ssandra.metrics.prometheus;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.prometheus.client.Collector;
+import io.k8ssandra.metrics.config.HttpConfiguration;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SelectiveScrapeTest {
+
+    private static MetricRegistry tableMetrics() {
+        MetricRegistry registry = new MetricRegistry();
+        for (String keyspace : new String[]{ "ks1", "ks2" }) {
+            for (String table : new String[]{ "t1", "t2", "t3" }) {
+                registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes." + keyspace + "." + table).inc(3);
+                registry.meter("org.apache.cassandra.metrics.Table.BytesFlushed." + keyspace + "." + table).mark(5);
+                registry.timer("org.apache.cassandra.metrics.Table.ReadLatency." + keyspace + "." + table);
+            }
+            registry.timer("org.apache.cassandra.metrics.keyspace.ReadLatency." + keyspace);
+        }
+        registry.register("org.apache.cassandra.metrics.Storage.Load", (Gauge<Long>) () -> 1L);
+        return registry;
+    }
+
+    @Test
+    void describeFamilies() {
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(tableMetrics());
+        List<Collector.MetricFamilySamples> descriptions = exporter.describe();
+        assertEquals(5, descriptions.size());
+
+        Set<String> names = new HashSet<>();
+        for (Collector.MetricFamilySamples description : descriptions) {
+            assertTrue(description.samples.isEmpty());
+            names.add(description.name);
+        }
+        assertTrue(names.contains("org_apache_cassandra_metrics_table_bytes_flushed"));
+        assertTrue(names.contains("org_apache_cassandra_metrics_storage_load"));
+    }
+
+    @Test
+    void selectByName() {
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(tableMetrics());
+
+        // Family names and sample names both select the whole family
+        List<Collector.MetricFamilySamples> collect = exporter.collect(Set.of("org_apache_cassandra_metrics_table_bytes_flushed",
+                "org_apache_cassandra_metrics_table_read_latency_count", "org_apache_cassandra_metrics_storage_load", "missing"), null, null);
+        assertEquals(3, collect.size());
+        for (Collector.MetricFamilySamples family : collect) {
+            switch (family.name) {
+                case "org_apache_cassandra_metrics_table_bytes_flushed":
+                    assertEquals(Collector.Type.COUNTER, family.type);
+                    assertEquals(6, family.samples.size());
+                    break;
+                case "org_apache_cassandra_metrics_table_read_latency":
+                    assertEquals(6 * 7, family.samples.size());
+                    break;
+                default:
+                    assertEquals("org_apache_cassandra_metrics_storage_load", family.name);
+            }
+        }
+
+        assertEquals(1, exporter.collect(Set.of("org_apache_cassandra_metrics_table_bytes_flushed_total"), null, null).size());
+        assertEquals(5, exporter.collect(Set.of(), null, null).size());
+    }
+
+    @Test
+    void selectByKeyspaceAndTable() {
+        MetricRegistry registry = tableMetrics();
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry);
+
+        // The tables' families and the keyspace's own
+        List<Collector.MetricFamilySamples> collect = exporter.collect(Set.of(), "ks1", null);
+        assertEquals(4, collect.size());
+        for (Collector.MetricFamilySamples family : collect) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                assertEquals("ks1", sample.labelValues.get(sample.labelNames.indexOf("keyspace")));
+            }
+        }
+
+        collect = exporter.collect(Set.of(), "ks2", "t3");
+        assertEquals(3, collect.size());
+        int samples = 0;
+        for (Collector.MetricFamilySamples family : collect) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                assertEquals("t3", sample.labelValues.get(sample.labelNames.indexOf("table")));
+                samples++;
+            }
+        }
+        assertEquals(1 + 1 + 7, samples);
+
+        collect = exporter.collect(Set.of("org_apache_cassandra_metrics_table_pending_flushes"), "ks2", "t3");
+        assertEquals(1, collect.size());
+        assertEquals(1, collect.get(0).samples.size());
+        assertEquals(0, exporter.collect(Set.of(), "ks3", null).size());
+
+        // Removed series are no longer in the index
+        registry.remove("org.apache.cassandra.metrics.Table.PendingFlushes.ks2.t3");
+        registry.remove("org.apache.cassandra.metrics.Table.BytesFlushed.ks2.t3");
+        registry.remove("org.apache.cassandra.metrics.Table.ReadLatency.ks2.t3");
+        assertEquals(0, exporter.collect(Set.of(), "ks2", "t3").size());
+        assertEquals(3, exporter.collect(Set.of(), "ks2", "t2").size());
+    }
+
+    @Test
+    void serveSelection() throws IOException {
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(tableMetrics());
+        CollectorRegistry collectorRegistry = new CollectorRegistry();
+        collectorRegistry.register(new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                return List.of(new MetricFamilySamples("jvm_threads", Type.GAUGE, "", List.of(
+                        new MetricFamilySamples.Sample("jvm_threads", List.of(), List.of(), 10))));
+            }
+        });
+
+        HttpConfiguration http = new HttpConfiguration();
+        http.setAddress("localhost");
+        http.setPort(0);
+        try (MetricsHttpServer server = new MetricsHttpServer(http, exporter, collectorRegistry, null)) {
+            String body = get(server, "name[]=org_apache_cassandra_metrics_storage_load&name%5B%5D=jvm_threads");
+            assertTrue(body.contains("org_apache_cassandra_metrics_storage_load{"));
+            assertTrue(body.contains("jvm_threads 10.0"));
+            assertFalse(body.contains("org_apache_cassandra_metrics_table_"));
+
+            body = get(server, "keyspace=ks1&table=t2");
+            assertTrue(body.contains("table=\"t2\""));
+            assertFalse(body.contains("table=\"t1\""));
+            assertFalse(body.contains("jvm_threads"));
+            assertFalse(body.contains("org_apache_cassandra_metrics_storage_load"));
+
+            body = get(server, null);
+            assertTrue(body.contains("jvm_threads 10.0"));
+            assertTrue(body.contains("table=\"t1\""));
+        }
+    }
+
+    private static String get(MetricsHttpServer server, String query) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/metrics" + (query != null ? "?" + query : "")).openConnection();
+        assertEquals(200, connection.getResponseCode());
+        try (InputStream is = connection.getInputStream()) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package io.k8ssandra.metrics.prometheus;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.k8ssandra.metrics.config.HttpConfiguration;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TextFormatWriterTest {
+
+    @Test
+    void formatDoubles() {
+        assertEquals("0", format(0.0));
+        assertEquals("3", format(3.0));
+        assertEquals("-42", format(-42.0));
+        assertEquals("0.5", format(0.5));
+        assertEquals("0.1", format(0.1));
+        assertEquals("0.999", format(0.999));
+        assertEquals("1200000.5", format(1200000.5));
+        assertEquals("0.0000123", format(0.0000123));
+        assertEquals("1.5e-7", format(1.5e-7));
+        assertEquals("1e20", format(1e20));
+        assertEquals("-0.25", format(-0.25));
+        assertEquals("NaN", format(Double.NaN));
+        assertEquals("+Inf", format(Double.POSITIVE_INFINITY));
+        assertEquals("-Inf", format(Double.NEGATIVE_INFINITY));
+
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            double value = random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+            assertRoundTrips(value);
+        }
+    }
+
+    @Test
+    void formatDoublesWithoutPrecisionLoss() {
+        assertRoundTrips(0.1 + 0.2);
+        assertRoundTrips(1.0 / 3);
+        assertRoundTrips(-2.0 / 3);
+        assertRoundTrips(Math.PI * 1e-7);
+        assertRoundTrips(Math.nextUp(1.0));
+        assertRoundTrips(Double.MIN_VALUE);
+        assertRoundTrips(Double.MAX_VALUE);
+        assertRoundTrips(123456789.123456789);
+
+        Random random = new Random(11);
+        for (int i = 0; i < 100_000; i++) {
+            assertRoundTrips(Double.longBitsToDouble(random.nextLong()));
+        }
+    }
+
+    private static void assertRoundTrips(double value) {
+        String formatted = format(value);
+        if (Double.isNaN(value)) {
+            assertEquals("NaN", formatted);
+            return;
+        }
+        assertEquals(Double.doubleToLongBits(value), Double.doubleToLongBits(Double.parseDouble(formatted.replace("Inf", "Infinity"))), formatted);
+    }
+
+    @Test
+    void sameSeriesAsTextFormat() throws IOException {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry);
+        for (int i = 0; i < 10; i++) {
+            registry.counter(String.format("c_nr_%d", i)).inc(i);
+            registry.meter(String.format("m_nr_%d", i)).mark(i * 1000L);
+            registry.timer(String.format("t_nr_%d", i)).update(i * 1234L, TimeUnit.MICROSECONDS);
+            registry.histogram(String.format("h_nr_%d", i)).update(i * 7);
+            registry.register(String.format("g_nr_%d", i), (Gauge<Double>) () -> 3.14);
+            registry.register(String.format("gh_nr_%d", i), (Gauge<long[]>) () -> new long[]{1,2,3,0});
+            registry.counter(String.format("org.apache.cassandra.metrics.Table.ReadCount.ks_%d.tbl \"quoted\"", i)).inc();
+        }
+
+        TextFormatWriter writer = new TextFormatWriter();
+        exporter.write(writer);
+        String direct = writer.toString(StandardCharsets.UTF_8);
+
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(exporter.collect()));
+
+        Map<String, Double> expectedSeries = parse(expected.toString());
+        Map<String, Double> directSeries = parse(direct);
+        assertEquals(expectedSeries.keySet(), directSeries.keySet());
+        for (Map.Entry<String, Double> entry : expectedSeries.entrySet()) {
+            assertEquals(entry.getValue(), directSeries.get(entry.getKey()), Math.abs(entry.getValue()) * 1e-14, entry.getKey());
+        }
+
+        // Buffer is reusable
+        writer.reset();
+        exporter.write(writer);
+        assertEquals(direct, writer.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void cachedLinesMatchEncodedLines() {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry);
+        for (int i = 0; i < 10; i++) {
+            registry.counter(String.format("org.apache.cassandra.metrics.Table.PendingFlushes.ks.t%d", i)).inc(i);
+            registry.timer(String.format("org.apache.cassandra.metrics.Table.ReadLatency.ks.t%d", i)).update(i * 1234L, TimeUnit.MICROSECONDS);
+            registry.register(String.format("org.apache.cassandra.metrics.Table.CompressionRatio.ks.t%d", i), (Gauge<Double>) () -> 0.25);
+        }
+
+        TextFormatWriter cachingWriter = new TextFormatWriter(true);
+        TextFormatWriter writer = new TextFormatWriter();
+        for (int scrape = 0; scrape < 4; scrape++) {
+            // Some series change between the scrapes, the others are served from the cache after the second scrape
+            registry.counter("org.apache.cassandra.metrics.Table.PendingFlushes.ks.t" + scrape).inc();
+            registry.timer("org.apache.cassandra.metrics.Table.ReadLatency.ks.t" + scrape).update(scrape, TimeUnit.SECONDS);
+
+            cachingWriter.reset();
+            exporter.write(cachingWriter);
+            writer.reset();
+            exporter.write(writer);
+            assertEquals(writer.toString(StandardCharsets.UTF_8), cachingWriter.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void serveOverHttp() throws IOException {
+        MetricRegistry registry = new MetricRegistry();
+        CassandraDropwizardExports exporter = new CassandraDropwizardExports(registry);
+        registry.counter("org.apache.cassandra.metrics.Table.ReadCount.system.peers").inc(5);
+
+        HttpConfiguration http = new HttpConfiguration();
+        http.setAddress("localhost");
+        http.setPort(0);
+        try (MetricsHttpServer server = new MetricsHttpServer(http, exporter, new CollectorRegistry(), null)) {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/metrics").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(TextFormatWriter.CONTENT_TYPE_004, connection.getContentType());
+            try (InputStream is = connection.getInputStream()) {
+                String body = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+                assertTrue(body.contains("# TYPE org_apache_cassandra_metrics_table_read_count gauge\n"));
+                assertTrue(body.contains("keyspace=\"system\",table=\"peers\"} 5\n"));
+            }
+        }
+    }
+
+    private static String format(double value) {
+        TextFormatWriter writer = new TextFormatWriter();
+        writer.writeDouble(value);
+        return writer.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Series to value, with the label formatting differences (trailing comma) removed
+     */
+    private static Map<String, Double> parse(String exposition) {
+        Map<String, Double> series = new HashMap<>();
+        for (String line : exposition.split("\n")) {
+            int valueIndex = line.lastIndexOf(' ');
+            String key = line.substring(0, valueIndex).replace(",}", "}");
+            double value = line.startsWith("#") ? 0 : Double.parseDouble(line.substring(valueIndex + 1).replace("Inf", "Infinity"));
+            series.put(line.startsWith("#") ? line : key, value);
+        }
+        return series;
+    }
+}